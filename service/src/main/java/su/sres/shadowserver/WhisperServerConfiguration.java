@@ -95,6 +95,16 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private MessageScyllaDbConfiguration messageScyllaDb;
 
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessageDeliveryConfiguration messageDelivery = new MessageDeliveryConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessageCompressionConfiguration messageCompression = new MessageCompressionConfiguration();
+
   @Valid
   @NotNull
   @JsonProperty
@@ -300,6 +310,14 @@ public class WhisperServerConfiguration extends Configuration {
     return messageScyllaDb;
   }
 
+  public MessageDeliveryConfiguration getMessageDeliveryConfiguration() {
+    return messageDelivery;
+  }
+
+  public MessageCompressionConfiguration getMessageCompressionConfiguration() {
+    return messageCompression;
+  }
+
   public ScyllaDbConfiguration getKeysScyllaDbConfiguration() {
     return keysScyllaDb;
   }
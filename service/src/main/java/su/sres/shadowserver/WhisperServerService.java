@@ -125,9 +125,11 @@ import su.sres.shadowserver.push.ProvisioningManager;
 import su.sres.shadowserver.push.MessageSender;
 import su.sres.shadowserver.push.ReceiptSender;
 import su.sres.shadowserver.recaptcha.RecaptchaClient;
+import su.sres.shadowserver.redis.ClusterClientSideCache;
 import su.sres.shadowserver.redis.ConnectionEventLogger;
+import su.sres.shadowserver.redis.FaultTolerantRedisClient;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
-import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.redis.ReplicaHealthMonitor;
 import su.sres.shadowserver.s3.PolicySigner;
 import su.sres.shadowserver.s3.PostPolicyGenerator;
 import su.sres.shadowserver.storage.*;
@@ -431,7 +433,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
     Profiles profiles = new Profiles(accountDatabase);
     KeysScyllaDb keysScyllaDb = new KeysScyllaDb(preKeyScyllaDb, scyllaKeysConfig.getTableName());
-    MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(messageScyllaDb, scyllaMessageConfig.getTableName(), scyllaMessageConfig.getTimeToLive());
+    MessageStore messagesScyllaDb = MessageStore.fromConfiguration(messageScyllaDb, scyllaMessageConfig,
+        new PayloadCompressor(config.getMessageCompressionConfiguration(), "scylla"));
     GroupsScyllaDb groupsScyllaDb = new GroupsScyllaDb(groupsDynamoDb, scyllaGroupsConfig.getTableName());
     GroupLogsScyllaDb groupLogsScyllaDb = new GroupLogsScyllaDb(groupLogsDynamoDb, scyllaGroupLogsConfig.getTableName());
     AbusiveHostRules abusiveHostRules = new AbusiveHostRules(abuseDatabase);
@@ -441,10 +444,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ReportMessageScyllaDb reportMessageScyllaDb = new ReportMessageScyllaDb(reportMessageScyllaDbClient, scyllaReportMessageConfig.getTableName());
 
     RedisClientFactory pubSubClientFactory = new RedisClientFactory("pubsub_cache", config.getPubsubCacheConfiguration().getUrl(), config.getPubsubCacheConfiguration().getReplicaUrls(), config.getPubsubCacheConfiguration().getCircuitBreakerConfiguration());
-    RedisClientFactory directoryClientFactory = new RedisClientFactory("directory_cache", config.getDirectoryConfiguration().getUrl(), config.getDirectoryConfiguration().getReplicaUrls(), config.getDirectoryConfiguration().getCircuitBreakerConfiguration());
 
-    ReplicatedJedisPool pubsubClient = pubSubClientFactory.getRedisClientPool();
-    ReplicatedJedisPool directoryClient = directoryClientFactory.getRedisClientPool();
+    FaultTolerantRedisClient pubsubClient = new FaultTolerantRedisClient("pubsub_cache", config.getPubsubCacheConfiguration());
 
     ClientResources generalCacheClientResources = ClientResources.builder().build();
     ClientResources messageCacheClientResources = ClientResources.builder().build();
@@ -483,6 +484,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
    
     ClientPresenceManager clientPresenceManager = new ClientPresenceManager(clientPresenceCluster, recurringJobExecutor, keyspaceNotificationDispatchExecutor);
 
+    ReplicaHealthMonitor directoryReplicaHealthMonitor = new ReplicaHealthMonitor("directory_cache", config.getDirectoryConfiguration(), recurringJobExecutor);
+    FaultTolerantRedisClient directoryClient = new FaultTolerantRedisClient("directory_cache", config.getDirectoryConfiguration(), directoryReplicaHealthMonitor);
     DirectoryManager directory = new DirectoryManager(directoryClient);
     PendingAccountsManager pendingAccountsManager = new PendingAccountsManager(pendingAccounts, cacheCluster);
     PendingDevicesManager pendingDevicesManager = new PendingDevicesManager(pendingDevices, cacheCluster);
@@ -491,16 +494,19 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     // FederatedClientManager federatedClientManager = new
     // FederatedClientManager(environment, config.getJerseyClientConfiguration(),
     // config.getFederationConfiguration());
-    ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster);
-    MessagesCache messagesCache = new MessagesCache(messagesCluster, messagesCluster, keyspaceNotificationDispatchExecutor);
+    ClusterClientSideCache cacheClientSideCache = new ClusterClientSideCache("main_cache_cluster", cacheCluster, config.getCacheClusterConfiguration().getClientSideCacheConfiguration(), List.of("AccountByLogin::", "profiles::"), recurringJobExecutor);
+    ProfilesManager profilesManager = new ProfilesManager(profiles, cacheCluster, cacheClientSideCache);
+    MessagesCache messagesCache = new MessagesCache(messagesCluster, messagesCluster, keyspaceNotificationDispatchExecutor,
+        config.getMessageCacheConfiguration().getSpillQueueSize(), Duration.ofMinutes(config.getMessageCacheConfiguration().getSpillDurationMinutes()),
+        new PayloadCompressor(config.getMessageCompressionConfiguration(), "cache"));
     PushLatencyManager pushLatencyManager = new PushLatencyManager(metricsCluster);
     ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageScyllaDb, Metrics.globalRegistry);
     MessagesManager messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, pushLatencyManager, reportMessageManager);
-    AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directory, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
+    AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directory, cacheCluster, cacheClientSideCache, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
     RemoteConfigsManager remoteConfigsManager = new RemoteConfigsManager(remoteConfigs);
     DeadLetterHandler deadLetterHandler = new DeadLetterHandler(accountsManager, messagesManager);
     DispatchManager dispatchManager = new DispatchManager(pubSubClientFactory, Optional.of(deadLetterHandler));
-    PubSubManager pubSubManager = new PubSubManager(pubsubClient, dispatchManager);
+    PubSubManager pubSubManager = new PubSubManager(pubsubClient, dispatchManager, recurringJobExecutor);
     // APNSender apnSender = new APNSender(apnSenderExecutor, accountsManager,
     // config.getApnConfiguration());
     GCMSender gcmSender = new GCMSender(gcmSenderExecutor, accountsManager, config.getGcmConfiguration().getApiKey());
@@ -541,7 +547,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
         gcmSender, pushChallengeScyllaDb);
     RateLimitChallengeManager rateLimitChallengeManager = new RateLimitChallengeManager(pushChallengeManager, recaptchaClient, preKeyRateLimiter, unsealedSenderRateLimiter, rateLimiters, dynamicConfig.getRateLimitChallengeConfiguration());
 
-    MessagePersister messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfig, Duration.ofMinutes(config.getMessageCacheConfiguration().getPersistDelayMinutes()));
+    MessagePersister messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, clientPresenceManager, dynamicConfig, Duration.ofMinutes(config.getMessageCacheConfiguration().getPersistDelayMinutes()),
+        config.getMessageCacheConfiguration().getPersistPriority());
 
     final List<AccountDatabaseCrawlerListener> accountDatabaseCrawlerListeners = new ArrayList<>();
     accountDatabaseCrawlerListeners.add(new PushFeedbackProcessor(accountsManager));
@@ -550,6 +557,10 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     if (localParams.getAccountExpirationPolicy() != 0) accountDatabaseCrawlerListeners.add(new AccountCleaner(accountsManager, localParams.getAccountExpirationPolicy(), localParams.getAccountLifetime()));
         
     accountDatabaseCrawlerListeners.add(new AccountsScyllaDbMigrator(accountsScyllaDb));
+    accountDatabaseCrawlerListeners.add(new AccountCacheEncodingMigrator(cacheCluster));
+    accountDatabaseCrawlerListeners.add(new UsernameCacheMigrator(cacheCluster));
+    accountDatabaseCrawlerListeners.add(new ExpiredMessagesSweeper(messagesScyllaDb));
+    accountDatabaseCrawlerListeners.add(new QueueDepthSampler(messagesManager, scyllaMessageConfig.getTimeToLive()));
 
     HttpClient currencyClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).connectTimeout(Duration.ofSeconds(10)).build();
     FixerClient fixerClient = new FixerClient(currencyClient, config.getPaymentsServiceConfiguration().getFixerApiKey());
@@ -561,6 +572,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
 
     // apnSender.setApnFallbackManager(apnFallbackManager);
     // environment.lifecycle().manage(apnFallbackManager);
+    environment.lifecycle().manage(cacheClientSideCache);
     environment.lifecycle().manage(pubSubManager);
     environment.lifecycle().manage(messageSender);
     environment.lifecycle().manage(accountDatabaseCrawler);
@@ -571,6 +583,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     environment.lifecycle().manage(currencyManager);
     environment.lifecycle().manage(torExitNodeManager);
     environment.lifecycle().manage(asnManager);
+    environment.lifecycle().manage(directoryReplicaHealthMonitor);
 
     MinioClient minioClient = MinioClient.builder()
         .endpoint(minioConfig.getUri())
@@ -679,7 +692,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ///
     WebSocketEnvironment<Account> webSocketEnvironment = new WebSocketEnvironment<>(environment, config.getWebSocketConfiguration(), 90000);
     webSocketEnvironment.setAuthenticator(new WebSocketAccountAuthenticator(accountAuthenticator));
-    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(receiptSender, messagesManager, messageSender, null, clientPresenceManager, retrySchedulingExecutor));
+    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(receiptSender, messagesManager, messageSender, null, clientPresenceManager, retrySchedulingExecutor,
+        config.getMessageDeliveryConfiguration()));
     webSocketEnvironment.jersey().register(MultiRecipientMessageProvider.class);
     webSocketEnvironment.jersey().register(new MetricsApplicationEventListener(TrafficSource.WEBSOCKET));
     webSocketEnvironment.jersey().register(new KeepAliveController(clientPresenceManager));
@@ -689,7 +703,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     webSocketEnvironment.jersey().register(attachmentControllerV2);
     webSocketEnvironment.jersey().register(remoteConfigController);
 
-    WebSocketEnvironment<Account> provisioningEnvironment = new WebSocketEnvironment<>(environment, webSocketEnvironment.getRequestLog(), 60000);
+    WebSocketEnvironment<Account> provisioningEnvironment = new WebSocketEnvironment<>(environment, webSocketEnvironment.getRequestLog(), 60000, config.getWebSocketConfiguration().getOutboundQueue(),
+        config.getWebSocketConfiguration().getRequestTimeout());
     provisioningEnvironment.setConnectListener(new ProvisioningConnectListener(pubSubManager));
     provisioningEnvironment.jersey().register(new MetricsApplicationEventListener(TrafficSource.WEBSOCKET));
     provisioningEnvironment.jersey().register(new KeepAliveController(clientPresenceManager));
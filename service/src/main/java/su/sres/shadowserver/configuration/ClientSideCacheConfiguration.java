@@ -0,0 +1,61 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import java.time.Duration;
+
+public class ClientSideCacheConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  // the number of Redis keys held locally
+  @JsonProperty
+  @Min(1)
+  private long maxSize = 100_000;
+
+  // a safety net only; entries are normally evicted by invalidation long before this
+  @JsonProperty
+  @NotNull
+  private Duration maxAge = Duration.ofMinutes(10);
+
+  // how often a canary key is written to measure invalidation lag and to check that invalidations still arrive
+  @JsonProperty
+  @NotNull
+  private Duration probeInterval = Duration.ofSeconds(10);
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @VisibleForTesting
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public Duration getMaxAge() {
+    return maxAge;
+  }
+
+  public Duration getProbeInterval() {
+    return probeInterval;
+  }
+
+  @VisibleForTesting
+  public void setProbeInterval(final Duration probeInterval) {
+    this.probeInterval = probeInterval;
+  }
+}
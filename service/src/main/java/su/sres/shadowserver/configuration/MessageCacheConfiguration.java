@@ -6,8 +6,10 @@
 package su.sres.shadowserver.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import su.sres.shadowserver.storage.QueuePersistencePriority;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class MessageCacheConfiguration {
@@ -20,6 +22,18 @@ public class MessageCacheConfiguration {
     @JsonProperty
     private int persistDelayMinutes = 10;
 
+    @JsonProperty
+    @Min(0)
+    private int spillQueueSize = 1000;
+
+    @JsonProperty
+    @Min(0)
+    private int spillDurationMinutes = 1440;
+
+    @JsonProperty
+    @NotNull
+    private QueuePersistencePriority persistPriority = QueuePersistencePriority.OLDEST_FIRST;
+
     public RedisClusterConfiguration getRedisClusterConfiguration() {
 	return cluster;
     }
@@ -27,4 +41,16 @@ public class MessageCacheConfiguration {
     public int getPersistDelayMinutes() {
 	return persistDelayMinutes;
     }
+
+    public int getSpillQueueSize() {
+	return spillQueueSize;
+    }
+
+    public int getSpillDurationMinutes() {
+	return spillDurationMinutes;
+    }
+
+    public QueuePersistencePriority getPersistPriority() {
+	return persistPriority;
+    }
 }
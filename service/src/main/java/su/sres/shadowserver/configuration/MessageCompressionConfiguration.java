@@ -0,0 +1,48 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+public class MessageCompressionConfiguration {
+
+  /**
+   * Whether message payloads are compressed before they are written to the message cache and the message store.
+   * Compressed payloads are read back regardless of this setting, so it can be switched off at any time.
+   */
+  @JsonProperty
+  private boolean enabled = false;
+
+  /**
+   * The size in bytes below which payloads are stored as they are.
+   */
+  @JsonProperty
+  @Min(0)
+  private int minimumSize = 256;
+
+  /**
+   * The deflate compression level, from 1 (fastest) to 9 (smallest).
+   */
+  @JsonProperty
+  @Min(1)
+  @Max(9)
+  private int level = 1;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getMinimumSize() {
+    return minimumSize;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+}
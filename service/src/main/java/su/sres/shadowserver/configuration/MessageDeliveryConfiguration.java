@@ -0,0 +1,25 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class MessageDeliveryConfiguration {
+
+  /**
+   * The number of pages of stored messages that may be sent to a connected device before the first of them has been
+   * acknowledged. With a value of 1, the next page is only fetched once the previous one has been acknowledged.
+   */
+  @JsonProperty
+  @Min(1)
+  private int maxPagesInFlight = 2;
+
+  public int getMaxPagesInFlight() {
+    return maxPagesInFlight;
+  }
+}
@@ -5,15 +5,42 @@
 
 package su.sres.shadowserver.configuration;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
 import java.time.Duration;
 
 public class MessageScyllaDbConfiguration extends ScyllaDbConfiguration {
 
     private Duration timeToLive = Duration.ofDays(7);
 
+    private String bucketedTableName;
+    private Duration bucketDuration = Duration.ofDays(1);
+    private boolean migrateFromLegacyTable = true;
+
     @Valid
     public Duration getTimeToLive() {
 	return timeToLive;
     }
+
+    /**
+     * @return the table for the time-bucketed message layout, or {@code null} to keep all of an account's messages in
+     * one partition of the table named by {@link #getTableName()}
+     */
+    @JsonProperty
+    public String getBucketedTableName() {
+	return bucketedTableName;
+    }
+
+    @NotNull
+    @JsonProperty
+    public Duration getBucketDuration() {
+	return bucketDuration;
+    }
+
+    @JsonProperty
+    public boolean isMigrateFromLegacyTable() {
+	return migrateFromLegacyTable;
+    }
 }
@@ -38,6 +38,9 @@ public class RateLimitsConfiguration {
   @JsonProperty
   private RateLimitConfiguration messages = new RateLimitConfiguration(60, 60);
 
+  @JsonProperty
+  private RateLimitConfiguration messageCount = new RateLimitConfiguration(10, 2);
+
   @JsonProperty
   private RateLimitConfiguration allocateDevice = new RateLimitConfiguration(2, 1.0 / 2.0);
 
@@ -90,6 +93,10 @@ public class RateLimitsConfiguration {
     return messages;
   }
 
+  public RateLimitConfiguration getMessageCount() {
+    return messageCount;
+  }
+
   public RateLimitConfiguration getPreKeys() {
     return prekeys;
   }
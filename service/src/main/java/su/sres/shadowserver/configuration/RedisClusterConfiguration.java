@@ -33,6 +33,16 @@ public class RedisClusterConfiguration {
     @NotNull
     @Valid
     private RetryConfiguration retry = new RetryConfiguration();
+
+    @JsonProperty
+    @NotNull
+    @Valid
+    private RedisWorkloadsConfiguration workloads = new RedisWorkloadsConfiguration();
+
+    @JsonProperty
+    @NotNull
+    @Valid
+    private ClientSideCacheConfiguration clientSideCache = new ClientSideCacheConfiguration();
     
     public List<String> getUrls() {
         return urls;
@@ -49,4 +59,12 @@ public class RedisClusterConfiguration {
     public RetryConfiguration getRetryConfiguration() {
         return retry;
     }
+
+    public RedisWorkloadsConfiguration getWorkloadsConfiguration() {
+        return workloads;
+    }
+
+    public ClientSideCacheConfiguration getClientSideCacheConfiguration() {
+        return clientSideCache;
+    }
 }
\ No newline at end of file
@@ -33,6 +33,11 @@ public class RedisConfiguration {
     @Valid
     private CircuitBreakerConfiguration circuitBreaker = new CircuitBreakerConfiguration();
 
+    @JsonProperty
+    @NotNull
+    @Valid
+    private ReplicaSelectionConfiguration replicaSelection = new ReplicaSelectionConfiguration();
+
     public String getUrl() {
 	return url;
     }
@@ -48,4 +53,8 @@ public class RedisConfiguration {
     public CircuitBreakerConfiguration getCircuitBreakerConfiguration() {
 	return circuitBreaker;
     }
+
+    public ReplicaSelectionConfiguration getReplicaSelectionConfiguration() {
+	return replicaSelection;
+    }
 }
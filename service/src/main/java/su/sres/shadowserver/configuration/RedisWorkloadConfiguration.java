@@ -0,0 +1,45 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import java.util.Optional;
+
+public class RedisWorkloadConfiguration {
+
+    @JsonProperty
+    @Min(1)
+    private int connections = 1;
+
+    // if absent, the cluster's circuit breaker and retry configurations apply
+    @JsonProperty
+    @Valid
+    private CircuitBreakerConfiguration circuitBreaker;
+
+    @JsonProperty
+    @Valid
+    private RetryConfiguration retry;
+
+    public int getConnections() {
+	return connections;
+    }
+
+    public void setConnections(final int connections) {
+	this.connections = connections;
+    }
+
+    public Optional<CircuitBreakerConfiguration> getCircuitBreakerConfiguration() {
+	return Optional.ofNullable(circuitBreaker);
+    }
+
+    public Optional<RetryConfiguration> getRetryConfiguration() {
+	return Optional.ofNullable(retry);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import su.sres.shadowserver.redis.RedisWorkload;
+
+import javax.validation.Valid;
+
+import java.util.Optional;
+
+public class RedisWorkloadsConfiguration {
+
+    @JsonProperty("default")
+    @Valid
+    private RedisWorkloadConfiguration defaultWorkload;
+
+    @JsonProperty
+    @Valid
+    private RedisWorkloadConfiguration latencySensitive;
+
+    @JsonProperty
+    @Valid
+    private RedisWorkloadConfiguration bulk;
+
+    @JsonProperty
+    @Valid
+    private RedisWorkloadConfiguration scripts;
+
+    public Optional<RedisWorkloadConfiguration> getConfiguration(final RedisWorkload workload) {
+	switch (workload) {
+	case DEFAULT:
+	    return Optional.ofNullable(defaultWorkload);
+	case LATENCY_SENSITIVE:
+	    return Optional.ofNullable(latencySensitive);
+	case BULK:
+	    return Optional.ofNullable(bulk);
+	case SCRIPTS:
+	    return Optional.ofNullable(scripts);
+	default:
+	    throw new AssertionError("Unknown workload: " + workload);
+	}
+    }
+
+    @VisibleForTesting
+    public void setConfiguration(final RedisWorkload workload, final RedisWorkloadConfiguration configuration) {
+	switch (workload) {
+	case DEFAULT:
+	    defaultWorkload = configuration;
+	    break;
+	case LATENCY_SENSITIVE:
+	    latencySensitive = configuration;
+	    break;
+	case BULK:
+	    bulk = configuration;
+	    break;
+	case SCRIPTS:
+	    scripts = configuration;
+	    break;
+	default:
+	    throw new AssertionError("Unknown workload: " + workload);
+	}
+    }
+}
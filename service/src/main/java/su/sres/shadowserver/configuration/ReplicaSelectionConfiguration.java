@@ -0,0 +1,75 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.NotNull;
+
+import java.time.Duration;
+
+public class ReplicaSelectionConfiguration {
+
+  // how often each replica's latency and replication lag are probed
+  @JsonProperty
+  @NotNull
+  private Duration probeInterval = Duration.ofSeconds(1);
+
+  // a replica is ejected if its smoothed latency exceeds this multiple of the median replica's...
+  @JsonProperty
+  @DecimalMin("1.0")
+  private double outlierLatencyMultiplier = 3.0;
+
+  // ...and is also above this floor, so that sub-millisecond noise doesn't eject anything
+  @JsonProperty
+  @NotNull
+  private Duration minOutlierLatency = Duration.ofMillis(10);
+
+  // a replica lagging further than this behind the master is ejected
+  @JsonProperty
+  @NotNull
+  private Duration maxReplicationLag = Duration.ofSeconds(10);
+
+  @JsonProperty
+  @NotNull
+  private Duration ejectionDuration = Duration.ofSeconds(30);
+
+  // the lag callers asking for "fresh" reads will tolerate; zero sends those reads to the master
+  @JsonProperty
+  @NotNull
+  private Duration maxFreshReadLag = Duration.ZERO;
+
+  public Duration getProbeInterval() {
+    return probeInterval;
+  }
+
+  public double getOutlierLatencyMultiplier() {
+    return outlierLatencyMultiplier;
+  }
+
+  public Duration getMinOutlierLatency() {
+    return minOutlierLatency;
+  }
+
+  public Duration getMaxReplicationLag() {
+    return maxReplicationLag;
+  }
+
+  public Duration getEjectionDuration() {
+    return ejectionDuration;
+  }
+
+  public Duration getMaxFreshReadLag() {
+    return maxFreshReadLag;
+  }
+
+  @VisibleForTesting
+  public void setMaxFreshReadLag(final Duration maxFreshReadLag) {
+    this.maxFreshReadLag = maxFreshReadLag;
+  }
+}
@@ -76,6 +76,7 @@ import su.sres.shadowserver.entities.MultiRecipientMessage;
 import su.sres.shadowserver.entities.MultiRecipientMessage.Recipient;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.entities.OutgoingMessageEntityList;
+import su.sres.shadowserver.entities.PendingMessageCount;
 import su.sres.shadowserver.entities.SendMessageResponse;
 import su.sres.shadowserver.entities.SendMultiRecipientMessageResponse;
 import su.sres.shadowserver.entities.StaleDevices;
@@ -514,6 +515,19 @@ public class MessageController {
     return outgoingMessages;
   }
 
+  @Timed
+  @GET
+  @Path("/count")
+  @Produces(MediaType.APPLICATION_JSON)
+  public PendingMessageCount getPendingMessageCount(@Auth Account account) throws RateLimitExceededException {
+    assert account.getAuthenticatedDevice().isPresent();
+
+    // counting pages through the device's whole stored queue, so it is limited per device
+    rateLimiters.getMessageCountLimiter().validate(account.getUuid() + "." + account.getAuthenticatedDevice().get().getId());
+
+    return new PendingMessageCount(messagesManager.getQueueDepth(account.getUuid(), account.getAuthenticatedDevice().get().getId()));
+  }
+
   private static long estimateMessageListSizeBytes(final OutgoingMessageEntityList messageList) {
     long size = 0;
 
@@ -95,7 +95,7 @@ public class PlainDirectoryController {
 
         } else {
 
-          HashMap<String, String> incrementalUpdate = directory.retrieveIncrementalUpdate((int) versionDiff);
+          HashMap<String, String> incrementalUpdate = directory.retrieveFreshIncrementalUpdate((int) versionDiff);
 
           if (!incrementalUpdate.isEmpty()) {
 
@@ -172,7 +172,7 @@ public class PlainDirectoryController {
 
   private DirectoryUpdate getFullDirectory() {
 
-    HashMap<String, String> retrievedPlainDirectory = directory.retrievePlainDirectory();
+    HashMap<String, String> retrievedPlainDirectory = directory.retrieveFreshPlainDirectory();
 
     if (!retrievedPlainDirectory.isEmpty()) {
 
@@ -5,10 +5,25 @@
 
 package su.sres.shadowserver.limits;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import io.lettuce.core.ScriptOutputType;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.CardinalityRateLimitConfiguration;
 import su.sres.shadowserver.controllers.RateLimitExceededException;
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.redis.RedisWorkload;
+import su.sres.shadowserver.util.Constants;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.time.Duration;
+import java.util.List;
 
 /**
  * A cardinality rate limiter prevents an actor from taking some action if that actor has attempted to take that action
@@ -18,47 +33,77 @@ import java.time.Duration;
  */
 public class CardinalityRateLimiter {
 
+  private static final String VALIDATE_SCRIPT_RESOURCE = "lua/validate_cardinality_rate_limit.lua";
+
   private final FaultTolerantRedisCluster cacheCluster;
- 
+  private final ClusterLuaScript validateScript;
+
   private final String name;
 
   private final Duration ttl;
   private final int defaultMaxCardinality;
 
-  public CardinalityRateLimiter(final FaultTolerantRedisCluster cacheCluster, final String name, final Duration ttl, final int defaultMaxCardinality) {
+  private final Timer validateTimer;
+  private final DistributionSummary cardinalitySummary;
+
+  public CardinalityRateLimiter(final FaultTolerantRedisCluster cacheCluster, final ClusterLuaScript validateScript, final String name, final Duration ttl, final int defaultMaxCardinality) {
     this.cacheCluster = cacheCluster;
-    
+    this.validateScript = validateScript;
+
     this.name = name;
 
     this.ttl = ttl;
     this.defaultMaxCardinality = defaultMaxCardinality;
+
+    final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+    this.validateTimer = metricRegistry.timer(name(getClass(), name, "validate"));
+    this.cardinalitySummary = Metrics.summary(name(getClass(), "cardinality"), "name", name);
+  }
+
+  /**
+   * Loads the script used by cardinality rate limiters to validate attempts; a single instance may be shared by all
+   * limiters using the same cluster.
+   */
+  public static ClusterLuaScript loadValidateScript(final FaultTolerantRedisCluster cacheCluster) throws IOException {
+    return ClusterLuaScript.fromResource(cacheCluster, VALIDATE_SCRIPT_RESOURCE, ScriptOutputType.MULTI, RedisWorkload.LATENCY_SENSITIVE);
   }
 
   public void validate(final String key, final String target, final int maxCardinality) throws RateLimitExceededException {
+    validate(key, target, maxCardinality, null);
+  }
 
-    final boolean rateLimitExceeded = cacheCluster.withCluster(connection -> {
-      final String hllKey = getHllKey(key);
-      final boolean changed = connection.sync().pfadd(hllKey, target) == 1;
-      final long cardinality = connection.sync().pfcount(hllKey);
+  /**
+   * Validates an attempt in a single round trip. If {@code maxCardinalityKey} is given and holds a value, that value
+   * overrides {@code defaultMaxCardinality}; the key must contain the hash tag returned by {@link #getHashTag(String)}
+   * so that it lives in the same slot as the limiter's own key.
+   */
+  public void validate(final String key, final String target, final int defaultMaxCardinality, @Nullable final String maxCardinalityKey) throws RateLimitExceededException {
+    final List<Long> result;
 
-      final boolean mayNeedExpiration = changed && cardinality == 1;
+    try (final Timer.Context ignored = validateTimer.time()) {
+      final List<String> keys = maxCardinalityKey != null ? List.of(getHllKey(key), maxCardinalityKey) : List.of(getHllKey(key));
+
+      //noinspection unchecked
+      result = (List<Long>) validateScript.execute(keys, List.of(target, String.valueOf(defaultMaxCardinality), String.valueOf(ttl.toSeconds())));
+    }
 
-      // If the set already existed, we can assume it already had an expiration time and can save a round trip by
-      // skipping the ttl check.
-      if (mayNeedExpiration && connection.sync().ttl(hllKey) == -1) {
-        connection.sync().expire(hllKey, ttl.toSeconds());
-      }
+    final boolean allowed = result.get(0) == 1;
+    final long cardinality = result.get(1);
 
-      return changed && cardinality > maxCardinality;
-    });
+    cardinalitySummary.record(cardinality);
 
-    if (rateLimitExceeded) {
-      throw new RateLimitExceededException(Duration.ofSeconds(getRemainingTtl(key)));
+    if (!allowed) {
+      throw new RateLimitExceededException(Duration.ofSeconds(Math.max(result.get(2), 0)));
     }
   }
 
+  public static String getHashTag(final String key) {
+    return "{" + key + "}";
+  }
+
   private String getHllKey(final String key) {
-    return "hll_rate_limit::" + name + "::" + key;
+    return "hll_rate_limit::" + name + "::" + getHashTag(key);
   }
 
   public Duration getInitialTtl() {
@@ -69,6 +114,10 @@ public class CardinalityRateLimiter {
     return cacheCluster.withCluster(connection -> connection.sync().ttl(getHllKey(key)));
   }
 
+  public long getCardinality(final String key) {
+    return cacheCluster.withCluster(connection -> connection.sync().pfcount(getHllKey(key)));
+  }
+
   public int getDefaultMaxCardinality() {
     return defaultMaxCardinality;
   }
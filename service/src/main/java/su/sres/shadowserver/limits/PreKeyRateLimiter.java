@@ -22,11 +22,16 @@ public class PreKeyRateLimiter {
   private static final String RATE_LIMITED_PREKEYS_ACCOUNTS_ENFORCED_COUNTER_NAME = name(PreKeyRateLimiter.class, "rateLimitedAccountsEnforced");
   private static final String RATE_LIMITED_PREKEYS_ACCOUNTS_UNENFORCED_COUNTER_NAME = name(PreKeyRateLimiter.class, "rateLimitedAccountsUnenforced");
 
-  private static final String RATE_LIMITED_ACCOUNTS_HLL_KEY = "PreKeyRateLimiter::rateLimitedAccounts";
-  private static final String RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY = "PreKeyRateLimiter::rateLimitedAccounts::enforced";
-  private static final String RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY = "PreKeyRateLimiter::rateLimitedAccounts::unenforced";
+  // these keys are updated together by RateLimitResetMetricsManager, so they share a hash tag
+  private static final String RATE_LIMITED_ACCOUNTS_HLL_KEY = "{PreKeyRateLimiter}::rateLimitedAccounts";
+  private static final String RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY = "{PreKeyRateLimiter}::rateLimitedAccounts::enforced";
+  private static final String RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY = "{PreKeyRateLimiter}::rateLimitedAccounts::unenforced";
   private static final long RATE_LIMITED_ACCOUNTS_HLL_TTL_SECONDS = Duration.days(1).toSeconds();
 
+  private static final String LEGACY_RATE_LIMITED_ACCOUNTS_HLL_KEY = "PreKeyRateLimiter::rateLimitedAccounts";
+  private static final String LEGACY_RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY = "PreKeyRateLimiter::rateLimitedAccounts::enforced";
+  private static final String LEGACY_RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY = "PreKeyRateLimiter::rateLimitedAccounts::unenforced";
+
   private final RateLimiters rateLimiters;
   private final DynamicRateLimitChallengeConfiguration dynamicConfig;
   private final RateLimitResetMetricsManager metricsManager;
@@ -39,11 +44,11 @@ public class PreKeyRateLimiter {
     this.metricsManager = metricsManager;
 
     metricsManager.initializeFunctionCounters(RATE_LIMITED_PREKEYS_TOTAL_ACCOUNTS_COUNTER_NAME,
-        RATE_LIMITED_ACCOUNTS_HLL_KEY);
+        RATE_LIMITED_ACCOUNTS_HLL_KEY, LEGACY_RATE_LIMITED_ACCOUNTS_HLL_KEY);
     metricsManager.initializeFunctionCounters(RATE_LIMITED_PREKEYS_ACCOUNTS_ENFORCED_COUNTER_NAME,
-        RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY);
+        RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY, LEGACY_RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY);
     metricsManager.initializeFunctionCounters(RATE_LIMITED_PREKEYS_ACCOUNTS_UNENFORCED_COUNTER_NAME,
-        RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY);
+        RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY, LEGACY_RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY);
   }
 
   public void validate(final Account account) throws RateLimitExceededException {
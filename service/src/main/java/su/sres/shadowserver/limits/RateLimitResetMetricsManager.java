@@ -2,19 +2,31 @@ package su.sres.shadowserver.limits;
 
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.FunctionCounter;
+import io.lettuce.core.ScriptOutputType;
 import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.storage.Account;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 public class RateLimitResetMetricsManager {
 
   private final FaultTolerantRedisCluster metricsCluster;
   private final MeterRegistry meterRegistry;
+  private final ClusterLuaScript recordRateLimitedAccountScript;
+
+  private static final Logger logger = LoggerFactory.getLogger(RateLimitResetMetricsManager.class);
 
   public RateLimitResetMetricsManager(
-      final FaultTolerantRedisCluster metricsCluster, final MeterRegistry meterRegistry) {
+      final FaultTolerantRedisCluster metricsCluster, final MeterRegistry meterRegistry) throws IOException {
     this.metricsCluster = metricsCluster;
     this.meterRegistry = meterRegistry;
+    this.recordRateLimitedAccountScript = ClusterLuaScript.fromResource(metricsCluster, "lua/record_rate_limited_account.lua", ScriptOutputType.INTEGER);
   }
 
   void initializeFunctionCounters(String counterKey, String hllKey) {
@@ -23,10 +35,55 @@ public class RateLimitResetMetricsManager {
         .register(meterRegistry);
   }
 
+  /**
+   * Registers a counter for {@code hllKey} after folding in the accounts counted under {@code legacyHllKey}, where the
+   * set was kept before the keys counted together shared a hash tag, so that the count carries over.
+   */
+  void initializeFunctionCounters(String counterKey, String hllKey, String legacyHllKey) {
+    try {
+      migrateLegacyHll(hllKey, legacyHllKey);
+    } catch (final RuntimeException e) {
+      logger.warn("Failed to migrate {} to {}", legacyHllKey, hllKey, e);
+    }
+
+    initializeFunctionCounters(counterKey, hllKey);
+  }
+
+  void migrateLegacyHll(final String hllKey, final String legacyHllKey) {
+    final byte[] legacyKey = legacyHllKey.getBytes(StandardCharsets.UTF_8);
+    final byte[] key = hllKey.getBytes(StandardCharsets.UTF_8);
+
+    // the legacy set lives in another slot, so it's copied next to the new one to be merged there
+    final byte[] stagingKey = (hllKey + "::legacy").getBytes(StandardCharsets.UTF_8);
+
+    metricsCluster.useBinaryCluster(connection -> {
+      final byte[] legacyHll = connection.sync().get(legacyKey);
+
+      if (legacyHll == null) {
+        return;
+      }
+
+      final long ttl = connection.sync().ttl(legacyKey);
+
+      connection.sync().set(stagingKey, legacyHll);
+      connection.sync().pfmerge(key, key, stagingKey);
+      connection.sync().del(stagingKey);
+
+      if (ttl > 0 && connection.sync().ttl(key) == -1) {
+        connection.sync().expire(key, ttl);
+      }
+
+      connection.sync().del(legacyKey);
+    });
+  }
+
   Long getCount(final String hllKey) {
     return metricsCluster.<Long>withCluster(conn -> conn.sync().pfcount(hllKey));
   }
 
+  /**
+   * Counts a rate-limited account; {@code hllEnforcedKey} and {@code hllTotalKey} must share a hash slot.
+   */
   void recordMetrics(Account account, boolean enforced, String counterKey, String hllEnforcedKey, String hllTotalKey,
       long hllTtl) {
 
@@ -35,11 +92,7 @@ public class RateLimitResetMetricsManager {
         .register(meterRegistry)
         .increment();
 
-    metricsCluster.useCluster(connection -> {
-      connection.sync().pfadd(hllEnforcedKey, account.getUuid().toString());
-      connection.sync().expire(hllEnforcedKey, hllTtl);
-      connection.sync().pfadd(hllTotalKey, account.getUuid().toString());
-      connection.sync().expire(hllTotalKey, hllTtl);
-    });
+    recordRateLimitedAccountScript.execute(List.of(hllEnforcedKey, hllTotalKey),
+        List.of(account.getUuid().toString(), String.valueOf(hllTtl)));
   }
 }
@@ -24,6 +24,7 @@ import static com.codahale.metrics.MetricRegistry.name;
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import su.sres.shadowserver.controllers.RateLimitExceededException;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.redis.RedisWorkload;
 import su.sres.shadowserver.util.Constants;
 import su.sres.shadowserver.util.SystemMapper;
 
@@ -90,7 +91,7 @@ public class RateLimiter {
         
     try {
       final String serialized = bucket.serialize(mapper);
-      cacheCluster.useCluster(connection -> connection.sync().setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized));
+      cacheCluster.useCluster(RedisWorkload.LATENCY_SENSITIVE, connection -> connection.sync().setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized));
     } catch (JsonProcessingException e) {
       throw new IllegalArgumentException(e);
     }
@@ -98,7 +99,7 @@ public class RateLimiter {
 
   private LeakyBucket getBucket(String key) {
     try {
-      final String serialized = cacheCluster.withCluster(connection -> connection.sync().get(getBucketName(key)));
+      final String serialized = cacheCluster.withCluster(RedisWorkload.LATENCY_SENSITIVE, connection -> connection.sync().get(getBucketName(key)));
 
       if (serialized != null) {
         return LeakyBucket.fromSerialized(mapper, serialized);
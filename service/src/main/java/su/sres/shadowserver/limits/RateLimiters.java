@@ -5,6 +5,7 @@
  */
 package su.sres.shadowserver.limits;
 
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 
@@ -12,6 +13,7 @@ import su.sres.shadowserver.configuration.RateLimitsConfiguration;
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.CardinalityRateLimitConfiguration;
 import su.sres.shadowserver.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import su.sres.shadowserver.configuration.dynamic.DynamicRateLimitsConfiguration;
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 
 public class RateLimiters {
@@ -24,6 +26,7 @@ public class RateLimiters {
   private final RateLimiter attachmentLimiter;
   private final RateLimiter preKeysLimiter;
   private final RateLimiter messagesLimiter;
+  private final RateLimiter messageCountLimiter;
 
   private final RateLimiter allocateDeviceLimiter;
   private final RateLimiter verifyDeviceLimiter;
@@ -52,10 +55,12 @@ public class RateLimiters {
   private final AtomicReference<RateLimiter> dailyPreKeysLimiter;
 
   private final FaultTolerantRedisCluster cacheCluster;  
+  private final ClusterLuaScript cardinalityValidateScript;
   private final DynamicRateLimitsConfiguration dynamicConfig;
 
-  public RateLimiters(RateLimitsConfiguration config, DynamicRateLimitsConfiguration dynamicConfig, FaultTolerantRedisCluster cacheCluster) {
+  public RateLimiters(RateLimitsConfiguration config, DynamicRateLimitsConfiguration dynamicConfig, FaultTolerantRedisCluster cacheCluster) throws IOException {
     this.cacheCluster = cacheCluster;    
+    this.cardinalityValidateScript = CardinalityRateLimiter.loadValidateScript(cacheCluster);
     this.dynamicConfig = dynamicConfig;
 
     this.smsDestinationLimiter = new RateLimiter(cacheCluster, "smsDestination",
@@ -84,6 +89,10 @@ public class RateLimiters {
         config.getMessages().getBucketSize(),
         config.getMessages().getLeakRatePerMinute());
 
+    this.messageCountLimiter = new RateLimiter(cacheCluster, "messageCount",
+        config.getMessageCount().getBucketSize(),
+        config.getMessageCount().getLeakRatePerMinute());
+
     this.allocateDeviceLimiter = new RateLimiter(cacheCluster,  "allocateDevice",
         config.getAllocateDevice().getBucketSize(), config.getAllocateDevice().getLeakRatePerMinute());
 
@@ -224,6 +233,10 @@ public class RateLimiters {
     return messagesLimiter;
   }
 
+  public RateLimiter getMessageCountLimiter() {
+    return messageCountLimiter;
+  }
+
   public RateLimiter getPreKeysLimiter() {
     return preKeysLimiter;
   }
@@ -289,7 +302,7 @@ public class RateLimiters {
   }
 
   private CardinalityRateLimiter createUnsealedSenderCardinalityLimiter(FaultTolerantRedisCluster cacheCluster, CardinalityRateLimitConfiguration configuration) {
-    return new CardinalityRateLimiter(cacheCluster, "unsealedSender", configuration.getTtl(), configuration.getMaxCardinality());
+    return new CardinalityRateLimiter(cacheCluster, cardinalityValidateScript, "unsealedSender", configuration.getTtl(), configuration.getMaxCardinality());
   }
 
   private RateLimiter createUnsealedIpLimiter(FaultTolerantRedisCluster cacheCluster,      
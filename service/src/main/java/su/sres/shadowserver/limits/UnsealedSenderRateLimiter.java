@@ -7,9 +7,11 @@ package su.sres.shadowserver.limits;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
+import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.util.Duration;
 import io.lettuce.core.SetArgs;
 import io.micrometer.core.instrument.Metrics;
+import java.util.Optional;
 import su.sres.shadowserver.configuration.dynamic.DynamicConfiguration;
 import su.sres.shadowserver.configuration.dynamic.DynamicRateLimitsConfiguration;
 import su.sres.shadowserver.controllers.RateLimitExceededException;
@@ -30,11 +32,15 @@ public class UnsealedSenderRateLimiter {
   private static final String RATE_LIMITED_UNSEALED_SENDER_ACCOUNTS_ENFORCED_COUNTER_NAME = name(UnsealedSenderRateLimiter.class, "rateLimitedAccountsEnforced");
   private static final String RATE_LIMITED_UNSEALED_SENDER_ACCOUNTS_UNENFORCED_COUNTER_NAME = name(UnsealedSenderRateLimiter.class, "rateLimitedAccountsUnenforced");
 
-  private static final String RATE_LIMITED_ACCOUNTS_HLL_KEY = "UnsealedSenderRateLimiter::rateLimitedAccounts::total";
-  private static final String RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY = "UnsealedSenderRateLimiter::rateLimitedAccounts::enforced";
-  private static final String RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY = "UnsealedSenderRateLimiter::rateLimitedAccounts::unenforced";
+  // these keys are updated together by RateLimitResetMetricsManager, so they share a hash tag
+  private static final String RATE_LIMITED_ACCOUNTS_HLL_KEY = "{UnsealedSenderRateLimiter}::rateLimitedAccounts::total";
+  private static final String RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY = "{UnsealedSenderRateLimiter}::rateLimitedAccounts::enforced";
+  private static final String RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY = "{UnsealedSenderRateLimiter}::rateLimitedAccounts::unenforced";
   private static final long RATE_LIMITED_ACCOUNTS_HLL_TTL_SECONDS = Duration.days(1).toSeconds();
 
+  private static final String LEGACY_RATE_LIMITED_ACCOUNTS_HLL_KEY = "UnsealedSenderRateLimiter::rateLimitedAccounts::total";
+  private static final String LEGACY_RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY = "UnsealedSenderRateLimiter::rateLimitedAccounts::enforced";
+  private static final String LEGACY_RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY = "UnsealedSenderRateLimiter::rateLimitedAccounts::unenforced";
 
   public UnsealedSenderRateLimiter(final RateLimiters rateLimiters,
       final FaultTolerantRedisCluster rateLimitCluster,
@@ -47,27 +53,24 @@ public class UnsealedSenderRateLimiter {
     this.metricsManager = metricsManager;
 
     metricsManager.initializeFunctionCounters(RATE_LIMITED_UNSEALED_SENDER_ACCOUNTS_TOTAL_COUNTER_NAME,
-        RATE_LIMITED_ACCOUNTS_HLL_KEY);
+        RATE_LIMITED_ACCOUNTS_HLL_KEY, LEGACY_RATE_LIMITED_ACCOUNTS_HLL_KEY);
     metricsManager.initializeFunctionCounters(RATE_LIMITED_UNSEALED_SENDER_ACCOUNTS_ENFORCED_COUNTER_NAME,
-        RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY);
+        RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY, LEGACY_RATE_LIMITED_ACCOUNTS_ENFORCED_HLL_KEY);
     metricsManager.initializeFunctionCounters(RATE_LIMITED_UNSEALED_SENDER_ACCOUNTS_UNENFORCED_COUNTER_NAME,
-        RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY);
+        RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY, LEGACY_RATE_LIMITED_ACCOUNTS_UNENFORCED_HLL_KEY);
   }
 
   public void validate(final Account sender, final Account destination) throws RateLimitExceededException {
-    final int maxCardinality = rateLimitCluster.withCluster(connection -> {
-      final String cardinalityString = connection.sync().get(getMaxCardinalityKey(sender));
-
-      return cardinalityString != null
-          ? Integer.parseInt(cardinalityString)
-          : dynamicConfig.getLimits().getUnsealedSenderDefaultCardinalityLimit();
-    });
-
     try {
       rateLimiters.getUnsealedSenderCardinalityLimiter()
-          .validate(sender.getUserLogin(), destination.getUuid().toString(), maxCardinality);
+          .validate(sender.getUserLogin(), destination.getUuid().toString(),
+              dynamicConfig.getLimits().getUnsealedSenderDefaultCardinalityLimit(), getMaxCardinalityKey(sender));
     } catch (final RateLimitExceededException e) {
 
+      if (isPermittedByLegacyMaxCardinality(sender)) {
+        return;
+      }
+
       final boolean enforceLimit = dynamicConfig.getRateLimitChallengeConfiguration().isUnsealedSenderLimitEnforced();
 
       metricsManager.recordMetrics(sender, enforceLimit, RATE_LIMITED_UNSEALED_SENDER_COUNTER_NAME,
@@ -96,6 +99,8 @@ public class UnsealedSenderRateLimiter {
 
       final String key = getMaxCardinalityKey(account);
 
+      migrateLegacyMaxCardinality(account);
+
       connection.sync().set(key,
           String.valueOf(rateLimitsConfiguration.getUnsealedSenderDefaultCardinalityLimit()),
           SetArgs.Builder.nx().ex(ttl));
@@ -107,7 +112,44 @@ public class UnsealedSenderRateLimiter {
         "countryCode", Util.getCountryCode(account.getUserLogin())).increment();
   }
 
+  /**
+   * Raised limits used to be kept under a key the validation script can't read, so a denial is checked against a
+   * limit still kept there; such a limit is moved to the current key the first time it's found, and expires from there
+   * as it would have before.
+   */
+  private boolean isPermittedByLegacyMaxCardinality(final Account sender) {
+    return migrateLegacyMaxCardinality(sender)
+        .map(maxCardinality -> rateLimiters.getUnsealedSenderCardinalityLimiter().getCardinality(sender.getUserLogin()) <= maxCardinality)
+        .orElse(false);
+  }
+
+  private Optional<Integer> migrateLegacyMaxCardinality(final Account account) {
+    return rateLimitCluster.withCluster(connection -> {
+      final String legacyKey = getLegacyMaxCardinalityKey(account);
+      final String legacyMaxCardinality = connection.sync().get(legacyKey);
+
+      if (legacyMaxCardinality == null) {
+        return Optional.empty();
+      }
+
+      final long ttl = connection.sync().ttl(legacyKey);
+      final SetArgs setArgs = ttl > 0 ? SetArgs.Builder.nx().ex(ttl) : SetArgs.Builder.nx();
+
+      // a limit already kept under the current key is newer, and was in force for the denial
+      final boolean migrated = "OK".equals(connection.sync().set(getMaxCardinalityKey(account), legacyMaxCardinality, setArgs));
+      connection.sync().del(legacyKey);
+
+      return migrated ? Optional.of(Integer.parseInt(legacyMaxCardinality)) : Optional.empty();
+    });
+  }
+
+  // shares a slot with the cardinality limiter's key so both can be read by the same script
   private static String getMaxCardinalityKey(final Account account) {
+    return "max_unsealed_sender_cardinality::" + CardinalityRateLimiter.getHashTag(account.getUserLogin());
+  }
+
+  @VisibleForTesting
+  static String getLegacyMaxCardinalityKey(final Account account) {
     return "max_unsealed_sender_cardinality::" + account.getUuid();
   }
 }
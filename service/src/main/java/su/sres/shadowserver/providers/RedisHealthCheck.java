@@ -7,27 +7,26 @@ package su.sres.shadowserver.providers;
 
 import com.codahale.metrics.health.HealthCheck;
 
-import redis.clients.jedis.Jedis;
-import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.redis.FaultTolerantRedisClient;
 
 public class RedisHealthCheck extends HealthCheck {
 
-  private final ReplicatedJedisPool clientPool;
+  private final FaultTolerantRedisClient redisClient;
 
-  public RedisHealthCheck(ReplicatedJedisPool clientPool) {
-    this.clientPool = clientPool;
+  public RedisHealthCheck(FaultTolerantRedisClient redisClient) {
+    this.redisClient = redisClient;
   }
 
   @Override
   protected Result check() throws Exception {
-    try (Jedis client = clientPool.getWriteResource()) {
-      client.set("HEALTH", "test");
+    return redisClient.withClient(connection -> {
+      connection.sync().set("HEALTH", "test");
 
-      if (!"test".equals(client.get("HEALTH"))) {
+      if (!"test".equals(connection.sync().get("HEALTH"))) {
         return Result.unhealthy("fetch failed");
       }
 
       return Result.healthy();
-    }
+    });
   }
 }
@@ -22,6 +22,7 @@ import org.slf4j.LoggerFactory;
 import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.redis.RedisWorkload;
 import su.sres.shadowserver.util.Constants;
 
 import java.io.IOException;
@@ -179,7 +180,7 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
 
     public boolean isPresent(final UUID accountUuid, final long deviceId) {
 	try (final Timer.Context ignored = checkPresenceTimer.time()) {
-	    return presenceCluster.withCluster(connection -> connection.sync().exists(getPresenceKey(accountUuid, deviceId))) == 1;
+	    return presenceCluster.withCluster(RedisWorkload.LATENCY_SENSITIVE, connection -> connection.sync().exists(getPresenceKey(accountUuid, deviceId))) == 1;
 	}
     }
 
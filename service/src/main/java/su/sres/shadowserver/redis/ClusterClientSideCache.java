@@ -0,0 +1,433 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.redis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.push.PushMessage;
+import io.lettuce.core.cluster.api.push.RedisClusterPushListener;
+import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.event.connection.ConnectionActivatedEvent;
+import io.lettuce.core.event.connection.ConnectionDeactivatedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import su.sres.shadowserver.configuration.ClientSideCacheConfiguration;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A local cache of values read from a Redis cluster, kept coherent by server-assisted invalidation. Every upstream node
+ * is asked to track, in broadcast mode, all keys with the configured prefixes, and pushes an invalidation message over
+ * a dedicated RESP3 connection whenever one of them changes. Reads that hit locally don't touch the network at all.
+ * <p>
+ * Whenever invalidations may have been missed (a tracking connection dropped, the topology changed, or a canary write
+ * wasn't followed by its invalidation), the whole cache is discarded and reads go straight to Redis until tracking has
+ * been re-established. Connection events don't say which connection they're about, so when any connection to the
+ * cluster drops, reads bypass the cache until the tracking connections have been checked; the cache is only discarded
+ * if one of them was actually re-established. Values are shared between callers and must be treated as immutable.
+ */
+public class ClusterClientSideCache implements Managed, RedisClusterPushListener {
+
+  private static final Logger logger = LoggerFactory.getLogger(ClusterClientSideCache.class);
+
+  private static final String GET_COUNTER_NAME = name(ClusterClientSideCache.class, "get");
+  private static final String INVALIDATION_COUNTER_NAME = name(ClusterClientSideCache.class, "invalidation");
+  private static final String FLUSH_COUNTER_NAME = name(ClusterClientSideCache.class, "flush");
+  private static final String INVALIDATION_LAG_TIMER_NAME = name(ClusterClientSideCache.class, "invalidationLag");
+  private static final String SIZE_GAUGE_NAME = name(ClusterClientSideCache.class, "size");
+  private static final String HIT_RATIO_GAUGE_NAME = name(ClusterClientSideCache.class, "hitRatio");
+
+  private static final String INVALIDATE_MESSAGE_TYPE = "invalidate";
+
+  // the field under which whole-key values (as opposed to hash fields) are stored
+  private static final Object VALUE_FIELD = new Object();
+
+  private static final int INVALIDATION_STRIPES = 1024;
+
+  private final String name;
+  private final FaultTolerantRedisCluster cluster;
+  private final ClientSideCacheConfiguration configuration;
+  private final List<String> prefixes;
+  private final String probeKey;
+  private final ScheduledExecutorService executor;
+
+  private final Cache<String, Map<Object, Object>> cache;
+
+  // a load may only populate the cache if no invalidation that could affect its key arrived while it was in flight
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLongArray invalidationStripes = new AtomicLongArray(INVALIDATION_STRIPES);
+
+  // the client ID of the tracking connection to each upstream node, by node ID; a reconnected connection gets a new ID
+  // and has lost its tracking registration
+  private final Map<String, Long> trackingClientIds = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingTrackingChecks = new AtomicInteger();
+
+  private final Counter hitCounter;
+  private final Counter missCounter;
+  private final Counter bypassCounter;
+  private final Counter invalidationCounter;
+  private final Counter flushCounter;
+  private final Timer invalidationLagTimer;
+
+  private FaultTolerantPubSubConnection<String, String> pubSubConnection;
+  private Disposable eventSubscription;
+  private ScheduledFuture<?> probeFuture;
+
+  private volatile boolean running = false;
+  private volatile boolean trackingActive = false;
+  private volatile long pendingProbeNanos = 0;
+
+  public ClusterClientSideCache(final String name,
+                                final FaultTolerantRedisCluster cluster,
+                                final ClientSideCacheConfiguration configuration,
+                                final List<String> prefixes,
+                                final ScheduledExecutorService executor) {
+
+    this.name = name;
+    this.cluster = cluster;
+    this.configuration = configuration;
+    this.probeKey = "ClientSideCache::" + name + "::probe";
+    this.executor = executor;
+
+    this.prefixes = new ArrayList<>(prefixes);
+    this.prefixes.add(probeKey);
+
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(configuration.getMaxSize())
+        .expireAfterWrite(configuration.getMaxAge().toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+
+    final Tags tags = Tags.of("name", name);
+
+    this.hitCounter = Metrics.counter(GET_COUNTER_NAME, tags.and("outcome", "hit"));
+    this.missCounter = Metrics.counter(GET_COUNTER_NAME, tags.and("outcome", "miss"));
+    this.bypassCounter = Metrics.counter(GET_COUNTER_NAME, tags.and("outcome", "bypass"));
+    this.invalidationCounter = Metrics.counter(INVALIDATION_COUNTER_NAME, tags);
+    this.flushCounter = Metrics.counter(FLUSH_COUNTER_NAME, tags);
+    this.invalidationLagTimer = Metrics.timer(INVALIDATION_LAG_TIMER_NAME, tags);
+
+    Metrics.gauge(SIZE_GAUGE_NAME, tags, cache, Cache::size);
+    Metrics.gauge(HIT_RATIO_GAUGE_NAME, tags, this, ClusterClientSideCache::getHitRatio);
+  }
+
+  /**
+   * Returns a cache that never caches anything, for callers (like offline commands) that don't need one.
+   */
+  public static ClusterClientSideCache disabled(final String name, final FaultTolerantRedisCluster cluster) {
+    return new ClusterClientSideCache(name, cluster, new ClientSideCacheConfiguration(), List.of(), null);
+  }
+
+  @Override
+  public void start() {
+    if (!configuration.isEnabled()) {
+      return;
+    }
+
+    running = true;
+
+    pubSubConnection = cluster.createPubSubConnection();
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.addListener(this);
+
+      eventSubscription = connection.getResources().eventBus().get().subscribe(event -> {
+        if (event instanceof ConnectionDeactivatedEvent) {
+          onConnectionDeactivated();
+        } else if (event instanceof ConnectionActivatedEvent) {
+          executor.execute(this::resumeTracking);
+        } else if (event instanceof ClusterTopologyChangedEvent) {
+          // new upstream nodes need to be told to track our prefixes
+          executor.execute(this::resetTracking);
+        }
+      });
+    });
+
+    resetTracking();
+
+    probeFuture = executor.scheduleAtFixedRate(this::probe,
+        configuration.getProbeInterval().toMillis(), configuration.getProbeInterval().toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+
+    if (probeFuture != null) {
+      probeFuture.cancel(false);
+    }
+
+    if (eventSubscription != null) {
+      eventSubscription.dispose();
+    }
+
+    if (pubSubConnection != null) {
+      pubSubConnection.usePubSubConnection(connection -> connection.removeListener(this));
+    }
+
+    disableTracking();
+  }
+
+  /**
+   * Returns the value of the given key, loading it with the given loader (which should read the key from Redis) if it
+   * isn't cached locally. A {@code null} result (a missing key) is not cached.
+   */
+  public <T> T get(final String key, final Supplier<T> loader) {
+    return get(key, VALUE_FIELD, loader);
+  }
+
+  /**
+   * Returns one field of the hash at the given key; all fields of a hash are invalidated together.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(final String key, final Object field, final Supplier<T> loader) {
+    if (!isCaching()) {
+      if (configuration.isEnabled()) {
+        bypassCounter.increment();
+      }
+
+      return loader.get();
+    }
+
+    final Map<Object, Object> fields = cache.getIfPresent(key);
+    final Object cached = fields != null ? fields.get(field) : null;
+
+    if (cached != null) {
+      hitCounter.increment();
+      return (T) cached;
+    }
+
+    missCounter.increment();
+
+    final int stripe = getStripe(key);
+    final long generationBeforeLoad = generation.get();
+    final long stripeBeforeLoad = invalidationStripes.get(stripe);
+
+    final T value = loader.get();
+
+    if (value != null && isCaching() && generationBeforeLoad == generation.get() && stripeBeforeLoad == invalidationStripes.get(stripe)) {
+      final Map<Object, Object> cachedFields = cache.asMap().computeIfAbsent(key, ignored -> new ConcurrentHashMap<>());
+      cachedFields.put(field, value);
+
+      // an invalidation that landed between the check above and the put must not be overwritten by a stale value;
+      // one that lands after this check will remove the key (and so this value) itself
+      if (generationBeforeLoad != generation.get() || stripeBeforeLoad != invalidationStripes.get(stripe)) {
+        cachedFields.remove(field, value);
+      }
+    }
+
+    return value;
+  }
+
+  /**
+   * Discards any local copy of the given key. Writers should call this after changing a key so that their own reads
+   * don't have to wait for the server's invalidation message.
+   */
+  public void invalidate(final String key) {
+    invalidationStripes.incrementAndGet(getStripe(key));
+    cache.invalidate(key);
+  }
+
+  @Override
+  public void onPushMessage(final RedisClusterNode node, final PushMessage message) {
+    if (!INVALIDATE_MESSAGE_TYPE.equals(message.getType())) {
+      return;
+    }
+
+    final List<Object> content = message.getContent(StringCodec.UTF8::decodeKey);
+    final Object keys = content.size() > 1 ? content.get(1) : null;
+
+    if (keys instanceof List) {
+      for (final Object key : (List<?>) keys) {
+        final String keyString = key instanceof ByteBuffer ? StringCodec.UTF8.decodeKey((ByteBuffer) key) : String.valueOf(key);
+
+        if (probeKey.equals(keyString)) {
+          recordProbeInvalidation();
+        } else {
+          invalidationCounter.increment();
+          invalidate(keyString);
+        }
+      }
+    } else {
+      // a null key list means the server flushed its tracking table (e.g. after FLUSHALL), so everything is suspect
+      flush();
+    }
+  }
+
+  @VisibleForTesting
+  boolean isTrackingActive() {
+    return trackingActive;
+  }
+
+  @VisibleForTesting
+  Map<String, Long> getTrackingClientIds() {
+    return Map.copyOf(trackingClientIds);
+  }
+
+  /**
+   * Any of the cluster's connections may have dropped; if it was one of ours, invalidations may have been missed, so
+   * the cache isn't used until the tracking connections have been checked.
+   */
+  @VisibleForTesting
+  void onConnectionDeactivated() {
+    pendingTrackingChecks.incrementAndGet();
+
+    try {
+      executor.execute(this::checkTracking);
+    } catch (final RuntimeException e) {
+      pendingTrackingChecks.decrementAndGet();
+      disableTracking();
+    }
+  }
+
+  private synchronized void checkTracking() {
+    try {
+      if (trackingActive && !isTrackingIntact()) {
+        logger.info("Client-side cache tracking connection for {} was re-established; resetting tracking", name);
+        resetTracking();
+      }
+    } finally {
+      pendingTrackingChecks.decrementAndGet();
+    }
+  }
+
+  private boolean isTrackingIntact() {
+    try {
+      return pubSubConnection.withPubSubConnection(connection -> {
+        for (final Map.Entry<String, Long> entry : trackingClientIds.entrySet()) {
+          if (!entry.getValue().equals(connection.getConnection(entry.getKey()).sync().clientId())) {
+            return false;
+          }
+        }
+
+        return true;
+      });
+    } catch (final RuntimeException e) {
+      logger.warn("Failed to check client-side cache tracking connections for {}", name, e);
+      return false;
+    }
+  }
+
+  private boolean isCaching() {
+    return trackingActive && pendingTrackingChecks.get() == 0;
+  }
+
+  private synchronized void resumeTracking() {
+    if (!trackingActive) {
+      resetTracking();
+    }
+  }
+
+  // concurrent resets would interleave their per-node commands and could leave a node without tracking
+  @VisibleForTesting
+  synchronized void resetTracking() {
+    trackingActive = false;
+    trackingClientIds.clear();
+    flush();
+
+    if (!running) {
+      return;
+    }
+
+    try {
+      final TrackingArgs trackingArgs = TrackingArgs.Builder.enabled().bcast().prefixes(prefixes.toArray(new String[0]));
+
+      pubSubConnection.usePubSubConnection(connection -> {
+        for (final RedisClusterNode node : connection.getPartitions()) {
+          if (node.is(RedisClusterNode.NodeFlag.UPSTREAM)) {
+            // prefixes can't be added to an existing registration, so start from scratch
+            connection.getConnection(node.getNodeId()).sync().clientTracking(TrackingArgs.Builder.enabled(false));
+            connection.getConnection(node.getNodeId()).sync().clientTracking(trackingArgs);
+
+            trackingClientIds.put(node.getNodeId(), connection.getConnection(node.getNodeId()).sync().clientId());
+          }
+        }
+      });
+
+      // anything loaded while tracking was being re-established may already be stale
+      flush();
+      trackingActive = running;
+    } catch (final RuntimeException e) {
+      logger.warn("Failed to enable client-side cache tracking for {}; reads will bypass the local cache", name, e);
+    }
+  }
+
+  @VisibleForTesting
+  void probe() {
+    if (!trackingActive) {
+      resetTracking();
+      return;
+    }
+
+    if (pendingProbeNanos != 0) {
+      logger.warn("Invalidation for the last {} client-side cache probe never arrived; resetting tracking", name);
+      pendingProbeNanos = 0;
+      resetTracking();
+      return;
+    }
+
+    pendingProbeNanos = System.nanoTime();
+
+    try {
+      cluster.useCluster(connection -> connection.sync().set(probeKey, String.valueOf(System.currentTimeMillis())));
+    } catch (final RuntimeException e) {
+      pendingProbeNanos = 0;
+      logger.warn("Failed to write client-side cache probe", e);
+    }
+  }
+
+  private void recordProbeInvalidation() {
+    final long probeNanos = pendingProbeNanos;
+
+    if (probeNanos != 0) {
+      invalidationLagTimer.record(System.nanoTime() - probeNanos, TimeUnit.NANOSECONDS);
+      pendingProbeNanos = 0;
+    }
+  }
+
+  private void disableTracking() {
+    trackingActive = false;
+    flush();
+  }
+
+  private void flush() {
+    generation.incrementAndGet();
+    cache.invalidateAll();
+    flushCounter.increment();
+  }
+
+  private double getHitRatio() {
+    final double hits = hitCounter.count();
+    final double lookups = hits + missCounter.count();
+
+    return lookups > 0 ? hits / lookups : 0;
+  }
+
+  private static int getStripe(final String key) {
+    return Math.floorMod(key.hashCode(), INVALIDATION_STRIPES);
+  }
+}
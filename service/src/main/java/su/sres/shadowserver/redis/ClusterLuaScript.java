@@ -7,35 +7,60 @@ package su.sres.shadowserver.redis;
 
 import io.lettuce.core.RedisNoScriptException;
 import io.lettuce.core.ScriptOutputType;
-import io.lettuce.core.api.sync.RedisCommands;
-import io.lettuce.core.cluster.SlotHash;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
-import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A Lua script executed with EVALSHA against a Redis cluster. The script is loaded onto every node when it's created
+ * and again whenever the cluster's topology changes, so that a newly-promoted or newly-added node doesn't make the
+ * first callers to reach it pay for a NOSCRIPT round trip; if a node is missing the script anyway, the call falls back
+ * to EVAL (which also caches the script on that node) and the script is reloaded everywhere in the background.
+ */
 public class ClusterLuaScript {
 
     private final FaultTolerantRedisCluster redisCluster;
+    private final RedisWorkload workload;
     private final ScriptOutputType scriptOutputType;
     private final String script;
     private final String sha;
 
+    private final Timer executeTimer;
+    private final DistributionSummary replySizeSummary;
+    private final Counter noScriptCounter;
+
+    private final AtomicBoolean preloadInFlight = new AtomicBoolean(false);
+
     private static final String[] STRING_ARRAY = new String[0];
     private static final byte[][] BYTE_ARRAY_ARRAY = new byte[0][];
 
+    private static final String EXECUTE_TIMER_NAME = name(ClusterLuaScript.class, "execute");
+    private static final String REPLY_SIZE_SUMMARY_NAME = name(ClusterLuaScript.class, "replySize");
+    private static final String NO_SCRIPT_COUNTER_NAME = name(ClusterLuaScript.class, "noScript");
+    private static final String SCRIPT_TAG_NAME = "script";
+
     private static final Logger log = LoggerFactory.getLogger(ClusterLuaScript.class);
 
     public static ClusterLuaScript fromResource(final FaultTolerantRedisCluster redisCluster, final String resource, final ScriptOutputType scriptOutputType) throws IOException {
+	return fromResource(redisCluster, resource, scriptOutputType, RedisWorkload.SCRIPTS);
+    }
+
+    public static ClusterLuaScript fromResource(final FaultTolerantRedisCluster redisCluster, final String resource, final ScriptOutputType scriptOutputType, final RedisWorkload workload) throws IOException {
 	try (final InputStream inputStream = LuaScript.class.getClassLoader().getResourceAsStream(resource);
 		final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
 
@@ -46,56 +71,153 @@ public class ClusterLuaScript {
 		baos.write(buffer, 0, read);
 	    }
 
-	    return new ClusterLuaScript(redisCluster, new String(baos.toByteArray()), scriptOutputType);
+	    return new ClusterLuaScript(redisCluster, getScriptName(resource), new String(baos.toByteArray()), scriptOutputType, workload);
 	}
     }
 
     @VisibleForTesting
     ClusterLuaScript(final FaultTolerantRedisCluster redisCluster, final String script, final ScriptOutputType scriptOutputType) {
+	this(redisCluster, "test", script, scriptOutputType, RedisWorkload.SCRIPTS);
+    }
+
+    private ClusterLuaScript(final FaultTolerantRedisCluster redisCluster, final String name, final String script, final ScriptOutputType scriptOutputType, final RedisWorkload workload) {
 	this.redisCluster = redisCluster;
+	this.workload = workload;
 	this.scriptOutputType = scriptOutputType;
 	this.script = script;
+
+	this.executeTimer = Timer.builder(EXECUTE_TIMER_NAME)
+		.tags(SCRIPT_TAG_NAME, name)
+		.publishPercentileHistogram()
+		.register(Metrics.globalRegistry);
+
+	this.replySizeSummary = DistributionSummary.builder(REPLY_SIZE_SUMMARY_NAME)
+		.tags(SCRIPT_TAG_NAME, name)
+		.publishPercentileHistogram()
+		.register(Metrics.globalRegistry);
+
+	this.noScriptCounter = Metrics.counter(NO_SCRIPT_COUNTER_NAME, SCRIPT_TAG_NAME, name);
+
+	// SCRIPT LOAD goes to every node the cluster connection knows about
 	this.sha = redisCluster.withCluster(connection -> connection.sync().scriptLoad(script));
+
+	redisCluster.addTopologyChangeListener(this::preload);
     }
 
-    public Object execute(final List<String> keys, final List<String> args) {
-	return redisCluster.withCluster(connection -> {
+    @VisibleForTesting
+    String getSha() {
+	return sha;
+    }
 
-	    try {
-		final RedisAdvancedClusterCommands<String, String> clusterCommands = connection.sync();
+    // "lua/insert_item.lua" -> "insert_item"
+    @VisibleForTesting
+    static String getScriptName(final String resource) {
+	final String fileName = resource.substring(resource.lastIndexOf('/') + 1);
+	return fileName.endsWith(".lua") ? fileName.substring(0, fileName.length() - ".lua".length()) : fileName;
+    }
+
+    public Object execute(final List<String> keys, final List<String> args) {
+	final Timer.Sample sample = Timer.start();
 
+	try {
+	    final Object result = redisCluster.withCluster(workload, connection -> {
 		try {
-		    return clusterCommands.evalsha(sha, scriptOutputType, keys.toArray(STRING_ARRAY), args.toArray(STRING_ARRAY));
-		} catch (final RedisNoScriptException e) {
-		    reloadScript();
-		    return clusterCommands.evalsha(sha, scriptOutputType, keys.toArray(STRING_ARRAY), args.toArray(STRING_ARRAY));
+		    final RedisAdvancedClusterCommands<String, String> clusterCommands = connection.sync();
+
+		    try {
+			return clusterCommands.evalsha(sha, scriptOutputType, keys.toArray(STRING_ARRAY), args.toArray(STRING_ARRAY));
+		    } catch (final RedisNoScriptException e) {
+			handleNoScript();
+			return clusterCommands.eval(script, scriptOutputType, keys.toArray(STRING_ARRAY), args.toArray(STRING_ARRAY));
+		    }
+		} catch (final Exception e) {
+		    log.warn("Failed to execute script", e);
+		    throw e;
 		}
-	    } catch (final Exception e) {
-		log.warn("Failed to execute script", e);
-		throw e;
-	    }
-	});
+	    });
+
+	    replySizeSummary.record(getReplySize(result));
+	    return result;
+	} finally {
+	    sample.stop(executeTimer);
+	}
     }
 
     public Object executeBinary(final List<byte[]> keys, final List<byte[]> args) {
-	return redisCluster.withBinaryCluster(connection -> {
-	    try {
-		final RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = connection.sync();
+	final Timer.Sample sample = Timer.start();
 
+	try {
+	    final Object result = redisCluster.withBinaryCluster(workload, connection -> {
 		try {
-		    return binaryCommands.evalsha(sha, scriptOutputType, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY));
-		} catch (final RedisNoScriptException e) {
-		    reloadScript();
-		    return binaryCommands.evalsha(sha, scriptOutputType, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY));
+		    final RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = connection.sync();
+
+		    try {
+			return binaryCommands.evalsha(sha, scriptOutputType, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY));
+		    } catch (final RedisNoScriptException e) {
+			handleNoScript();
+			return binaryCommands.eval(script, scriptOutputType, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY));
+		    }
+		} catch (final Exception e) {
+		    log.warn("Failed to execute script", e);
+		    throw e;
 		}
-	    } catch (final Exception e) {
-		log.warn("Failed to execute script", e);
-		throw e;
-	    }
-	});
+	    });
+
+	    replySizeSummary.record(getReplySize(result));
+	    return result;
+	} finally {
+	    sample.stop(executeTimer);
+	}
     }
 
-    private void reloadScript() {
-	redisCluster.useCluster(connection -> connection.sync().upstream().commands().scriptLoad(script));
+    private void handleNoScript() {
+	noScriptCounter.increment();
+
+	// if one node lost the script, others may have too
+	preload();
+    }
+
+    private void preload() {
+	// a burst of NOSCRIPT replies after a failover should trigger one reload, not one per caller
+	if (!preloadInFlight.compareAndSet(false, true)) {
+	    return;
+	}
+
+	try {
+	    redisCluster.useCluster(connection -> connection.async().scriptLoad(script).whenComplete((loadedSha, throwable) -> {
+		preloadInFlight.set(false);
+
+		if (throwable != null) {
+		    log.warn("Failed to preload script {}", sha, throwable);
+		}
+	    }));
+	} catch (final RuntimeException e) {
+	    preloadInFlight.set(false);
+	    log.warn("Failed to preload script {}", sha, e);
+	}
+    }
+
+    /**
+     * Returns the approximate size of a reply in bytes, counting only the payload of bulk strings.
+     */
+    @VisibleForTesting
+    static long getReplySize(final Object reply) {
+	if (reply instanceof byte[]) {
+	    return ((byte[]) reply).length;
+	} else if (reply instanceof String) {
+	    return ((String) reply).length();
+	} else if (reply instanceof List) {
+	    long size = 0;
+
+	    for (final Object element : (List<?>) reply) {
+		size += getReplySize(element);
+	    }
+
+	    return size;
+	} else if (reply instanceof Number) {
+	    return Long.BYTES;
+	}
+
+	return 0;
     }
 }
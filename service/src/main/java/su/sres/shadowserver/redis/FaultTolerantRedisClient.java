@@ -9,10 +9,15 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.lettuce.core.ReadFrom;
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
 import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.masterreplica.MasterReplica;
+import io.lettuce.core.masterreplica.StatefulRedisMasterReplicaConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import su.sres.shadowserver.configuration.CircuitBreakerConfiguration;
@@ -21,6 +26,7 @@ import su.sres.shadowserver.util.CircuitBreakerUtil;
 import su.sres.shadowserver.util.Constants;
 
 import java.time.Duration;
+import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -32,7 +38,9 @@ public class FaultTolerantRedisClient {
 
     private final StatefulRedisConnection<String, String> stringConnection;
     private final StatefulRedisConnection<byte[], byte[]> binaryConnection;
+    private final StatefulRedisConnection<String, String> freshReadConnection;
     private final CircuitBreaker circuitBreaker;
+    private final Duration commandTimeout;
 
     private final Timer executeTimer;
 
@@ -42,14 +50,39 @@ public class FaultTolerantRedisClient {
 	this(name, RedisClient.create(redisConfiguration.getUrl()), redisConfiguration.getTimeout(), redisConfiguration.getCircuitBreakerConfiguration());
     }
 
+    /**
+     * Creates a client whose "fresh" reads (see {@link #withFreshReadClient(Function)}) are routed among the master and
+     * its replicas by the given monitor.
+     */
+    public FaultTolerantRedisClient(final String name, final RedisConfiguration redisConfiguration, final ReplicaHealthMonitor replicaHealthMonitor) {
+	this(name, RedisClient.create(redisConfiguration.getUrl()), redisConfiguration.getTimeout(), redisConfiguration.getCircuitBreakerConfiguration(),
+		replicaHealthMonitor.getNodeUris(), replicaHealthMonitor.getFreshReadFrom());
+    }
+
     @VisibleForTesting
     FaultTolerantRedisClient(final String name, final RedisClient redisClient, final Duration commandTimeout, final CircuitBreakerConfiguration circuitBreakerConfiguration) {
+	this(name, redisClient, commandTimeout, circuitBreakerConfiguration, List.of(), null);
+    }
+
+    @VisibleForTesting
+    FaultTolerantRedisClient(final String name, final RedisClient redisClient, final Duration commandTimeout, final CircuitBreakerConfiguration circuitBreakerConfiguration,
+	    final List<RedisURI> nodeUris, final ReadFrom freshReadFrom) {
 	this.client = redisClient;
 	this.client.setDefaultTimeout(commandTimeout);
+	this.commandTimeout = commandTimeout;
 
 	this.stringConnection = client.connect();
 	this.binaryConnection = client.connect(ByteArrayCodec.INSTANCE);
 
+	if (freshReadFrom != null) {
+	    final StatefulRedisMasterReplicaConnection<String, String> masterReplicaConnection = MasterReplica.connect(client, StringCodec.UTF8, nodeUris);
+	    masterReplicaConnection.setReadFrom(freshReadFrom);
+
+	    this.freshReadConnection = masterReplicaConnection;
+	} else {
+	    this.freshReadConnection = stringConnection;
+	}
+
 	this.circuitBreaker = CircuitBreaker.of(name + "-breaker", circuitBreakerConfiguration.toCircuitBreakerConfig());
 
 	CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME),
@@ -59,9 +92,22 @@ public class FaultTolerantRedisClient {
 	this.executeTimer = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME).timer(name(getClass(), name, "execute"));
     }
 
+    /**
+     * Returns the timeout applied to synchronous commands; callers awaiting asynchronous commands should generally wait
+     * no longer than this.
+     */
+    public Duration getCommandTimeout() {
+	return commandTimeout;
+    }
+
     @VisibleForTesting
     void shutdown() {
+	if (freshReadConnection != stringConnection) {
+	    freshReadConnection.close();
+	}
+
 	stringConnection.close();
+	binaryConnection.close();
 	client.shutdown();
     }
 
@@ -73,6 +119,23 @@ public class FaultTolerantRedisClient {
 	return withConnection(stringConnection, function);
     }
 
+    /**
+     * Runs a read that may be served by a replica no further behind the master than the replica health monitor allows,
+     * or by the master if there is no such replica. A read that fails on a replica is retried on the master, and replica
+     * failures don't count against the master's circuit breaker.
+     */
+    public <T> T withFreshReadClient(final Function<StatefulRedisConnection<String, String>, T> function) {
+	if (freshReadConnection != stringConnection) {
+	    try (final Timer.Context ignored = executeTimer.time()) {
+		return function.apply(freshReadConnection);
+	    } catch (final RuntimeException e) {
+		log.warn("Fresh read failed; retrying on the master", e);
+	    }
+	}
+
+	return withClient(function);
+    }
+
     public void useBinaryClient(final Consumer<StatefulRedisConnection<byte[], byte[]>> consumer) {
 	useConnection(binaryConnection, consumer);
     }
@@ -8,6 +8,7 @@ package su.sres.shadowserver.redis;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.github.resilience4j.retry.Retry;
@@ -17,15 +18,19 @@ import io.lettuce.core.cluster.ClusterClientOptions;
 import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
 import io.lettuce.core.cluster.RedisClusterClient;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
 import io.lettuce.core.cluster.pubsub.StatefulRedisClusterPubSubConnection;
 import io.lettuce.core.codec.ByteArrayCodec;
 import io.lettuce.core.resource.ClientResources;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 
 import su.sres.shadowserver.configuration.CircuitBreakerConfiguration;
 import su.sres.shadowserver.configuration.RedisClusterConfiguration;
+import su.sres.shadowserver.configuration.RedisWorkloadConfiguration;
+import su.sres.shadowserver.configuration.RedisWorkloadsConfiguration;
 import su.sres.shadowserver.configuration.RetryConfiguration;
 import su.sres.shadowserver.util.CircuitBreakerUtil;
 import su.sres.shadowserver.util.Constants;
@@ -33,8 +38,13 @@ import su.sres.shadowserver.util.ThreadDumpUtil;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -44,6 +54,11 @@ import static com.codahale.metrics.MetricRegistry.name;
 /**
  * A fault-tolerant access manager for a Redis cluster. A fault-tolerant Redis
  * cluster provides managed, circuit-breaker-protected access to connections.
+ * <p>
+ * Callers may tag operations with a {@link RedisWorkload}. Each workload with
+ * its own configuration is served by a separate pool of connections with its
+ * own circuit breaker, retry policy and latency timer; all other workloads
+ * share the default workload's.
  */
 public class FaultTolerantRedisCluster {
 
@@ -51,13 +66,13 @@ public class FaultTolerantRedisCluster {
 
     private final RedisClusterClient clusterClient;
 
-    private final StatefulRedisClusterConnection<String, String> stringConnection;
-    private final StatefulRedisClusterConnection<byte[], byte[]> binaryConnection;
+    private final Map<RedisWorkload, Lane> lanes = new EnumMap<>(RedisWorkload.class);
 
     private final List<StatefulRedisClusterPubSubConnection<?, ?>> pubSubConnections = new ArrayList<>();
 
-    private final CircuitBreaker circuitBreaker;
-    private final Retry retry;
+    private final List<Runnable> topologyChangeListeners = new CopyOnWriteArrayList<>();
+    private final Disposable topologyChangeSubscription;
+
     private final Meter commandTimeoutMeter;
     private final AtomicBoolean wroteThreadDump = new AtomicBoolean(false);
 
@@ -68,11 +83,17 @@ public class FaultTolerantRedisCluster {
 		RedisClusterClient.create(clientResources, clusterConfiguration.getUrls().stream().map(RedisURI::create).collect(Collectors.toList())),
 		clusterConfiguration.getTimeout(),
 		clusterConfiguration.getCircuitBreakerConfiguration(),
-		clusterConfiguration.getRetryConfiguration());
+		clusterConfiguration.getRetryConfiguration(),
+		clusterConfiguration.getWorkloadsConfiguration());
     }
 
     @VisibleForTesting
     FaultTolerantRedisCluster(final String name, final RedisClusterClient clusterClient, final Duration commandTimeout, final CircuitBreakerConfiguration circuitBreakerConfiguration, final RetryConfiguration retryConfiguration) {
+	this(name, clusterClient, commandTimeout, circuitBreakerConfiguration, retryConfiguration, new RedisWorkloadsConfiguration());
+    }
+
+    @VisibleForTesting
+    FaultTolerantRedisCluster(final String name, final RedisClusterClient clusterClient, final Duration commandTimeout, final CircuitBreakerConfiguration circuitBreakerConfiguration, final RetryConfiguration retryConfiguration, final RedisWorkloadsConfiguration workloadsConfiguration) {
 	this.name = name;
 
 	final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
@@ -87,19 +108,39 @@ public class FaultTolerantRedisCluster {
 			.build())
 		.build());
 
-	this.stringConnection = clusterClient.connect();
-	this.binaryConnection = clusterClient.connect(ByteArrayCodec.INSTANCE);
+	// note that client resources (and so the event bus) may be shared with other clusters, so listeners may also hear
+	// about their topology changes
+	this.topologyChangeSubscription = clusterClient.getResources().eventBus().get().subscribe(event -> {
+	    if (event instanceof ClusterTopologyChangedEvent) {
+		notifyTopologyChangeListeners();
+	    }
+	});
+
+	final Lane defaultLane = new Lane(RedisWorkload.DEFAULT,
+		workloadsConfiguration.getConfiguration(RedisWorkload.DEFAULT),
+		circuitBreakerConfiguration,
+		retryConfiguration);
 
-	this.circuitBreaker = CircuitBreaker.of(name + "-breaker", circuitBreakerConfiguration.toCircuitBreakerConfig());
-	this.retry = Retry.of(name + "-retry", retryConfiguration.toRetryConfigBuilder().retryOnException(exception -> exception instanceof RedisCommandTimeoutException).build());
+	for (final RedisWorkload workload : RedisWorkload.values()) {
+	    if (workload == RedisWorkload.DEFAULT) {
+		lanes.put(workload, defaultLane);
+	    } else {
+		final Optional<RedisWorkloadConfiguration> maybeConfiguration = workloadsConfiguration.getConfiguration(workload);
 
-	CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), circuitBreaker, FaultTolerantRedisCluster.class);
-	CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), retry, FaultTolerantRedisCluster.class);
+		lanes.put(workload, maybeConfiguration.isPresent()
+			? new Lane(workload, maybeConfiguration, circuitBreakerConfiguration, retryConfiguration)
+			: defaultLane);
+	    }
+	}
     }
 
     void shutdown() {
-	stringConnection.close();
-	binaryConnection.close();
+	if (topologyChangeSubscription != null) {
+	    topologyChangeSubscription.dispose();
+	}
+
+	// workloads without their own configuration share the default lane
+	lanes.values().stream().distinct().forEach(Lane::close);
 
 	for (final StatefulRedisClusterPubSubConnection<?, ?> pubSubConnection : pubSubConnections) {
 	    pubSubConnection.close();
@@ -113,24 +154,44 @@ public class FaultTolerantRedisCluster {
     }
 
     public void useCluster(final Consumer<StatefulRedisClusterConnection<String, String>> consumer) {
-	useConnection(stringConnection, consumer);
+	useCluster(RedisWorkload.DEFAULT, consumer);
     }
 
     public <T> T withCluster(final Function<StatefulRedisClusterConnection<String, String>, T> function) {
-	return withConnection(stringConnection, function);
+	return withCluster(RedisWorkload.DEFAULT, function);
     }
 
     public void useBinaryCluster(final Consumer<StatefulRedisClusterConnection<byte[], byte[]>> consumer) {
-	useConnection(binaryConnection, consumer);
+	useBinaryCluster(RedisWorkload.DEFAULT, consumer);
     }
 
     public <T> T withBinaryCluster(final Function<StatefulRedisClusterConnection<byte[], byte[]>, T> function) {
-	return withConnection(binaryConnection, function);
+	return withBinaryCluster(RedisWorkload.DEFAULT, function);
+    }
+
+    public void useCluster(final RedisWorkload workload, final Consumer<StatefulRedisClusterConnection<String, String>> consumer) {
+	final Lane lane = lanes.get(workload);
+	useConnection(lane, lane.nextStringConnection(), consumer);
+    }
+
+    public <T> T withCluster(final RedisWorkload workload, final Function<StatefulRedisClusterConnection<String, String>, T> function) {
+	final Lane lane = lanes.get(workload);
+	return withConnection(lane, lane.nextStringConnection(), function);
+    }
+
+    public void useBinaryCluster(final RedisWorkload workload, final Consumer<StatefulRedisClusterConnection<byte[], byte[]>> consumer) {
+	final Lane lane = lanes.get(workload);
+	useConnection(lane, lane.nextBinaryConnection(), consumer);
+    }
+
+    public <T> T withBinaryCluster(final RedisWorkload workload, final Function<StatefulRedisClusterConnection<byte[], byte[]>, T> function) {
+	final Lane lane = lanes.get(workload);
+	return withConnection(lane, lane.nextBinaryConnection(), function);
     }
 
-    private <K, V> void useConnection(final StatefulRedisClusterConnection<K, V> connection, final Consumer<StatefulRedisClusterConnection<K, V>> consumer) {
-	try {
-	    circuitBreaker.executeCheckedRunnable(() -> retry.executeRunnable(() -> {
+    private <K, V> void useConnection(final Lane lane, final StatefulRedisClusterConnection<K, V> connection, final Consumer<StatefulRedisClusterConnection<K, V>> consumer) {
+	try (final Timer.Context ignored = lane.latencyTimer.time()) {
+	    lane.circuitBreaker.executeCheckedRunnable(() -> lane.retry.executeRunnable(() -> {
 		try {
 		    consumer.accept(connection);
 		} catch (final RedisCommandTimeoutException e) {
@@ -149,9 +210,9 @@ public class FaultTolerantRedisCluster {
 	}
     }
 
-    private <T, K, V> T withConnection(final StatefulRedisClusterConnection<K, V> connection, final Function<StatefulRedisClusterConnection<K, V>, T> function) {
-	try {
-	    return circuitBreaker.executeCheckedSupplier(() -> retry.executeCallable(() -> {
+    private <T, K, V> T withConnection(final Lane lane, final StatefulRedisClusterConnection<K, V> connection, final Function<StatefulRedisClusterConnection<K, V>, T> function) {
+	try (final Timer.Context ignored = lane.latencyTimer.time()) {
+	    return lane.circuitBreaker.executeCheckedSupplier(() -> lane.retry.executeCallable(() -> {
 		try {
 		    return function.apply(connection);
 		} catch (final RedisCommandTimeoutException e) {
@@ -179,10 +240,85 @@ public class FaultTolerantRedisCluster {
 	}
     }
 
+    /**
+     * Registers a listener to be called (on an event bus thread, so it must not block) whenever the cluster's topology
+     * changes, for example after a failover or when nodes are added.
+     */
+    public void addTopologyChangeListener(final Runnable listener) {
+	topologyChangeListeners.add(listener);
+    }
+
+    @VisibleForTesting
+    void notifyTopologyChangeListeners() {
+	for (final Runnable listener : topologyChangeListeners) {
+	    try {
+		listener.run();
+	    } catch (final RuntimeException e) {
+		log.warn("Topology change listener failed", e);
+	    }
+	}
+    }
+
     public FaultTolerantPubSubConnection<String, String> createPubSubConnection() {
 	final StatefulRedisClusterPubSubConnection<String, String> pubSubConnection = clusterClient.connectPubSub();
 	pubSubConnections.add(pubSubConnection);
 
-	return new FaultTolerantPubSubConnection<>(name, pubSubConnection, circuitBreaker, retry);
+	final Lane defaultLane = lanes.get(RedisWorkload.DEFAULT);
+
+	return new FaultTolerantPubSubConnection<>(name, pubSubConnection, defaultLane.circuitBreaker, defaultLane.retry);
+    }
+
+    private class Lane {
+
+	private final List<StatefulRedisClusterConnection<String, String>> stringConnections = new ArrayList<>();
+	private final List<StatefulRedisClusterConnection<byte[], byte[]>> binaryConnections = new ArrayList<>();
+	private final AtomicInteger nextConnection = new AtomicInteger();
+
+	private final CircuitBreaker circuitBreaker;
+	private final Retry retry;
+	private final Timer latencyTimer;
+
+	private Lane(final RedisWorkload workload, final Optional<RedisWorkloadConfiguration> maybeConfiguration, final CircuitBreakerConfiguration defaultCircuitBreakerConfiguration, final RetryConfiguration defaultRetryConfiguration) {
+	    final int connections = maybeConfiguration.map(RedisWorkloadConfiguration::getConnections).orElse(1);
+
+	    for (int i = 0; i < connections; i++) {
+		stringConnections.add(clusterClient.connect());
+		binaryConnections.add(clusterClient.connect(ByteArrayCodec.INSTANCE));
+	    }
+
+	    final CircuitBreakerConfiguration circuitBreakerConfiguration = maybeConfiguration
+		    .flatMap(RedisWorkloadConfiguration::getCircuitBreakerConfiguration)
+		    .orElse(defaultCircuitBreakerConfiguration);
+
+	    final RetryConfiguration retryConfiguration = maybeConfiguration
+		    .flatMap(RedisWorkloadConfiguration::getRetryConfiguration)
+		    .orElse(defaultRetryConfiguration);
+
+	    // the default lane keeps the names used before workloads were introduced
+	    final String prefix = workload == RedisWorkload.DEFAULT ? name : name + "-" + workload.getName();
+
+	    this.circuitBreaker = CircuitBreaker.of(prefix + "-breaker", circuitBreakerConfiguration.toCircuitBreakerConfig());
+	    this.retry = Retry.of(prefix + "-retry", retryConfiguration.toRetryConfigBuilder().retryOnException(exception -> exception instanceof RedisCommandTimeoutException).build());
+
+	    final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+	    this.latencyTimer = metricRegistry.timer(name(FaultTolerantRedisCluster.class, name, workload.getName(), "latency"));
+
+	    CircuitBreakerUtil.registerMetrics(metricRegistry, circuitBreaker, FaultTolerantRedisCluster.class);
+	    CircuitBreakerUtil.registerMetrics(metricRegistry, retry, FaultTolerantRedisCluster.class);
+	}
+
+	private StatefulRedisClusterConnection<String, String> nextStringConnection() {
+	    return stringConnections.get(Math.floorMod(nextConnection.getAndIncrement(), stringConnections.size()));
+	}
+
+	private StatefulRedisClusterConnection<byte[], byte[]> nextBinaryConnection() {
+	    return binaryConnections.get(Math.floorMod(nextConnection.getAndIncrement(), binaryConnections.size()));
+	}
+
+	private void close() {
+	    stringConnections.forEach(StatefulRedisClusterConnection::close);
+	    binaryConnections.forEach(StatefulRedisClusterConnection::close);
+	}
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.redis;
+
+/**
+ * Classes of work that may be isolated from one another within a {@link FaultTolerantRedisCluster}. Each workload
+ * configured for a cluster gets its own connections, circuit breaker and retry policy, so that (for example) large
+ * script replies do not delay small, latency-sensitive commands queued behind them on the same connection. Workloads
+ * without their own configuration share the default workload's connections.
+ */
+public enum RedisWorkload {
+
+    DEFAULT("default"),
+
+    /**
+     * Small, frequent commands on a request's critical path, such as presence checks and rate limits.
+     */
+    LATENCY_SENSITIVE("latencySensitive"),
+
+    /**
+     * Commands with large replies, such as pages of queued messages.
+     */
+    BULK("bulk"),
+
+    /**
+     * Lua scripts not assigned to another workload.
+     */
+    SCRIPTS("scripts");
+
+    private final String name;
+
+    RedisWorkload(final String name) {
+	this.name = name;
+    }
+
+    public String getName() {
+	return name;
+    }
+}
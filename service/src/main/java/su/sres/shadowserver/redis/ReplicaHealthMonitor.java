@@ -0,0 +1,380 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.redis;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.ReadFrom;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.models.role.RedisNodeDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import su.sres.shadowserver.configuration.RedisConfiguration;
+import su.sres.shadowserver.configuration.ReplicaSelectionConfiguration;
+import su.sres.shadowserver.util.Constants;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Periodically probes the read replicas of a Redis master for latency and replication lag, and routes reads among
+ * them through Lettuce's master/replica connections (see {@link #getReadFrom(Duration)}). Reads go to the replica with
+ * the lowest smoothed (EWMA) latency among those that have not been ejected and are known to be within the caller's
+ * lag bound, and to the master if there is none. A replica is ejected for a while if it can't be probed, if its latency
+ * is an outlier relative to the median replica or if it lags the master beyond the configured bound.
+ */
+public class ReplicaHealthMonitor implements Managed {
+
+  private static final String HEARTBEAT_KEY_PREFIX = "ReplicaHealthMonitor::heartbeat::";
+
+  // heartbeat keys are per-server, so let abandoned ones expire
+  private static final long HEARTBEAT_TTL_MILLIS = Duration.ofMinutes(5).toMillis();
+
+  // weight given to the latest latency sample
+  private static final double LATENCY_EWMA_ALPHA = 0.3;
+
+  private static final long UNKNOWN = -1;
+
+  private static final Logger log = LoggerFactory.getLogger(ReplicaHealthMonitor.class);
+
+  private final RedisClient redisClient;
+  private final RedisURI masterUri;
+  private final List<Replica> replicas;
+  private final Map<String, Replica> replicasByAddress;
+  private final ReplicaSelectionConfiguration selectionConfiguration;
+  private final ScheduledExecutorService scheduledExecutorService;
+  private final Clock clock;
+  private final String heartbeatKey = HEARTBEAT_KEY_PREFIX + UUID.randomUUID();
+  private final AtomicInteger replicaIndex = new AtomicInteger(0);
+
+  private final Meter ejectionMeter;
+
+  private StatefulRedisConnection<String, String> masterConnection;
+  private ScheduledFuture<?> probeFuture;
+
+  public ReplicaHealthMonitor(final String name, final RedisConfiguration redisConfiguration, final ScheduledExecutorService scheduledExecutorService) {
+    this(name, RedisClient.create(), getUri(redisConfiguration.getUrl(), redisConfiguration.getTimeout()),
+        redisConfiguration.getReplicaUrls().stream().map(url -> getUri(url, redisConfiguration.getTimeout())).collect(Collectors.toList()),
+        redisConfiguration.getReplicaSelectionConfiguration(), scheduledExecutorService, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  ReplicaHealthMonitor(final String name,
+      final RedisClient redisClient,
+      final RedisURI masterUri,
+      final List<RedisURI> replicaUris,
+      final ReplicaSelectionConfiguration selectionConfiguration,
+      final ScheduledExecutorService scheduledExecutorService,
+      final Clock clock) {
+
+    final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+    this.redisClient = redisClient;
+    this.masterUri = masterUri;
+    this.replicas = new ArrayList<>(replicaUris.size());
+    this.replicasByAddress = new HashMap<>();
+    this.selectionConfiguration = selectionConfiguration;
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.clock = clock;
+    this.ejectionMeter = metricRegistry.meter(name(ReplicaHealthMonitor.class, name, "ejected"));
+
+    for (int i = 0; i < replicaUris.size(); i++) {
+      final Replica replica = new Replica(replicaUris.get(i));
+
+      metricRegistry.gauge(name(ReplicaHealthMonitor.class, name, "replica-" + i, "latencyMicros"), () -> () -> Math.round(replica.latencyMicros));
+      metricRegistry.gauge(name(ReplicaHealthMonitor.class, name, "replica-" + i, "lagMillis"), () -> () -> replica.lagMillis);
+
+      replicas.add(replica);
+      replicasByAddress.put(getAddress(replica.uri), replica);
+    }
+  }
+
+  private static RedisURI getUri(final String url, final Duration timeout) {
+    final RedisURI uri = RedisURI.create(url);
+    uri.setTimeout(timeout);
+
+    return uri;
+  }
+
+  private static String getAddress(final RedisURI uri) {
+    return uri.getHost() + ":" + uri.getPort();
+  }
+
+  /**
+   * Returns the URIs of the master and its replicas, for a master/replica connection routed by this monitor.
+   */
+  public List<RedisURI> getNodeUris() {
+    final List<RedisURI> nodeUris = new ArrayList<>(replicas.size() + 1);
+    nodeUris.add(masterUri);
+    replicas.forEach(replica -> nodeUris.add(replica.uri));
+
+    return nodeUris;
+  }
+
+  /**
+   * Returns a read preference that picks a replica known to be at most {@code maxLag} behind the master, or the master
+   * itself if there is no such replica.
+   */
+  public ReadFrom getReadFrom(final Duration maxLag) {
+    return new ReplicaReadFrom(maxLag);
+  }
+
+  /**
+   * Returns a read preference for reads that must be "fresh enough", as configured by
+   * {@link ReplicaSelectionConfiguration#getMaxFreshReadLag()}.
+   */
+  public ReadFrom getFreshReadFrom() {
+    return getReadFrom(selectionConfiguration.getMaxFreshReadLag());
+  }
+
+  @Override
+  public synchronized void start() {
+    if (probeFuture != null) {
+      probeFuture.cancel(true);
+    }
+
+    probeFuture = scheduledExecutorService.scheduleAtFixedRate(() -> {
+      try {
+        probeReplicas();
+      } catch (final Exception e) {
+        log.warn("Failed to probe replicas", e);
+      }
+    }, 0, selectionConfiguration.getProbeInterval().toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (probeFuture != null) {
+      probeFuture.cancel(true);
+      probeFuture = null;
+    }
+
+    if (masterConnection != null) {
+      masterConnection.close();
+      masterConnection = null;
+    }
+
+    replicas.forEach(Replica::closeConnection);
+    redisClient.shutdown();
+  }
+
+  /**
+   * Measures each replica's latency and replication lag, and ejects outliers. Lag is measured as the age of the most
+   * recent heartbeat this monitor wrote to the master that a replica has seen, so it is only as precise as the probe
+   * interval. Each monitor writes its own heartbeat key and only ever compares it against its own clock, so clock skew
+   * between servers doesn't show up as lag. If the heartbeat can't be written, lag isn't measured this round.
+   */
+  @VisibleForTesting
+  synchronized void probeReplicas() {
+    boolean heartbeatWritten;
+
+    try {
+      if (masterConnection == null) {
+        masterConnection = redisClient.connect(masterUri);
+      }
+
+      masterConnection.sync().psetex(heartbeatKey, HEARTBEAT_TTL_MILLIS, String.valueOf(clock.millis()));
+      heartbeatWritten = true;
+    } catch (final RuntimeException e) {
+      log.warn("Failed to write replication heartbeat", e);
+      heartbeatWritten = false;
+    }
+
+    for (final Replica replica : replicas) {
+      try {
+        final StatefulRedisConnection<String, String> connection = replica.getConnection(redisClient);
+
+        final long start = System.nanoTime();
+        final String heartbeat = connection.sync().get(heartbeatKey);
+        final long latency = (System.nanoTime() - start) / 1_000;
+
+        // without a fresh heartbeat, an older one would overstate lag; don't let fresh reads rely on either
+        recordProbe(replica, latency, heartbeatWritten && heartbeat != null ? clock.millis() - Long.parseLong(heartbeat) : UNKNOWN);
+      } catch (final RuntimeException e) {
+        log.warn("Failed to probe read replica", e);
+        replica.closeConnection();
+        eject(replica);
+      }
+    }
+
+    ejectOutliers(heartbeatWritten);
+  }
+
+  @VisibleForTesting
+  void recordProbe(final int replicaIndex, final long latencyMicros, final long lagMillis) {
+    recordProbe(replicas.get(replicaIndex), latencyMicros, lagMillis);
+  }
+
+  private void recordProbe(final Replica replica, final long latencyMicros, final long lagMillis) {
+    replica.latencyMicros = replica.latencyMicros == 0 ? latencyMicros
+        : LATENCY_EWMA_ALPHA * latencyMicros + (1 - LATENCY_EWMA_ALPHA) * replica.latencyMicros;
+
+    // the heartbeat was written with our own clock, so a "negative" lag can only mean that clock stepped backwards
+    replica.lagMillis = lagMillis == UNKNOWN ? UNKNOWN : Math.max(0, lagMillis);
+  }
+
+  @VisibleForTesting
+  void ejectOutliers() {
+    ejectOutliers(true);
+  }
+
+  /**
+   * Ejects replicas that are much slower than the median replica and, if {@code lagMeasured}, replicas whose lag is
+   * unknown or beyond the configured bound. If the heartbeat couldn't be written, a replica not having seen it says
+   * nothing about the replica, so lag is left out.
+   */
+  private void ejectOutliers(final boolean lagMeasured) {
+    if (replicas.isEmpty()) {
+      return;
+    }
+
+    final double[] latencies = replicas.stream().mapToDouble(replica -> replica.latencyMicros).sorted().toArray();
+    // the lower median, so that of two replicas, the slower one can still be an outlier
+    final double median = latencies[(latencies.length - 1) / 2];
+
+    final double maxLatencyMicros = Math.max(median * selectionConfiguration.getOutlierLatencyMultiplier(),
+        selectionConfiguration.getMinOutlierLatency().toNanos() / 1_000d);
+
+    for (final Replica replica : replicas) {
+      final boolean lagging = lagMeasured && (replica.lagMillis == UNKNOWN || replica.lagMillis > selectionConfiguration.getMaxReplicationLag().toMillis());
+
+      if (lagging || replica.latencyMicros > maxLatencyMicros) {
+        eject(replica);
+      }
+    }
+  }
+
+  private void eject(final Replica replica) {
+    final long now = clock.millis();
+
+    if (!replica.isEjected(now)) {
+      ejectionMeter.mark();
+    }
+
+    replica.ejectedUntilMillis = now + selectionConfiguration.getEjectionDuration().toMillis();
+  }
+
+  /**
+   * Orders the replicas that are eligible for a read by smoothed latency, followed by the master as a fallback. Lettuce
+   * reads from the first node in the list that it can connect to. Ties are broken round-robin, so replicas are used
+   * evenly until probes have run.
+   */
+  private class ReplicaReadFrom extends ReadFrom {
+
+    private final long maxLagMillis;
+
+    private ReplicaReadFrom(final Duration maxLag) {
+      this.maxLagMillis = maxLag.toMillis();
+    }
+
+    @Override
+    public List<RedisNodeDescription> select(final Nodes nodes) {
+      final List<RedisNodeDescription> allNodes = nodes.getNodes();
+      final List<Candidate> candidates = new ArrayList<>(allNodes.size());
+      final List<RedisNodeDescription> upstreamNodes = new ArrayList<>(1);
+
+      final int start = replicaIndex.getAndIncrement();
+      final long now = clock.millis();
+
+      for (int i = 0; i < allNodes.size(); i++) {
+        final RedisNodeDescription node = allNodes.get(Math.floorMod(start + i, allNodes.size()));
+
+        if (node.getRole().isReplica()) {
+          final Replica replica = replicasByAddress.get(getAddress(node.getUri()));
+
+          if (replica != null && isEligible(replica, now)) {
+            candidates.add(new Candidate(node, replica.latencyMicros));
+          }
+        } else if (node.getRole().isUpstream()) {
+          upstreamNodes.add(node);
+        }
+      }
+
+      // List.sort is stable, so equally fast replicas keep their round-robin order
+      candidates.sort(Comparator.comparingDouble(candidate -> candidate.latencyMicros));
+
+      final List<RedisNodeDescription> selected = new ArrayList<>(candidates.size() + upstreamNodes.size());
+      candidates.forEach(candidate -> selected.add(candidate.node));
+      selected.addAll(upstreamNodes);
+
+      return selected;
+    }
+
+    private boolean isEligible(final Replica replica, final long now) {
+      return maxLagMillis > 0 && !replica.isEjected(now) && replica.lagMillis != UNKNOWN && replica.lagMillis <= maxLagMillis;
+    }
+
+    @Override
+    protected boolean isOrderSensitive() {
+      return true;
+    }
+  }
+
+  // a snapshot of a replica's latency, so that it doesn't change while candidates are being sorted
+  private static class Candidate {
+
+    private final RedisNodeDescription node;
+    private final double latencyMicros;
+
+    private Candidate(final RedisNodeDescription node, final double latencyMicros) {
+      this.node = node;
+      this.latencyMicros = latencyMicros;
+    }
+  }
+
+  private static class Replica {
+
+    private final RedisURI uri;
+
+    // only used by the prober
+    private StatefulRedisConnection<String, String> connection;
+
+    private volatile double latencyMicros = 0;
+    private volatile long lagMillis = UNKNOWN;
+    private volatile long ejectedUntilMillis = 0;
+
+    private Replica(final RedisURI uri) {
+      this.uri = uri;
+    }
+
+    private StatefulRedisConnection<String, String> getConnection(final RedisClient redisClient) {
+      if (connection == null) {
+        connection = redisClient.connect(uri);
+      }
+
+      return connection;
+    }
+
+    private void closeConnection() {
+      if (connection != null) {
+        connection.close();
+        connection = null;
+      }
+    }
+
+    private boolean isEjected(final long now) {
+      return now < ejectedUntilMillis;
+    }
+  }
+}
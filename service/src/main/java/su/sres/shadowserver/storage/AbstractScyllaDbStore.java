@@ -5,6 +5,8 @@ import io.micrometer.core.instrument.Timer;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 import org.slf4j.Logger;
@@ -61,6 +63,20 @@ public class AbstractScyllaDbStore {
     }
   }
 
+  /**
+   * Counts the items matching a query that selects {@code COUNT}. Each page of the response carries the number of
+   * items it covers instead of the items themselves, so the pages' counts are summed.
+   */
+  protected int countQueryResults(final QueryRequest queryRequest) {
+    int count = 0;
+
+    for (final QueryResponse page : db().queryPaginator(queryRequest)) {
+      count += page.count();
+    }
+
+    return count;
+  }
+
   static <T> void writeInBatches(final Iterable<T> items, final Consumer<List<T>> action) {
     final List<T> batch = new ArrayList<>(DYNAMO_DB_MAX_BATCH_SIZE);
 
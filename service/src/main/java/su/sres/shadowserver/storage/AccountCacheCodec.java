@@ -0,0 +1,61 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import su.sres.shadowserver.util.SystemMapper;
+
+import java.io.IOException;
+
+/**
+ * Encodes accounts for the Redis account cache. Accounts are written as Smile,
+ * whose header carries its own format version; entries written as JSON by
+ * earlier versions are still read transparently.
+ */
+class AccountCacheCodec {
+
+  private static final ObjectMapper JSON_MAPPER = SystemMapper.getMapper();
+  private static final ObjectMapper SMILE_MAPPER = SystemMapper.getSmileMapper();
+
+  // ":)\n", the first three bytes of every Smile document with a header
+  private static final byte[] SMILE_HEADER = { 0x3A, 0x29, 0x0A };
+
+  private AccountCacheCodec() {
+  }
+
+  static byte[] encode(final Account account) throws IOException {
+    return SMILE_MAPPER.writeValueAsBytes(account);
+  }
+
+  static Account decode(final byte[] encoded) throws IOException {
+    return decode(encoded, 0);
+  }
+
+  static Account decode(final byte[] encoded, final int offset) throws IOException {
+    final ObjectMapper mapper = isSmile(encoded, offset) ? SMILE_MAPPER : JSON_MAPPER;
+
+    return mapper.readValue(encoded, offset, encoded.length - offset, Account.class);
+  }
+
+  static boolean isLegacy(final byte[] encoded, final int offset) {
+    return !isSmile(encoded, offset);
+  }
+
+  private static boolean isSmile(final byte[] encoded, final int offset) {
+    if (encoded.length - offset < SMILE_HEADER.length) {
+      return false;
+    }
+
+    for (int i = 0; i < SMILE_HEADER.length; i++) {
+      if (encoded[offset + i] != SMILE_HEADER[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
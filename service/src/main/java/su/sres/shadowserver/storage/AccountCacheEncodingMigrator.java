@@ -0,0 +1,109 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import io.lettuce.core.ScriptOutputType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import su.sres.shadowserver.redis.ClusterLuaScript;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Moves cached accounts into the current layout, in which the login entry holds
+ * the account UUID followed by the account in the compact binary encoding.
+ * Login entries that hold only the UUID get the copy cached under the legacy
+ * entity key appended, entries still encoded as JSON are re-encoded, and the
+ * legacy keys are removed. Entries are only replaced if they have not changed
+ * since they were read, so a concurrent account update always wins.
+ */
+public class AccountCacheEncodingMigrator extends AccountDatabaseCrawlerListener {
+
+  private static final Counter MIGRATED_COUNTER = Metrics.counter(name(AccountCacheEncodingMigrator.class, "migrated"));
+  private static final Counter LEGACY_ENTITY_MERGED_COUNTER = Metrics.counter(name(AccountCacheEncodingMigrator.class, "legacyEntityMerged"));
+  private static final Counter CONFLICT_COUNTER = Metrics.counter(name(AccountCacheEncodingMigrator.class, "conflict"));
+
+  private static final Logger logger = LoggerFactory.getLogger(AccountCacheEncodingMigrator.class);
+
+  private final FaultTolerantRedisCluster cacheCluster;
+  private final ClusterLuaScript compareAndSetScript;
+
+  public AccountCacheEncodingMigrator(final FaultTolerantRedisCluster cacheCluster) throws IOException {
+    this.cacheCluster = cacheCluster;
+    this.compareAndSetScript = ClusterLuaScript.fromResource(cacheCluster, "lua/account_cache/compare_and_set.lua", ScriptOutputType.INTEGER);
+  }
+
+  @Override
+  public void onCrawlStart() {
+
+  }
+
+  @Override
+  public void onCrawlEnd(Optional<UUID> fromUuid) {
+
+  }
+
+  @Override
+  protected void onCrawlChunk(Optional<UUID> fromUuid, List<Account> chunkAccounts) {
+    for (final Account account : chunkAccounts) {
+      try {
+        migrate(account);
+      } catch (final IOException e) {
+        logger.warn("Failed to migrate cached account {}", account.getUuid(), e);
+      }
+    }
+  }
+
+  private void migrate(final Account account) throws IOException {
+    final byte[] loginKey = AccountsManager.getAccountByLoginKey(account.getUserLogin());
+    final byte[] legacyEntityKey = AccountsManager.getLegacyAccountEntityKey(account.getUuid());
+
+    final byte[] cached = cacheCluster.withBinaryCluster(connection -> connection.sync().get(loginKey));
+
+    if (cached != null && cached.length == AccountsManager.LOGIN_ENTRY_UUID_LENGTH) {
+      final byte[] legacyEntity = cacheCluster.withBinaryCluster(connection -> connection.sync().get(legacyEntityKey));
+
+      if (legacyEntity != null) {
+        compareAndSet(loginKey, cached, AccountsManager.getLoginEntry(account.getUuid(), reencode(legacyEntity)), LEGACY_ENTITY_MERGED_COUNTER);
+      }
+    } else if (cached != null && cached.length > AccountsManager.LOGIN_ENTRY_UUID_LENGTH
+        && AccountCacheCodec.isLegacy(cached, AccountsManager.LOGIN_ENTRY_UUID_LENGTH)) {
+      final byte[] encodedAccount = Arrays.copyOfRange(cached, AccountsManager.LOGIN_ENTRY_UUID_LENGTH, cached.length);
+
+      compareAndSet(loginKey, cached, AccountsManager.getLoginEntry(account.getUuid(), reencode(encodedAccount)), MIGRATED_COUNTER);
+    }
+
+    cacheCluster.useCluster(connection -> {
+      connection.sync().set(AccountsManager.getLoginByUuidKey(account.getUuid()), account.getUserLogin());
+      connection.sync().del(AccountsManager.getLegacyAccountMapKey(account.getUserLogin()));
+    });
+
+    cacheCluster.useBinaryCluster(connection -> connection.sync().del(legacyEntityKey));
+  }
+
+  private static byte[] reencode(final byte[] encodedAccount) throws IOException {
+    return AccountCacheCodec.isLegacy(encodedAccount, 0) ? AccountCacheCodec.encode(AccountCacheCodec.decode(encodedAccount)) : encodedAccount;
+  }
+
+  private void compareAndSet(final byte[] key, final byte[] expected, final byte[] replacement, final Counter successCounter) {
+    if ((long) compareAndSetScript.executeBinary(List.of(key), List.of(expected, replacement)) == 1) {
+      successCounter.increment();
+    } else {
+      CONFLICT_COUNTER.increment();
+    }
+  }
+}
@@ -10,12 +10,13 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
 
 import su.sres.shadowserver.util.SystemMapper;
 import su.sres.shadowserver.storage.mappers.AccountRowMapper;
 import su.sres.shadowserver.util.Constants;
 
-import org.jdbi.v3.core.transaction.TransactionIsolationLevel;
+import org.jdbi.v3.core.Handle;
 
 import java.util.List;
 import java.util.Optional;
@@ -38,6 +39,16 @@ public class Accounts implements AccountStore {
     public static final String PAR = "parameter";
     public static final String PAR_VAL = "parameter_value";
 
+    // directory versions are appended rather than updated in place, so concurrent writers never contend on one row;
+    // the legacy single row in miscellaneous is only read
+    private static final String DIRECTORY_VERSIONS = "directory_versions";
+    private static final String VERSION = "version";
+
+    // each write prunes only the rows that fell out of this window, so concurrent writers delete different rows
+    // instead of queueing behind each other on the same ones
+    @VisibleForTesting
+    static final long RETAINED_DIRECTORY_VERSIONS = 100;
+
     private static final ObjectMapper mapper = SystemMapper.getMapper();
 
     private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
@@ -50,7 +61,7 @@ public class Accounts implements AccountStore {
     private final Timer deleteTimer = metricRegistry.timer(name(Accounts.class, "delete"));
     private final Timer vacuumTimer = metricRegistry.timer(name(Accounts.class, "vacuum"));
 
-    // for DirectoryUpdater and directory restore
+    // for federation, whose protocol pages by offset
     private final Timer getAllTimer = metricRegistry.timer(name(Accounts.class, "getAll"));
 
     private final FaultTolerantDatabase database;
@@ -62,7 +73,7 @@ public class Accounts implements AccountStore {
 
     @Override
     public boolean create(Account account, long directoryVersion) {
-	return database.with(jdbi -> jdbi.inTransaction(TransactionIsolationLevel.SERIALIZABLE, handle -> {
+	return database.with(jdbi -> jdbi.inTransaction(handle -> {
 	    try (Timer.Context ignored = createTimer.time()) {
 
 		// insert the account into the database and return the uuid; if the number
@@ -79,9 +90,7 @@ public class Accounts implements AccountStore {
 			.mapTo(UUID.class)
 			.findOnly();
 				
-		handle.createUpdate("UPDATE miscellaneous SET " + PAR_VAL + " = :directory_version WHERE " + PAR + " = '" + DIR_VER + "'")
-		    .bind("directory_version", directoryVersion)		    
-		    .execute();
+		recordDirectoryVersion(handle, directoryVersion);
 		
 		boolean isNew;
 		isNew = uuid.equals(account.getUuid());
@@ -184,7 +193,7 @@ public class Accounts implements AccountStore {
 	}));
     }
 
-    // this is used by directory restore and DirectoryUpdater
+    // this is used by federation, whose protocol pages by offset
     public List<Account> getAll(int offset, int length) {
 	return database.with(jdbi -> jdbi.withHandle(handle -> {
 	    try (Timer.Context ignored = getAllTimer.time()) {
@@ -205,17 +214,26 @@ public class Accounts implements AccountStore {
 			.bind("uuid", uuid)
 			.execute();
 		
-		handle.createUpdate("UPDATE miscellaneous SET " + PAR_VAL + " = :directory_version WHERE " + PAR + " = '" + DIR_VER + "'")
-		    .bind("directory_version", directoryVersion)		    
-		    .execute();
+		recordDirectoryVersion(handle, directoryVersion);
 	    }
 	}));
     }
 
+    private static void recordDirectoryVersion(final Handle handle, final long directoryVersion) {
+	handle.createUpdate("WITH inserted AS (INSERT INTO " + DIRECTORY_VERSIONS + " (" + VERSION + ") VALUES (:directory_version) ON CONFLICT DO NOTHING) "
+		+ "DELETE FROM " + DIRECTORY_VERSIONS + " WHERE " + VERSION + " <= :directory_version - :retained")
+		.bind("directory_version", directoryVersion)
+		.bind("retained", RETAINED_DIRECTORY_VERSIONS)
+		.execute();
+    }
+
     public void vacuum() {
 	database.use(jdbi -> jdbi.useHandle(handle -> {
 	    try (Timer.Context ignored = vacuumTimer.time()) {
+		// only the latest directory version is ever read back
+		handle.execute("DELETE FROM " + DIRECTORY_VERSIONS + " WHERE " + VERSION + " < (SELECT MAX(" + VERSION + ") FROM " + DIRECTORY_VERSIONS + ")");
 		handle.execute("VACUUM accounts");
+		handle.execute("VACUUM " + DIRECTORY_VERSIONS);
 	    }
 	}));
     }
@@ -223,9 +241,12 @@ public class Accounts implements AccountStore {
     // TODO: migrate to Scylla via AccountsScyllaDb
     public Long restoreDirectoryVersion() {
 	return database.with(jdbi -> jdbi.withHandle(handle -> {
-	    return handle.createQuery("SELECT " + PAR_VAL + " FROM miscellaneous WHERE " + PAR + " = '" + DIR_VER + "'")		    
+	    return handle.createQuery("SELECT GREATEST("
+		    + "(SELECT MAX(" + VERSION + ") FROM " + DIRECTORY_VERSIONS + "), "
+		    + "(SELECT " + PAR_VAL + " FROM miscellaneous WHERE " + PAR + " = '" + DIR_VER + "'))")
 		    .mapTo(Long.class)
-		    .findOnly();
+		    .findOne()
+		    .orElseThrow(() -> new IllegalStateException("No directory version recorded"));
 	}));
     }
 }
@@ -11,8 +11,11 @@ import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import io.lettuce.core.RedisException;
+import io.lettuce.core.SetArgs;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
@@ -23,31 +26,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
-import redis.clients.jedis.Jedis;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import su.sres.shadowserver.auth.AmbiguousIdentifier;
+import su.sres.shadowserver.redis.ClusterClientSideCache;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.storage.DirectoryManager.BatchOperationHandle;
 import su.sres.shadowserver.util.Constants;
+import su.sres.shadowserver.util.RequestCoalescer;
 import su.sres.shadowserver.util.SystemMapper;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
-import static su.sres.shadowserver.storage.DirectoryManager.DIRECTORY_VERSION;
-import static su.sres.shadowserver.storage.DirectoryManager.DIRECTORY_PLAIN;
 
 public class AccountsManager {
 
@@ -62,8 +68,13 @@ public class AccountsManager {
   private static final Timer redisUserLoginGetTimer = metricRegistry
       .timer(name(AccountsManager.class, "redisUserLoginGet"));
   private static final Timer redisUuidGetTimer = metricRegistry.timer(name(AccountsManager.class, "redisUuidGet"));
+  private static final Timer redisLegacyGetTimer = metricRegistry.timer(name(AccountsManager.class, "redisLegacyGet"));
   private static final Timer redisDeleteTimer = metricRegistry.timer(name(AccountsManager.class, "redisDelete"));
 
+  private static final Counter NEGATIVE_CACHE_HIT_COUNTER = Metrics.counter(name(AccountsManager.class, "negativeCacheHit"));
+  private static final Counter NEGATIVE_CACHE_WRITE_FAILURE_COUNTER = Metrics.counter(name(AccountsManager.class, "negativeCacheWriteFailure"));
+  private static final Counter LEGACY_ENTRY_MIGRATED_COUNTER = Metrics.counter(name(AccountsManager.class, "legacyEntryMigrated"));
+
   private static final String DELETE_COUNTER_NAME = name(AccountsManager.class, "deleteCounter");
   private static final String DELETE_ERROR_COUNTER_NAME = name(AccountsManager.class, "deleteError");
   private static final String DELETION_REASON_TAG_NAME = "reason";
@@ -77,6 +88,7 @@ public class AccountsManager {
   private final Accounts accounts;
   private final AccountsScyllaDb accountsScyllaDb;
   private final FaultTolerantRedisCluster cacheCluster;
+  private final ClusterClientSideCache clientSideCache;
   private final DirectoryManager directory;
   private final KeysScyllaDb keysScyllaDb;
   private final MessagesManager messagesManager;
@@ -104,13 +116,32 @@ public class AccountsManager {
 
   private static final int CHUNK_SIZE = 1000;
 
+  // login lookups which missed the database are remembered for this long
+  private static final long NEGATIVE_CACHE_TTL_SECONDS = 60;
+  private static final byte[] NEGATIVE_CACHE_SENTINEL = new byte[0];
+
+  static final int LOGIN_ENTRY_UUID_LENGTH = 36;
+
+  // UUID -> login pointers never change, so they can be kept without invalidation
+  private static final int LOGIN_POINTER_CACHE_SIZE = 100_000;
+
+  private final Cache<UUID, String> loginsByUuid = CacheBuilder.newBuilder().maximumSize(LOGIN_POINTER_CACHE_SIZE).build();
+
   private final AtomicInteger accountCreateLock;
 
+  private final RequestCoalescer<String, Optional<SharedAccount>> userLoginLookups = new RequestCoalescer<>(name(AccountsManager.class, "getByUserLogin"));
+  private final RequestCoalescer<UUID, Optional<SharedAccount>> uuidLookups = new RequestCoalescer<>(name(AccountsManager.class, "getByUuid"));
+
   public AccountsManager(Accounts accounts, AccountsScyllaDb accountsScyllaDb, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager) {
+    this(accounts, accountsScyllaDb, directory, cacheCluster, ClusterClientSideCache.disabled("accounts", cacheCluster), keysScyllaDb, messagesManager, usernamesManager, profilesManager);
+  }
+
+  public AccountsManager(Accounts accounts, AccountsScyllaDb accountsScyllaDb, DirectoryManager directory, FaultTolerantRedisCluster cacheCluster, final ClusterClientSideCache clientSideCache, final KeysScyllaDb keysScyllaDb, final MessagesManager messagesManager, final UsernamesManager usernamesManager, final ProfilesManager profilesManager) {
     this.accounts = accounts;
     this.accountsScyllaDb = accountsScyllaDb;
     this.directory = directory;
     this.cacheCluster = cacheCluster;
+    this.clientSideCache = clientSideCache;
     this.keysScyllaDb = keysScyllaDb;
     this.messagesManager = messagesManager;
     this.usernamesManager = usernamesManager;
@@ -123,7 +154,7 @@ public class AccountsManager {
     accountCreateLock = new AtomicInteger(0);
   }
 
-  // this is used by directory restore and DirectoryUpdater
+  // this is used by federation, whose protocol pages by offset
   public List<Account> getAll(int offset, int length) {
     return accounts.getAll(offset, length);
   }
@@ -238,20 +269,36 @@ public class AccountsManager {
 
   public Optional<Account> get(String userLogin) {
     try (Timer.Context ignored = getByUserLoginTimer.time()) {
-      Optional<Account> account = redisGet(userLogin);
+      return userLoginLookups.load(userLogin, () -> loadByUserLogin(userLogin)).map(SharedAccount::claim);
+    }
+  }
 
-      if (!account.isPresent()) {
-        account = databaseGet(userLogin);
-        account.ifPresent(value -> redisSet(value));
+  private Optional<SharedAccount> loadByUserLogin(String userLogin) {
+    final Optional<byte[]> cachedEntry = redisGetLoginEntry(userLogin);
 
-        if (scyllaReadEnabled()) {
-          runSafelyAndRecordMetrics(() -> scyllaGet(userLogin), Optional.empty(), account, this::compareAccounts,
-              "getByUserLogin");
-        }
+    if (cachedEntry.isPresent() && cachedEntry.get().length == 0) {
+      NEGATIVE_CACHE_HIT_COUNTER.increment();
+      return Optional.empty();
+    }
+
+    Optional<SharedAccount> account = cachedEntry.flatMap(this::resolveLoginEntry);
+
+    if (!account.isPresent()) {
+      final Optional<Account> databaseAccount = databaseGet(userLogin);
+
+      if (databaseAccount.isPresent()) {
+        account = Optional.of(new SharedAccount(databaseAccount.get(), redisSet(databaseAccount.get())));
+      } else {
+        redisSetMissing(userLogin);
       }
 
-      return account;
+      if (scyllaReadEnabled()) {
+        runSafelyAndRecordMetrics(() -> scyllaGet(userLogin), Optional.empty(), databaseAccount, this::compareAccounts,
+            "getByUserLogin");
+      }
     }
+
+    return account;
   }
 
   /*
@@ -267,20 +314,24 @@ public class AccountsManager {
 
   public Optional<Account> get(UUID uuid) {
     try (Timer.Context ignored = getByUuidTimer.time()) {
-      Optional<Account> account = redisGet(uuid);
+      return uuidLookups.load(uuid, () -> loadByUuid(uuid)).map(SharedAccount::claim);
+    }
+  }
 
-      if (!account.isPresent()) {
-        account = databaseGet(uuid);
-        account.ifPresent(value -> redisSet(value));
+  private Optional<SharedAccount> loadByUuid(UUID uuid) {
+    Optional<SharedAccount> account = redisGet(uuid);
 
-        if (scyllaReadEnabled()) {
-          runSafelyAndRecordMetrics(() -> scyllaGet(uuid), Optional.of(uuid), account, this::compareAccounts,
-              "getByUuid");
-        }
-      }
+    if (!account.isPresent()) {
+      final Optional<Account> databaseAccount = databaseGet(uuid);
+      account = databaseAccount.map(value -> new SharedAccount(value, redisSet(value)));
 
-      return account;
+      if (scyllaReadEnabled()) {
+        runSafelyAndRecordMetrics(() -> scyllaGet(uuid), Optional.of(uuid), databaseAccount, this::compareAccounts,
+            "getByUuid");
+      }
     }
+
+    return account;
   }
 
   public List<Account> getAllFrom(int length) {
@@ -347,58 +398,164 @@ public class AccountsManager {
     }
   }
 
-  private String getAccountMapKey(String userLogin) {
-    return "AccountMap::" + userLogin;
+  static final String ACCOUNT_BY_LOGIN_KEY_PREFIX = "AccountByLogin::";
+  static final String LOGIN_BY_UUID_KEY_PREFIX = "AccountLogin::";
+
+  // keys written by earlier versions: a login -> uuid mapping and a full copy of
+  // the account under its UUID, removed by AccountCacheEncodingMigrator
+  static final String LEGACY_ACCOUNT_MAP_KEY_PREFIX = "AccountMap::";
+  static final String LEGACY_ACCOUNT_ENTITY_KEY_PREFIX = "Account3::";
+
+  static byte[] getAccountByLoginKey(String userLogin) {
+    return (ACCOUNT_BY_LOGIN_KEY_PREFIX + userLogin).getBytes(StandardCharsets.UTF_8);
+  }
+
+  static String getLoginByUuidKey(UUID uuid) {
+    return LOGIN_BY_UUID_KEY_PREFIX + uuid.toString();
+  }
+
+  static String getLegacyAccountMapKey(String userLogin) {
+    return LEGACY_ACCOUNT_MAP_KEY_PREFIX + userLogin;
+  }
+
+  static byte[] getLegacyAccountEntityKey(UUID uuid) {
+    return (LEGACY_ACCOUNT_ENTITY_KEY_PREFIX + uuid.toString()).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The login entry is the only cached copy of an account: the fixed-width
+   * account UUID followed by the encoded account, so that a lookup by login takes
+   * a single read. An empty value marks a login known to be absent from the
+   * database. Entries written by earlier versions hold only the UUID, with the
+   * account cached under its legacy entity key.
+   */
+  static byte[] getLoginEntry(UUID uuid, byte[] encodedAccount) {
+    final byte[] entry = Arrays.copyOf(uuid.toString().getBytes(StandardCharsets.US_ASCII),
+        LOGIN_ENTRY_UUID_LENGTH + encodedAccount.length);
+    System.arraycopy(encodedAccount, 0, entry, LOGIN_ENTRY_UUID_LENGTH, encodedAccount.length);
+
+    return entry;
   }
 
-  private String getAccountEntityKey(UUID uuid) {
+  private Optional<SharedAccount> resolveLoginEntry(byte[] entry) {
+    if (entry.length < LOGIN_ENTRY_UUID_LENGTH) {
+      return Optional.empty();
+    }
 
-    return "Account3::" + uuid.toString();
+    final UUID uuid;
+
+    try {
+      uuid = UUID.fromString(new String(entry, 0, LOGIN_ENTRY_UUID_LENGTH, StandardCharsets.US_ASCII));
+    } catch (IllegalArgumentException e) {
+      logger.warn("Deserialization error", e);
+      return Optional.empty();
+    }
+
+    if (entry.length == LOGIN_ENTRY_UUID_LENGTH) {
+      return redisGetLegacy(uuid);
+    }
+
+    try {
+      final byte[] encodedAccount = Arrays.copyOfRange(entry, LOGIN_ENTRY_UUID_LENGTH, entry.length);
+      final Account account = AccountCacheCodec.decode(encodedAccount);
+      account.setUuid(uuid);
+
+      return Optional.of(new SharedAccount(account, encodedAccount));
+    } catch (IOException e) {
+      logger.warn("Deserialization error", e);
+      return Optional.empty();
+    }
   }
 
-  private void redisSet(Account account) {
+  private byte[] redisSet(Account account) {
     try (Timer.Context ignored = redisSetTimer.time()) {
-      final String accountJson = mapper.writeValueAsString(account);
+      final byte[] encodedAccount = AccountCacheCodec.encode(account);
 
-      cacheCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+      cacheCluster.useBinaryCluster(connection -> {
+        final RedisAdvancedClusterCommands<byte[], byte[]> commands = connection.sync();
 
-        commands.set(getAccountMapKey(account.getUserLogin()), account.getUuid().toString());
-        commands.set(getAccountEntityKey(account.getUuid()), accountJson);
+        commands.set(getAccountByLoginKey(account.getUserLogin()), getLoginEntry(account.getUuid(), encodedAccount));
+        commands.set(getLoginByUuidKey(account.getUuid()).getBytes(StandardCharsets.UTF_8),
+            account.getUserLogin().getBytes(StandardCharsets.UTF_8));
       });
 
-    } catch (JsonProcessingException e) {
+      loginsByUuid.put(account.getUuid(), account.getUserLogin());
+      clientSideCache.invalidate(ACCOUNT_BY_LOGIN_KEY_PREFIX + account.getUserLogin());
+
+      return encodedAccount;
+
+    } catch (IOException e) {
       throw new IllegalStateException(e);
     }
   }
 
-  private Optional<Account> redisGet(String userLogin) {
-    try (Timer.Context ignored = redisUserLoginGetTimer.time()) {
-      final String uuid = cacheCluster.withCluster(connection -> connection.sync().get(getAccountMapKey(userLogin)));
-
-      if (uuid != null)
-        return redisGet(UUID.fromString(uuid));
-      else
-        return Optional.empty();
+  private void redisSetMissing(String userLogin) {
+    try {
+      // NX so that an account created concurrently with this lookup is not masked
+      cacheCluster.useBinaryCluster(connection -> connection.sync().set(getAccountByLoginKey(userLogin), NEGATIVE_CACHE_SENTINEL,
+          SetArgs.Builder.nx().ex(NEGATIVE_CACHE_TTL_SECONDS)));
+    } catch (RedisException e) {
+      logger.warn("Redis failure", e);
+      NEGATIVE_CACHE_WRITE_FAILURE_COUNTER.increment();
+    }
+  }
 
-    } catch (IllegalArgumentException e) {
-      logger.warn("Deserialization error", e);
-      return Optional.empty();
+  private Optional<byte[]> redisGetLoginEntry(String userLogin) {
+    try (Timer.Context ignored = redisUserLoginGetTimer.time()) {
+      return Optional.ofNullable(clientSideCache.get(ACCOUNT_BY_LOGIN_KEY_PREFIX + userLogin,
+          () -> cacheCluster.withBinaryCluster(connection -> connection.sync().get(getAccountByLoginKey(userLogin)))));
     } catch (RedisException e) {
       logger.warn("Redis failure", e);
       return Optional.empty();
     }
   }
 
-  private Optional<Account> redisGet(UUID uuid) {
+  /**
+   * An account is found by UUID through its login, which never changes for the
+   * life of the account; once known locally, the lookup is a single read of the
+   * login entry. A stale pointer left by a deleted account leads to an entry for
+   * another UUID or to no entry at all, and so to the database.
+   */
+  private Optional<SharedAccount> redisGet(UUID uuid) {
     try (Timer.Context ignored = redisUuidGetTimer.time()) {
-      final String json = cacheCluster.withCluster(connection -> connection.sync().get(getAccountEntityKey(uuid)));
-      if (json != null) {
-        Account account = mapper.readValue(json, Account.class);
-        account.setUuid(uuid);
-        return Optional.of(account);
+      String userLogin = loginsByUuid.getIfPresent(uuid);
+
+      if (userLogin == null) {
+        userLogin = cacheCluster.withCluster(connection -> connection.sync().get(getLoginByUuidKey(uuid)));
+
+        if (userLogin == null) {
+          return redisGetLegacy(uuid);
+        }
+
+        loginsByUuid.put(uuid, userLogin);
       }
+
+      return redisGetLoginEntry(userLogin)
+          .flatMap(this::resolveLoginEntry)
+          .filter(account -> account.uuid.equals(uuid));
+    } catch (RedisException e) {
+      logger.warn("Redis failure", e);
       return Optional.empty();
+    }
+  }
+
+  private Optional<SharedAccount> redisGetLegacy(UUID uuid) {
+    try (Timer.Context ignored = redisLegacyGetTimer.time()) {
+      final byte[] encodedAccount = cacheCluster.withBinaryCluster(connection -> connection.sync().get(getLegacyAccountEntityKey(uuid)));
+
+      if (encodedAccount == null) {
+        return Optional.empty();
+      }
+
+      final Account account = AccountCacheCodec.decode(encodedAccount);
+      account.setUuid(uuid);
+
+      final SharedAccount sharedAccount = new SharedAccount(account, redisSet(account));
+      cacheCluster.useBinaryCluster(connection -> connection.sync().del(getLegacyAccountEntityKey(uuid)));
+      LEGACY_ENTRY_MIGRATED_COUNTER.increment();
+
+      return Optional.of(sharedAccount);
+
     } catch (IOException e) {
       logger.warn("Deserialization error", e);
       return Optional.empty();
@@ -410,7 +567,13 @@ public class AccountsManager {
 
   private void redisDelete(final Account account) {
     try (final Timer.Context ignored = redisDeleteTimer.time()) {
-      cacheCluster.useCluster(connection -> connection.sync().del(getAccountMapKey(account.getUserLogin()), getAccountEntityKey(account.getUuid())));
+      cacheCluster.useBinaryCluster(connection -> connection.sync().del(getAccountByLoginKey(account.getUserLogin()),
+          getLoginByUuidKey(account.getUuid()).getBytes(StandardCharsets.UTF_8),
+          getLegacyAccountMapKey(account.getUserLogin()).getBytes(StandardCharsets.UTF_8),
+          getLegacyAccountEntityKey(account.getUuid())));
+
+      loginsByUuid.invalidate(account.getUuid());
+      clientSideCache.invalidate(ACCOUNT_BY_LOGIN_KEY_PREFIX + account.getUserLogin());
     }
   }
 
@@ -442,31 +605,49 @@ public class AccountsManager {
   }
 
   public long getDirectoryVersion() {
-    Jedis jedis = directory.accessDirectoryCache().getWriteResource();
+    Optional<Long> currentVersion = directory.getDirectoryVersion();
 
-    String currentVersion = jedis.get(DIRECTORY_VERSION);
+    if (currentVersion.isEmpty()) {
 
-    jedis.close();
+      long tmp = restoreDirectoryVersion();
 
-    if (currentVersion == null || "nil".equals(currentVersion)) {
+      // restoring the recovered version to redis
+      directory.setDirectoryVersion(tmp);
 
-      try {
+      return tmp;
 
-        long tmp = accounts.restoreDirectoryVersion();
+    } else {
+      return currentVersion.get();
+    }
+  }
 
-        // restoring the recovered version to redis
-        directory.setDirectoryVersion(tmp);
+  private long restoreDirectoryVersion() {
+    Optional<Long> databaseVersion;
 
-        return tmp;
+    try {
+      databaseVersion = Optional.of(accounts.restoreDirectoryVersion());
+    } catch (IllegalStateException e) {
+      logger.warn("IllegalStateException received from an SQL query for directory version");
+      databaseVersion = Optional.empty();
+    }
+
+    Optional<Long> scyllaVersion = Optional.empty();
 
-      } catch (IllegalStateException e) {
-        logger.warn("IllegalStateException received from an SQL query for directory version, assuming 0.");
-        return 0;
+    if (scyllaReadEnabled()) {
+      try {
+        scyllaVersion = accountsScyllaDb.getDirectoryVersion();
+      } catch (RuntimeException e) {
+        logger.warn("Could not read directory version from scylla", e);
       }
+    }
 
-    } else {
-      return Long.parseLong(currentVersion);
+    if (databaseVersion.isEmpty() && scyllaVersion.isEmpty()) {
+      logger.warn("No directory version could be restored, assuming 0.");
+      return 0;
     }
+
+    // both stores record every version bump, so whichever is ahead has the latest one
+    return Math.max(databaseVersion.orElse(0L), scyllaVersion.orElse(0L));
   }
 
   public void restorePlainDirectory() {
@@ -484,24 +665,7 @@ public class AccountsManager {
 
     try {
       logger.info("Restoring plain directory from PostgreSQL...");
-      int offset = 0;
-
-      for (;;) {
-        List<Account> accounts = getAll(offset, CHUNK_SIZE);
-
-        if (accounts == null || accounts.isEmpty())
-          break;
-        else
-          offset += accounts.size();
-
-        for (Account account : accounts) {
-
-          directory.redisUpdatePlainDirectory(batchOperation, account.getUserLogin(), mapper.writeValueAsString(new PlainDirectoryEntryValue(account.getUuid())));
-          contactsAdded++;
-        }
-
-        logger.info("Processed " + CHUNK_SIZE + " local accounts...");
-      }
+      contactsAdded = writePlainDirectoryEntries(batchOperation).size();
     } catch (JsonProcessingException e) {
       logger.error("There were errors while restoring the local directory from PostgreSQL!", e);
     } finally {
@@ -512,6 +676,39 @@ public class AccountsManager {
     releaseDirectoryRestoreLock();
   }
 
+  /**
+   * Writes a plain directory entry for every account in the database and returns the logins written. Accounts are
+   * read in chunks in order of UUID, each starting after the last account of the one before, so a chunk costs the
+   * same however far the walk has got; each chunk's entries are written with a single command. The directory restore
+   * lock is renewed with every chunk, since a walk over many accounts outlasts it.
+   */
+  public Set<String> writePlainDirectoryEntries(final BatchOperationHandle batchOperation) throws JsonProcessingException {
+    final Set<String> userLoginsWritten = new HashSet<>();
+    List<Account> chunk = accounts.getAllFrom(CHUNK_SIZE);
+
+    while (!chunk.isEmpty()) {
+      final Map<String, String> entries = new HashMap<>(chunk.size());
+
+      for (final Account account : chunk) {
+        entries.put(account.getUserLogin(), mapper.writeValueAsString(new PlainDirectoryEntryValue(account.getUuid())));
+      }
+
+      directory.redisUpdatePlainDirectory(batchOperation, entries);
+      setDirectoryRestoreLock();
+
+      userLoginsWritten.addAll(entries.keySet());
+      logger.info("Processed {} local accounts...", userLoginsWritten.size());
+
+      if (chunk.size() < CHUNK_SIZE) {
+        break;
+      }
+
+      chunk = accounts.getAllFrom(chunk.get(chunk.size() - 1).getUuid(), CHUNK_SIZE);
+    }
+
+    return userLoginsWritten;
+  }
+
   public DirectoryManager getDirectoryManager() {
     return directory;
   }
@@ -521,10 +718,7 @@ public class AccountsManager {
   }
 
   private boolean isPlainDirectoryExisting() {
-    try (Jedis jedis = directory.accessDirectoryCache().getWriteResource()) {
-
-      return jedis.exists(DIRECTORY_PLAIN);
-    }
+    return directory.isPlainDirectoryExisting();
   }
 
   public void setAccountCreationLock() {
@@ -759,6 +953,40 @@ public class AccountsManager {
         .collect(Collectors.joining(" -> "));
   }
 
+  /**
+   * A loaded account shared by all lookups coalesced onto one load. Accounts are
+   * mutable, so only the first caller receives the loaded instance; everyone
+   * else gets a private copy decoded from the cached encoding.
+   */
+  private static class SharedAccount {
+
+    private final Account account;
+    private final UUID uuid;
+    private final byte[] encoded;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+    private SharedAccount(Account account, byte[] encoded) {
+      this.account = account;
+      this.uuid = account.getUuid();
+      this.encoded = encoded;
+    }
+
+    private Account claim() {
+      if (claimed.compareAndSet(false, true)) {
+        return account;
+      }
+
+      try {
+        final Account copy = AccountCacheCodec.decode(encoded);
+        copy.setUuid(uuid);
+
+        return copy;
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
   private static abstract class AccountComparisonMixin extends Account {
 
     @JsonIgnore
@@ -25,12 +25,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -56,6 +58,10 @@ public class AccountsScyllaDb extends AbstractScyllaDbStore implements AccountSt
   static final String ATTR_PARAMETER_VALUE = "PV";
   static final String DIRECTORY_VERSION_PARAMETER_NAME = "directory_version";
 
+  // the directory version written on account changes is spread over several items, so that concurrent
+  // registrations do not all contend on one partition; the unsharded item is still read as a lower bound
+  static final int DIRECTORY_VERSION_SHARDS = 16;
+
   private final DynamoDbClient client;
   private final DynamoDbAsyncClient asyncClient;
 
@@ -107,7 +113,7 @@ public class AccountsScyllaDb extends AbstractScyllaDbStore implements AccountSt
             .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_USER_LOGIN))
             .expressionAttributeValues(Map.of(":number", AttributeValues.fromString(account.getUserLogin()))));
 
-        PutItemRequest miscPut = buildPutWriteItemForMisc(directoryVersion);
+        PutItemRequest miscPut = buildPutWriteItemForMisc(account.getUuid(), directoryVersion);
 
         try {
           client.putItem(accountPut);
@@ -173,15 +179,38 @@ public class AccountsScyllaDb extends AbstractScyllaDbStore implements AccountSt
         .build();
   }
 
-  private PutItemRequest buildPutWriteItemForMisc(long directoryVersion) {
+  private PutItemRequest buildPutWriteItemForMisc(UUID uuid, long directoryVersion) {
     return PutItemRequest.builder()
         .tableName(miscTableName)
         .item(Map.of(
-            KEY_PARAMETER_NAME, AttributeValues.fromString(DIRECTORY_VERSION_PARAMETER_NAME),
+            KEY_PARAMETER_NAME, AttributeValues.fromString(getDirectoryVersionKey(uuid)),
             ATTR_PARAMETER_VALUE, AttributeValues.fromString(String.valueOf(directoryVersion))))
         .build();
   }
 
+  @VisibleForTesting
+  static String getDirectoryVersionKey(UUID uuid) {
+    return DIRECTORY_VERSION_PARAMETER_NAME + "::" + Math.floorMod(uuid.hashCode(), DIRECTORY_VERSION_SHARDS);
+  }
+
+  /**
+   * @return the highest directory version recorded by account changes, or empty if none has been recorded
+   */
+  public Optional<Long> getDirectoryVersion() {
+    return Stream.concat(Stream.of(DIRECTORY_VERSION_PARAMETER_NAME),
+            IntStream.range(0, DIRECTORY_VERSION_SHARDS).mapToObj(shard -> DIRECTORY_VERSION_PARAMETER_NAME + "::" + shard))
+        .map(key -> client.getItem(GetItemRequest.builder()
+            .tableName(miscTableName)
+            .key(Map.of(KEY_PARAMETER_NAME, AttributeValues.fromString(key)))
+            .consistentRead(true)
+            .build()))
+        .filter(GetItemResponse::hasItem)
+        .map(response -> AttributeValues.getString(response.item(), ATTR_PARAMETER_VALUE, null))
+        .filter(Objects::nonNull)
+        .map(Long::parseLong)
+        .max(Long::compare);
+  }
+
   // TODO: VD change
   @Override
   public void update(Account account) {
@@ -275,7 +304,7 @@ public class AccountsScyllaDb extends AbstractScyllaDbStore implements AccountSt
       client.deleteItem(accountDelete);
 
       if (updateDirectoryVersion) {
-        PutItemRequest miscPut = buildPutWriteItemForMisc(directoryVersion);
+        PutItemRequest miscPut = buildPutWriteItemForMisc(uuid, directoryVersion);
         client.putItem(miscPut);
       }
     });
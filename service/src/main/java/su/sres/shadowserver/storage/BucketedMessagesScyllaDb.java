@@ -0,0 +1,500 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static io.micrometer.core.instrument.Metrics.counter;
+import static io.micrometer.core.instrument.Metrics.timer;
+import static su.sres.shadowserver.storage.MessagesScyllaDb.KEY_PARTITION;
+import static su.sres.shadowserver.storage.MessagesScyllaDb.KEY_SORT;
+import static su.sres.shadowserver.storage.MessagesScyllaDb.KEY_SOURCE;
+import static su.sres.shadowserver.storage.MessagesScyllaDb.KEY_TIMESTAMP;
+import static su.sres.shadowserver.storage.MessagesScyllaDb.KEY_TTL;
+import static su.sres.shadowserver.storage.MessagesScyllaDb.LOCAL_INDEX_MESSAGE_UUID_KEY_SORT;
+import static su.sres.shadowserver.storage.MessagesScyllaDb.LOCAL_INDEX_MESSAGE_UUID_NAME;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.Select;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+import su.sres.shadowserver.util.AttributeValues;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Stores messages in partitions that each hold one device's messages for one time bucket, so no partition grows past
+ * what a device can receive in a bucket, however large the device's backlog. Messages go to the bucket of the time
+ * they are stored, so buckets older than the current one never change; messages are returned bucket by bucket, and
+ * by server timestamp within a bucket.
+ * <p>
+ * Each account has one more partition, holding an index of its devices' non-empty buckets, so that reading a queue
+ * only visits buckets that hold messages. Index entries for emptied buckets are removed as queues are read.
+ */
+public class BucketedMessagesScyllaDb extends AbstractScyllaDbStore implements MessageStore {
+
+  private final Timer storeTimer = timer(name(getClass(), "store"));
+  private final Timer loadTimer = timer(name(getClass(), "load"));
+  private final Timer countTimer = timer(name(getClass(), "count"));
+  private final Timer deleteBySourceAndTimestamp = timer(name(getClass(), "delete", "sourceAndTimestamp"));
+  private final Timer deleteByGuid = timer(name(getClass(), "delete", "guid"));
+  private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
+  private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
+  private final Timer deleteExpired = timer(name(getClass(), "delete", "expired"));
+  private final Counter bucketsRemovedCounter = counter(name(getClass(), "bucketsRemoved"));
+
+  private final String tableName;
+  private final Duration timeToLive;
+  private final Duration bucketDuration;
+  private final PayloadCompressor payloadCompressor;
+  private final Clock clock;
+
+  public BucketedMessagesScyllaDb(final DynamoDbClient scyllaDb, final String tableName, final Duration timeToLive, final Duration bucketDuration) {
+    this(scyllaDb, tableName, timeToLive, bucketDuration, PayloadCompressor.DISABLED);
+  }
+
+  public BucketedMessagesScyllaDb(final DynamoDbClient scyllaDb, final String tableName, final Duration timeToLive, final Duration bucketDuration,
+      final PayloadCompressor payloadCompressor) {
+    this(scyllaDb, tableName, timeToLive, bucketDuration, payloadCompressor, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  BucketedMessagesScyllaDb(final DynamoDbClient scyllaDb, final String tableName, final Duration timeToLive, final Duration bucketDuration,
+      final PayloadCompressor payloadCompressor, final Clock clock) {
+    super(scyllaDb);
+
+    if (bucketDuration.isNegative() || bucketDuration.isZero()) {
+      throw new IllegalArgumentException("Bucket duration must be positive");
+    }
+
+    this.tableName = tableName;
+    this.timeToLive = timeToLive;
+    this.bucketDuration = bucketDuration;
+    this.payloadCompressor = payloadCompressor;
+    this.clock = clock;
+  }
+
+  @Override
+  public void store(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
+    storeTimer.record(() -> {
+      final long bucket = getCurrentBucket();
+
+      // index the bucket first, so that readers never miss messages that have been stored
+      db().putItem(PutItemRequest.builder()
+          .tableName(tableName)
+          .item(Map.of(
+              KEY_PARTITION, convertIndexPartitionKey(destinationAccountUuid),
+              KEY_SORT, convertIndexSortKey(destinationDeviceId, bucket),
+              KEY_TTL, AttributeValues.fromLong(getTtlForBucket(bucket))))
+          .build());
+
+      final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid, destinationDeviceId, bucket);
+
+      writeInBatches(messages, (messageBatch) -> executeTableWriteItemsUntilComplete(Map.of(tableName, messageBatch.stream()
+          .map(message -> WriteRequest.builder().putRequest(PutRequest.builder()
+              .item(MessagesScyllaDb.convertMessageToItem(partitionKey, destinationDeviceId, message, getTtlForMessage(message), payloadCompressor))
+              .build()).build())
+          .collect(Collectors.toList()))));
+    });
+  }
+
+  /**
+   * Loads messages bucket by bucket. The cursor is the bucket and sort key of the last message returned; buckets
+   * before it are skipped without being read.
+   */
+  @Override
+  public MessagePage load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch, @Nullable final byte[] cursor) {
+    return loadTimer.record(() -> {
+      final List<OutgoingMessageEntity> messageEntities = new ArrayList<>(Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE));
+
+      final long cursorBucket = cursor != null ? ByteBuffer.wrap(cursor).getLong() : Long.MIN_VALUE;
+      byte[] lastCursor = cursor;
+
+      for (final long bucket : getBuckets(destinationAccountUuid, destinationDeviceId)) {
+        if (bucket < cursorBucket) {
+          continue;
+        }
+
+        final int bucketStart = messageEntities.size();
+        final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid, destinationDeviceId, bucket);
+        final QueryRequest.Builder queryRequest = QueryRequest.builder()
+            .tableName(tableName)
+            .consistentRead(true)
+            .keyConditionExpression("#part = :part")
+            .expressionAttributeNames(Map.of("#part", KEY_PARTITION))
+            .expressionAttributeValues(Map.of(":part", partitionKey))
+            .limit(Math.min(requestedNumberOfMessagesToFetch - messageEntities.size(), RESULT_SET_CHUNK_SIZE));
+
+        final boolean resumed = bucket == cursorBucket;
+
+        if (resumed) {
+          queryRequest.exclusiveStartKey(Map.of(
+              KEY_PARTITION, partitionKey,
+              KEY_SORT, AttributeValues.fromByteArray(Arrays.copyOfRange(cursor, Long.BYTES, cursor.length))));
+        }
+
+        for (final QueryResponse page : db().queryPaginator(queryRequest.build())) {
+          for (final Map<String, AttributeValue> message : page.items()) {
+            messageEntities.add(MessagesScyllaDb.convertItemToOutgoingMessageEntity(message));
+            lastCursor = convertCursor(bucket, message.get(KEY_SORT).b().asByteArray());
+
+            if (messageEntities.size() >= requestedNumberOfMessagesToFetch) {
+              return new MessagePage(messageEntities, lastCursor);
+            }
+          }
+        }
+
+        // a bucket read from a cursor may still hold messages before it
+        if (!resumed && messageEntities.size() == bucketStart && isClosed(bucket)) {
+          removeBuckets(destinationAccountUuid, destinationDeviceId, List.of(bucket));
+        }
+      }
+
+      return new MessagePage(messageEntities, lastCursor);
+    });
+  }
+
+  @Override
+  public int getMessageCount(final UUID destinationAccountUuid, final long destinationDeviceId) {
+    return countTimer.record(() -> {
+      int count = 0;
+
+      for (final long bucket : getBuckets(destinationAccountUuid, destinationDeviceId)) {
+        count += countQueryResults(QueryRequest.builder()
+            .tableName(tableName)
+            .consistentRead(false)
+            .select(Select.COUNT)
+            .keyConditionExpression("#part = :part")
+            .expressionAttributeNames(Map.of("#part", KEY_PARTITION))
+            .expressionAttributeValues(Map.of(":part", convertPartitionKey(destinationAccountUuid, destinationDeviceId, bucket)))
+            .build());
+      }
+
+      return count;
+    });
+  }
+
+  @Override
+  public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndSourceAndTimestamp(final UUID destinationAccountUuid, final long destinationDeviceId, final String source, final long timestamp) {
+    return deleteBySourceAndTimestamp.record(() -> {
+      if (StringUtils.isEmpty(source)) {
+        throw new IllegalArgumentException("must specify a source");
+      }
+
+      for (final long bucket : getBuckets(destinationAccountUuid, destinationDeviceId)) {
+        final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid, destinationDeviceId, bucket);
+        final QueryRequest queryRequest = QueryRequest.builder()
+            .tableName(tableName)
+            .projectionExpression(KEY_SORT)
+            .consistentRead(true)
+            .keyConditionExpression("#part = :part")
+            .filterExpression("#source = :source AND #timestamp = :timestamp")
+            .expressionAttributeNames(Map.of(
+                "#part", KEY_PARTITION,
+                "#source", KEY_SOURCE,
+                "#timestamp", KEY_TIMESTAMP))
+            .expressionAttributeValues(Map.of(
+                ":part", partitionKey,
+                ":source", AttributeValues.fromString(source),
+                ":timestamp", AttributeValues.fromLong(timestamp)))
+            .build();
+
+        final Optional<OutgoingMessageEntity> removed = deleteItemsMatchingQueryAndReturnFirstOneActuallyDeleted(partitionKey, queryRequest);
+
+        if (removed.isPresent()) {
+          return removed;
+        }
+      }
+
+      return Optional.empty();
+    });
+  }
+
+  @Override
+  public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndGuid(final UUID destinationAccountUuid, final long destinationDeviceId, final UUID messageUuid) {
+    return deleteByGuid.record(() -> {
+      for (final long bucket : getBuckets(destinationAccountUuid, destinationDeviceId)) {
+        final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid, destinationDeviceId, bucket);
+        final QueryRequest queryRequest = QueryRequest.builder()
+            .tableName(tableName)
+            .indexName(LOCAL_INDEX_MESSAGE_UUID_NAME)
+            .projectionExpression(KEY_SORT)
+            .consistentRead(true)
+            .keyConditionExpression("#part = :part AND #uuid = :uuid")
+            .expressionAttributeNames(Map.of(
+                "#part", KEY_PARTITION,
+                "#uuid", LOCAL_INDEX_MESSAGE_UUID_KEY_SORT))
+            .expressionAttributeValues(Map.of(
+                ":part", partitionKey,
+                ":uuid", MessagesScyllaDb.convertLocalIndexMessageUuidSortKey(messageUuid)))
+            .build();
+
+        final Optional<OutgoingMessageEntity> removed = deleteItemsMatchingQueryAndReturnFirstOneActuallyDeleted(partitionKey, queryRequest);
+
+        if (removed.isPresent()) {
+          return removed;
+        }
+      }
+
+      return Optional.empty();
+    });
+  }
+
+  @Override
+  public void deleteAllMessagesForAccount(final UUID destinationAccountUuid) {
+    deleteByAccount.record(() -> {
+      final QueryRequest queryRequest = QueryRequest.builder()
+          .tableName(tableName)
+          .projectionExpression(KEY_SORT)
+          .consistentRead(true)
+          .keyConditionExpression("#part = :part")
+          .expressionAttributeNames(Map.of("#part", KEY_PARTITION))
+          .expressionAttributeValues(Map.of(":part", convertIndexPartitionKey(destinationAccountUuid)))
+          .build();
+
+      final List<Map<String, AttributeValue>> indexItems = new ArrayList<>();
+      db().queryPaginator(queryRequest).items().forEach(indexItems::add);
+
+      for (final Map<String, AttributeValue> indexItem : indexItems) {
+        final ByteBuffer indexSortKey = indexItem.get(KEY_SORT).b().asByteBuffer();
+        deleteRowsMatchingQuery(convertPartitionKey(destinationAccountUuid, indexSortKey.getLong(), indexSortKey.getLong()), Integer.MAX_VALUE);
+      }
+
+      deleteItems(convertIndexPartitionKey(destinationAccountUuid), indexItems);
+    });
+  }
+
+  @Override
+  public void deleteAllMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId) {
+    deleteByDevice.record(() -> {
+      final List<Long> buckets = getBuckets(destinationAccountUuid, destinationDeviceId);
+
+      for (final long bucket : buckets) {
+        deleteRowsMatchingQuery(convertPartitionKey(destinationAccountUuid, destinationDeviceId, bucket), Integer.MAX_VALUE);
+      }
+
+      removeBuckets(destinationAccountUuid, destinationDeviceId, buckets);
+    });
+  }
+
+  @Override
+  public int deleteExpiredMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId, final Instant now, final int limit) {
+    return deleteExpired.record(() -> {
+      final long maxServerTimestamp = now.minus(timeToLive).toEpochMilli();
+
+      if (maxServerTimestamp < 0 || limit <= 0) {
+        return 0;
+      }
+
+      final List<Long> emptiedBuckets = new ArrayList<>();
+      int deleted = 0;
+
+      for (final long bucket : getBuckets(destinationAccountUuid, destinationDeviceId)) {
+        if (deleted >= limit) {
+          break;
+        }
+
+        final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid, destinationDeviceId, bucket);
+
+        if (getTtlForBucket(bucket) < now.getEpochSecond()) {
+          // every message in the bucket has expired
+          final int bucketLimit = limit - deleted;
+          final int bucketDeleted = deleteRowsMatchingQuery(partitionKey, bucketLimit);
+
+          deleted += bucketDeleted;
+
+          if (bucketDeleted < bucketLimit) {
+            emptiedBuckets.add(bucket);
+          }
+        } else {
+          final QueryRequest queryRequest = QueryRequest.builder()
+              .tableName(tableName)
+              .keyConditionExpression("#part = :part AND #sort <= :sortend")
+              .filterExpression("#ttl < :now")
+              .expressionAttributeNames(Map.of(
+                  "#part", KEY_PARTITION,
+                  "#sort", KEY_SORT,
+                  "#ttl", KEY_TTL))
+              .expressionAttributeValues(Map.of(
+                  ":part", partitionKey,
+                  ":sortend", MessagesScyllaDb.convertSortKey(destinationDeviceId, maxServerTimestamp, new UUID(-1L, -1L)),
+                  ":now", AttributeValues.fromLong(now.getEpochSecond())))
+              .projectionExpression(KEY_SORT)
+              .limit(Math.min(limit - deleted, RESULT_SET_CHUNK_SIZE))
+              .build();
+
+          deleted += deleteItemsMatchingQuery(partitionKey, queryRequest, limit - deleted);
+        }
+      }
+
+      removeBuckets(destinationAccountUuid, destinationDeviceId, emptiedBuckets);
+
+      return deleted;
+    });
+  }
+
+  @VisibleForTesting
+  List<Long> getBuckets(final UUID destinationAccountUuid, final long destinationDeviceId) {
+    final QueryRequest queryRequest = QueryRequest.builder()
+        .tableName(tableName)
+        .projectionExpression(KEY_SORT)
+        .consistentRead(true)
+        .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
+        .expressionAttributeNames(Map.of(
+            "#part", KEY_PARTITION,
+            "#sort", KEY_SORT))
+        .expressionAttributeValues(Map.of(
+            ":part", convertIndexPartitionKey(destinationAccountUuid),
+            ":sortprefix", MessagesScyllaDb.convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
+        .build();
+
+    final List<Long> buckets = new ArrayList<>();
+
+    for (final Map<String, AttributeValue> item : db().queryPaginator(queryRequest).items()) {
+      buckets.add(item.get(KEY_SORT).b().asByteBuffer().getLong(8));
+    }
+
+    return buckets;
+  }
+
+  private void removeBuckets(final UUID destinationAccountUuid, final long destinationDeviceId, final List<Long> buckets) {
+    if (buckets.isEmpty()) {
+      return;
+    }
+
+    deleteItems(convertIndexPartitionKey(destinationAccountUuid), buckets.stream()
+        .map(bucket -> Map.of(KEY_SORT, convertIndexSortKey(destinationDeviceId, bucket)))
+        .collect(Collectors.toList()));
+
+    bucketsRemovedCounter.increment(buckets.size());
+  }
+
+  private Optional<OutgoingMessageEntity> deleteItemsMatchingQueryAndReturnFirstOneActuallyDeleted(final AttributeValue partitionKey, final QueryRequest queryRequest) {
+    Optional<OutgoingMessageEntity> result = Optional.empty();
+    for (Map<String, AttributeValue> item : db().query(queryRequest).items()) {
+      final DeleteItemRequest.Builder deleteItemRequest = DeleteItemRequest.builder()
+          .tableName(tableName)
+          .key(Map.of(KEY_PARTITION, partitionKey, KEY_SORT, item.get(KEY_SORT)));
+      if (result.isEmpty()) {
+        deleteItemRequest.returnValues(ReturnValue.ALL_OLD);
+      }
+      final DeleteItemResponse deleteItemResponse = db().deleteItem(deleteItemRequest.build());
+      if (deleteItemResponse.attributes() != null && deleteItemResponse.attributes().containsKey(KEY_PARTITION)) {
+        result = Optional.of(MessagesScyllaDb.convertItemToOutgoingMessageEntity(deleteItemResponse.attributes()));
+      }
+    }
+    return result;
+  }
+
+  private int deleteRowsMatchingQuery(final AttributeValue partitionKey, final int limit) {
+    return deleteItemsMatchingQuery(partitionKey, QueryRequest.builder()
+        .tableName(tableName)
+        .projectionExpression(KEY_SORT)
+        .consistentRead(true)
+        .keyConditionExpression("#part = :part")
+        .expressionAttributeNames(Map.of("#part", KEY_PARTITION))
+        .expressionAttributeValues(Map.of(":part", partitionKey))
+        .limit(Math.min(limit, RESULT_SET_CHUNK_SIZE))
+        .build(), limit);
+  }
+
+  private int deleteItemsMatchingQuery(final AttributeValue partitionKey, final QueryRequest queryRequest, final int limit) {
+    final List<Map<String, AttributeValue>> items = new ArrayList<>();
+
+    for (final Map<String, AttributeValue> item : db().queryPaginator(queryRequest).items()) {
+      items.add(item);
+
+      if (items.size() >= limit) {
+        break;
+      }
+    }
+
+    deleteItems(partitionKey, items);
+
+    return items.size();
+  }
+
+  private void deleteItems(final AttributeValue partitionKey, final List<Map<String, AttributeValue>> items) {
+    writeInBatches(items, (itemBatch) -> executeTableWriteItemsUntilComplete(Map.of(tableName, itemBatch.stream()
+        .map(item -> WriteRequest.builder()
+            .deleteRequest(DeleteRequest.builder().key(Map.of(
+                KEY_PARTITION, partitionKey,
+                KEY_SORT, item.get(KEY_SORT))).build())
+            .build())
+        .collect(Collectors.toList()))));
+  }
+
+  private long getCurrentBucket() {
+    return clock.millis() / bucketDuration.toMillis();
+  }
+
+  /**
+   * A bucket is closed once no server can still be storing messages in it; allowing for clock skew, that is once the
+   * bucket after it has ended.
+   */
+  private boolean isClosed(final long bucket) {
+    return bucket < getCurrentBucket() - 1;
+  }
+
+  private long getTtlForBucket(final long bucket) {
+    return (bucket + 1) * bucketDuration.toMillis() / 1000 + timeToLive.getSeconds();
+  }
+
+  private long getTtlForMessage(final MessageProtos.Envelope message) {
+    return message.getServerTimestamp() / 1000 + timeToLive.getSeconds();
+  }
+
+  private static AttributeValue convertPartitionKey(final UUID destinationAccountUuid, final long destinationDeviceId, final long bucket) {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[32]);
+    byteBuffer.putLong(destinationAccountUuid.getMostSignificantBits());
+    byteBuffer.putLong(destinationAccountUuid.getLeastSignificantBits());
+    byteBuffer.putLong(destinationDeviceId);
+    byteBuffer.putLong(bucket);
+    return AttributeValues.fromByteBuffer(byteBuffer.flip());
+  }
+
+  private static AttributeValue convertIndexPartitionKey(final UUID destinationAccountUuid) {
+    return AttributeValues.fromUUID(destinationAccountUuid);
+  }
+
+  private static byte[] convertCursor(final long bucket, final byte[] sortKey) {
+    return ByteBuffer.allocate(Long.BYTES + sortKey.length).putLong(bucket).put(sortKey).array();
+  }
+
+  private static AttributeValue convertIndexSortKey(final long destinationDeviceId, final long bucket) {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[16]);
+    byteBuffer.putLong(destinationDeviceId);
+    byteBuffer.putLong(bucket);
+    return AttributeValues.fromByteBuffer(byteBuffer.flip());
+  }
+}
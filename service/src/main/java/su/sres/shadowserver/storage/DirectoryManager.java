@@ -8,17 +8,30 @@ package su.sres.shadowserver.storage;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.MapScanCursor;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Pipeline;
-import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.redis.FaultTolerantRedisClient;
 
+/**
+ * Maintains the plain directory and its incremental updates in Redis. All commands are issued asynchronously over a
+ * single multiplexed Lettuce connection, so callers never hold a pooled connection and multi-command operations are
+ * pipelined rather than paying a round trip per command.
+ */
 public class DirectoryManager {
 
   private final Logger logger = LoggerFactory.getLogger(DirectoryManager.class);
@@ -36,79 +49,110 @@ public class DirectoryManager {
   public static final int INCREMENTAL_UPDATES_TO_HOLD = 100;
   private static final String DIRECTORY_ACCESS_LOCK_KEY = "DirectoryAccessLock";
 
+  // the number of commands a batch operation may have in flight before waiting for them to complete
+  private static final int MAX_PENDING_BATCH_COMMANDS = 1_000;
+
+  // the number of fields written, or scanned, by a single hash command when copying or rewriting a whole hash
+  private static final int MAX_HSET_FIELDS = 1_000;
+
   private final ObjectMapper objectMapper;
-  private final ReplicatedJedisPool redisPool;
+  private final FaultTolerantRedisClient redisClient;
 
-  public DirectoryManager(ReplicatedJedisPool redisPool) {
-    this.redisPool = redisPool;
+  public DirectoryManager(FaultTolerantRedisClient redisClient) {
+    this.redisClient = redisClient;
     this.objectMapper = new ObjectMapper();
     this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
   }
 
   public BatchOperationHandle startBatchOperation() {
-    Jedis jedis = redisPool.getWriteResource();
-    return new BatchOperationHandle(jedis, jedis.pipelined());
+    return new BatchOperationHandle();
   }
 
   public void stopBatchOperation(BatchOperationHandle handle) {
-    Pipeline pipeline = handle.pipeline;
-    Jedis jedis = handle.jedis;
-
-    pipeline.sync();
-    jedis.close();
+    awaitAll(handle.pendingCommands);
+    handle.pendingCommands.clear();
   }
 
   void redisUpdatePlainDirectory(Account account) {
 
     PlainDirectoryEntryValue entryValue = new PlainDirectoryEntryValue(account.getUuid());
 
-    try (Jedis jedis = redisPool.getWriteResource()) {
+    try {
+      final String entryValueString = objectMapper.writeValueAsString(entryValue);
 
-      jedis.hset(DIRECTORY_PLAIN, account.getUserLogin(), objectMapper.writeValueAsString(entryValue));
+      redisClient.useClient(connection -> connection.sync().hset(DIRECTORY_PLAIN, account.getUserLogin(), entryValueString));
     } catch (JsonProcessingException e) {
       logger.warn("JSON Error", e);
     }
   }
 
   public void redisUpdatePlainDirectory(BatchOperationHandle handle, String userLogin, String entryValueString) {
+    addToBatch(handle, redisClient.withClient(connection -> connection.async().hset(DIRECTORY_PLAIN, userLogin, entryValueString)));
+  }
 
-    handle.pipeline.hset(DIRECTORY_PLAIN, userLogin, entryValueString);
+  /**
+   * Adds several entries to the plain directory with a single command.
+   */
+  public void redisUpdatePlainDirectory(BatchOperationHandle handle, Map<String, String> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    addToBatch(handle, redisClient.withClient(connection -> connection.async().hset(DIRECTORY_PLAIN, entries)));
   }
 
   void redisRemoveFromPlainDirectory(HashSet<Account> accountsToRemove) {
-    try (Jedis jedis = redisPool.getWriteResource()) {
+    if (accountsToRemove.isEmpty()) {
+      return;
+    }
 
-      for (Account account : accountsToRemove) {
+    final String[] userLogins = accountsToRemove.stream().map(Account::getUserLogin).toArray(String[]::new);
 
-        jedis.hdel(DIRECTORY_PLAIN, account.getUserLogin());
-      }
-    }
+    redisClient.useClient(connection -> connection.sync().hdel(DIRECTORY_PLAIN, userLogins));
   }
 
   public void redisRemoveFromPlainDirectory(BatchOperationHandle handle, String userLogin) {
-    handle.pipeline.hdel(DIRECTORY_PLAIN, userLogin);
+    addToBatch(handle, redisClient.withClient(connection -> connection.async().hdel(DIRECTORY_PLAIN, userLogin)));
   }
 
   public HashMap<String, String> retrievePlainDirectory() {
+    return new HashMap<>(redisClient.withClient(connection -> connection.sync().hgetall(DIRECTORY_PLAIN)));
+  }
 
-    try (Jedis jedis = redisPool.getWriteResource()) {
+  public HashMap<String, String> retrieveIncrementalUpdate(int backoff) {
+    return new HashMap<>(redisClient.withClient(connection -> connection.sync().hgetall(getIncrementalUpdateKey(backoff))));
+  }
 
-      return (HashMap<String, String>) jedis.hgetAll(DIRECTORY_PLAIN);
-    }
+  /**
+   * Like {@link #retrievePlainDirectory()}, but may be served by a replica that is "fresh enough" for clients.
+   */
+  public HashMap<String, String> retrieveFreshPlainDirectory() {
+    return new HashMap<>(redisClient.withFreshReadClient(connection -> connection.sync().hgetall(DIRECTORY_PLAIN)));
   }
 
-  public HashMap<String, String> retrieveIncrementalUpdate(int backoff) {
+  /**
+   * Like {@link #retrieveIncrementalUpdate(int)}, but may be served by a replica that is "fresh enough" for clients.
+   */
+  public HashMap<String, String> retrieveFreshIncrementalUpdate(int backoff) {
+    return new HashMap<>(redisClient.withFreshReadClient(connection -> connection.sync().hgetall(getIncrementalUpdateKey(backoff))));
+  }
 
-    try (Jedis jedis = redisPool.getWriteResource()) {
+  public boolean isPlainDirectoryExisting() {
+    return redisClient.withClient(connection -> connection.sync().exists(DIRECTORY_PLAIN)) > 0;
+  }
 
-      return (HashMap<String, String>) jedis.hgetAll(getIncrementalUpdateKey(backoff));
+  public Optional<Long> getDirectoryVersion() {
+    final String version = redisClient.withClient(connection -> connection.sync().get(DIRECTORY_VERSION));
+
+    if (version == null || "nil".equals(version)) {
+      return Optional.empty();
     }
+
+    return Optional.of(Long.parseLong(version));
   }
 
   public void setDirectoryVersion(long version) {
-    Jedis jedis = redisPool.getWriteResource();
-    jedis.set(DIRECTORY_VERSION, String.valueOf(version));
-    jedis.close();
+    redisClient.useClient(connection -> connection.sync().set(DIRECTORY_VERSION, String.valueOf(version)));
   }
 
   public String getIncrementalUpdateKey(int backoff) {
@@ -127,50 +171,48 @@ public class DirectoryManager {
 
   public void buildIncrementalUpdates(long directoryVersion) {
 
-    Jedis jedis = redisPool.getWriteResource();
-
-    HashMap<String, String> freshDirectory = retrievePlainDirectory();
-
     // this is 1 or more, since this method is not invoked until the directory
     // version is incremented from 0;
     int backoff = calculateBackoff(directoryVersion);
 
+    final HashMap<String, String> freshDirectory = retrievePlainDirectory();
+    final BatchOperationHandle handle = startBatchOperation();
+
+    // historic directories are loaded one at a time, so that only one of them is held at once
     for (int i = backoff; i > 0; i--) {
 
       // here we are making best effort to build the incremental update of depth i
 
       String targetIncrementalUpdateKey = getIncrementalUpdateKey(i);
+      String directoryHistoricKey = getDirectoryHistoricKey(i);
 
       // deleting since we need to rewrite it;
-      jedis.del(targetIncrementalUpdateKey);
+      addToBatch(handle, redisClient.withClient(connection -> connection.async().del(targetIncrementalUpdateKey)));
 
-      String directoryHistoricKey = getDirectoryHistoricKey(i);
+      // an empty result means the hash does not exist
+      final Map<String, String> directoryHistoric = redisClient.withClient(connection -> connection.sync().hgetall(directoryHistoricKey));
 
       // if a historic directory is missing, we can't calculate the target incremental
       // update; so just nullifying it
-      if (!jedis.exists(directoryHistoricKey)) {
+      if (directoryHistoric.isEmpty()) {
         logger.debug(directoryHistoricKey + " is missing in Redis. Therefore nullifying " + targetIncrementalUpdateKey + " as it's impossible to calculate it");
         continue;
       }
 
-      HashMap<String, String> directoryHistoric = (HashMap<String, String>) jedis.hgetAll(directoryHistoricKey);
-
-      HashMap<String, String> updatedIncrementalUpdate = calculateIncrementalUpdate(directoryHistoric, freshDirectory);
+      Map<String, String> updatedIncrementalUpdate = calculateIncrementalUpdate(directoryHistoric, freshDirectory);
 
       if (!updatedIncrementalUpdate.isEmpty()) {
-        jedis.hmset(targetIncrementalUpdateKey, updatedIncrementalUpdate);
+        hsetInChunks(handle, targetIncrementalUpdateKey, updatedIncrementalUpdate);
       } else {
         // just a filler for the case when the incremental update is empty
-        jedis.hset(targetIncrementalUpdateKey, "", "");
+        addToBatch(handle, redisClient.withClient(connection -> connection.async().hset(targetIncrementalUpdateKey, "", "")));
       }
     }
 
-    jedis.close();
+    stopBatchOperation(handle);
   }
 
-  public HashMap<String, String> calculateIncrementalUpdate(HashMap<String, String> directoryHistoric, HashMap<String, String> directoryCurrent) {
-
-    Jedis jedis = redisPool.getWriteResource();
+  public HashMap<String, String> calculateIncrementalUpdate(Map<String, String> directoryHistoric, Map<String, String> directoryCurrent) {
 
     Set<String> olderFields = directoryHistoric.keySet();
     Set<String> newerFields = directoryCurrent.keySet();
@@ -204,49 +246,79 @@ public class DirectoryManager {
       }
     }
 
-    jedis.close();
-
     return merge;
   }
 
   public void buildHistoricDirectories(long directoryVersion) {
 
-    Jedis jedis = redisPool.getWriteResource();
     int backoff = calculateBackoff(directoryVersion);
 
-    for (int i = backoff; i > 0; i--) {
+    if (backoff == 0) {
+      return;
+    }
 
-      String runningKey = getDirectoryHistoricKey(i);
-      String upstreamKey = getDirectoryHistoricKey(i - 1);
+    // each historic directory is shifted one step down, starting from the oldest; that's a rename within Redis, but a
+    // missing upstream directory means the running one would now be missing as well
+    final List<RedisFuture<Long>> upstreamExistsFutures = new ArrayList<>(backoff - 1);
+
+    for (int i = 1; i < backoff; i++) {
+      final String upstreamKey = getDirectoryHistoricKey(i);
+      upstreamExistsFutures.add(redisClient.withClient(connection -> connection.async().exists(upstreamKey)));
+    }
+
+    awaitAll(upstreamExistsFutures);
+
+    final BatchOperationHandle handle = startBatchOperation();
 
-      // delete the running historic directory since we need to recreate it
-      jedis.del(runningKey);
+    for (int i = backoff; i > 1; i--) {
 
-      HashMap<String, String> upstream = (HashMap<String, String>) jedis.hgetAll(upstreamKey);
+      String upstreamKey = getDirectoryHistoricKey(i - 1);
+      String runningKey = getDirectoryHistoricKey(i);
 
-      // if the next in line historic directory exists, then the running directory is
-      // rewritten with the next in line, otherwise the running one would now be
-      // missing as well
-      if (!upstream.isEmpty()) {
-        jedis.hmset(runningKey, upstream);
+      if (getNow(upstreamExistsFutures.get(i - 2)) > 0) {
+        addToBatch(handle, redisClient.withClient(connection -> connection.async().rename(upstreamKey, runningKey)));
+      } else {
+        addToBatch(handle, redisClient.withClient(connection -> connection.async().del(runningKey)));
       }
     }
 
-    jedis.close();
+    // the newest historic directory is a copy of the plain directory, which is copied a page at a time
+    final String newestHistoricKey = getDirectoryHistoricKey(1);
+
+    addToBatch(handle, redisClient.withClient(connection -> connection.async().del(newestHistoricKey)));
+
+    ScanCursor cursor = ScanCursor.INITIAL;
+
+    do {
+      final ScanCursor currentCursor = cursor;
+      final MapScanCursor<String, String> page = redisClient.withClient(connection -> connection.sync().hscan(DIRECTORY_PLAIN, currentCursor, ScanArgs.Builder.limit(MAX_HSET_FIELDS)));
+
+      if (!page.getMap().isEmpty()) {
+        addToBatch(handle, redisClient.withClient(connection -> connection.async().hset(newestHistoricKey, page.getMap())));
+      }
+
+      cursor = page;
+    } while (!cursor.isFinished());
+
+    stopBatchOperation(handle);
   }
 
-  public void flushIncrementalUpdates(int backoff, Jedis jedis) {
+  public void flushIncrementalUpdates(int backoff) {
+
+    final List<String> keys = new ArrayList<>(backoff * 2 + 1);
 
     for (int i = 1; i <= backoff; i++) {
-      jedis.del(getIncrementalUpdateKey(i));
+      keys.add(getIncrementalUpdateKey(i));
     }
-    
+
     for (int i = 1; i <= backoff; i++) {
-      jedis.del(getDirectoryHistoricKey(i));
+      keys.add(getDirectoryHistoricKey(i));
     }
 
     // TODO: to be deprecated
-    jedis.del(CURRENT_UPDATE);
+    keys.add(CURRENT_UPDATE);
+
+    redisClient.useClient(connection -> connection.sync().del(keys.toArray(new String[0])));
   }
 
   public int calculateBackoff(long directoryVersion) {
@@ -258,39 +330,76 @@ public class DirectoryManager {
     }
   }
 
-  public ReplicatedJedisPool accessDirectoryCache() {
-    return redisPool;
+  public void setDirectoryReadLock() {
+    // commands on a connection are executed in order, so a later release can't overtake this
+    redisClient.useClient(connection -> connection.async().setex(DIRECTORY_ACCESS_LOCK_KEY, 60, "")
+        .whenComplete((ignored, throwable) -> {
+          if (throwable != null) {
+            logger.warn("Failed to set directory read lock", throwable);
+          }
+        }));
   }
 
-  public void setDirectoryReadLock() {
-    Jedis jedis = redisPool.getWriteResource();
+  public void releaseDirectoryReadLock() {
+    redisClient.useClient(connection -> connection.async().del(DIRECTORY_ACCESS_LOCK_KEY)
+        .whenComplete((ignored, throwable) -> {
+          if (throwable != null) {
+            logger.warn("Failed to release directory read lock", throwable);
+          }
+        }));
+  }
 
-    jedis.setex(DIRECTORY_ACCESS_LOCK_KEY, 60, "");
-    jedis.close();
+  public boolean getDirectoryReadLock() {
+    return redisClient.withClient(connection -> connection.sync().exists(DIRECTORY_ACCESS_LOCK_KEY)) > 0;
   }
 
-  public void releaseDirectoryReadLock() {
-    Jedis jedis = redisPool.getWriteResource();
+  private void addToBatch(BatchOperationHandle handle, RedisFuture<?> future) {
+    handle.pendingCommands.add(future);
 
-    jedis.del(DIRECTORY_ACCESS_LOCK_KEY);
-    jedis.close();
+    if (handle.pendingCommands.size() >= MAX_PENDING_BATCH_COMMANDS) {
+      awaitAll(handle.pendingCommands);
+      handle.pendingCommands.clear();
+    }
   }
 
-  public boolean getDirectoryReadLock() {
-    try (Jedis jedis = redisPool.getWriteResource()) {
+  private void hsetInChunks(BatchOperationHandle handle, String key, Map<String, String> entries) {
+    Map<String, String> chunk = new HashMap<>();
+
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      chunk.put(entry.getKey(), entry.getValue());
 
-      return jedis.exists(DIRECTORY_ACCESS_LOCK_KEY);
+      if (chunk.size() >= MAX_HSET_FIELDS) {
+        final Map<String, String> fullChunk = chunk;
+        addToBatch(handle, redisClient.withClient(connection -> connection.async().hset(key, fullChunk)));
+        chunk = new HashMap<>();
+      }
+    }
+
+    if (!chunk.isEmpty()) {
+      final Map<String, String> lastChunk = chunk;
+      addToBatch(handle, redisClient.withClient(connection -> connection.async().hset(key, lastChunk)));
+    }
+  }
+
+  private void awaitAll(List<? extends RedisFuture<?>> futures) {
+    if (!LettuceFutures.awaitAll(redisClient.getCommandTimeout(), futures.toArray(new RedisFuture[0]))) {
+      throw new RedisException("Timed out waiting for directory commands");
     }
   }
 
+  private static <T> T getNow(RedisFuture<T> future) {
+    return future.toCompletableFuture().join();
+  }
+
+  /**
+   * Collects the asynchronous commands of a batch operation; they are pipelined as they are issued and awaited in
+   * bounded groups, and finally by {@link #stopBatchOperation(BatchOperationHandle)}.
+   */
   public static class BatchOperationHandle {
 
-    public final Pipeline pipeline;
-    public final Jedis jedis;
+    private final List<RedisFuture<?>> pendingCommands = new ArrayList<>();
 
-    public BatchOperationHandle(Jedis jedis, Pipeline pipeline) {
-      this.pipeline = pipeline;
-      this.jedis = jedis;
+    private BatchOperationHandle() {
     }
   }
 }
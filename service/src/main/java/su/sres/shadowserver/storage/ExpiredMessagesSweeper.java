@@ -0,0 +1,93 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import su.sres.shadowserver.util.Constants;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Deletes expired messages from the persistent message store as the account crawler passes over their destinations.
+ * The store keeps an expiry attribute on every message but is not relied on to enforce it, so without this the
+ * queues of abandoned devices would grow forever. Deletions are capped per crawled chunk; the crawler's chunk
+ * interval therefore bounds the rate, and messages left over are picked up on the next crawl.
+ */
+public class ExpiredMessagesSweeper extends AccountDatabaseCrawlerListener {
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter reclaimedMessagesMeter = metricRegistry.meter(name(ExpiredMessagesSweeper.class, "reclaimedMessages"));
+  private static final Meter deletionLimitReachedMeter = metricRegistry.meter(name(ExpiredMessagesSweeper.class, "deletionLimitReached"));
+  private static final Meter sweepFailureMeter = metricRegistry.meter(name(ExpiredMessagesSweeper.class, "sweepFailure"));
+  private static final Histogram reclaimedMessagesHistogram = metricRegistry.histogram(name(ExpiredMessagesSweeper.class, "reclaimedMessagesPerChunk"));
+
+  @VisibleForTesting
+  static final int MAX_DELETIONS_PER_CHUNK = 1000;
+
+  private final MessageStore messagesScyllaDb;
+  private final Clock clock;
+
+  private static final Logger logger = LoggerFactory.getLogger(ExpiredMessagesSweeper.class);
+
+  public ExpiredMessagesSweeper(final MessageStore messagesScyllaDb) {
+    this(messagesScyllaDb, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  ExpiredMessagesSweeper(final MessageStore messagesScyllaDb, final Clock clock) {
+    this.messagesScyllaDb = messagesScyllaDb;
+    this.clock = clock;
+  }
+
+  @Override
+  public void onCrawlStart() {
+  }
+
+  @Override
+  public void onCrawlEnd(final Optional<UUID> fromUuid) {
+  }
+
+  @Override
+  protected void onCrawlChunk(final Optional<UUID> fromUuid, final List<Account> chunkAccounts) {
+    final Instant now = clock.instant();
+    int remainingDeletions = MAX_DELETIONS_PER_CHUNK;
+
+    accounts:
+    for (final Account account : chunkAccounts) {
+      for (final Device device : account.getDevices()) {
+        if (remainingDeletions <= 0) {
+          deletionLimitReachedMeter.mark();
+          break accounts;
+        }
+
+        try {
+          remainingDeletions -= messagesScyllaDb.deleteExpiredMessagesForDevice(account.getUuid(), device.getId(), now, remainingDeletions);
+        } catch (final RuntimeException e) {
+          sweepFailureMeter.mark();
+          logger.warn("Failed to delete expired messages for {}::{}", account.getUuid(), device.getId(), e);
+        }
+      }
+    }
+
+    final int reclaimedMessages = MAX_DELETIONS_PER_CHUNK - remainingDeletions;
+
+    reclaimedMessagesMeter.mark(reclaimedMessages);
+    reclaimedMessagesHistogram.update(reclaimedMessages);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import javax.annotation.Nullable;
+
+/**
+ * How far a pass over a device's messages has got, in both the persistent store and the cache. Pages fetched with
+ * the same cursor follow on from one another, so messages that have been sent but not yet acknowledged (and so not
+ * yet deleted) are neither returned again nor read past again. A cursor is used by one pass at a time.
+ */
+public class MessageCursor {
+
+  @Nullable
+  private byte[] storeCursor;
+  private boolean storeExhausted;
+  private long lastCachedMessageId;
+
+  @Nullable
+  byte[] getStoreCursor() {
+    return storeCursor;
+  }
+
+  void setStoreCursor(@Nullable final byte[] storeCursor) {
+    this.storeCursor = storeCursor;
+  }
+
+  boolean isStoreExhausted() {
+    return storeExhausted;
+  }
+
+  void setStoreExhausted() {
+    this.storeExhausted = true;
+  }
+
+  long getLastCachedMessageId() {
+    return lastCachedMessageId;
+  }
+
+  void setLastCachedMessageId(final long lastCachedMessageId) {
+    this.lastCachedMessageId = lastCachedMessageId;
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+/**
+ * A page of a device's stored messages, with an opaque cursor from which the following page is loaded.
+ */
+public class MessagePage {
+
+  private final List<OutgoingMessageEntity> messages;
+
+  @Nullable
+  private final byte[] cursor;
+
+  public MessagePage(final List<OutgoingMessageEntity> messages, @Nullable final byte[] cursor) {
+    this.messages = messages;
+    this.cursor = cursor;
+  }
+
+  public List<OutgoingMessageEntity> getMessages() {
+    return messages;
+  }
+
+  /**
+   * @return the position after the last message of this page, or the position the page was loaded from if it is
+   * empty; {@code null} means the start of the device's messages
+   */
+  @Nullable
+  public byte[] getCursor() {
+    return cursor;
+  }
+}
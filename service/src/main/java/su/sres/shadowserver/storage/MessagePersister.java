@@ -13,19 +13,26 @@ import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.ScoredValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import su.sres.shadowserver.configuration.dynamic.DynamicConfiguration;
 import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.util.Constants;
 import su.sres.shadowserver.util.Util;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -34,8 +41,10 @@ public class MessagePersister implements Managed {
   private final MessagesCache messagesCache;
   private final MessagesManager messagesManager;
   private final AccountsManager accountsManager;
+  private final ClientPresenceManager clientPresenceManager;
 
   private final Duration persistDelay;
+  private final QueuePersistencePriority priority;
 
   private static final String DISABLE_PERSISTER_FEATURE_FLAG = "DISABLE_MESSAGE_PERSISTER";
   private final Thread[] workerThreads = new Thread[WORKER_THREAD_COUNT];
@@ -46,21 +55,44 @@ public class MessagePersister implements Managed {
   private final Timer persistQueueTimer = metricRegistry.timer(name(MessagePersister.class, "persistQueue"));
   private final Meter persistMessageMeter = metricRegistry.meter(name(MessagePersister.class, "persistMessage"));
   private final Meter persistQueueExceptionMeter = metricRegistry.meter(name(MessagePersister.class, "persistQueueException"));
+  private final Meter queuePersistedMeter = metricRegistry.meter(name(MessagePersister.class, "queuePersisted"));
+  private final Meter queueDeferredMeter = metricRegistry.meter(name(MessagePersister.class, "queueDeferred"));
   private final Histogram queueCountHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueCount"));
   private final Histogram queueSizeHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueSize"));
+  private final Timer selectSlotTimer;
+  private final Timer prioritizeQueuesTimer;
+  private final Histogram prioritizedQueueSizeHistogram;
 
   static final int QUEUE_BATCH_LIMIT = 100;
   static final int MESSAGE_BATCH_LIMIT = 100;
 
+  // how many slots are weighed against each other each time one is chosen to persist
+  @VisibleForTesting
+  static final int SLOT_CANDIDATE_COUNT = 8;
+
+  // how many of a slot's ready queues are sized to estimate how much of the cache the slot holds
+  private static final int SLOT_SIZE_SAMPLE = 10;
+
+  // how long persisting a queue is put off while its device is draining it
+  @VisibleForTesting
+  static final Duration DEFER_INTERVAL = Duration.ofMinutes(1);
+
   private static final int WORKER_THREAD_COUNT = 4;
 
   private static final Logger logger = LoggerFactory.getLogger(MessagePersister.class);
 
-  public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfiguration dynamicConfig, final Duration persistDelay) {
+  public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager,
+      final ClientPresenceManager clientPresenceManager, final DynamicConfiguration dynamicConfig, final Duration persistDelay,
+      final QueuePersistencePriority priority) {
     this.messagesCache = messagesCache;
     this.messagesManager = messagesManager;
     this.accountsManager = accountsManager;
+    this.clientPresenceManager = clientPresenceManager;
     this.persistDelay = persistDelay;
+    this.priority = priority;
+    this.selectSlotTimer = metricRegistry.timer(name(MessagePersister.class, "selectSlot", priority.name()));
+    this.prioritizeQueuesTimer = metricRegistry.timer(name(MessagePersister.class, "prioritizeQueues", priority.name()));
+    this.prioritizedQueueSizeHistogram = metricRegistry.histogram(name(MessagePersister.class, "prioritizedQueueSize", priority.name()));
     for (int i = 0; i < workerThreads.length; i++) {
       workerThreads[i] = new Thread(() -> {
         while (running) {
@@ -111,7 +143,7 @@ public class MessagePersister implements Managed {
 
   @VisibleForTesting
   int persistNextQueues(final Instant currentTime) {
-    final int slot = messagesCache.getNextSlotToPersist();
+    final int slot = selectSlot(currentTime.minus(persistDelay));
 
     List<String> queuesToPersist;
     int queuesPersisted = 0;
@@ -121,12 +153,20 @@ public class MessagePersister implements Managed {
         queuesToPersist = messagesCache.getQueuesToPersist(slot, currentTime.minus(persistDelay), QUEUE_BATCH_LIMIT);
       }
 
-      for (final String queue : queuesToPersist) {
+      for (final String queue : prioritize(queuesToPersist)) {
         final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
         final long deviceId = MessagesCache.getDeviceIdFromQueueName(queue);
 
         try {
+          if (shouldDeferPersistence(accountUuid, deviceId)) {
+            // persisting now would hide the queue from its device and store messages it is about to delete
+            queueDeferredMeter.mark();
+            messagesCache.addQueueToPersist(accountUuid, deviceId, currentTime.minus(persistDelay).plus(DEFER_INTERVAL));
+            continue;
+          }
+
           persistQueue(accountUuid, deviceId);
+          queuePersistedMeter.mark();
         } catch (final Exception e) {
           persistQueueExceptionMeter.mark();
           logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
@@ -140,6 +180,102 @@ public class MessagePersister implements Managed {
     return queuesPersisted;
   }
 
+  /**
+   * Chooses the slot to persist next from the next {@link #SLOT_CANDIDATE_COUNT} slots in turn: the one whose oldest
+   * ready queue is oldest, or the one whose first ready queues hold the most messages, as the configured priority
+   * says. Every slot is a candidate for several passes in a row; on the last of them, a slot whose oldest queue has
+   * waited a whole persist delay beyond being ready is chosen whatever its neighbours hold, so no slot is passed over
+   * for good. If no candidate has queues ready, or they can't be weighed, the slot whose turn it is is chosen.
+   */
+  @VisibleForTesting
+  int selectSlot(final Instant maxTime) {
+    final List<Integer> candidates = messagesCache.getNextSlotsToPersist(SLOT_CANDIDATE_COUNT);
+
+    try (final Timer.Context ignored = selectSlotTimer.time()) {
+      final Map<Integer, List<ScoredValue<String>>> readyQueues = messagesCache.peekQueuesToPersist(candidates, maxTime,
+          priority == QueuePersistencePriority.OLDEST_FIRST ? 1 : SLOT_SIZE_SAMPLE);
+
+      if (readyQueues.isEmpty()) {
+        return candidates.get(0);
+      }
+
+      final List<ScoredValue<String>> lastChanceQueues = readyQueues.get(candidates.get(0));
+
+      if (lastChanceQueues != null && lastChanceQueues.get(0).getScore() <= maxTime.minus(persistDelay).toEpochMilli()) {
+        return candidates.get(0);
+      }
+
+      final Map<Integer, Double> slotWeights = new HashMap<>(readyQueues.size());
+
+      if (priority == QueuePersistencePriority.OLDEST_FIRST) {
+        // an older queue has a lower score, so it should weigh more
+        readyQueues.forEach((slot, queues) -> slotWeights.put(slot, -queues.get(0).getScore()));
+      } else {
+        final Map<String, Long> queueSizes = messagesCache.getQueueSizes(readyQueues.values().stream()
+            .flatMap(List::stream)
+            .map(ScoredValue::getValue)
+            .collect(Collectors.toList()));
+
+        readyQueues.forEach((slot, queues) -> slotWeights.put(slot, (double) queues.stream()
+            .mapToLong(queue -> queueSizes.getOrDefault(queue.getValue(), 0L))
+            .sum()));
+      }
+
+      // candidates are weighed in turn, so ties go to the slot whose turn comes first
+      int selectedSlot = candidates.get(0);
+      double selectedWeight = Double.NEGATIVE_INFINITY;
+
+      for (final int candidate : candidates) {
+        final Double weight = slotWeights.get(candidate);
+
+        if (weight != null && weight > selectedWeight) {
+          selectedSlot = candidate;
+          selectedWeight = weight;
+        }
+      }
+
+      return selectedSlot;
+    } catch (final RuntimeException e) {
+      logger.warn("Failed to weigh slots; persisting slot {}", candidates.get(0), e);
+      return candidates.get(0);
+    }
+  }
+
+  /**
+   * Orders queues taken from a slot by the configured priority. The slot index already holds queues in order of
+   * their oldest message, so only ordering by size needs more work.
+   */
+  @VisibleForTesting
+  List<String> prioritize(final List<String> queues) {
+    if (priority == QueuePersistencePriority.OLDEST_FIRST || queues.size() < 2) {
+      return queues;
+    }
+
+    try (final Timer.Context ignored = prioritizeQueuesTimer.time()) {
+      final Map<String, Long> queueSizes = messagesCache.getQueueSizes(queues);
+      queueSizes.values().forEach(prioritizedQueueSizeHistogram::update);
+
+      final List<String> prioritized = new ArrayList<>(queues);
+      prioritized.sort(Comparator.comparing((String queue) -> queueSizes.getOrDefault(queue, 0L)).reversed());
+
+      return prioritized;
+    } catch (final RuntimeException e) {
+      logger.warn("Failed to prioritize queues; persisting in index order", e);
+      return queues;
+    }
+  }
+
+  /**
+   * A queue is left in the cache while its device is connected and reading from it, unless it has grown large enough
+   * to be spilled. Every persisted queue is spilled as well, but that shouldn't stop a device that later reconnects
+   * from draining it.
+   */
+  private boolean shouldDeferPersistence(final UUID accountUuid, final long deviceId) {
+    return messagesCache.isQueueDraining(accountUuid, deviceId)
+        && !messagesCache.isQueueSpilledBySize(accountUuid, deviceId)
+        && clientPresenceManager.isPresent(accountUuid, deviceId);
+  }
+
   @VisibleForTesting
   void persistQueue(final UUID accountUuid, final long deviceId) {
 
@@ -171,6 +307,9 @@ public class MessagePersister implements Managed {
         } while (!messages.isEmpty());
 
         queueSizeHistogram.update(messageCount);
+
+        // the device has not collected its messages within the persist delay, so stop caching new ones until it does
+        messagesCache.spillQueue(accountUuid, deviceId);
       } finally {
         messagesCache.unlockQueueForPersistence(accountUuid, deviceId);
       }
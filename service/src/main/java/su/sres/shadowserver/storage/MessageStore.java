@@ -0,0 +1,81 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import su.sres.shadowserver.configuration.MessageScyllaDbConfiguration;
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+/**
+ * Persistent storage for messages that were not delivered while they were cached.
+ */
+public interface MessageStore {
+
+  void store(List<MessageProtos.Envelope> messages, UUID destinationAccountUuid, long destinationDeviceId);
+
+  default List<OutgoingMessageEntity> load(UUID destinationAccountUuid, long destinationDeviceId, int requestedNumberOfMessagesToFetch) {
+    return load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch, null).getMessages();
+  }
+
+  /**
+   * Loads a device's messages, starting after the position given by a cursor from an earlier page, or from the start
+   * if the cursor is {@code null}. Paging with cursors does not read past the messages of earlier pages again, even
+   * if they have been deleted in the meantime.
+   */
+  MessagePage load(UUID destinationAccountUuid, long destinationDeviceId, int requestedNumberOfMessagesToFetch, @Nullable byte[] cursor);
+
+  /**
+   * Counts a device's stored messages without reading them. The count is read with eventual consistency, so it may
+   * lag writes and deletions.
+   */
+  int getMessageCount(UUID destinationAccountUuid, long destinationDeviceId);
+
+  Optional<OutgoingMessageEntity> deleteMessageByDestinationAndSourceAndTimestamp(UUID destinationAccountUuid, long destinationDeviceId, String source, long timestamp);
+
+  Optional<OutgoingMessageEntity> deleteMessageByDestinationAndGuid(UUID destinationAccountUuid, long destinationDeviceId, UUID messageUuid);
+
+  void deleteAllMessagesForAccount(UUID destinationAccountUuid);
+
+  void deleteAllMessagesForDevice(UUID destinationAccountUuid, long destinationDeviceId);
+
+  /**
+   * Deletes up to {@code limit} of a device's expired messages and returns the number deleted.
+   */
+  int deleteExpiredMessagesForDevice(UUID destinationAccountUuid, long destinationDeviceId, Instant now, int limit);
+
+  /**
+   * Builds the message store described by the given configuration. If a bucketed table is configured, new messages
+   * go there; unless migration has been switched off, messages still in the legacy table are read (and deleted) first,
+   * so the legacy table drains as devices collect their messages and the rest expire.
+   */
+  static MessageStore fromConfiguration(final DynamoDbClient client, final MessageScyllaDbConfiguration configuration) {
+    return fromConfiguration(client, configuration, PayloadCompressor.DISABLED);
+  }
+
+  static MessageStore fromConfiguration(final DynamoDbClient client, final MessageScyllaDbConfiguration configuration, final PayloadCompressor payloadCompressor) {
+    final Duration timeToLive = configuration.getTimeToLive();
+    final MessagesScyllaDb legacyStore = new MessagesScyllaDb(client, configuration.getTableName(), timeToLive, payloadCompressor);
+
+    if (StringUtils.isBlank(configuration.getBucketedTableName())) {
+      return legacyStore;
+    }
+
+    final BucketedMessagesScyllaDb bucketedStore = new BucketedMessagesScyllaDb(client, configuration.getBucketedTableName(), timeToLive, configuration.getBucketDuration(), payloadCompressor);
+
+    return configuration.isMigrateFromLegacyTable() ? new MigratingMessageStore(legacyStore, bucketedStore) : bucketedStore;
+  }
+}
@@ -9,6 +9,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
 import io.lettuce.core.ScoredValue;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.ZAddArgs;
@@ -27,6 +29,7 @@ import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantPubSubConnection;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.redis.RedisWorkload;
 import su.sres.shadowserver.util.RedisClusterUtil;
 
 import java.io.IOException;
@@ -43,8 +46,10 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -55,6 +60,10 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
     private final ExecutorService notificationExecutorService;
 
+    private final int spillQueueSize;
+    private final Duration spillDuration;
+    private final PayloadCompressor payloadCompressor;
+
     private final ClusterLuaScript insertScript;
     private final ClusterLuaScript removeByIdScript;
     private final ClusterLuaScript removeBySenderScript;
@@ -70,22 +79,36 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     private final Timer insertEphemeralTimer = Metrics.timer(name(MessagesCache.class, "insert"), "ephemeral", "true");
     private final Timer getMessagesTimer = Metrics.timer(name(MessagesCache.class, "get"));
     private final Timer getQueuesToPersistTimer = Metrics.timer(name(MessagesCache.class, "getQueuesToPersist"));
+    private final Timer getQueueSizesTimer = Metrics.timer(name(MessagesCache.class, "getQueueSizes"));
+    private final Timer peekQueuesToPersistTimer = Metrics.timer(name(MessagesCache.class, "peekQueuesToPersist"));
+    private final Timer getOldestMessageTimestampTimer = Metrics.timer(name(MessagesCache.class, "getOldestMessageTimestamp"));
     private final Timer clearQueueTimer = Metrics.timer(name(MessagesCache.class, "clear"));
     private final Timer takeEphemeralMessageTimer = Metrics.timer(name(MessagesCache.class, "takeEphemeral"));
     private final Counter pubSubMessageCounter = Metrics.counter(name(MessagesCache.class, "pubSubMessage"));
     private final Counter newMessageNotificationCounter = Metrics.counter(name(MessagesCache.class, "newMessageNotification"), "ephemeral", "false");
     private final Counter ephemeralMessageNotificationCounter = Metrics.counter(name(MessagesCache.class, "newMessageNotification"), "ephemeral", "true");
     private final Counter queuePersistedNotificationCounter = Metrics.counter(name(MessagesCache.class, "queuePersisted"));
+    private final Counter queueSpilledNotificationCounter = Metrics.counter(name(MessagesCache.class, "queueSpilled"));
 
     static final String NEXT_SLOT_TO_PERSIST_KEY = "user_queue_persist_slot";
     private static final byte[] LOCK_VALUE = "1".getBytes(StandardCharsets.UTF_8);
 
+    /**
+     * Returned by {@link #insert} instead of a message ID when the queue has been spilled; the caller must store the
+     * message in the persistent message store instead.
+     */
+    public static final long SPILLED = -1;
+
     private static final String QUEUE_KEYSPACE_PREFIX = "__keyspace@0__:user_queue::";
     private static final String EPHEMERAL_QUEUE_KEYSPACE_PREFIX = "__keyspace@0__:user_queue_ephemeral::";
     private static final String PERSISTING_KEYSPACE_PREFIX = "__keyspace@0__:user_queue_persisting::";
+    private static final String SPILLED_KEYSPACE_PREFIX = "__keyspace@0__:user_queue_spilled::";
 
     private static final Duration MAX_EPHEMERAL_MESSAGE_DELAY = Duration.ofSeconds(10);
 
+    // how long after a device last read its queue the queue still counts as being drained
+    private static final Duration DRAIN_ACTIVITY_WINDOW = Duration.ofSeconds(30);
+
     private static final String REMOVE_TIMER_NAME = name(MessagesCache.class, "remove");
 
     private static final String REMOVE_METHOD_TAG = "method";
@@ -96,18 +119,32 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     private static final Logger logger = LoggerFactory.getLogger(MessagesCache.class);
 
     public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster, final ExecutorService notificationExecutorService) throws IOException {
+	this(insertCluster, readDeleteCluster, notificationExecutorService, 0, Duration.ZERO, PayloadCompressor.DISABLED);
+    }
+
+    /**
+     * @param spillQueueSize the number of cached messages at which a queue is spilled; zero disables the size threshold
+     * @param spillDuration how long a spilled queue stays spilled unless its device drains it; zero disables spilling
+     * @param payloadCompressor compresses envelopes before they are cached; compressed envelopes are always read back
+     */
+    public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster, final ExecutorService notificationExecutorService,
+	    final int spillQueueSize, final Duration spillDuration, final PayloadCompressor payloadCompressor) throws IOException {
 
         this.insertCluster = insertCluster;
         this.readDeleteCluster = readDeleteCluster;
         this.pubSubConnection = readDeleteCluster.createPubSubConnection();
 
         this.notificationExecutorService = notificationExecutorService;
+
+        this.spillQueueSize = spillQueueSize;
+        this.spillDuration = spillDuration;
+        this.payloadCompressor = payloadCompressor;
         
         this.insertScript             = ClusterLuaScript.fromResource(insertCluster, "lua/insert_item.lua",           ScriptOutputType.INTEGER);
         this.removeByIdScript         = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_item_by_id.lua",     ScriptOutputType.VALUE);
         this.removeBySenderScript     = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_item_by_sender.lua", ScriptOutputType.VALUE);
         this.removeByGuidScript       = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_item_by_guid.lua",   ScriptOutputType.MULTI);
-        this.getItemsScript           = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_items.lua",             ScriptOutputType.MULTI);
+        this.getItemsScript           = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_items.lua",             ScriptOutputType.MULTI, RedisWorkload.BULK);
         this.removeQueueScript        = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_queue.lua",          ScriptOutputType.STATUS);
         this.getQueuesToPersistScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_queues_to_persist.lua", ScriptOutputType.MULTI);
     }
@@ -142,17 +179,27 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 	}
     }
 
+    /**
+     * Inserts a message into a device's queue and returns its ID, or {@link #SPILLED} if the queue is spilled and the
+     * message was not inserted. Inserting into a queue that holds at least {@code spillQueueSize} messages spills it
+     * and schedules it for persistence; once persisted, later messages bypass the cache until the device drains its
+     * queue or the spill expires.
+     */
     public long insert(final UUID guid, final UUID destinationUuid, final long destinationDevice, final MessageProtos.Envelope message) {
 	final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
 	final String sender = message.hasSource() ? (message.getSource() + "::" + message.getTimestamp()) : "nil";
 
 	return (long) insertTimer.record(() -> insertScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
 		getMessageQueueMetadataKey(destinationUuid, destinationDevice),
-		getQueueIndexKey(destinationUuid, destinationDevice)),
-		List.of(messageWithGuid.toByteArray(),
+		getQueueIndexKey(destinationUuid, destinationDevice),
+		getQueueSpillKey(destinationUuid, destinationDevice),
+		getQueueSizeSpillKey(destinationUuid, destinationDevice)),
+		List.of(payloadCompressor.compressIfWorthwhile(messageWithGuid.toByteArray()),
 			String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
 			sender.getBytes(StandardCharsets.UTF_8),
-			guid.toString().getBytes(StandardCharsets.UTF_8))));
+			guid.toString().getBytes(StandardCharsets.UTF_8),
+			String.valueOf(spillQueueSize).getBytes(StandardCharsets.UTF_8),
+			String.valueOf(spillDuration.toSeconds()).getBytes(StandardCharsets.UTF_8))));
     }
 
     public void insertEphemeral(final UUID destinationUuid, final long destinationDevice, final MessageProtos.Envelope message) {
@@ -174,7 +221,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 		    List.of(String.valueOf(id).getBytes(StandardCharsets.UTF_8))));
 
 	    if (serialized != null) {
-		return Optional.of(constructEntityFromEnvelope(id, MessageProtos.Envelope.parseFrom(serialized)));
+		return Optional.of(constructEntityFromEnvelope(id, parseEnvelope(serialized)));
 	    }
 	} catch (final InvalidProtocolBufferException e) {
 	    logger.warn("Failed to parse envelope", e);
@@ -191,7 +238,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 		    List.of((sender + "::" + timestamp).getBytes(StandardCharsets.UTF_8))));
 
 	    if (serialized != null) {
-		return Optional.of(constructEntityFromEnvelope(0, MessageProtos.Envelope.parseFrom(serialized)));
+		return Optional.of(constructEntityFromEnvelope(0, parseEnvelope(serialized)));
 	    }
 	} catch (final InvalidProtocolBufferException e) {
 	    logger.warn("Failed to parse envelope", e);
@@ -215,7 +262,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
 	for (final byte[] bytes : serialized) {
 	    try {
-		removedMessages.add(constructEntityFromEnvelope(0, MessageProtos.Envelope.parseFrom(bytes)));
+		removedMessages.add(constructEntityFromEnvelope(0, parseEnvelope(bytes)));
 	    } catch (final InvalidProtocolBufferException e) {
 		logger.warn("Failed to parse envelope", e);
 	    }
@@ -225,15 +272,63 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     }
 
     public boolean hasMessages(final UUID destinationUuid, final long destinationDevice) {
-	return readDeleteCluster.withBinaryCluster(connection -> connection.sync().zcard(getMessageQueueKey(destinationUuid, destinationDevice)) > 0);
+	return readDeleteCluster.withBinaryCluster(RedisWorkload.LATENCY_SENSITIVE, connection -> connection.sync().zcard(getMessageQueueKey(destinationUuid, destinationDevice)) > 0);
+    }
+
+    public long getMessageCount(final UUID destinationUuid, final long destinationDevice) {
+	return readDeleteCluster.withBinaryCluster(RedisWorkload.LATENCY_SENSITIVE, connection -> connection.sync().zcard(getMessageQueueKey(destinationUuid, destinationDevice)));
+    }
+
+    /**
+     * Returns the server timestamp of the oldest message in a device's queue, if there is one. Unlike {@link #get},
+     * this does not count as the device reading its queue.
+     */
+    public Optional<Long> getOldestMessageTimestamp(final UUID destinationUuid, final long destinationDevice) {
+	return getOldestMessageTimestampTimer.record(() -> {
+	    final List<byte[]> oldest = readDeleteCluster.withBinaryCluster(connection -> connection.sync().zrange(getMessageQueueKey(destinationUuid, destinationDevice), 0, 0));
+
+	    if (oldest.isEmpty()) {
+		return Optional.empty();
+	    }
+
+	    try {
+		return Optional.of(parseEnvelope(oldest.get(0)).getServerTimestamp());
+	    } catch (final InvalidProtocolBufferException e) {
+		logger.warn("Failed to parse envelope", e);
+		return Optional.empty();
+	    }
+	});
     }
 
-    @SuppressWarnings("unchecked")
     public List<OutgoingMessageEntity> get(final UUID destinationUuid, final long destinationDevice, final int limit) {
+	return get(destinationUuid, destinationDevice, limit, 0);
+    }
+
+    /**
+     * Returns up to {@code limit} of a device's cached messages with IDs greater than {@code afterId}, in order.
+     */
+    public List<OutgoingMessageEntity> get(final UUID destinationUuid, final long destinationDevice, final int limit, final long afterId) {
+	return get(destinationUuid, destinationDevice, limit, afterId, false);
+    }
+
+    /**
+     * Returns up to {@code limit} of a device's cached messages with IDs greater than {@code afterId}, in order. If
+     * {@code unspillIfDrained} is set and fewer than {@code limit} messages are returned, the device has caught up and
+     * the queue is unspilled in the same script, so that new messages go back to the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public List<OutgoingMessageEntity> get(final UUID destinationUuid, final long destinationDevice, final int limit, final long afterId,
+	    final boolean unspillIfDrained) {
 	return getMessagesTimer.record(() -> {
 	    final List<byte[]> queueItems = (List<byte[]>) getItemsScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
-		    getPersistInProgressKey(destinationUuid, destinationDevice)),
-		    List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8)));
+		    getPersistInProgressKey(destinationUuid, destinationDevice),
+		    getQueueDrainKey(destinationUuid, destinationDevice),
+		    getQueueSpillKey(destinationUuid, destinationDevice),
+		    getQueueSizeSpillKey(destinationUuid, destinationDevice)),
+		    List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8),
+			    String.valueOf(DRAIN_ACTIVITY_WINDOW.toSeconds()).getBytes(StandardCharsets.UTF_8),
+			    String.valueOf(afterId).getBytes(StandardCharsets.UTF_8),
+			    (unspillIfDrained ? "1" : "0").getBytes(StandardCharsets.UTF_8)));
 
 	    final List<OutgoingMessageEntity> messageEntities;
 
@@ -242,7 +337,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
 		for (int i = 0; i < queueItems.size() - 1; i += 2) {
 		    try {
-			final MessageProtos.Envelope message = MessageProtos.Envelope.parseFrom(queueItems.get(i));
+			final MessageProtos.Envelope message = parseEnvelope(queueItems.get(i));
 			final long id = Long.parseLong(new String(queueItems.get(i + 1), StandardCharsets.UTF_8));
 
 			messageEntities.add(constructEntityFromEnvelope(id, message));
@@ -267,7 +362,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
 	    for (final ScoredValue<byte[]> scoredMessage : scoredMessages) {
 		try {
-		    envelopes.add(MessageProtos.Envelope.parseFrom(scoredMessage.getValue()));
+		    envelopes.add(parseEnvelope(scoredMessage.getValue()));
 		} catch (InvalidProtocolBufferException e) {
 		    logger.warn("Failed to parse envelope", e);
 		}
@@ -316,12 +411,53 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     public void clear(final UUID destinationUuid, final long deviceId) {
 	clearQueueTimer.record(() -> removeQueueScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, deviceId),
 		getMessageQueueMetadataKey(destinationUuid, deviceId),
-		getQueueIndexKey(destinationUuid, deviceId)),
+		getQueueIndexKey(destinationUuid, deviceId),
+		getQueueSpillKey(destinationUuid, deviceId),
+		getQueueSizeSpillKey(destinationUuid, deviceId)),
 		Collections.emptyList()));
     }
 
-    int getNextSlotToPersist() {
-	return (int)(readDeleteCluster.withCluster(connection -> connection.sync().incr(NEXT_SLOT_TO_PERSIST_KEY)) % SlotHash.SLOT_COUNT);
+    /**
+     * Returns the next {@code count} slots in turn, starting from a cursor shared by all persisters. The cursor moves on
+     * by one slot per call, so each slot is offered by {@code count} calls in a row.
+     */
+    List<Integer> getNextSlotsToPersist(final int count) {
+	final long cursor = readDeleteCluster.withCluster(connection -> connection.sync().incr(NEXT_SLOT_TO_PERSIST_KEY));
+	final List<Integer> slots = new ArrayList<>(count);
+
+	for (int i = 0; i < count; i++) {
+	    slots.add((int) ((cursor + i) % SlotHash.SLOT_COUNT));
+	}
+
+	return slots;
+    }
+
+    /**
+     * Returns, for each of the given slots that has any, up to {@code limit} of its queues that are ready to persist,
+     * oldest first and scored by the time they were indexed. Queues stay in the index. All slots are looked up in a
+     * single pipeline.
+     */
+    Map<Integer, List<ScoredValue<String>>> peekQueuesToPersist(final List<Integer> slots, final Instant maxTime, final int limit) {
+	return peekQueuesToPersistTimer.record(() -> readDeleteCluster.withCluster(connection -> {
+	    final Map<Integer, CompletableFuture<List<ScoredValue<String>>>> futures = new HashMap<>(slots.size());
+
+	    for (final int slot : slots) {
+		futures.put(slot, connection.async().zrangebyscoreWithScores(new String(getQueueIndexKey(slot), StandardCharsets.UTF_8),
+			Range.create(0, maxTime.toEpochMilli()), Limit.create(0, limit)).toCompletableFuture());
+	    }
+
+	    final Map<Integer, List<ScoredValue<String>>> queuesBySlot = new HashMap<>(slots.size());
+
+	    futures.forEach((slot, future) -> {
+		final List<ScoredValue<String>> queues = future.join();
+
+		if (!queues.isEmpty()) {
+		    queuesBySlot.put(slot, queues);
+		}
+	    });
+
+	    return queuesBySlot;
+	}));
     }
 
     List<String> getQueuesToPersist(final int slot, final Instant maxTime, final int limit) {
@@ -331,8 +467,34 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 			String.valueOf(limit))));
     }
 
+    /**
+     * Returns the number of messages in each of the given queues, or zero for queues that no longer exist. All queues
+     * are looked up in a single pipeline.
+     */
+    Map<String, Long> getQueueSizes(final List<String> queueNames) {
+	return getQueueSizesTimer.record(() -> readDeleteCluster.withBinaryCluster(connection -> {
+	    final Map<String, CompletableFuture<Long>> futures = new HashMap<>(queueNames.size());
+
+	    for (final String queueName : queueNames) {
+		futures.put(queueName, connection.async().zcard(queueName.getBytes(StandardCharsets.UTF_8)).toCompletableFuture());
+	    }
+
+	    final Map<String, Long> queueSizes = new HashMap<>(queueNames.size());
+	    futures.forEach((queueName, future) -> queueSizes.put(queueName, future.join()));
+
+	    return queueSizes;
+	}));
+    }
+
     void addQueueToPersist(final UUID accountUuid, final long deviceId) {
-	readDeleteCluster.useBinaryCluster(connection -> connection.sync().zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), System.currentTimeMillis(), getMessageQueueKey(accountUuid, deviceId)));
+	addQueueToPersist(accountUuid, deviceId, Instant.now());
+    }
+
+    /**
+     * Returns a queue to the persistence index as if its messages had arrived at the given time.
+     */
+    void addQueueToPersist(final UUID accountUuid, final long deviceId, final Instant time) {
+	readDeleteCluster.useBinaryCluster(connection -> connection.sync().zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), time.toEpochMilli(), getMessageQueueKey(accountUuid, deviceId)));
     }
 
     void lockQueueForPersistence(final UUID accountUuid, final long deviceId) {
@@ -343,6 +505,36 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 	readDeleteCluster.useBinaryCluster(connection -> connection.sync().del(getPersistInProgressKey(accountUuid, deviceId)));
     }
 
+    /**
+     * Spills a device's queue, or extends an existing spill, so that new messages bypass the cache once it is empty.
+     * Listeners for the queue are notified as if the queue had been persisted.
+     */
+    void spillQueue(final UUID accountUuid, final long deviceId) {
+	if (!spillDuration.isZero()) {
+	    insertCluster.useBinaryCluster(connection -> connection.sync().setex(getQueueSpillKey(accountUuid, deviceId), spillDuration.toSeconds(), LOCK_VALUE));
+	}
+    }
+
+    @VisibleForTesting
+    boolean isQueueSpilled(final UUID accountUuid, final long deviceId) {
+	return insertCluster.withBinaryCluster(connection -> connection.sync().exists(getQueueSpillKey(accountUuid, deviceId)) > 0);
+    }
+
+    /**
+     * @return whether the queue was spilled because it reached {@code spillQueueSize} messages, rather than (only)
+     * because its messages aged out of the cache
+     */
+    boolean isQueueSpilledBySize(final UUID accountUuid, final long deviceId) {
+	return insertCluster.withBinaryCluster(connection -> connection.sync().exists(getQueueSizeSpillKey(accountUuid, deviceId)) > 0);
+    }
+
+    /**
+     * @return whether the device has read messages from its queue within the last {@link #DRAIN_ACTIVITY_WINDOW}
+     */
+    boolean isQueueDraining(final UUID accountUuid, final long deviceId) {
+	return readDeleteCluster.withBinaryCluster(connection -> connection.sync().exists(getQueueDrainKey(accountUuid, deviceId)) > 0);
+    }
+
     public void addMessageAvailabilityListener(final UUID destinationUuid, final long deviceId, final MessageAvailabilityListener listener) {
 	final String queueName = getQueueName(destinationUuid, deviceId);
 
@@ -385,7 +577,8 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 	return new String[] {
 		QUEUE_KEYSPACE_PREFIX + "{" + queueName + "}",
 		EPHEMERAL_QUEUE_KEYSPACE_PREFIX + "{" + queueName + "}",
-		PERSISTING_KEYSPACE_PREFIX + "{" + queueName + "}"
+		PERSISTING_KEYSPACE_PREFIX + "{" + queueName + "}",
+		SPILLED_KEYSPACE_PREFIX + "{" + queueName + "}"
 	};
     }
 
@@ -402,6 +595,10 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 	} else if (channel.startsWith(PERSISTING_KEYSPACE_PREFIX) && "del".equals(message)) {
 	    queuePersistedNotificationCounter.increment();
 	    notificationExecutorService.execute(() -> findListener(channel).ifPresent(MessageAvailabilityListener::handleMessagesPersisted));
+	} else if (channel.startsWith(SPILLED_KEYSPACE_PREFIX) && "set".equals(message)) {
+	    // spilled messages are not in the cache, so listeners must go to the persistent store to find them
+	    queueSpilledNotificationCounter.increment();
+	    notificationExecutorService.execute(() -> findListener(channel).ifPresent(MessageAvailabilityListener::handleMessagesPersisted));
 	}
     }
 
@@ -413,6 +610,14 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 	}
     }
 
+    private static MessageProtos.Envelope parseEnvelope(final byte[] cached) throws InvalidProtocolBufferException {
+	try {
+	    return MessageProtos.Envelope.parseFrom(PayloadCompressor.decompressIfCompressed(cached));
+	} catch (final DataFormatException e) {
+	    throw new InvalidProtocolBufferException("Failed to decompress envelope: " + e.getMessage());
+	}
+    }
+
     @VisibleForTesting
     static OutgoingMessageEntity constructEntityFromEnvelope(long id, MessageProtos.Envelope envelope) {
 	return new OutgoingMessageEntity(id, true,
@@ -466,6 +671,18 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 	return ("user_queue_persisting::{" + accountUuid + "::" + deviceId + "}").getBytes(StandardCharsets.UTF_8);
     }
 
+    private static byte[] getQueueSpillKey(final UUID accountUuid, final long deviceId) {
+	return ("user_queue_spilled::{" + accountUuid + "::" + deviceId + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getQueueSizeSpillKey(final UUID accountUuid, final long deviceId) {
+	return ("user_queue_spilled_by_size::{" + accountUuid + "::" + deviceId + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getQueueDrainKey(final UUID accountUuid, final long deviceId) {
+	return ("user_queue_draining::{" + accountUuid + "::" + deviceId + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
     static UUID getAccountUuidFromQueueName(final String queueName) {
 	final int startOfHashTag = queueName.indexOf('{');
 
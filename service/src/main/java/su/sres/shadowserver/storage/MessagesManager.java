@@ -33,13 +33,14 @@ public class MessagesManager {
   private static final Meter cacheMissByNameMeter = metricRegistry.meter(name(MessagesManager.class, "cacheMissByName"));
   private static final Meter cacheHitByGuidMeter = metricRegistry.meter(name(MessagesManager.class, "cacheHitByGuid"));
   private static final Meter cacheMissByGuidMeter = metricRegistry.meter(name(MessagesManager.class, "cacheMissByGuid"));
+  private static final Meter spilledMessageMeter = metricRegistry.meter(name(MessagesManager.class, "spilledMessage"));
 
-  private final MessagesScyllaDb messagesScyllaDb;
+  private final MessageStore messagesScyllaDb;
   private final MessagesCache messagesCache;
   private final PushLatencyManager pushLatencyManager;
   private final ReportMessageManager reportMessageManager;
 
-  public MessagesManager(MessagesScyllaDb messagesScyllaDb, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager) {
+  public MessagesManager(MessageStore messagesScyllaDb, MessagesCache messagesCache, PushLatencyManager pushLatencyManager, final ReportMessageManager reportMessageManager) {
     this.messagesScyllaDb = messagesScyllaDb;
     this.messagesCache = messagesCache;
     this.pushLatencyManager = pushLatencyManager;
@@ -49,7 +50,13 @@ public class MessagesManager {
   public void insert(UUID destinationUuid, long destinationDevice, Envelope message) {
     final UUID messageGuid = UUID.randomUUID();
 
-    messagesCache.insert(messageGuid, destinationUuid, destinationDevice, message);
+    if (messagesCache.insert(messageGuid, destinationUuid, destinationDevice, message) == MessagesCache.SPILLED) {
+      messagesScyllaDb.store(List.of(message.toBuilder().setServerGuid(messageGuid.toString()).build()), destinationUuid, destinationDevice);
+
+      // refreshing the spill also tells a connected device to look in the persistent store
+      messagesCache.spillQueue(destinationUuid, destinationDevice);
+      spilledMessageMeter.mark();
+    }
 
     if (message.hasSource() && !destinationUuid.toString().equals(message.getSourceUuid())) {
       reportMessageManager.store(message.getSource(), messageGuid);
@@ -68,20 +75,66 @@ public class MessagesManager {
     return messagesCache.hasMessages(destinationUuid, destinationDevice);
   }
 
+  /**
+   * Counts the messages waiting for a device in the cache and the persistent store, without loading them.
+   */
+  public long getQueueDepth(final UUID destinationUuid, final long destinationDevice) {
+    return messagesCache.getMessageCount(destinationUuid, destinationDevice) + messagesScyllaDb.getMessageCount(destinationUuid, destinationDevice);
+  }
+
+  /**
+   * Returns the server timestamp of the oldest message waiting for a device, if any. Persisted messages are always
+   * older than cached ones, so the cache is only consulted if the persistent store is empty.
+   */
+  public Optional<Long> getOldestMessageTimestamp(final UUID destinationUuid, final long destinationDevice) {
+    final List<OutgoingMessageEntity> oldestStored = messagesScyllaDb.load(destinationUuid, destinationDevice, 1);
+
+    return oldestStored.isEmpty()
+        ? messagesCache.getOldestMessageTimestamp(destinationUuid, destinationDevice)
+        : Optional.of(oldestStored.get(0).getServerTimestamp());
+  }
+
   public OutgoingMessageEntityList getMessagesForDevice(UUID destinationUuid, long destinationDevice, final String userAgent, final boolean cachedMessagesOnly) {
+    return getMessagesForDevice(destinationUuid, destinationDevice, userAgent, cachedMessagesOnly, new MessageCursor());
+  }
+
+  /**
+   * Returns the next page of messages for a device after those already returned with the given cursor, and advances
+   * the cursor past them. Callers that fetch a page while earlier pages are still awaiting acknowledgement (and so
+   * have not been deleted yet) pass the same cursor to get the messages after them.
+   */
+  public OutgoingMessageEntityList getMessagesForDevice(UUID destinationUuid, long destinationDevice, final String userAgent, final boolean cachedMessagesOnly,
+      final MessageCursor cursor) {
     RedisOperation.unchecked(() -> pushLatencyManager.recordQueueRead(destinationUuid, destinationDevice, userAgent));
 
     List<OutgoingMessageEntity> messageList = new ArrayList<>();
 
-    if (!cachedMessagesOnly) {
-      messageList.addAll(messagesScyllaDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE));
+    if (!cachedMessagesOnly && !cursor.isStoreExhausted()) {
+      final MessagePage page = messagesScyllaDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE, cursor.getStoreCursor());
+
+      messageList.addAll(page.getMessages());
+      cursor.setStoreCursor(page.getCursor());
+
+      if (page.getMessages().size() < RESULT_SET_CHUNK_SIZE) {
+        cursor.setStoreExhausted();
+      }
     }
 
     if (messageList.size() < RESULT_SET_CHUNK_SIZE) {
-      messageList.addAll(messagesCache.get(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE - messageList.size()));
+      // a short page here means the device has caught up, so the cache can unspill the queue as it reads it
+      final List<OutgoingMessageEntity> cachedMessages = messagesCache.get(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE - messageList.size(),
+          cursor.getLastCachedMessageId(), !cachedMessagesOnly);
+
+      messageList.addAll(cachedMessages);
+
+      if (!cachedMessages.isEmpty()) {
+        cursor.setLastCachedMessageId(cachedMessages.get(cachedMessages.size() - 1).getId());
+      }
     }
 
-    return new OutgoingMessageEntityList(messageList, messageList.size() >= RESULT_SET_CHUNK_SIZE);
+    final boolean hasMore = messageList.size() >= RESULT_SET_CHUNK_SIZE;
+
+    return new OutgoingMessageEntityList(messageList, hasMore);
   }
 
   public void clear(UUID destinationUuid) {
@@ -8,7 +8,9 @@ import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
 import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.Select;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 import org.apache.commons.lang3.StringUtils;
@@ -21,51 +23,68 @@ import su.sres.shadowserver.util.AttributeValues;
 import su.sres.shadowserver.util.UUIDUtil;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static io.micrometer.core.instrument.Metrics.timer;
 
-public class MessagesScyllaDb extends AbstractScyllaDbStore {
+public class MessagesScyllaDb extends AbstractScyllaDbStore implements MessageStore {
 
-  private static final String KEY_PARTITION = "H";
-  private static final String KEY_SORT = "S";
-  private static final String LOCAL_INDEX_MESSAGE_UUID_NAME = "Message_UUID_Index";
-  private static final String LOCAL_INDEX_MESSAGE_UUID_KEY_SORT = "U";
+  static final String KEY_PARTITION = "H";
+  static final String KEY_SORT = "S";
+  static final String LOCAL_INDEX_MESSAGE_UUID_NAME = "Message_UUID_Index";
+  static final String LOCAL_INDEX_MESSAGE_UUID_KEY_SORT = "U";
 
-  private static final String KEY_TYPE = "T";
-  private static final String KEY_RELAY = "R";
-  private static final String KEY_TIMESTAMP = "TS";
-  private static final String KEY_SOURCE = "SN";
-  private static final String KEY_SOURCE_UUID = "SU";
-  private static final String KEY_SOURCE_DEVICE = "SD";
-  private static final String KEY_MESSAGE = "M";
-  private static final String KEY_CONTENT = "C";
-  private static final String KEY_TTL = "E";
+  static final String KEY_TYPE = "T";
+  static final String KEY_RELAY = "R";
+  static final String KEY_TIMESTAMP = "TS";
+  static final String KEY_SOURCE = "SN";
+  static final String KEY_SOURCE_UUID = "SU";
+  static final String KEY_SOURCE_DEVICE = "SD";
+  static final String KEY_MESSAGE = "M";
+  static final String KEY_CONTENT = "C";
+  static final String KEY_TTL = "E";
+  static final String KEY_COMPRESSED = "Z";
+
+  // bits of KEY_COMPRESSED telling which payload attributes are compressed
+  static final int COMPRESSED_MESSAGE = 1;
+  static final int COMPRESSED_CONTENT = 2;
 
   private final Timer storeTimer = timer(name(getClass(), "store"));
   private final Timer loadTimer = timer(name(getClass(), "load"));
+  private final Timer countTimer = timer(name(getClass(), "count"));
   private final Timer deleteBySourceAndTimestamp = timer(name(getClass(), "delete", "sourceAndTimestamp"));
   private final Timer deleteByGuid = timer(name(getClass(), "delete", "guid"));
   private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
   private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
+  private final Timer deleteExpired = timer(name(getClass(), "delete", "expired"));
 
   private final String tableName;
   private final Duration timeToLive;
+  private final PayloadCompressor payloadCompressor;
 
   public MessagesScyllaDb(DynamoDbClient scyllaDb, String tableName, Duration timeToLive) {
+    this(scyllaDb, tableName, timeToLive, PayloadCompressor.DISABLED);
+  }
+
+  public MessagesScyllaDb(DynamoDbClient scyllaDb, String tableName, Duration timeToLive, PayloadCompressor payloadCompressor) {
     super(scyllaDb);
     this.tableName = tableName;
     this.timeToLive = timeToLive;
+    this.payloadCompressor = payloadCompressor;
   }
 
+  @Override
   public void store(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
     storeTimer.record(() -> writeInBatches(messages, (messageBatch) -> storeBatch(messageBatch, destinationAccountUuid, destinationDeviceId)));
   }
@@ -79,45 +98,61 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     List<WriteRequest> writeItems = new ArrayList<>();
     
     for (MessageProtos.Envelope message : messages) {
-      final UUID messageUuid = UUID.fromString(message.getServerGuid());
-      final ImmutableMap.Builder<String, AttributeValue> item = ImmutableMap.<String, AttributeValue>builder()
-          .put(KEY_PARTITION, partitionKey)
-          .put(KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), messageUuid))
-          .put(LOCAL_INDEX_MESSAGE_UUID_KEY_SORT, convertLocalIndexMessageUuidSortKey(messageUuid))
-          .put(KEY_TYPE, AttributeValues.fromInt(message.getType().getNumber()))
-          .put(KEY_TIMESTAMP, AttributeValues.fromLong(message.getTimestamp()))
-          .put(KEY_TTL, AttributeValues.fromLong(getTtlForMessage(message)));
-      if (message.hasRelay() && message.getRelay().length() > 0) {
-        item.put(KEY_RELAY, AttributeValues.fromString(message.getRelay()));
-      }
-      if (message.hasSource()) {
-        item.put(KEY_SOURCE, AttributeValues.fromString(message.getSource()));
-      }
-      if (message.hasSourceUuid()) {
-        item.put(KEY_SOURCE_UUID, AttributeValues.fromUUID(UUID.fromString(message.getSourceUuid())));
-      }
-      if (message.hasSourceDevice()) {
-        item.put(KEY_SOURCE_DEVICE, AttributeValues.fromInt(message.getSourceDevice()));
-      }
-      if (message.hasLegacyMessage()) {
-        item.put(KEY_MESSAGE, AttributeValues.fromByteArray(message.getLegacyMessage().toByteArray()));
-      }
-      if (message.hasContent()) {
-        item.put(KEY_CONTENT, AttributeValues.fromByteArray(message.getContent().toByteArray()));
-      }
       writeItems.add(WriteRequest.builder().putRequest(PutRequest.builder()
-          .item(item.build())
+          .item(convertMessageToItem(partitionKey, destinationDeviceId, message, getTtlForMessage(message), payloadCompressor))
           .build()).build());
     }
 
     executeTableWriteItemsUntilComplete(Map.of(tableName, writeItems));
   }
 
-  public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
+  static Map<String, AttributeValue> convertMessageToItem(final AttributeValue partitionKey, final long destinationDeviceId, final MessageProtos.Envelope message, final long ttl,
+      final PayloadCompressor payloadCompressor) {
+    final UUID messageUuid = UUID.fromString(message.getServerGuid());
+    final ImmutableMap.Builder<String, AttributeValue> item = ImmutableMap.<String, AttributeValue>builder()
+        .put(KEY_PARTITION, partitionKey)
+        .put(KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), messageUuid))
+        .put(LOCAL_INDEX_MESSAGE_UUID_KEY_SORT, convertLocalIndexMessageUuidSortKey(messageUuid))
+        .put(KEY_TYPE, AttributeValues.fromInt(message.getType().getNumber()))
+        .put(KEY_TIMESTAMP, AttributeValues.fromLong(message.getTimestamp()))
+        .put(KEY_TTL, AttributeValues.fromLong(ttl));
+    if (message.hasRelay() && message.getRelay().length() > 0) {
+      item.put(KEY_RELAY, AttributeValues.fromString(message.getRelay()));
+    }
+    if (message.hasSource()) {
+      item.put(KEY_SOURCE, AttributeValues.fromString(message.getSource()));
+    }
+    if (message.hasSourceUuid()) {
+      item.put(KEY_SOURCE_UUID, AttributeValues.fromUUID(UUID.fromString(message.getSourceUuid())));
+    }
+    if (message.hasSourceDevice()) {
+      item.put(KEY_SOURCE_DEVICE, AttributeValues.fromInt(message.getSourceDevice()));
+    }
+    int compressed = 0;
+    if (message.hasLegacyMessage()) {
+      final byte[] legacyMessage = message.getLegacyMessage().toByteArray();
+      final Optional<byte[]> maybeCompressed = payloadCompressor.compress(legacyMessage);
+      item.put(KEY_MESSAGE, AttributeValues.fromByteArray(maybeCompressed.orElse(legacyMessage)));
+      compressed |= maybeCompressed.isPresent() ? COMPRESSED_MESSAGE : 0;
+    }
+    if (message.hasContent()) {
+      final byte[] content = message.getContent().toByteArray();
+      final Optional<byte[]> maybeCompressed = payloadCompressor.compress(content);
+      item.put(KEY_CONTENT, AttributeValues.fromByteArray(maybeCompressed.orElse(content)));
+      compressed |= maybeCompressed.isPresent() ? COMPRESSED_CONTENT : 0;
+    }
+    if (compressed != 0) {
+      item.put(KEY_COMPRESSED, AttributeValues.fromInt(compressed));
+    }
+    return item.build();
+  }
+
+  @Override
+  public MessagePage load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch, @Nullable final byte[] cursor) {
     return loadTimer.record(() -> {
-      final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
+      final int numberOfMessagesToFetch = requestedNumberOfMessagesToFetch;
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
-      final QueryRequest queryRequest = QueryRequest.builder()
+      final QueryRequest.Builder queryRequest = QueryRequest.builder()
           .tableName(tableName)
           .consistentRead(true)
           .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
@@ -127,16 +162,51 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
           .expressionAttributeValues(Map.of(
               ":part", partitionKey,
               ":sortprefix", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
-          .limit(numberOfMessagesToFetch)
-          .build();
-      List<OutgoingMessageEntity> messageEntities = new ArrayList<>(numberOfMessagesToFetch);
-      for (Map<String, AttributeValue> message : db().query(queryRequest).items()) {
-        messageEntities.add(convertItemToOutgoingMessageEntity(message));
+          .limit(Math.min(numberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE));
+      if (cursor != null) {
+        // the cursor is the sort key of the last message returned
+        queryRequest.exclusiveStartKey(Map.of(
+            KEY_PARTITION, partitionKey,
+            KEY_SORT, AttributeValues.fromByteArray(cursor)));
       }
-      return messageEntities;
+      List<OutgoingMessageEntity> messageEntities = new ArrayList<>(Math.min(numberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE));
+      byte[] lastSortKey = cursor;
+      // requests for more than one chunk span pages
+      for (final QueryResponse page : db().queryPaginator(queryRequest.build())) {
+        for (Map<String, AttributeValue> message : page.items()) {
+          messageEntities.add(convertItemToOutgoingMessageEntity(message));
+          lastSortKey = message.get(KEY_SORT).b().asByteArray();
+
+          if (messageEntities.size() >= numberOfMessagesToFetch) {
+            return new MessagePage(messageEntities, lastSortKey);
+          }
+        }
+      }
+      return new MessagePage(messageEntities, lastSortKey);
     });
   }
 
+  @Override
+  public int getMessageCount(final UUID destinationAccountUuid, final long destinationDeviceId) {
+    return countTimer.record(() -> {
+      final QueryRequest queryRequest = QueryRequest.builder()
+          .tableName(tableName)
+          .consistentRead(false)
+          .select(Select.COUNT)
+          .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
+          .expressionAttributeNames(Map.of(
+              "#part", KEY_PARTITION,
+              "#sort", KEY_SORT))
+          .expressionAttributeValues(Map.of(
+              ":part", convertPartitionKey(destinationAccountUuid),
+              ":sortprefix", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
+          .build();
+
+      return countQueryResults(queryRequest);
+    });
+  }
+
+  @Override
   public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndSourceAndTimestamp(final UUID destinationAccountUuid, final long destinationDeviceId, final String source, final long timestamp) {
     return deleteBySourceAndTimestamp.record(() -> {
       if (StringUtils.isEmpty(source)) {
@@ -166,6 +236,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  @Override
   public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndGuid(final UUID destinationAccountUuid, final long destinationDeviceId, final UUID messageUuid) {
     return deleteByGuid.record(() -> {
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
@@ -205,6 +276,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     return result;
   }
 
+  @Override
   public void deleteAllMessagesForAccount(final UUID destinationAccountUuid) {
     deleteByAccount.record(() -> {
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
@@ -220,6 +292,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
+  @Override
   public void deleteAllMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId) {
     deleteByDevice.record(() -> {
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
@@ -239,7 +312,60 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     });
   }
 
-  private OutgoingMessageEntity convertItemToOutgoingMessageEntity(Map<String, AttributeValue> message) {
+  /**
+   * Deletes up to {@code limit} of a device's expired messages and returns the number deleted. Messages sort by server
+   * timestamp within a device, so only the key range that can hold expired messages is read.
+   */
+  @Override
+  public int deleteExpiredMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId, final Instant now, final int limit) {
+    return deleteExpired.record(() -> {
+      final long maxServerTimestamp = now.minus(timeToLive).toEpochMilli();
+
+      if (maxServerTimestamp < 0 || limit <= 0) {
+        return 0;
+      }
+
+      final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
+      final QueryRequest queryRequest = QueryRequest.builder()
+          .tableName(tableName)
+          .keyConditionExpression("#part = :part AND #sort BETWEEN :sortstart AND :sortend")
+          .filterExpression("#ttl < :now")
+          .expressionAttributeNames(Map.of(
+              "#part", KEY_PARTITION,
+              "#sort", KEY_SORT,
+              "#ttl", KEY_TTL))
+          .expressionAttributeValues(Map.of(
+              ":part", partitionKey,
+              ":sortstart", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId),
+              ":sortend", convertSortKey(destinationDeviceId, maxServerTimestamp, new UUID(-1L, -1L)),
+              ":now", AttributeValues.fromLong(now.getEpochSecond())))
+          .projectionExpression(KEY_SORT)
+          .limit(Math.min(limit, RESULT_SET_CHUNK_SIZE))
+          .build();
+
+      final List<Map<String, AttributeValue>> expiredItems = new ArrayList<>();
+
+      for (final QueryResponse page : db().queryPaginator(queryRequest)) {
+        for (final Map<String, AttributeValue> item : page.items()) {
+          expiredItems.add(item);
+
+          if (expiredItems.size() >= limit) {
+            break;
+          }
+        }
+
+        if (expiredItems.size() >= limit) {
+          break;
+        }
+      }
+
+      writeInBatches(expiredItems, (itemBatch) -> deleteItems(partitionKey, itemBatch));
+
+      return expiredItems.size();
+    });
+  }
+
+  static OutgoingMessageEntity convertItemToOutgoingMessageEntity(Map<String, AttributeValue> message) {
     final SortKey sortKey = convertSortKey(message.get(KEY_SORT).b().asByteArray());
     final UUID messageUuid = convertLocalIndexMessageUuidSortKey(message.get(LOCAL_INDEX_MESSAGE_UUID_KEY_SORT).b().asByteArray());
     final int type = AttributeValues.getInt(message, KEY_TYPE, 0);
@@ -248,11 +374,26 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     final String source = AttributeValues.getString(message, KEY_SOURCE, null);
     final UUID sourceUuid = AttributeValues.getUUID(message, KEY_SOURCE_UUID, null);
     final int sourceDevice = AttributeValues.getInt(message, KEY_SOURCE_DEVICE, 0);
-    final byte[] messageBytes = AttributeValues.getByteArray(message, KEY_MESSAGE, null);
-    final byte[] content = AttributeValues.getByteArray(message, KEY_CONTENT, null);
+    final int compressed = AttributeValues.getInt(message, KEY_COMPRESSED, 0);
+    final byte[] messageBytes = getPayload(message, KEY_MESSAGE, (compressed & COMPRESSED_MESSAGE) != 0);
+    final byte[] content = getPayload(message, KEY_CONTENT, (compressed & COMPRESSED_CONTENT) != 0);
     return new OutgoingMessageEntity(-1L, false, messageUuid, type, relay, timestamp, source, sourceUuid, sourceDevice, messageBytes, content, sortKey.getServerTimestamp());
   }
 
+  private static byte[] getPayload(final Map<String, AttributeValue> item, final String key, final boolean compressed) {
+    final byte[] payload = AttributeValues.getByteArray(item, key, null);
+
+    if (payload == null || !compressed) {
+      return payload;
+    }
+
+    try {
+      return PayloadCompressor.decompress(payload);
+    } catch (final DataFormatException e) {
+      throw new IllegalStateException("Failed to decompress stored message payload", e);
+    }
+  }
+
   private void deleteRowsMatchingQuery(AttributeValue partitionKey, QueryRequest querySpec) {
     writeInBatches(db().query(querySpec).items(), (itemBatch) -> deleteItems(partitionKey, itemBatch));
   }
@@ -276,7 +417,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     return AttributeValues.fromUUID(destinationAccountUuid);
   }
 
-  private static AttributeValue convertSortKey(final long destinationDeviceId, final long serverTimestamp, final UUID messageUuid) {
+  static AttributeValue convertSortKey(final long destinationDeviceId, final long serverTimestamp, final UUID messageUuid) {
     ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[32]);
     byteBuffer.putLong(destinationDeviceId);
     byteBuffer.putLong(serverTimestamp);
@@ -285,7 +426,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     return AttributeValues.fromByteBuffer(byteBuffer.flip());
   }
 
-  private static AttributeValue convertDestinationDeviceIdToSortKeyPrefix(final long destinationDeviceId) {
+  static AttributeValue convertDestinationDeviceIdToSortKeyPrefix(final long destinationDeviceId) {
     ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[8]);
     byteBuffer.putLong(destinationDeviceId);
     return AttributeValues.fromByteBuffer(byteBuffer.flip());
@@ -304,7 +445,7 @@ public class MessagesScyllaDb extends AbstractScyllaDbStore {
     return new SortKey(destinationDeviceId, serverTimestamp, new UUID(mostSigBits, leastSigBits));
   }
 
-  private static AttributeValue convertLocalIndexMessageUuidSortKey(final UUID messageUuid) {
+  static AttributeValue convertLocalIndexMessageUuidSortKey(final UUID messageUuid) {
     return AttributeValues.fromUUID(messageUuid);
   }
 
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+/**
+ * Moves message storage from one layout to another without copying: new messages go to the new store, while reads
+ * and deletes look at the old store first. Everything in the old store predates everything in the new one, so
+ * messages are still returned in order, and the old store empties as devices collect their messages and the rest
+ * expire.
+ */
+public class MigratingMessageStore implements MessageStore {
+
+  private static final byte OLD_STORE_CURSOR = 0;
+  private static final byte NEW_STORE_CURSOR = 1;
+
+  private final MessageStore oldStore;
+  private final MessageStore newStore;
+
+  public MigratingMessageStore(final MessageStore oldStore, final MessageStore newStore) {
+    this.oldStore = oldStore;
+    this.newStore = newStore;
+  }
+
+  @Override
+  public void store(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
+    newStore.store(messages, destinationAccountUuid, destinationDeviceId);
+  }
+
+  /**
+   * Loads messages from the old store, then from the new one. The cursor is the cursor of the store the last message
+   * came from, marked with that store; once a page has exhausted the old store, later pages skip it.
+   */
+  @Override
+  public MessagePage load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch, @Nullable final byte[] cursor) {
+    final List<OutgoingMessageEntity> messages = new ArrayList<>();
+    byte[] nextCursor = cursor;
+
+    if (cursor == null || cursor[0] == OLD_STORE_CURSOR) {
+      final MessagePage oldPage = oldStore.load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch, unwrapCursor(cursor));
+      messages.addAll(oldPage.getMessages());
+
+      if (messages.size() >= requestedNumberOfMessagesToFetch) {
+        return new MessagePage(messages, wrapCursor(OLD_STORE_CURSOR, oldPage.getCursor()));
+      }
+
+      // nothing is added to the old store, so it stays exhausted
+      nextCursor = wrapCursor(NEW_STORE_CURSOR, null);
+    }
+
+    final MessagePage newPage = newStore.load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch - messages.size(), unwrapCursor(nextCursor));
+    messages.addAll(newPage.getMessages());
+
+    return new MessagePage(messages, wrapCursor(NEW_STORE_CURSOR, newPage.getCursor()));
+  }
+
+  private static byte[] wrapCursor(final byte store, @Nullable final byte[] cursor) {
+    final byte[] wrapped = new byte[1 + (cursor != null ? cursor.length : 0)];
+    wrapped[0] = store;
+
+    if (cursor != null) {
+      System.arraycopy(cursor, 0, wrapped, 1, cursor.length);
+    }
+
+    return wrapped;
+  }
+
+  @Nullable
+  private static byte[] unwrapCursor(@Nullable final byte[] cursor) {
+    return cursor == null || cursor.length == 1 ? null : Arrays.copyOfRange(cursor, 1, cursor.length);
+  }
+
+  @Override
+  public int getMessageCount(final UUID destinationAccountUuid, final long destinationDeviceId) {
+    return oldStore.getMessageCount(destinationAccountUuid, destinationDeviceId) + newStore.getMessageCount(destinationAccountUuid, destinationDeviceId);
+  }
+
+  @Override
+  public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndSourceAndTimestamp(final UUID destinationAccountUuid, final long destinationDeviceId, final String source, final long timestamp) {
+    final Optional<OutgoingMessageEntity> removed = oldStore.deleteMessageByDestinationAndSourceAndTimestamp(destinationAccountUuid, destinationDeviceId, source, timestamp);
+
+    return removed.isPresent() ? removed : newStore.deleteMessageByDestinationAndSourceAndTimestamp(destinationAccountUuid, destinationDeviceId, source, timestamp);
+  }
+
+  @Override
+  public Optional<OutgoingMessageEntity> deleteMessageByDestinationAndGuid(final UUID destinationAccountUuid, final long destinationDeviceId, final UUID messageUuid) {
+    final Optional<OutgoingMessageEntity> removed = oldStore.deleteMessageByDestinationAndGuid(destinationAccountUuid, destinationDeviceId, messageUuid);
+
+    return removed.isPresent() ? removed : newStore.deleteMessageByDestinationAndGuid(destinationAccountUuid, destinationDeviceId, messageUuid);
+  }
+
+  @Override
+  public void deleteAllMessagesForAccount(final UUID destinationAccountUuid) {
+    oldStore.deleteAllMessagesForAccount(destinationAccountUuid);
+    newStore.deleteAllMessagesForAccount(destinationAccountUuid);
+  }
+
+  @Override
+  public void deleteAllMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId) {
+    oldStore.deleteAllMessagesForDevice(destinationAccountUuid, destinationDeviceId);
+    newStore.deleteAllMessagesForDevice(destinationAccountUuid, destinationDeviceId);
+  }
+
+  @Override
+  public int deleteExpiredMessagesForDevice(final UUID destinationAccountUuid, final long destinationDeviceId, final Instant now, final int limit) {
+    final int deleted = oldStore.deleteExpiredMessagesForDevice(destinationAccountUuid, destinationDeviceId, now, limit);
+
+    return deleted >= limit ? deleted : deleted + newStore.deleteExpiredMessagesForDevice(destinationAccountUuid, destinationDeviceId, now, limit - deleted);
+  }
+}
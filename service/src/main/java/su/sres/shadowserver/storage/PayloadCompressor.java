@@ -0,0 +1,185 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import su.sres.shadowserver.configuration.MessageCompressionConfiguration;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses stored message payloads with raw deflate. A compressed payload starts with a zero byte followed by the
+ * length of the uncompressed payload; a serialized protobuf message never starts with a zero byte, so cached envelopes
+ * can be told apart by their first byte alone. Payloads that may start with any byte need a flag stored next to them.
+ * <p>
+ * Payloads are only compressed if they are at least the configured size and shrink by at least an eighth, so that
+ * already-encrypted content is not paid for on every read.
+ */
+public class PayloadCompressor {
+
+  public static final PayloadCompressor DISABLED = new PayloadCompressor(false, Integer.MAX_VALUE, Deflater.BEST_SPEED, "none");
+
+  private static final byte COMPRESSED_PREFIX = 0x00;
+  private static final int HEADER_LENGTH = 1 + Integer.BYTES;
+
+  @VisibleForTesting
+  static final int MAX_DECOMPRESSED_LENGTH = 16 * 1024 * 1024;
+
+  private static final String STORE_TAG = "store";
+
+  private static final Timer decompressTimer = Metrics.timer(name(PayloadCompressor.class, "decompress"));
+
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+  private final boolean enabled;
+  private final int minimumSize;
+  private final ThreadLocal<Deflater> deflater;
+
+  private final Timer compressTimer;
+  private final DistributionSummary compressionRatio;
+  private final Counter incompressibleCounter;
+
+  public PayloadCompressor(final MessageCompressionConfiguration configuration, final String store) {
+    this(configuration.isEnabled(), configuration.getMinimumSize(), configuration.getLevel(), store);
+  }
+
+  @VisibleForTesting
+  PayloadCompressor(final boolean enabled, final int minimumSize, final int level, final String store) {
+    this.enabled = enabled;
+    this.minimumSize = minimumSize;
+    this.deflater = ThreadLocal.withInitial(() -> new Deflater(level, true));
+
+    this.compressTimer = Metrics.timer(name(PayloadCompressor.class, "compress"), STORE_TAG, store);
+    this.compressionRatio = Metrics.summary(name(PayloadCompressor.class, "compressionRatio"), STORE_TAG, store);
+    this.incompressibleCounter = Metrics.counter(name(PayloadCompressor.class, "incompressible"), STORE_TAG, store);
+  }
+
+  /**
+   * @return the compressed payload, or empty if the payload should be stored as it is
+   */
+  public Optional<byte[]> compress(final byte[] payload) {
+    if (!enabled || payload.length < minimumSize) {
+      return Optional.empty();
+    }
+
+    final byte[] compressed = compressTimer.record(() -> deflate(payload));
+
+    if (compressed == null) {
+      incompressibleCounter.increment();
+      return Optional.empty();
+    }
+
+    compressionRatio.record((double) payload.length / compressed.length);
+    return Optional.of(compressed);
+  }
+
+  /**
+   * @return the compressed payload, or the payload itself if it should be stored as it is
+   */
+  public byte[] compressIfWorthwhile(final byte[] payload) {
+    return compress(payload).orElse(payload);
+  }
+
+  private byte[] deflate(final byte[] payload) {
+    final int maxLength = payload.length - payload.length / 8;
+
+    if (maxLength <= HEADER_LENGTH) {
+      return null;
+    }
+
+    final byte[] output = new byte[maxLength];
+
+    ByteBuffer.wrap(output).put(COMPRESSED_PREFIX).putInt(payload.length);
+
+    final Deflater deflater = this.deflater.get();
+
+    try {
+      deflater.setInput(payload);
+      deflater.finish();
+
+      final int compressedLength = deflater.deflate(output, HEADER_LENGTH, maxLength - HEADER_LENGTH);
+
+      return deflater.finished() ? Arrays.copyOf(output, HEADER_LENGTH + compressedLength) : null;
+    } finally {
+      deflater.reset();
+    }
+  }
+
+  public static boolean isCompressed(final byte[] payload) {
+    return payload.length > 0 && payload[0] == COMPRESSED_PREFIX;
+  }
+
+  /**
+   * @return the payload, decompressed if it is compressed
+   */
+  public static byte[] decompressIfCompressed(final byte[] payload) throws DataFormatException {
+    return isCompressed(payload) ? decompress(payload) : payload;
+  }
+
+  public static byte[] decompress(final byte[] compressed) throws DataFormatException {
+    if (compressed.length < HEADER_LENGTH || compressed[0] != COMPRESSED_PREFIX) {
+      throw new DataFormatException("Not a compressed payload");
+    }
+
+    final int length = ByteBuffer.wrap(compressed, 1, Integer.BYTES).getInt();
+
+    if (length < 0 || length > MAX_DECOMPRESSED_LENGTH) {
+      throw new DataFormatException("Bad decompressed length: " + length);
+    }
+
+    final long start = System.nanoTime();
+    final Inflater inflater = INFLATER.get();
+
+    try {
+      final byte[] payload = new byte[length];
+
+      inflater.setInput(compressed, HEADER_LENGTH, compressed.length - HEADER_LENGTH);
+
+      int inflated = 0;
+
+      while (!inflater.finished()) {
+        if (inflated == length) {
+          // the output is full; the stream must end here
+          if (inflater.inflate(new byte[1]) > 0 || !inflater.finished()) {
+            throw new DataFormatException("Compressed payload does not match its length");
+          }
+
+          break;
+        }
+
+        final int n = inflater.inflate(payload, inflated, length - inflated);
+
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("Compressed payload is truncated");
+        }
+
+        inflated += n;
+      }
+
+      if (inflated != length) {
+        throw new DataFormatException("Compressed payload is shorter than its length");
+      }
+
+      return payload;
+    } finally {
+      inflater.reset();
+      decompressTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+}
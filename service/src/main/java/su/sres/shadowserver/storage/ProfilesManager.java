@@ -11,13 +11,18 @@ import io.lettuce.core.RedisException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import su.sres.shadowserver.redis.ClusterClientSideCache;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.util.Pair;
+import su.sres.shadowserver.util.RequestCoalescer;
 import su.sres.shadowserver.util.SystemMapper;
 
 import java.io.IOException;
 import java.util.Optional;
 import java.util.UUID;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
 public class ProfilesManager {
 
     private final Logger logger = LoggerFactory.getLogger(ProfilesManager.class);
@@ -26,11 +31,19 @@ public class ProfilesManager {
 
     private final Profiles profiles;
     private final FaultTolerantRedisCluster cacheCluster;
+    private final ClusterClientSideCache clientSideCache;
     private final ObjectMapper mapper;
 
+    private final RequestCoalescer<Pair<UUID, String>, Optional<VersionedProfile>> lookups = new RequestCoalescer<>(name(ProfilesManager.class, "get"));
+
     public ProfilesManager(Profiles profiles, FaultTolerantRedisCluster cacheCluster) {
+	this(profiles, cacheCluster, ClusterClientSideCache.disabled("profiles", cacheCluster));
+    }
+
+    public ProfilesManager(Profiles profiles, FaultTolerantRedisCluster cacheCluster, ClusterClientSideCache clientSideCache) {
 	this.profiles = profiles;
 	this.cacheCluster = cacheCluster;
+	this.clientSideCache = clientSideCache;
 	this.mapper = SystemMapper.getMapper();
     }
 
@@ -45,14 +58,17 @@ public class ProfilesManager {
     }
 
     public Optional<VersionedProfile> get(UUID uuid, String version) {
-	Optional<VersionedProfile> profile = memcacheGet(uuid, version);
+	// versioned profiles are never modified once loaded, so coalesced callers can share one instance
+	return lookups.load(new Pair<>(uuid, version), () -> {
+	    Optional<VersionedProfile> profile = memcacheGet(uuid, version);
 
-	if (!profile.isPresent()) {
-	    profile = profiles.get(uuid, version);
-	    profile.ifPresent(versionedProfile -> memcacheSet(uuid, versionedProfile));
-	}
+	    if (!profile.isPresent()) {
+		profile = profiles.get(uuid, version);
+		profile.ifPresent(versionedProfile -> memcacheSet(uuid, versionedProfile));
+	    }
 
-	return profile;
+	    return profile;
+	});
     }
 
     private void memcacheSet(UUID uuid, VersionedProfile profile) {
@@ -60,29 +76,33 @@ public class ProfilesManager {
 	    final String profileJson = mapper.writeValueAsString(profile);
 
 	    cacheCluster.useCluster(connection -> connection.sync().hset(CACHE_PREFIX + uuid.toString(), profile.getVersion(), profileJson));
+	    clientSideCache.invalidate(CACHE_PREFIX + uuid.toString());
 	} catch (JsonProcessingException e) {
 	    throw new IllegalArgumentException(e);
 	}
     }
 
     private Optional<VersionedProfile> memcacheGet(UUID uuid, String version) {
-	try {
-	    final String json = cacheCluster.withCluster(connection -> connection.sync().hget(CACHE_PREFIX + uuid.toString(), version));
-
-	    if (json == null)
-		return Optional.empty();
-	    else
-		return Optional.of(mapper.readValue(json, VersionedProfile.class));
-	} catch (IOException e) {
-	    logger.warn("Error deserializing value...", e);
-	    return Optional.empty();
-	} catch (RedisException e) {
-	    logger.warn("Redis exception", e);
-	    return Optional.empty();
-	}
+	final String key = CACHE_PREFIX + uuid.toString();
+
+	// the parsed profile is cached locally, which is safe for the same reason coalescing is
+	return Optional.ofNullable(clientSideCache.get(key, version, () -> {
+	    try {
+		final String json = cacheCluster.withCluster(connection -> connection.sync().hget(key, version));
+
+		return json != null ? mapper.readValue(json, VersionedProfile.class) : null;
+	    } catch (IOException e) {
+		logger.warn("Error deserializing value...", e);
+		return null;
+	    } catch (RedisException e) {
+		logger.warn("Redis exception", e);
+		return null;
+	    }
+	}));
     }
 
     private void memcacheDelete(UUID uuid) {
 	cacheCluster.useCluster(connection -> connection.sync().del(CACHE_PREFIX + uuid.toString()));
+	clientSideCache.invalidate(CACHE_PREFIX + uuid.toString());
     }
 }
@@ -10,26 +10,34 @@ import static su.sres.shadowserver.storage.PubSubProtos.PubSubMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import io.dropwizard.lifecycle.Managed;
-import redis.clients.jedis.Jedis;
 import su.sres.dispatch.DispatchChannel;
 import su.sres.dispatch.DispatchManager;
-import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.redis.FaultTolerantRedisClient;
 
 public class PubSubManager implements Managed {
 
   private static final String KEEPALIVE_CHANNEL = "KEEPALIVE";
+  private static final long   KEEPALIVE_INTERVAL_MILLIS = 20_000;
 
   private final Logger logger = LoggerFactory.getLogger(PubSubManager.class);
 
-  private final DispatchManager     dispatchManager;
-  private final ReplicatedJedisPool jedisPool;
+  private final DispatchManager          dispatchManager;
+  private final FaultTolerantRedisClient redisClient;
+  private final ScheduledExecutorService keepaliveExecutor;
 
   private boolean subscribed = false;
 
-  public PubSubManager(ReplicatedJedisPool jedisPool, DispatchManager dispatchManager) {
-    this.dispatchManager = dispatchManager;
-    this.jedisPool       = jedisPool;
+  private ScheduledFuture<?> keepaliveFuture;
+
+  public PubSubManager(FaultTolerantRedisClient redisClient, DispatchManager dispatchManager, ScheduledExecutorService keepaliveExecutor) {
+    this.dispatchManager   = dispatchManager;
+    this.redisClient       = redisClient;
+    this.keepaliveExecutor = keepaliveExecutor;
   }
 
   @Override
@@ -43,11 +51,15 @@ public class PubSubManager implements Managed {
       while (!subscribed) wait(0);
     }
 
-    new KeepaliveSender().start();
+    keepaliveFuture = keepaliveExecutor.scheduleAtFixedRate(this::sendKeepalive, KEEPALIVE_INTERVAL_MILLIS, KEEPALIVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
   }
 
   @Override
   public void stop() throws Exception {
+    if (keepaliveFuture != null) {
+      keepaliveFuture.cancel(false);
+    }
+
     dispatchManager.shutdown();
   }
 
@@ -68,14 +80,31 @@ public class PubSubManager implements Managed {
   }
 
   private boolean publish(byte[] channel, PubSubMessage message) {
-    try (Jedis jedis = jedisPool.getWriteResource()) {
-      long result = jedis.publish(channel, message.toByteArray());
+    long result = redisClient.withBinaryClient(connection -> connection.sync().publish(channel, message.toByteArray()));
 
-      if (result < 0) {
-        logger.warn("**** Jedis publish result < 0");
-      }
+    if (result < 0) {
+      logger.warn("**** Redis publish result < 0");
+    }
+
+    return result > 0;
+  }
 
-      return result > 0;
+  private void sendKeepalive() {
+    final byte[] keepalive = PubSubMessage.newBuilder()
+                                          .setType(PubSubMessage.Type.KEEPALIVE)
+                                          .build()
+                                          .toByteArray();
+
+    // nobody waits for the keepalive, so don't hold the executor thread while it's in flight
+    try {
+      redisClient.useBinaryClient(connection -> connection.async().publish(KEEPALIVE_CHANNEL.getBytes(), keepalive)
+          .whenComplete((ignored, throwable) -> {
+            if (throwable != null) {
+              logger.warn("***** KEEPALIVE EXCEPTION ******", throwable);
+            }
+          }));
+    } catch (Throwable e) {
+      logger.warn("***** KEEPALIVE EXCEPTION ******", e);
     }
   }
 
@@ -101,20 +130,4 @@ public class PubSubManager implements Managed {
       logger.warn("***** KEEPALIVE CHANNEL UNSUBSCRIBED *****");
     }
   }
-
-  private class KeepaliveSender extends Thread {
-    @Override
-    public void run() {
-      while (true) {
-        try {
-          Thread.sleep(20000);
-          publish(KEEPALIVE_CHANNEL.getBytes(), PubSubMessage.newBuilder()
-                                                             .setType(PubSubMessage.Type.KEEPALIVE)
-                                                             .build());
-        } catch (Throwable e) {
-          logger.warn("***** KEEPALIVE EXCEPTION ******", e);
-        }
-      }
-    }
-  }
 }
@@ -0,0 +1,118 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import su.sres.shadowserver.util.Constants;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Samples the depth and age of device message queues as the account crawler passes over them. Crawled accounts come
+ * in UUID order, which is random, so the first devices of each chunk are a fair sample of all devices; only those are
+ * measured, which bounds the extra load per chunk.
+ */
+public class QueueDepthSampler extends AccountDatabaseCrawlerListener {
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Histogram queueDepthHistogram = metricRegistry.histogram(name(QueueDepthSampler.class, "queueDepth"));
+  private static final Histogram queueAgeHistogram = metricRegistry.histogram(name(QueueDepthSampler.class, "queueAgeSeconds"));
+  private static final Meter staleQueueMeter = metricRegistry.meter(name(QueueDepthSampler.class, "staleQueue"));
+  private static final Meter sampleFailureMeter = metricRegistry.meter(name(QueueDepthSampler.class, "sampleFailure"));
+
+  @VisibleForTesting
+  static final int MAX_SAMPLES_PER_CHUNK = 50;
+
+  // a queue counts as stale once its oldest message has used up this fraction of the message time to live, which leaves
+  // most of the time to live to find out why the device is not collecting before its messages start to expire
+  @VisibleForTesting
+  static final int STALE_QUEUE_TTL_DIVISOR = 4;
+
+  private final MessagesManager messagesManager;
+  private final Duration staleQueueAge;
+  private final Clock clock;
+
+  private static final Logger logger = LoggerFactory.getLogger(QueueDepthSampler.class);
+
+  public QueueDepthSampler(final MessagesManager messagesManager, final Duration messageTimeToLive) {
+    this(messagesManager, messageTimeToLive, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  QueueDepthSampler(final MessagesManager messagesManager, final Duration messageTimeToLive, final Clock clock) {
+    this.messagesManager = messagesManager;
+    this.staleQueueAge = messageTimeToLive.dividedBy(STALE_QUEUE_TTL_DIVISOR);
+    this.clock = clock;
+  }
+
+  @Override
+  public void onCrawlStart() {
+  }
+
+  @Override
+  public void onCrawlEnd(final Optional<UUID> fromUuid) {
+  }
+
+  @Override
+  protected void onCrawlChunk(final Optional<UUID> fromUuid, final List<Account> chunkAccounts) {
+    int remainingSamples = MAX_SAMPLES_PER_CHUNK;
+
+    accounts:
+    for (final Account account : chunkAccounts) {
+      for (final Device device : account.getDevices()) {
+        if (remainingSamples-- <= 0) {
+          break accounts;
+        }
+
+        try {
+          sample(account.getUuid(), device.getId());
+        } catch (final RuntimeException e) {
+          sampleFailureMeter.mark();
+          logger.warn("Failed to sample queue for {}::{}", account.getUuid(), device.getId(), e);
+        }
+      }
+    }
+  }
+
+  @VisibleForTesting
+  Duration getStaleQueueAge() {
+    return staleQueueAge;
+  }
+
+  private void sample(final UUID accountUuid, final long deviceId) {
+    final long depth = messagesManager.getQueueDepth(accountUuid, deviceId);
+    queueDepthHistogram.update(depth);
+
+    if (depth == 0) {
+      return;
+    }
+
+    final Optional<Long> maybeOldestTimestamp = messagesManager.getOldestMessageTimestamp(accountUuid, deviceId);
+
+    if (maybeOldestTimestamp.isPresent()) {
+      final Duration age = Duration.ofMillis(Math.max(0, clock.millis() - maybeOldestTimestamp.get()));
+      queueAgeHistogram.update(age.toSeconds());
+
+      if (age.compareTo(staleQueueAge) >= 0) {
+        staleQueueMeter.mark();
+        logger.debug("Queue for {}::{} holds {} messages, the oldest {} old", accountUuid, deviceId, depth, age);
+      }
+    }
+  }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+/**
+ * What {@link MessagePersister} persists first: it applies to the choice of the next slot to persist among its
+ * neighbours, and to the order of the queues taken from a slot at once.
+ */
+public enum QueuePersistencePriority {
+
+  /**
+   * Slots and queues are persisted in the order their oldest messages arrived, and queues that were spilled for their
+   * size before all others.
+   */
+  OLDEST_FIRST,
+
+  /**
+   * Slots and queues holding the most messages, and so taking up the most memory in the message cache, are persisted
+   * first. A slot's size is estimated from its first few ready queues.
+   */
+  LARGEST_FIRST
+}
@@ -9,10 +9,20 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Suppliers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import su.sres.shadowserver.util.Constants;
+import su.sres.shadowserver.util.Pair;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -24,14 +34,34 @@ public class ReservedUsernames {
 
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Timer          queryTimer     = metricRegistry.timer(name(ReservedUsernames.class, "query"));
+  private final Timer          loadTimer      = metricRegistry.timer(name(ReservedUsernames.class, "load"));
+
+  private static final long RESERVATIONS_CACHE_TTL_SECONDS = 60;
+
+  private static final Logger logger = LoggerFactory.getLogger(ReservedUsernames.class);
 
   private final FaultTolerantDatabase database;
 
+  private volatile Supplier<Reservations> reservations;
+
   public ReservedUsernames(FaultTolerantDatabase database) {
     this.database = database;
+    this.reservations = newReservationsSupplier();
   }
 
   public boolean isReserved(String username, UUID uuid) {
+    Reservations loaded = reservations.get();
+
+    for (Reservation reservation : loaded.local) {
+      if (!reservation.uuid.equals(uuid) && reservation.pattern.matcher(username).find()) {
+        return true;
+      }
+    }
+
+    return loaded.databaseOnly && isReservedInDatabase(username, uuid);
+  }
+
+  private boolean isReservedInDatabase(String username, UUID uuid) {
     return database.with(jdbi -> jdbi.withHandle(handle -> {
       try (Timer.Context ignored = queryTimer.time()) {
         Optional<Integer> reservations = handle.createQuery("SELECT COUNT(*) FROM reserved_usernames WHERE " + UID + " != :uuid AND :username ~* " + USERNAME)
@@ -53,6 +83,179 @@ public class ReservedUsernames {
             .bind("uuid", reservedFor)
             .execute();
     }));
+
+    reservations = newReservationsSupplier();
+  }
+
+  private Supplier<Reservations> newReservationsSupplier() {
+    return Suppliers.memoizeWithExpiration(this::loadReservations, RESERVATIONS_CACHE_TTL_SECONDS, TimeUnit.SECONDS)::get;
+  }
+
+  /**
+   * Loads all reservations, compiling those whose pattern {@link Pattern} reads the
+   * same way as the database's {@code ~*} operator. Any other pattern is left to the
+   * database's own regular expression engine.
+   */
+  private Reservations loadReservations() {
+    List<Reservation> local = new ArrayList<>();
+    boolean databaseOnly = false;
+
+    try (Timer.Context ignored = loadTimer.time()) {
+      for (Pair<String, UUID> row : database.with(jdbi -> jdbi.withHandle(handle ->
+          handle.createQuery("SELECT " + USERNAME + ", " + UID + " FROM reserved_usernames")
+                .map((resultSet, ctx) -> new Pair<>(resultSet.getString(USERNAME), UUID.fromString(resultSet.getString(UID))))
+                .list()))) {
+
+        Optional<Pattern> pattern = compileIfPortable(row.first());
+
+        if (pattern.isPresent()) {
+          local.add(new Reservation(pattern.get(), row.second()));
+        } else {
+          databaseOnly = true;
+        }
+      }
+    }
+
+    return new Reservations(local, databaseOnly);
+  }
+
+  private static Optional<Pattern> compileIfPortable(String pattern) {
+    if (!isPortable(pattern)) {
+      return Optional.empty();
+    }
+
+    try {
+      return Optional.of(Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+    } catch (PatternSyntaxException e) {
+      logger.warn("Reserved username pattern can't be evaluated locally; falling back to database checks", e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Whether a pattern only uses syntax that java.util.regex and Postgres' advanced
+   * regular expressions read the same way: literal characters, escaped punctuation,
+   * ".", anchors, alternation, plain groups, bracket expressions of literal characters
+   * and ranges, and greedy quantifiers. POSIX classes, escapes such as {@code \m} or
+   * {@code \d}, embedded options and lazy or possessive quantifiers are all excluded.
+   */
+  @VisibleForTesting
+  static boolean isPortable(String pattern) {
+    boolean quantifiable = false;
+
+    for (int i = 0; i < pattern.length(); i++) {
+      final char c = pattern.charAt(i);
+
+      switch (c) {
+        case '\\':
+          if (i + 1 == pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+            return false;
+          }
+
+          i++;
+          quantifiable = true;
+          break;
+
+        case '[':
+          int end = i + 1;
+
+          if (end < pattern.length() && pattern.charAt(end) == '^') {
+            end++;
+          }
+
+          // a leading ']' is a literal in one dialect and closes the expression in the other
+          if (end < pattern.length() && pattern.charAt(end) == ']') {
+            return false;
+          }
+
+          while (end < pattern.length() && pattern.charAt(end) != ']') {
+            final char member = pattern.charAt(end);
+
+            if (member == '[' || member == '\\' || (member == '&' && end + 1 < pattern.length() && pattern.charAt(end + 1) == '&')) {
+              return false;
+            }
+
+            end++;
+          }
+
+          if (end == pattern.length()) {
+            return false;
+          }
+
+          i = end;
+          quantifiable = true;
+          break;
+
+        case '(':
+          if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '?') {
+            return false;
+          }
+
+          quantifiable = false;
+          break;
+
+        case '{':
+          final int close = pattern.indexOf('}', i);
+
+          if (!quantifiable || close < 0 || !pattern.substring(i + 1, close).matches("[0-9]+(,[0-9]*)?")) {
+            return false;
+          }
+
+          i = close;
+          quantifiable = false;
+          break;
+
+        case '*':
+        case '+':
+        case '?':
+          if (!quantifiable) {
+            return false;
+          }
+
+          quantifiable = false;
+          break;
+
+        case '}':
+          return false;
+
+        case ')':
+          quantifiable = true;
+          break;
+
+        case '|':
+        case '^':
+        case '$':
+          quantifiable = false;
+          break;
+
+        default:
+          quantifiable = true;
+      }
+    }
+
+    return true;
+  }
+
+  private static class Reservations {
+    private final List<Reservation> local;
+
+    // whether some patterns can only be evaluated by the database
+    private final boolean databaseOnly;
+
+    private Reservations(List<Reservation> local, boolean databaseOnly) {
+      this.local        = local;
+      this.databaseOnly = databaseOnly;
+    }
+  }
+
+  private static class Reservation {
+    private final Pattern pattern;
+    private final UUID    uuid;
+
+    private Reservation(Pattern pattern, UUID uuid) {
+      this.pattern = pattern;
+      this.uuid    = uuid;
+    }
   }
 
 }
\ No newline at end of file
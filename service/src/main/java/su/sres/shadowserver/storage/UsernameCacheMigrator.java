@@ -0,0 +1,106 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Removes username mappings cached in layouts that are no longer read: the
+ * per-key UsernameByUuid::/UsernameByUsername:: entries, which never expire,
+ * the untagged Usernames::byUuid::/Usernames::byUsername:: entries, and the
+ * two hashes that briefly replaced them. The keyspace is scanned for each
+ * pattern in turn, one step per crawled chunk, so that the cleanup never holds
+ * up the crawl; once every pattern has had a full pass, a marker key stops
+ * later crawls from scanning again.
+ */
+public class UsernameCacheMigrator extends AccountDatabaseCrawlerListener {
+
+  private static final Counter REMOVED_COUNTER = Metrics.counter(name(UsernameCacheMigrator.class, "removed"));
+
+  // neither matches the current Usernames::{usernames}:: keys
+  static final String[] LEGACY_KEY_PATTERNS = { "UsernameBy*", "Usernames::by*" };
+  static final String[] LEGACY_HASH_KEYS = { "Usernames::{usernames}::byUuid", "Usernames::{usernames}::byUsername" };
+  static final String MIGRATION_COMPLETE_KEY = "Usernames::legacyMappingsRemoved";
+
+  private static final int SCAN_COUNT = 1000;
+
+  private static final Logger logger = LoggerFactory.getLogger(UsernameCacheMigrator.class);
+
+  private final FaultTolerantRedisCluster cacheCluster;
+
+  private int patternIndex = 0;
+  private ScanCursor cursor = ScanCursor.INITIAL;
+  private boolean complete = false;
+
+  public UsernameCacheMigrator(final FaultTolerantRedisCluster cacheCluster) {
+    this.cacheCluster = cacheCluster;
+  }
+
+  @Override
+  public void onCrawlStart() {
+    try {
+      // servers still running the previous release may recreate the hashes, so they're dropped on every crawl
+      cacheCluster.useCluster(connection -> connection.sync().unlink(LEGACY_HASH_KEYS));
+      complete = cacheCluster.withCluster(connection -> connection.sync().exists(MIGRATION_COMPLETE_KEY)) > 0;
+    } catch (final RedisException e) {
+      logger.warn("Failed to remove legacy username hashes", e);
+    }
+  }
+
+  @Override
+  public void onCrawlEnd(Optional<UUID> fromUuid) {
+
+  }
+
+  @Override
+  protected void onCrawlChunk(Optional<UUID> fromUuid, List<Account> chunkAccounts) {
+    if (complete) {
+      return;
+    }
+
+    try {
+      final KeyScanCursor<String> result = cacheCluster.withCluster(connection ->
+          connection.sync().scan(cursor, ScanArgs.Builder.matches(LEGACY_KEY_PATTERNS[patternIndex]).limit(SCAN_COUNT)));
+
+      if (!result.getKeys().isEmpty()) {
+        cacheCluster.useCluster(connection -> connection.sync().unlink(result.getKeys().toArray(new String[0])));
+        REMOVED_COUNTER.increment(result.getKeys().size());
+      }
+
+      if (result.isFinished()) {
+        cursor = ScanCursor.INITIAL;
+
+        if (++patternIndex == LEGACY_KEY_PATTERNS.length) {
+          cacheCluster.useCluster(connection -> connection.sync().set(MIGRATION_COMPLETE_KEY, "1"));
+          complete = true;
+          patternIndex = 0;
+        }
+      } else {
+        cursor = result;
+      }
+    } catch (final RedisException e) {
+      // a cursor may not survive a topology change, so the next attempt starts over
+      logger.warn("Failed to scan for legacy username mappings", e);
+      cursor = ScanCursor.INITIAL;
+    }
+  }
+}
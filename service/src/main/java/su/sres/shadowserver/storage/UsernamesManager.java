@@ -9,15 +9,18 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import io.lettuce.core.RedisException;
-
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.ScriptOutputType;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import su.sres.shadowserver.redis.ClusterLuaScript;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.util.Constants;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -34,17 +37,30 @@ public class UsernamesManager {
     private static final Timer redisSetTimer = metricRegistry.timer(name(UsernamesManager.class, "redisSet"));
     private static final Timer redisUuidGetTimer = metricRegistry.timer(name(UsernamesManager.class, "redisUuidGet"));
     private static final Timer redisUsernameGetTimer = metricRegistry.timer(name(UsernamesManager.class, "redisUsernameGet"));
+    private static final Timer redisDeleteTimer = metricRegistry.timer(name(UsernamesManager.class, "redisDelete"));
+
+    // Both directions of every mapping share a hash tag, so a set, change or clear is a
+    // single script call that can't leave either direction dangling; each entry is a key
+    // of its own with a TTL, so the cache stays bounded by the usernames in use
+    static final String USERNAME_BY_UUID_KEY_PREFIX = "Usernames::{usernames}::byUuid::";
+    static final String UUID_BY_USERNAME_KEY_PREFIX = "Usernames::{usernames}::byUsername::";
+
+    static final long MAPPING_TTL_SECONDS = Duration.ofDays(7).toSeconds();
 
     private final Logger logger = LoggerFactory.getLogger(UsernamesManager.class);
 
     private final Usernames usernames;
     private final ReservedUsernames reservedUsernames;
     private final FaultTolerantRedisCluster cacheCluster;
+    private final ClusterLuaScript setUsernameScript;
+    private final ClusterLuaScript clearUsernameScript;
 
-    public UsernamesManager(Usernames usernames, ReservedUsernames reservedUsernames, FaultTolerantRedisCluster cacheCluster) {
+    public UsernamesManager(Usernames usernames, ReservedUsernames reservedUsernames, FaultTolerantRedisCluster cacheCluster) throws IOException {
 	this.usernames = usernames;
 	this.reservedUsernames = reservedUsernames;
 	this.cacheCluster = cacheCluster;
+	this.setUsernameScript = ClusterLuaScript.fromResource(cacheCluster, "lua/usernames/set.lua", ScriptOutputType.INTEGER);
+	this.clearUsernameScript = ClusterLuaScript.fromResource(cacheCluster, "lua/usernames/clear.lua", ScriptOutputType.INTEGER);
     }
 
     public boolean put(UUID uuid, String username) {
@@ -116,20 +132,9 @@ public class UsernamesManager {
     }
 
     private void redisSet(UUID uuid, String username, boolean required) {
-	final String uuidMapKey = getUuidMapKey(uuid);
-	final String usernameMapKey = getUsernameMapKey(username);
-
 	try (Timer.Context ignored = redisSetTimer.time()) {
-
-	    cacheCluster.useCluster(connection -> {
-		final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
-		final Optional<String> maybeOldUsername = Optional.ofNullable(commands.get(uuidMapKey));
-
-		maybeOldUsername.ifPresent(oldUsername -> commands.del(getUsernameMapKey(oldUsername)));
-		commands.set(uuidMapKey, username);
-		commands.set(usernameMapKey, uuid.toString());
-	    });
-
+	    setUsernameScript.execute(List.of(getUsernameByUuidKey(uuid), getUuidByUsernameKey(username)),
+		    List.of(uuid.toString(), username, String.valueOf(MAPPING_TTL_SECONDS), USERNAME_BY_UUID_KEY_PREFIX, UUID_BY_USERNAME_KEY_PREFIX));
 	} catch (RedisException e) {
 	    if (required)
 		throw e;
@@ -140,7 +145,7 @@ public class UsernamesManager {
 
     private Optional<UUID> redisGet(String username) {
 	try (Timer.Context ignored = redisUsernameGetTimer.time()) {
-	    final String result = cacheCluster.withCluster(connection -> connection.sync().get(getUsernameMapKey(username)));
+	    final String result = cacheCluster.withCluster(connection -> connection.sync().get(getUuidByUsernameKey(username)));
 
 	    if (result == null)
 		return Optional.empty();
@@ -154,7 +159,7 @@ public class UsernamesManager {
 
     private Optional<String> redisGet(UUID uuid) {
 	try (Timer.Context ignored = redisUuidGetTimer.time()) {
-	    final String result = cacheCluster.withCluster(connection -> connection.sync().get(getUuidMapKey(uuid)));
+	    final String result = cacheCluster.withCluster(connection -> connection.sync().get(getUsernameByUuidKey(uuid)));
 	    return Optional.ofNullable(result);
 	} catch (RedisException e) {
 	    logger.warn("Redis get failure", e);
@@ -163,25 +168,16 @@ public class UsernamesManager {
     }
 
     private void redisDelete(UUID uuid) {
-	try (Timer.Context ignored = redisUuidGetTimer.time()) {
-	    cacheCluster.useCluster(connection -> {
-		final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
-
-		commands.del(getUuidMapKey(uuid));
-
-		redisGet(uuid).ifPresent(username -> {
-		    commands.del(getUsernameMapKey(username));
-		});
-	    });
+	try (Timer.Context ignored = redisDeleteTimer.time()) {
+	    clearUsernameScript.execute(List.of(getUsernameByUuidKey(uuid)), List.of(uuid.toString(), UUID_BY_USERNAME_KEY_PREFIX));
 	}
     }
 
-    private String getUuidMapKey(UUID uuid) {
-	return "UsernameByUuid::" + uuid.toString();
+    static String getUsernameByUuidKey(UUID uuid) {
+	return USERNAME_BY_UUID_KEY_PREFIX + uuid;
     }
 
-    private String getUsernameMapKey(String username) {
-	return "UsernameByUsername::" + username;
+    static String getUuidByUsernameKey(String username) {
+	return UUID_BY_USERNAME_KEY_PREFIX + username;
     }
-
-}
\ No newline at end of file
+}
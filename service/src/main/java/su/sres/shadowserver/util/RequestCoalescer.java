@@ -0,0 +1,78 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Coalesces concurrent loads of the same key: while a load for a key is in
+ * flight, further callers for that key wait for its result instead of starting
+ * a load of their own. Nothing is cached once the load completes.
+ * <p>
+ * All callers receive the same value, so values must either be immutable or be
+ * copied by the caller before being modified.
+ */
+public class RequestCoalescer<K, V> {
+
+  private static final String LOOKUP_COUNTER_NAME = name(RequestCoalescer.class, "lookup");
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  private final Counter loadedCounter;
+  private final Counter coalescedCounter;
+
+  public RequestCoalescer(final String name) {
+    this.loadedCounter = Metrics.counter(LOOKUP_COUNTER_NAME, "name", name, "coalesced", "false");
+    this.coalescedCounter = Metrics.counter(LOOKUP_COUNTER_NAME, "name", name, "coalesced", "true");
+  }
+
+  public V load(final K key, final Supplier<V> loader) {
+    final CompletableFuture<V> future = new CompletableFuture<>();
+    final CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+
+    if (existing != null) {
+      coalescedCounter.increment();
+      return join(existing);
+    }
+
+    loadedCounter.increment();
+
+    try {
+      final V value = loader.get();
+      future.complete(value);
+
+      return value;
+    } catch (final RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  private V join(final CompletableFuture<V> future) {
+    try {
+      return future.join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      } else if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+
+      throw e;
+    }
+  }
+}
@@ -9,19 +9,34 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 public class SystemMapper {
 
   private static final ObjectMapper mapper = new ObjectMapper();
+  private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
 
   static {
-    mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
-    mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
-    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    configure(mapper);
+    configure(smileMapper);
+  }
+
+  private static void configure(final ObjectMapper objectMapper) {
+    objectMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+    objectMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+    objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
   }
 
   public static ObjectMapper getMapper() {
     return mapper;
   }
 
+  /**
+   * @return a mapper with the same field visibility rules as {@link #getMapper()}
+   *         that reads and writes the binary Smile format
+   */
+  public static ObjectMapper getSmileMapper() {
+    return smileMapper;
+  }
+
 }
@@ -10,6 +10,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 
+import su.sres.shadowserver.configuration.MessageDeliveryConfiguration;
 import su.sres.shadowserver.push.ApnFallbackManager;
 import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.push.MessageSender;
@@ -45,18 +46,30 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
   private final ApnFallbackManager apnFallbackManager;
   private final ClientPresenceManager clientPresenceManager;
   private final ScheduledExecutorService retrySchedulingExecutor;
+  private final MessageDeliveryConfiguration messageDeliveryConfiguration;
 
   public AuthenticatedConnectListener(ReceiptSender receiptSender,
       MessagesManager messagesManager,
       final MessageSender messageSender, ApnFallbackManager apnFallbackManager,
       ClientPresenceManager clientPresenceManager,
       ScheduledExecutorService retrySchedulingExecutor) {
+    this(receiptSender, messagesManager, messageSender, apnFallbackManager, clientPresenceManager, retrySchedulingExecutor,
+        new MessageDeliveryConfiguration());
+  }
+
+  public AuthenticatedConnectListener(ReceiptSender receiptSender,
+      MessagesManager messagesManager,
+      final MessageSender messageSender, ApnFallbackManager apnFallbackManager,
+      ClientPresenceManager clientPresenceManager,
+      ScheduledExecutorService retrySchedulingExecutor,
+      MessageDeliveryConfiguration messageDeliveryConfiguration) {
     this.receiptSender = receiptSender;
     this.messagesManager = messagesManager;
     this.messageSender = messageSender;
     this.apnFallbackManager = apnFallbackManager;
     this.clientPresenceManager = clientPresenceManager;
     this.retrySchedulingExecutor = retrySchedulingExecutor;
+    this.messageDeliveryConfiguration = messageDeliveryConfiguration;
   }
 
   @Override
@@ -68,7 +81,8 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
       final WebSocketConnection connection = new WebSocketConnection(receiptSender,
           messagesManager, account, device,
           context.getClient(),
-          retrySchedulingExecutor);
+          retrySchedulingExecutor,
+          messageDeliveryConfiguration.getMaxPagesInFlight());
 
       openWebsocketCounter.inc();
       try {
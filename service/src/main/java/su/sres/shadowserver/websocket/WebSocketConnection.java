@@ -11,9 +11,11 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
+import su.sres.shadowserver.configuration.MessageDeliveryConfiguration;
 import su.sres.shadowserver.controllers.MessageController;
 import su.sres.shadowserver.controllers.NoSuchUserException;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
@@ -25,6 +27,7 @@ import su.sres.shadowserver.push.ReceiptSender;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.Device;
 import su.sres.shadowserver.storage.MessageAvailabilityListener;
+import su.sres.shadowserver.storage.MessageCursor;
 import su.sres.shadowserver.storage.MessagesManager;
 import su.sres.shadowserver.util.Constants;
 import su.sres.shadowserver.util.TimestampHeaderUtil;
@@ -45,9 +48,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
@@ -60,6 +65,8 @@ import java.util.concurrent.atomic.LongAdder;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static su.sres.shadowserver.entities.MessageProtos.Envelope;
+import static su.sres.shadowserver.entities.MessageProtos.EnvelopeBatch;
+import static su.sres.shadowserver.entities.MessageProtos.EnvelopeBatchAck;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public class WebSocketConnection implements MessageAvailabilityListener, DisplacedPresenceListener {
@@ -74,6 +81,9 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private static final Meter bytesSentMeter = metricRegistry.meter(name(WebSocketConnection.class, "bytes_sent"));
   private static final Meter sendFailuresMeter = metricRegistry.meter(name(WebSocketConnection.class, "send_failures"));
   private static final Meter discardedMessagesMeter = metricRegistry.meter(name(WebSocketConnection.class, "discardedMessages"));
+  private static final Meter sendBatchMeter = metricRegistry.meter(name(WebSocketConnection.class, "send_batch"));
+  private static final Meter unacknowledgedBatchMessagesMeter = metricRegistry.meter(name(WebSocketConnection.class, "unacknowledgedBatchMessages"));
+  private static final Meter malformedBatchAckMeter = metricRegistry.meter(name(WebSocketConnection.class, "malformedBatchAck"));
 
   private static final String INITIAL_QUEUE_LENGTH_DISTRIBUTION_NAME = name(WebSocketConnection.class, "initialQueueLength");
   private static final String INITIAL_QUEUE_DRAIN_TIMER_NAME = name(WebSocketConnection.class, "drainInitialQueue");
@@ -85,6 +95,23 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
 
   private static final long SLOW_DRAIN_THRESHOLD = 10_000;
 
+  /**
+   * Clients that send this header with a value of "true" when connecting receive their stored messages as
+   * {@link EnvelopeBatch} requests to {@link #MESSAGE_BATCH_PATH}, and answer each with an {@link EnvelopeBatchAck}
+   * listing the envelopes they have processed.
+   */
+  @VisibleForTesting
+  static final String BATCH_DELIVERY_HEADER = "X-Signal-Envelope-Batches";
+
+  @VisibleForTesting
+  static final String MESSAGE_BATCH_PATH = "/api/v1/message/batch";
+
+  @VisibleForTesting
+  static final int MAX_BATCH_ENVELOPES = 100;
+
+  @VisibleForTesting
+  static final int MAX_BATCH_BYTES = 256 * 1024;
+
   @VisibleForTesting
   static final int MAX_DESKTOP_MESSAGE_SIZE = 1024 * 1024;
 
@@ -105,6 +132,8 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private final ScheduledExecutorService retrySchedulingExecutor;
 
   private final boolean isDesktopClient;
+  private final boolean batchDeliverySupported;
+  private final int maxPagesInFlight;
 
   private final Semaphore processStoredMessagesSemaphore = new Semaphore(1);
   private final AtomicReference<StoredMessageState> storedMessageState = new AtomicReference<>(StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE);
@@ -128,12 +157,24 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       Device device,
       WebSocketClient client,
       ScheduledExecutorService retrySchedulingExecutor) {
+    this(receiptSender, messagesManager, account, device, client, retrySchedulingExecutor,
+        new MessageDeliveryConfiguration().getMaxPagesInFlight());
+  }
+
+  public WebSocketConnection(ReceiptSender receiptSender,
+      MessagesManager messagesManager,
+      Account account,
+      Device device,
+      WebSocketClient client,
+      ScheduledExecutorService retrySchedulingExecutor,
+      int maxPagesInFlight) {
     this.receiptSender = receiptSender;
     this.messagesManager = messagesManager;
     this.account = account;
     this.device = device;
     this.client = client;
     this.retrySchedulingExecutor = retrySchedulingExecutor;
+    this.maxPagesInFlight = maxPagesInFlight;
 
     Optional<ClientPlatform> maybePlatform;
 
@@ -144,6 +185,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
 
     this.isDesktopClient = maybePlatform.map(platform -> platform == ClientPlatform.DESKTOP).orElse(false);
+    this.batchDeliverySupported = "true".equalsIgnoreCase(client.getUpgradeRequestHeader(BATCH_DELIVERY_HEADER));
   }
 
   public void start() {
@@ -173,24 +215,53 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     return client.sendRequest("PUT", "/api/v1/message", List.of("X-Signal-Key: false", TimestampHeaderUtil.getTimestampHeader()), body).whenComplete((response, throwable) -> {
       if (throwable == null) {
         if (isSuccessResponse(response)) {
-          if (storedMessageInfo.isPresent()) {
-            messagesManager.delete(account.getUuid(), device.getId(), storedMessageInfo.get().getGuid());
-          }
-
-          if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
-            recordMessageDeliveryDuration(message.getTimestamp(), device);
-            sendDeliveryReceiptFor(message);
-          }
+          handleDelivered(message, storedMessageInfo);
         } else {
-          final List<Tag> tags = new ArrayList<>(List.of(Tag.of(STATUS_CODE_TAG, String.valueOf(response.getStatus())),
-              UserAgentTagUtil.getPlatformTag(client.getUserAgent())));
+          recordNonSuccessResponse(response);
+        }
+      } else {
+        sendFailuresMeter.mark();
+      }
+    });
+  }
 
-// TODO Remove this once we've identified the cause of message rejections from desktop clients
-          if (StringUtils.isNotBlank(response.getMessage())) {
-            tags.add(Tag.of(STATUS_MESSAGE_TAG, response.getMessage()));
+  /**
+   * Sends stored messages in a single request. Envelopes the client does not list as processed in its acknowledgement
+   * are treated like messages the client rejected: they stay in the queue.
+   */
+  private CompletableFuture<WebSocketResponseMessage> sendMessageBatch(final List<Envelope> envelopes, final List<UUID> guids) {
+    final byte[] body = EnvelopeBatch.newBuilder().addAllEnvelopes(envelopes).build().toByteArray();
+
+    sendBatchMeter.mark();
+    sendMessageMeter.mark(envelopes.size());
+    sentMessageCounter.add(envelopes.size());
+    bytesSentMeter.mark(body.length);
+
+    return client.sendRequest("PUT", MESSAGE_BATCH_PATH, List.of(TimestampHeaderUtil.getTimestampHeader()), Optional.of(body)).whenComplete((response, throwable) -> {
+      if (throwable == null) {
+        if (isSuccessResponse(response)) {
+          final boolean[] processed = new boolean[envelopes.size()];
+
+          try {
+            final EnvelopeBatchAck ack = EnvelopeBatchAck.parseFrom(response.getBody().orElse(new byte[0]));
+
+            for (final int index : ack.getProcessedList()) {
+              if (index >= 0 && index < envelopes.size() && !processed[index]) {
+                processed[index] = true;
+                handleDelivered(envelopes.get(index), Optional.of(new StoredMessageInfo(guids.get(index))));
+              }
+            }
+          } catch (final InvalidProtocolBufferException e) {
+            malformedBatchAckMeter.mark();
           }
 
-          Metrics.counter(NON_SUCCESS_RESPONSE_COUNTER_NAME, tags).increment();
+          for (final boolean wasProcessed : processed) {
+            if (!wasProcessed) {
+              unacknowledgedBatchMessagesMeter.mark();
+            }
+          }
+        } else {
+          recordNonSuccessResponse(response);
         }
       } else {
         sendFailuresMeter.mark();
@@ -198,6 +269,29 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     });
   }
 
+  private void handleDelivered(final Envelope message, final Optional<StoredMessageInfo> storedMessageInfo) {
+    if (storedMessageInfo.isPresent()) {
+      messagesManager.delete(account.getUuid(), device.getId(), storedMessageInfo.get().getGuid());
+    }
+
+    if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
+      recordMessageDeliveryDuration(message.getTimestamp(), device);
+      sendDeliveryReceiptFor(message);
+    }
+  }
+
+  private void recordNonSuccessResponse(final WebSocketResponseMessage response) {
+    final List<Tag> tags = new ArrayList<>(List.of(Tag.of(STATUS_CODE_TAG, String.valueOf(response.getStatus())),
+        UserAgentTagUtil.getPlatformTag(client.getUserAgent())));
+
+// TODO Remove this once we've identified the cause of message rejections from desktop clients
+    if (StringUtils.isNotBlank(response.getMessage())) {
+      tags.add(Tag.of(STATUS_MESSAGE_TAG, response.getMessage()));
+    }
+
+    Metrics.counter(NON_SUCCESS_RESPONSE_COUNTER_NAME, tags).increment();
+  }
+
   public static void recordMessageDeliveryDuration(long timestamp, Device messageDestinationDevice) {
     final long messageDeliveryDuration = System.currentTimeMillis() - timestamp;
     messageTime.update(messageDeliveryDuration);
@@ -236,7 +330,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       final StoredMessageState state = storedMessageState.getAndSet(StoredMessageState.EMPTY);
       final CompletableFuture<Void> queueClearedFuture = new CompletableFuture<>();
 
-      sendNextMessagePage(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture);
+      sendNextMessagePage(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture, new PagesInFlight());
 
       queueClearedFuture.whenComplete((v, cause) -> {
         if (cause == null) {
@@ -278,68 +372,178 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
   }
 
-  private void sendNextMessagePage(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture) {
+  private void sendNextMessagePage(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture, final PagesInFlight pagesInFlight) {
+    if (queueClearedFuture.isDone()) {
+      // an earlier page failed; the retry will pick up from wherever that left the queue
+      return;
+    }
+
     try {
       final OutgoingMessageEntityList messages = messagesManager
-          .getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), cachedMessagesOnly);
+          .getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), cachedMessagesOnly, pagesInFlight.getCursor());
 
       final CompletableFuture<?>[] sendFutures = new CompletableFuture[messages.getMessages().size()];
+      final CompletableFuture<Void> allSentFuture = new CompletableFuture<>();
+      final CompletableFuture<Void> pageAcknowledgedFuture = allSentFuture.thenCompose(ignored -> CompletableFuture.allOf(sendFutures));
 
-      for (int i = 0; i < messages.getMessages().size(); i++) {
-        final OutgoingMessageEntity message = messages.getMessages().get(i);
-        final Envelope.Builder builder = Envelope.newBuilder()
-            .setType(Envelope.Type.valueOf(message.getType()))
-            .setTimestamp(message.getTimestamp())
-            .setServerTimestamp(message.getServerTimestamp());
-
-        if (!Util.isEmpty(message.getSource())) {
-          builder.setSource(message.getSource())
-              .setSourceDevice(message.getSourceDevice());
-          if (message.getSourceUuid() != null) {
-            builder.setSourceUuid(message.getSourceUuid().toString());
-          }
+      pagesInFlight.add(pageAcknowledgedFuture);
+      pageAcknowledgedFuture.whenComplete((ignored, cause) -> {
+        if (cause != null) {
+          queueClearedFuture.completeExceptionally(cause);
         }
+      });
 
-        if (message.getMessage() != null) {
-          builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
-        }
+      sendStoredMessages(messages.getMessages(), 0, sendFutures, allSentFuture);
 
-        if (message.getContent() != null) {
-          builder.setContent(ByteString.copyFrom(message.getContent()));
-        }
+      // the next page is fetched as soon as this one has been written out, unless too many pages are still awaiting
+      // acknowledgement; the queue is only clear once every page has been acknowledged
+      final CompletableFuture<Void> nextStepFuture = messages.hasMore()
+          ? allSentFuture.thenCompose(ignored -> pagesInFlight.whenFewerThan(maxPagesInFlight))
+              .thenRun(() -> sendNextMessagePage(cachedMessagesOnly, queueClearedFuture, pagesInFlight))
+          : allSentFuture.thenCompose(ignored -> pagesInFlight.whenAllAcknowledged())
+              .thenRun(() -> queueClearedFuture.complete(null));
 
-        if (message.getRelay() != null && !message.getRelay().isEmpty()) {
-          builder.setRelay(message.getRelay());
+      nextStepFuture.whenComplete((ignored, cause) -> {
+        if (cause != null) {
+          queueClearedFuture.completeExceptionally(cause);
         }
-        
-        builder.setServerGuid(message.getGuid().toString());
+      });
+    } catch (final Exception e) {
+      queueClearedFuture.completeExceptionally(e);
+    }
+  }
 
-        final Envelope envelope = builder.build();
+  /**
+   * Sends stored messages starting at the given index, pausing whenever the client's outbound queue is full and
+   * resuming once it has drained.
+   */
+  private void sendStoredMessages(final List<OutgoingMessageEntity> messages, final int startIndex,
+      final CompletableFuture<?>[] sendFutures, final CompletableFuture<Void> allSentFuture) {
 
-        if (envelope.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
-          messagesManager.delete(account.getUuid(), device.getId(), message.getGuid());
-          discardedMessagesMeter.mark();
+    try {
+      int i = startIndex;
 
-          sendFutures[i] = CompletableFuture.completedFuture(null);
-        } else {
-          sendFutures[i] = sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getGuid())));
+      while (i < messages.size()) {
+        if (client.isOutboundQueueFull()) {
+          final int resumeIndex = i;
+
+          client.whenOutboundQueueDrained().whenComplete((ignored, cause) -> {
+            if (cause == null) {
+              sendStoredMessages(messages, resumeIndex, sendFutures, allSentFuture);
+            } else {
+              allSentFuture.completeExceptionally(cause);
+            }
+          });
+
+          return;
         }
-      }
 
-      CompletableFuture.allOf(sendFutures).whenComplete((v, cause) -> {
-        if (cause == null) {
-          if (messages.hasMore()) {
-            sendNextMessagePage(cachedMessagesOnly, queueClearedFuture);
-          } else {
-            queueClearedFuture.complete(null);
-          }
+        if (batchDeliverySupported) {
+          i = sendStoredMessageBatch(messages, i, sendFutures);
         } else {
-          queueClearedFuture.completeExceptionally(cause);
+          sendFutures[i] = sendStoredMessage(messages.get(i));
+          i++;
         }
-      });
+      }
+
+      allSentFuture.complete(null);
     } catch (final Exception e) {
-      queueClearedFuture.completeExceptionally(e);
+      allSentFuture.completeExceptionally(e);
+    }
+  }
+
+  private CompletableFuture<?> sendStoredMessage(final OutgoingMessageEntity message) {
+    final Envelope envelope = buildEnvelope(message);
+
+    if (discardIfOversized(message, envelope)) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return sendMessage(envelope, Optional.of(new StoredMessageInfo(message.getGuid())));
+  }
+
+  /**
+   * Sends as many stored messages as fit in one batch, starting at the given index, and returns the index of the first
+   * message that was not sent.
+   */
+  private int sendStoredMessageBatch(final List<OutgoingMessageEntity> messages, final int startIndex, final CompletableFuture<?>[] sendFutures) {
+    final List<Envelope> envelopes = new ArrayList<>();
+    final List<UUID> guids = new ArrayList<>();
+
+    int batchBytes = 0;
+    int i = startIndex;
+
+    for (; i < messages.size() && envelopes.size() < MAX_BATCH_ENVELOPES; i++) {
+      final OutgoingMessageEntity message = messages.get(i);
+      final Envelope envelope = buildEnvelope(message);
+
+      if (discardIfOversized(message, envelope)) {
+        sendFutures[i] = CompletableFuture.completedFuture(null);
+        continue;
+      }
+
+      if (!envelopes.isEmpty() && batchBytes + envelope.getSerializedSize() > MAX_BATCH_BYTES) {
+        break;
+      }
+
+      envelopes.add(envelope);
+      guids.add(message.getGuid());
+      batchBytes += envelope.getSerializedSize();
+    }
+
+    final CompletableFuture<?> batchFuture = envelopes.isEmpty()
+        ? CompletableFuture.completedFuture(null)
+        : sendMessageBatch(envelopes, guids);
+
+    for (int j = startIndex; j < i; j++) {
+      if (sendFutures[j] == null) {
+        sendFutures[j] = batchFuture;
+      }
+    }
+
+    return i;
+  }
+
+  private Envelope buildEnvelope(final OutgoingMessageEntity message) {
+    final Envelope.Builder builder = Envelope.newBuilder()
+        .setType(Envelope.Type.valueOf(message.getType()))
+        .setTimestamp(message.getTimestamp())
+        .setServerTimestamp(message.getServerTimestamp());
+
+    if (!Util.isEmpty(message.getSource())) {
+      builder.setSource(message.getSource())
+          .setSourceDevice(message.getSourceDevice());
+      if (message.getSourceUuid() != null) {
+        builder.setSourceUuid(message.getSourceUuid().toString());
+      }
+    }
+
+    if (message.getMessage() != null) {
+      builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
+    }
+
+    if (message.getContent() != null) {
+      builder.setContent(ByteString.copyFrom(message.getContent()));
+    }
+
+    if (message.getRelay() != null && !message.getRelay().isEmpty()) {
+      builder.setRelay(message.getRelay());
     }
+
+    builder.setServerGuid(message.getGuid().toString());
+
+    return builder.build();
+  }
+
+  private boolean discardIfOversized(final OutgoingMessageEntity message, final Envelope envelope) {
+    if (envelope.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
+      messagesManager.delete(account.getUuid(), device.getId(), message.getGuid());
+      discardedMessagesMeter.mark();
+
+      return true;
+    }
+
+    return false;
   }
 
   @Override
@@ -373,6 +577,51 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     client.hardDisconnectQuietly();
   }
 
+  /**
+   * Tracks the pages of a single pass over a device's stored messages that have been sent but not yet acknowledged.
+   * Their messages are still in the store, so later pages are fetched from a cursor that has moved past them.
+   */
+  private static class PagesInFlight {
+
+    private final MessageCursor cursor = new MessageCursor();
+    private final Queue<CompletableFuture<Void>> pages = new ConcurrentLinkedQueue<>();
+
+    void add(final CompletableFuture<Void> pageAcknowledgedFuture) {
+      // the tracked future completes only after the page has been removed, so waiters always see the removal
+      final CompletableFuture<Void> page = new CompletableFuture<>();
+
+      pages.add(page);
+
+      pageAcknowledgedFuture.whenComplete((ignored, cause) -> {
+        pages.remove(page);
+
+        if (cause == null) {
+          page.complete(null);
+        } else {
+          page.completeExceptionally(cause);
+        }
+      });
+    }
+
+    MessageCursor getCursor() {
+      return cursor;
+    }
+
+    CompletableFuture<Void> whenFewerThan(final int maxPages) {
+      final CompletableFuture<?>[] pendingPages = pages.toArray(new CompletableFuture[0]);
+
+      if (pendingPages.length < maxPages) {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      return CompletableFuture.anyOf(pendingPages).thenCompose(ignored -> whenFewerThan(maxPages));
+    }
+
+    CompletableFuture<Void> whenAllAcknowledged() {
+      return CompletableFuture.allOf(pages.toArray(new CompletableFuture[0]));
+    }
+  }
+
   private static class StoredMessageInfo {
     private final UUID guid;
 
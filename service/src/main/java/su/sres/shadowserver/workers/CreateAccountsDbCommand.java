@@ -1,7 +1,5 @@
 package su.sres.shadowserver.workers;
 
-import static su.sres.shadowserver.storage.DirectoryManager.DIRECTORY_VERSION;
-
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -15,7 +13,6 @@ import io.dropwizard.Application;
 import io.dropwizard.cli.EnvironmentCommand;
 import io.dropwizard.setup.Environment;
 import net.sourceforge.argparse4j.inf.Namespace;
-import redis.clients.jedis.Jedis;
 import software.amazon.awssdk.core.waiters.WaiterResponse;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
@@ -28,8 +25,7 @@ import software.amazon.awssdk.services.dynamodb.waiters.DynamoDbWaiter;
 import su.sres.shadowserver.WhisperServerConfiguration;
 import su.sres.shadowserver.configuration.AccountsScyllaDbConfiguration;
 import su.sres.shadowserver.configuration.ScyllaDbConfiguration;
-import su.sres.shadowserver.providers.RedisClientFactory;
-import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.redis.FaultTolerantRedisClient;
 import su.sres.shadowserver.storage.DirectoryManager;
 import su.sres.shadowserver.util.AttributeValues;
 import su.sres.shadowserver.util.ScyllaDbFromConfig;
@@ -166,12 +162,10 @@ public class CreateAccountsDbCommand extends EnvironmentCommand<WhisperServerCon
 
     logger.info("Filling the directory version...");
 
-    ReplicatedJedisPool redisClient = new RedisClientFactory("create_accounts_db_command", config.getDirectoryConfiguration().getUrl(), config.getDirectoryConfiguration().getReplicaUrls(), config.getDirectoryConfiguration().getCircuitBreakerConfiguration()).getRedisClientPool();
+    FaultTolerantRedisClient redisClient = new FaultTolerantRedisClient("create_accounts_db_command", config.getDirectoryConfiguration());
     DirectoryManager directory = new DirectoryManager(redisClient);
 
-    Jedis jedis = directory.accessDirectoryCache().getWriteResource();
-    long currentVersion = Long.parseLong(jedis.get(DIRECTORY_VERSION));
-    jedis.close();  
+    long currentVersion = directory.getDirectoryVersion().orElseThrow();
     
     PutItemRequest req =  PutItemRequest.builder()
         .tableName(miscTableName)
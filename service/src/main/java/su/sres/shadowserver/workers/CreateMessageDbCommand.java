@@ -3,6 +3,7 @@ package su.sres.shadowserver.workers;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,6 +23,7 @@ import software.amazon.awssdk.services.dynamodb.model.KeyType;
 import software.amazon.awssdk.services.dynamodb.model.LocalSecondaryIndex;
 import software.amazon.awssdk.services.dynamodb.model.Projection;
 import software.amazon.awssdk.services.dynamodb.model.ProjectionType;
+import software.amazon.awssdk.services.dynamodb.model.ResourceInUseException;
 import software.amazon.awssdk.services.dynamodb.waiters.DynamoDbWaiter;
 import su.sres.shadowserver.WhisperServerConfiguration;
 import su.sres.shadowserver.configuration.MessageScyllaDbConfiguration;
@@ -65,10 +67,17 @@ public class CreateMessageDbCommand extends EnvironmentCommand<WhisperServerConf
 
     MessageScyllaDbConfiguration scyllaMessageConfig = config.getMessageScyllaDbConfiguration();
 
-    String tableName = scyllaMessageConfig.getTableName();
-
     DynamoDbClient messageScyllaDb = ScyllaDbFromConfig.client(scyllaMessageConfig);
 
+    createTable(messageScyllaDb, scyllaMessageConfig.getTableName());
+
+    // the time-bucketed layout uses the same schema; its bucket index entries carry no message UUID and so stay out of the index
+    if (!StringUtils.isBlank(scyllaMessageConfig.getBucketedTableName())) {
+      createTable(messageScyllaDb, scyllaMessageConfig.getBucketedTableName());
+    }
+  }
+
+  private void createTable(DynamoDbClient messageScyllaDb, String tableName) {
     List<AttributeDefinition> attributeDefinitions = new ArrayList<AttributeDefinition>();
     attributeDefinitions.add(AttributeDefinition.builder().attributeName(KEY_PARTITION).attributeType("B").build());
     attributeDefinitions.add(AttributeDefinition.builder().attributeName(KEY_SORT).attributeType("B").build());
@@ -113,17 +122,22 @@ public class CreateMessageDbCommand extends EnvironmentCommand<WhisperServerConf
         .billingMode("PAY_PER_REQUEST")
         .build();
 
-    logger.info("Creating the messagedb table...");
+    logger.info("Creating the messagedb table {}...", tableName);
 
     DynamoDbWaiter waiter = messageScyllaDb.waiter();
 
-    messageScyllaDb.createTable(request);
+    try {
+      messageScyllaDb.createTable(request);
+    } catch (ResourceInUseException e) {
+      // lets the command add the bucketed table to an existing installation
+      logger.info("Table {} already exists", tableName);
+      return;
+    }
 
     WaiterResponse<DescribeTableResponse> waiterResponse = waiter.waitUntilTableExists(r -> r.tableName(tableName));
 
     if (waiterResponse.matched().response().isPresent()) {
       logger.info("Done");
     }
-
   }
 }
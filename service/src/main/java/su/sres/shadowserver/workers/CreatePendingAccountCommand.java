@@ -42,9 +42,8 @@ import su.sres.shadowserver.configuration.AccountsScyllaDbConfiguration;
 import su.sres.shadowserver.configuration.MessageScyllaDbConfiguration;
 import su.sres.shadowserver.configuration.ScyllaDbConfiguration;
 import su.sres.shadowserver.metrics.PushLatencyManager;
-import su.sres.shadowserver.providers.RedisClientFactory;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
-import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.redis.FaultTolerantRedisClient;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.Accounts;
 import su.sres.shadowserver.storage.AccountsManager;
@@ -54,7 +53,7 @@ import su.sres.shadowserver.storage.FaultTolerantDatabase;
 import su.sres.shadowserver.storage.KeysScyllaDb;
 import su.sres.shadowserver.storage.MessagesCache;
 import su.sres.shadowserver.storage.MessagesManager;
-import su.sres.shadowserver.storage.MessagesScyllaDb;
+import su.sres.shadowserver.storage.MessageStore;
 import su.sres.shadowserver.storage.MigrationDeletedAccounts;
 import su.sres.shadowserver.storage.MigrationRetryAccounts;
 import su.sres.shadowserver.storage.PendingAccounts;
@@ -205,8 +204,7 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
 
       ExecutorService keyspaceNotificationDispatchExecutor = environment.lifecycle().executorService(name(getClass(), "keyspaceNotification-%d")).maxThreads(4).build();
 
-      ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_add_command", configuration.getDirectoryConfiguration().getUrl(), configuration.getDirectoryConfiguration().getReplicaUrls(), configuration.getDirectoryConfiguration().getCircuitBreakerConfiguration())
-          .getRedisClientPool();
+      FaultTolerantRedisClient redisClient = new FaultTolerantRedisClient("directory_cache_add_command", configuration.getDirectoryConfiguration());
 
       Accounts accounts = new Accounts(accountDatabase);
       AccountsScyllaDb accountsScyllaDb = new AccountsScyllaDb(accountsScyllaDbClient, accountsScyllaDbAsyncClient, accountsScyllaDbMigrationThreadPool, scyllaAccountsConfig.getTableName(), scyllaAccountsConfig.getUserLoginTableName(), scyllaAccountsConfig.getMiscTableName(), migrationDeletedAccounts, migrationRetryAccounts);
@@ -215,7 +213,7 @@ public class CreatePendingAccountCommand extends EnvironmentCommand<WhisperServe
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
       KeysScyllaDb keysScyllaDb = new KeysScyllaDb(preKeysScyllaDb, scyllaKeysConfig.getTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(messageScyllaDb, scyllaMessageConfig.getTableName(), scyllaMessageConfig.getTimeToLive());
+      MessageStore messagesScyllaDb = MessageStore.fromConfiguration(messageScyllaDb, scyllaMessageConfig);
 
       PendingAccountsManager pendingAccountsManager = new PendingAccountsManager(pendingAccounts, cacheCluster);
 
@@ -36,9 +36,8 @@ import su.sres.shadowserver.configuration.AccountsScyllaDbConfiguration;
 import su.sres.shadowserver.configuration.MessageScyllaDbConfiguration;
 import su.sres.shadowserver.configuration.ScyllaDbConfiguration;
 import su.sres.shadowserver.metrics.PushLatencyManager;
-import su.sres.shadowserver.providers.RedisClientFactory;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
-import su.sres.shadowserver.redis.ReplicatedJedisPool;
+import su.sres.shadowserver.redis.FaultTolerantRedisClient;
 import su.sres.shadowserver.storage.Accounts;
 import su.sres.shadowserver.storage.AccountsManager;
 import su.sres.shadowserver.storage.AccountsScyllaDb;
@@ -47,7 +46,7 @@ import su.sres.shadowserver.storage.FaultTolerantDatabase;
 import su.sres.shadowserver.storage.KeysScyllaDb;
 import su.sres.shadowserver.storage.MessagesCache;
 import su.sres.shadowserver.storage.MessagesManager;
-import su.sres.shadowserver.storage.MessagesScyllaDb;
+import su.sres.shadowserver.storage.MessageStore;
 import su.sres.shadowserver.storage.MigrationDeletedAccounts;
 import su.sres.shadowserver.storage.MigrationRetryAccounts;
 import su.sres.shadowserver.storage.Profiles;
@@ -124,12 +123,9 @@ public class DirectoryCommand extends EnvironmentCommand<WhisperServerConfigurat
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
       KeysScyllaDb keysScyllaDb = new KeysScyllaDb(preKeysScyllaDb, configuration.getKeysScyllaDbConfiguration().getTableName());
-      MessagesScyllaDb messagesScyllaDb = new MessagesScyllaDb(messageScyllaDb, scyllaMessageConfig.getTableName(), scyllaMessageConfig.getTimeToLive());
+      MessageStore messagesScyllaDb = MessageStore.fromConfiguration(messageScyllaDb, scyllaMessageConfig);
 
-      ReplicatedJedisPool redisClient = new RedisClientFactory("directory_cache_directory_command",
-          configuration.getDirectoryConfiguration().getUrl(),
-          configuration.getDirectoryConfiguration().getReplicaUrls(),
-          configuration.getDirectoryConfiguration().getCircuitBreakerConfiguration()).getRedisClientPool();
+      FaultTolerantRedisClient redisClient = new FaultTolerantRedisClient("directory_cache_directory_command", configuration.getDirectoryConfiguration());
 
       DirectoryManager directory = new DirectoryManager(redisClient);
 
@@ -0,0 +1,9 @@
+-- keys: cache_key
+-- argv: expected_value, replacement_value
+
+if redis.call("GET", KEYS[1]) == ARGV[1] then
+    redis.call("SET", KEYS[1], ARGV[2])
+    return 1
+else
+    return 0
+end
\ No newline at end of file
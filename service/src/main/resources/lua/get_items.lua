@@ -1,11 +1,26 @@
-local queueKey     = KEYS[1]
-local queueLockKey = KEYS[2]
-local limit        = ARGV[1]
+local queueKey          = KEYS[1]
+local queueLockKey      = KEYS[2]
+local queueDrainKey     = KEYS[3]
+local queueSpillKey     = KEYS[4]
+local queueSizeSpillKey = KEYS[5]
+local limit             = ARGV[1]
+local drainSeconds      = ARGV[2]
+local afterId           = ARGV[3]
+local unspill           = ARGV[4] == "1"
 
-local locked = redis.call("GET", queueLockKey)
+-- a device reading its queue is draining it; the persister leaves such queues to the device
+redis.call("SET", queueDrainKey, "1", "EX", drainSeconds)
 
-if locked then
-    return {}
+local items             = {}
+
+if not redis.call("GET", queueLockKey) then
+    -- message IDs are the scores, so a page can start after the last message of the previous one
+    items = redis.call("ZRANGEBYSCORE", queueKey, "(" .. afterId, "+inf", "WITHSCORES", "LIMIT", 0, limit)
+end
+
+-- a short page means the device has caught up, so new messages can go back to the cache
+if unspill and #items < 2 * tonumber(limit) then
+    redis.call("DEL", queueSpillKey, queueSizeSpillKey)
 end
 
-return redis.call("ZRANGE", queueKey, 0, limit, "WITHSCORES")
\ No newline at end of file
+return items
@@ -1,15 +1,25 @@
 local queueKey           = KEYS[1]
 local queueMetadataKey   = KEYS[2]
 local queueTotalIndexKey = KEYS[3]
+local queueSpillKey      = KEYS[4]
+local queueSizeSpillKey  = KEYS[5]
 local message            = ARGV[1]
 local currentTime        = ARGV[2]
 local sender             = ARGV[3]
 local guid               = ARGV[4]
+local spillQueueSize     = tonumber(ARGV[5])
+local spillSeconds       = tonumber(ARGV[6])
 
 if redis.call("HEXISTS", queueMetadataKey, guid) == 1 then
     return tonumber(redis.call("HGET", queueMetadataKey, guid))
 end
 
+-- a spilled queue is written straight to the persistent store, but only once everything already cached
+-- has been persisted; cached messages must never be older than persisted ones
+if redis.call("EXISTS", queueSpillKey) == 1 and redis.call("ZCARD", queueKey) == 0 then
+    return -1
+end
+
 local messageId = redis.call("HINCRBY", queueMetadataKey, "counter", 1)
 
 redis.call("ZADD", queueKey, "NX", messageId, message)
@@ -26,5 +36,12 @@ redis.call("HSET", queueMetadataKey, messageId .. "guid", guid)
 redis.call("EXPIRE", queueKey, 7776000)         -- 90 days
 redis.call("EXPIRE", queueMetadataKey, 7776000) -- 90 days
 
-redis.call("ZADD", queueTotalIndexKey, "NX", currentTime, queueKey)
+if spillSeconds > 0 and spillQueueSize > 0 and redis.call("ZCARD", queueKey) >= spillQueueSize then
+    redis.call("SET", queueSpillKey, "1", "EX", spillSeconds, "NX")
+    redis.call("SET", queueSizeSpillKey, "1", "EX", spillSeconds) -- spilled because of its size, not its age
+    redis.call("ZADD", queueTotalIndexKey, 0, queueKey) -- persist as soon as possible
+else
+    redis.call("ZADD", queueTotalIndexKey, "NX", currentTime, queueKey)
+end
+
 return messageId
\ No newline at end of file
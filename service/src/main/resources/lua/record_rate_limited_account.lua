@@ -0,0 +1,11 @@
+local enforcementHllKey = KEYS[1]
+local totalHllKey       = KEYS[2]
+local accountUuid       = ARGV[1]
+local ttlSeconds        = ARGV[2]
+
+redis.call("PFADD", enforcementHllKey, accountUuid)
+redis.call("EXPIRE", enforcementHllKey, ttlSeconds)
+redis.call("PFADD", totalHllKey, accountUuid)
+redis.call("EXPIRE", totalHllKey, ttlSeconds)
+
+return 1
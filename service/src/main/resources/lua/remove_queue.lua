@@ -1,7 +1,11 @@
 local queueKey           = KEYS[1]
 local queueMetadataKey   = KEYS[2]
 local queueTotalIndexKey = KEYS[3]
+local queueSpillKey      = KEYS[4]
+local queueSizeSpillKey  = KEYS[5]
 
 redis.call("DEL", queueKey)
 redis.call("DEL", queueMetadataKey)
+redis.call("DEL", queueSpillKey)
+redis.call("DEL", queueSizeSpillKey)
 redis.call("ZREM", queueTotalIndexKey, queueKey)
@@ -0,0 +1,22 @@
+-- keys: username_by_uuid_key
+-- argv: uuid, uuid_by_username_key_prefix
+-- the reverse mapping, built from the prefix, shares the key's hash tag and so its slot
+
+local usernameByUuidKey = KEYS[1]
+local uuid              = ARGV[1]
+
+local username = redis.call("GET", usernameByUuidKey)
+
+if username then
+    redis.call("DEL", usernameByUuidKey)
+
+    local uuidByUsernameKey = ARGV[2] .. username
+
+    if redis.call("GET", uuidByUsernameKey) == uuid then
+        redis.call("DEL", uuidByUsernameKey)
+    end
+
+    return 1
+end
+
+return 0
@@ -0,0 +1,35 @@
+-- keys: username_by_uuid_key, uuid_by_username_key
+-- argv: uuid, username, ttl_seconds, username_by_uuid_key_prefix, uuid_by_username_key_prefix
+-- every mapping shares one hash tag, so the reverse mappings of the old username and
+-- the old owner, built from the prefixes, live in the same slot as the keys given
+
+local usernameByUuidKey = KEYS[1]
+local uuidByUsernameKey = KEYS[2]
+local uuid              = ARGV[1]
+local username          = ARGV[2]
+local ttlSeconds        = ARGV[3]
+
+local oldUsername = redis.call("GET", usernameByUuidKey)
+
+if oldUsername and oldUsername ~= username then
+    local oldUuidByUsernameKey = ARGV[5] .. oldUsername
+
+    if redis.call("GET", oldUuidByUsernameKey) == uuid then
+        redis.call("DEL", oldUuidByUsernameKey)
+    end
+end
+
+local oldUuid = redis.call("GET", uuidByUsernameKey)
+
+if oldUuid and oldUuid ~= uuid then
+    local oldUsernameByUuidKey = ARGV[4] .. oldUuid
+
+    if redis.call("GET", oldUsernameByUuidKey) == username then
+        redis.call("DEL", oldUsernameByUuidKey)
+    end
+end
+
+redis.call("SET", usernameByUuidKey, username, "EX", ttlSeconds)
+redis.call("SET", uuidByUsernameKey, uuid, "EX", ttlSeconds)
+
+return 1
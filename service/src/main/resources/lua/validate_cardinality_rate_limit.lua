@@ -0,0 +1,27 @@
+local hllKey            = KEYS[1]
+local maxCardinalityKey = KEYS[2]
+local target            = ARGV[1]
+local maxCardinality    = tonumber(ARGV[2])
+local ttlSeconds        = tonumber(ARGV[3])
+
+if maxCardinalityKey then
+    local maxCardinalityOverride = redis.call("GET", maxCardinalityKey)
+
+    if maxCardinalityOverride then
+        maxCardinality = tonumber(maxCardinalityOverride)
+    end
+end
+
+local changed     = redis.call("PFADD", hllKey, target) == 1
+local cardinality = redis.call("PFCOUNT", hllKey)
+
+-- only a newly-created set can be missing its expiration
+if changed and redis.call("TTL", hllKey) == -1 then
+    redis.call("EXPIRE", hllKey, ttlSeconds)
+end
+
+if changed and cardinality > maxCardinality then
+    return { 0, cardinality, redis.call("TTL", hllKey) }
+end
+
+return { 1, cardinality, 0 }
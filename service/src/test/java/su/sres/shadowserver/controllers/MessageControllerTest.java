@@ -57,6 +57,7 @@ import su.sres.shadowserver.entities.IncomingMessageList;
 import su.sres.shadowserver.entities.MismatchedDevices;
 import su.sres.shadowserver.entities.OutgoingMessageEntity;
 import su.sres.shadowserver.entities.OutgoingMessageEntityList;
+import su.sres.shadowserver.entities.PendingMessageCount;
 import su.sres.shadowserver.entities.RateLimitChallenge;
 import su.sres.shadowserver.entities.SignedPreKey;
 import su.sres.shadowserver.entities.StaleDevices;
@@ -67,6 +68,7 @@ import su.sres.shadowserver.limits.RateLimiter;
 import su.sres.shadowserver.limits.RateLimiters;
 import su.sres.shadowserver.limits.UnsealedSenderRateLimiter;
 import su.sres.shadowserver.mappers.RateLimitChallengeExceptionMapper;
+import su.sres.shadowserver.mappers.RateLimitExceededExceptionMapper;
 import su.sres.shadowserver.push.ApnFallbackManager;
 import su.sres.shadowserver.push.MessageSender;
 import su.sres.shadowserver.push.ReceiptSender;
@@ -144,6 +146,7 @@ class MessageControllerTest {
       .addProvider(new PolymorphicAuthValueFactoryProvider.Binder<>(
           ImmutableSet.of(Account.class, DisabledPermittedAccount.class)))
       .addProvider(new RateLimitChallengeExceptionMapper(rateLimitChallengeManager))
+      .addProvider(new RateLimitExceededExceptionMapper())
       .setTestContainerFactory(new GrizzlyWebTestContainerFactory())
       .addResource(new MessageController(rateLimiters, messageSender, receiptSender, accountsManager, messagesManager, unsealedSenderRateLimiter, apnFallbackManager, dynamicConfiguration, rateLimitChallengeManager, reportMessageManager, metricsCluster, receiptExecutor))
       .build();
@@ -187,6 +190,7 @@ class MessageControllerTest {
     when(accountsManager.get(argThat((ArgumentMatcher<AmbiguousIdentifier>) identifier -> identifier != null && identifier.hasUserLogin() && identifier.getUserLogin().equals(INTERNATIONAL_RECIPIENT)))).thenReturn(Optional.of(internationalAccount));
 
     when(rateLimiters.getMessagesLimiter()).thenReturn(rateLimiter);
+    when(rateLimiters.getMessageCountLimiter()).thenReturn(rateLimiter);
 
     when(receiptExecutor.schedule(any(Runnable.class), anyLong(), any())).thenAnswer(
         (Answer<ScheduledFuture<?>>) invocation -> {
@@ -478,6 +482,31 @@ class MessageControllerTest {
     assertThat("Unauthorized response", response.getStatus(), is(equalTo(401)));
   }
 
+  @Test
+  void testGetPendingMessageCount() {
+    when(messagesManager.getQueueDepth(AuthHelper.VALID_UUID, 1L)).thenReturn(42L);
+
+    PendingMessageCount response = resources.getJerseyTest().target("/v1/messages/count").request()
+        .header("Authorization",
+            AuthHelper.getAuthHeader(AuthHelper.VALID_UUID.toString(), AuthHelper.VALID_PASSWORD))
+        .accept(MediaType.APPLICATION_JSON_TYPE).get(PendingMessageCount.class);
+
+    assertEquals(42L, response.getCount());
+  }
+
+  @Test
+  void testGetPendingMessageCountRateLimited() throws Exception {
+    doThrow(new RateLimitExceededException(Duration.ofMinutes(1))).when(rateLimiter).validate(AuthHelper.VALID_UUID + ".1");
+
+    Response response = resources.getJerseyTest().target("/v1/messages/count").request()
+        .header("Authorization",
+            AuthHelper.getAuthHeader(AuthHelper.VALID_UUID.toString(), AuthHelper.VALID_PASSWORD))
+        .accept(MediaType.APPLICATION_JSON_TYPE).get();
+
+    assertThat(response.getStatus(), is(equalTo(429)));
+    verify(messagesManager, never()).getQueueDepth(any(), anyLong());
+  }
+
   @Test
   void testDeleteMessages() throws Exception {
     long timestamp = System.currentTimeMillis();
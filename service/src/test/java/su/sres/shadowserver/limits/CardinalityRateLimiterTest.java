@@ -28,9 +28,9 @@ public class CardinalityRateLimiterTest extends AbstractRedisClusterTest {
   }
 
   @Test
-  public void testValidate() {
+  public void testValidate() throws Exception {
     final int maxCardinality = 10;
-    final CardinalityRateLimiter rateLimiter = new CardinalityRateLimiter(getRedisCluster(), "test", Duration.ofDays(1), maxCardinality);
+    final CardinalityRateLimiter rateLimiter = new CardinalityRateLimiter(getRedisCluster(), CardinalityRateLimiter.loadValidateScript(getRedisCluster()), "test", Duration.ofDays(1), maxCardinality);
 
     final String source = "+18005551234";
     int validatedAttempts = 0;
@@ -30,7 +30,7 @@ class DynamicRateLimitsTest {
   }
 
   @Test
-  void testUnchangingConfiguration() {
+  void testUnchangingConfiguration() throws Exception {
     DynamicRateLimitsConfiguration limitsConfiguration = new DynamicRateLimitsConfiguration();
     RateLimiters rateLimiters = new RateLimiters(new RateLimitsConfiguration(), limitsConfiguration, redisCluster);
 
@@ -42,7 +42,7 @@ class DynamicRateLimitsTest {
   }
 
   @Test
-  void testChangingConfiguration() {
+  void testChangingConfiguration() throws Exception {
     DynamicConfiguration configuration = mock(DynamicConfiguration.class);
     DynamicRateLimitsConfiguration limitsConfiguration = mock(DynamicRateLimitsConfiguration.class);
 
@@ -1,6 +1,7 @@
 package su.sres.shadowserver.limits;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -35,9 +36,9 @@ public class RateLimitResetMetricsManagerTest extends AbstractRedisClusterTest {
     final Account secondAccount = mock(Account.class);
     when(secondAccount.getUuid()).thenReturn(UUID.randomUUID());
 
-    metricsManager.recordMetrics(firstAccount, true, "counter", "enforced", "total", Duration.hours(1).toSeconds());
-    metricsManager.recordMetrics(firstAccount, true, "counter", "enforced", "total", Duration.hours(1).toSeconds());
-    metricsManager.recordMetrics(secondAccount, false, "counter", "unenforced", "total", Duration.hours(1).toSeconds());
+    metricsManager.recordMetrics(firstAccount, true, "counter", "{metrics}::enforced", "{metrics}::total", Duration.hours(1).toSeconds());
+    metricsManager.recordMetrics(firstAccount, true, "counter", "{metrics}::enforced", "{metrics}::total", Duration.hours(1).toSeconds());
+    metricsManager.recordMetrics(secondAccount, false, "counter", "{metrics}::unenforced", "{metrics}::total", Duration.hours(1).toSeconds());
 
     final double counterTotal = meterRegistry.get("counter").counters().stream()
         .map(Counter::count)
@@ -45,14 +46,37 @@ public class RateLimitResetMetricsManagerTest extends AbstractRedisClusterTest {
         .orElseThrow();
     assertEquals(3, counterTotal, 0.0);
 
-    final long enforcedCount = getRedisCluster().withCluster(conn -> conn.sync().pfcount("enforced"));
+    final long enforcedCount = getRedisCluster().withCluster(conn -> conn.sync().pfcount("{metrics}::enforced"));
     assertEquals(1L, enforcedCount);
 
-    final long unenforcedCount = getRedisCluster().withCluster(conn -> conn.sync().pfcount("unenforced"));
+    final long unenforcedCount = getRedisCluster().withCluster(conn -> conn.sync().pfcount("{metrics}::unenforced"));
     assertEquals(1L, unenforcedCount);
 
-    final long total = getRedisCluster().withCluster(conn -> conn.sync().pfcount("total"));
+    final long total = getRedisCluster().withCluster(conn -> conn.sync().pfcount("{metrics}::total"));
     assertEquals(2L, total);
 
   }
+
+  @Test
+  public void testMigrateLegacyHll() {
+    getRedisCluster().useCluster(connection -> {
+      connection.sync().pfadd("metrics::legacy", "a", "b");
+      connection.sync().expire("metrics::legacy", 3600);
+      connection.sync().pfadd("{metrics}::total", "b", "c");
+    });
+
+    metricsManager.initializeFunctionCounters("counter", "{metrics}::total", "metrics::legacy");
+
+    assertEquals(3L, (long) metricsManager.getCount("{metrics}::total"));
+    assertEquals(3.0, meterRegistry.get("counter").functionCounter().count(), 0.0);
+
+    getRedisCluster().useCluster(connection -> {
+      assertEquals(0L, (long) connection.sync().exists("metrics::legacy", "{metrics}::total::legacy"));
+      assertTrue(connection.sync().ttl("{metrics}::total") > 0);
+    });
+
+    // nothing left to migrate
+    metricsManager.migrateLegacyHll("{metrics}::total", "metrics::legacy");
+    assertEquals(3L, (long) metricsManager.getCount("{metrics}::total"));
+  }
 }
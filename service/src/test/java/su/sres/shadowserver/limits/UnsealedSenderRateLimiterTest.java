@@ -5,6 +5,7 @@
 
 package su.sres.shadowserver.limits;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -38,7 +39,7 @@ public class UnsealedSenderRateLimiterTest extends AbstractRedisClusterTest {
 
     final RateLimiters rateLimiters = mock(RateLimiters.class);
     final CardinalityRateLimiter cardinalityRateLimiter =
-        new CardinalityRateLimiter(getRedisCluster(), "test", Duration.ofDays(1), 1);
+        new CardinalityRateLimiter(getRedisCluster(), CardinalityRateLimiter.loadValidateScript(getRedisCluster()), "test", Duration.ofDays(1), 1);
 
     when(rateLimiters.getUnsealedSenderCardinalityLimiter()).thenReturn(cardinalityRateLimiter);
     when(rateLimiters.getRateLimitResetLimiter()).thenReturn(mock(RateLimiter.class));
@@ -112,4 +113,38 @@ public class UnsealedSenderRateLimiterTest extends AbstractRedisClusterTest {
     when(fourthDestination.getUuid()).thenReturn(UUID.randomUUID());
     unsealedSenderRateLimiter.validate(sender, fourthDestination);
   }
+
+  @Test
+  public void validateWithLegacyMaxCardinality() throws RateLimitExceededException {
+    final String legacyKey = UnsealedSenderRateLimiter.getLegacyMaxCardinalityKey(sender);
+    getRedisCluster().useCluster(connection -> connection.sync().setex(legacyKey, 3600, "2"));
+
+    unsealedSenderRateLimiter.validate(sender, firstDestination);
+    unsealedSenderRateLimiter.validate(sender, secondDestination);
+
+    // the raised limit now lives under the current key
+    getRedisCluster().useCluster(connection -> assertEquals(0L, (long) connection.sync().exists(legacyKey)));
+
+    final Account thirdDestination = mock(Account.class);
+    when(thirdDestination.getUserLogin()).thenReturn("+18005554444");
+    when(thirdDestination.getUuid()).thenReturn(UUID.randomUUID());
+
+    assertThrows(RateLimitExceededException.class, () -> unsealedSenderRateLimiter.validate(sender, thirdDestination));
+  }
+
+  @Test
+  public void handleRateLimitResetWithLegacyMaxCardinality() throws RateLimitExceededException {
+    getRedisCluster().useCluster(connection -> connection.sync().setex(UnsealedSenderRateLimiter.getLegacyMaxCardinalityKey(sender), 3600, "2"));
+
+    unsealedSenderRateLimiter.handleRateLimitReset(sender);
+
+    final Account thirdDestination = mock(Account.class);
+    when(thirdDestination.getUserLogin()).thenReturn("+18005554444");
+    when(thirdDestination.getUuid()).thenReturn(UUID.randomUUID());
+
+    // the reset builds on the legacy limit rather than the default
+    unsealedSenderRateLimiter.validate(sender, firstDestination);
+    unsealedSenderRateLimiter.validate(sender, secondDestination);
+    unsealedSenderRateLimiter.validate(sender, thirdDestination);
+  }
 }
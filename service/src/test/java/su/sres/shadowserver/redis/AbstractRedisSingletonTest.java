@@ -41,7 +41,7 @@ public class AbstractRedisSingletonTest {
 
     @Before
     public void setUp() throws Exception {
-	final String redisUrl = String.format("redis://127.0.0.1:%d", redisServer.ports().get(0));
+	final String redisUrl = getRedisUrl();
 
 	redisClient = new FaultTolerantRedisClient("test-client",
 		RedisClient.create(redisUrl),
@@ -56,6 +56,10 @@ public class AbstractRedisSingletonTest {
 	redisClient.useClient(connection -> connection.sync().flushall());
     }
 
+    protected static String getRedisUrl() {
+	return String.format("redis://127.0.0.1:%d", redisServer.ports().get(0));
+    }
+
     protected FaultTolerantRedisClient getRedisClient() {
 	return redisClient;
     }
@@ -0,0 +1,226 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.redis;
+
+import io.lettuce.core.KillArgs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import su.sres.shadowserver.configuration.ClientSideCacheConfiguration;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterClientSideCacheTest extends AbstractRedisClusterTest {
+
+  private ScheduledExecutorService executor;
+  private ClusterClientSideCache clientSideCache;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+
+    final ClientSideCacheConfiguration configuration = new ClientSideCacheConfiguration();
+    configuration.setEnabled(true);
+    configuration.setProbeInterval(Duration.ofHours(1));
+
+    executor = Executors.newSingleThreadScheduledExecutor();
+    // tests seed keys before starting the cache so that invalidations for the seeding writes can't arrive late
+    clientSideCache = new ClusterClientSideCache("test", getRedisCluster(), configuration, List.of("cached::"), executor);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    clientSideCache.stop();
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+
+    super.tearDown();
+  }
+
+  @Test
+  public void testHitAndInvalidation() throws InterruptedException {
+    final String key = "cached::key";
+    final AtomicInteger loads = new AtomicInteger();
+
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "first"));
+
+    clientSideCache.start();
+    assertTrue(clientSideCache.isTrackingActive());
+
+    assertEquals("first", get(key, loads));
+    assertEquals("first", get(key, loads));
+    assertEquals(1, loads.get());
+
+    // a write from anywhere should evict the local copy
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "second"));
+
+    assertEventually(() -> "second".equals(get(key, loads)));
+  }
+
+  @Test
+  public void testMissingValueNotCached() {
+    final String key = "cached::missing";
+    final AtomicInteger loads = new AtomicInteger();
+
+    clientSideCache.start();
+
+    assertNull(get(key, loads));
+    assertNull(get(key, loads));
+    assertEquals(2, loads.get());
+
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "created"));
+
+    assertEquals("created", get(key, loads));
+  }
+
+  @Test
+  public void testHashFields() throws InterruptedException {
+    final String key = "cached::hash";
+    final AtomicInteger loads = new AtomicInteger();
+
+    getRedisCluster().useCluster(connection -> connection.sync().hset(key, "a", "1"));
+    getRedisCluster().useCluster(connection -> connection.sync().hset(key, "b", "2"));
+
+    clientSideCache.start();
+
+    assertEquals("1", getField(key, "a", loads));
+    assertEquals("2", getField(key, "b", loads));
+    assertEquals("1", getField(key, "a", loads));
+    assertEquals(2, loads.get());
+
+    // changing one field invalidates the whole hash
+    getRedisCluster().useCluster(connection -> connection.sync().hset(key, "b", "3"));
+
+    assertEventually(() -> "3".equals(getField(key, "b", loads)));
+    assertEquals("1", getField(key, "a", loads));
+  }
+
+  @Test
+  public void testLocalInvalidate() {
+    final String key = "cached::local";
+    final AtomicInteger loads = new AtomicInteger();
+
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "value"));
+    clientSideCache.start();
+
+    get(key, loads);
+    clientSideCache.invalidate(key);
+    get(key, loads);
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testStoppedCacheBypasses() {
+    clientSideCache.start();
+    clientSideCache.stop();
+
+    final String key = "cached::bypass";
+    final AtomicInteger loads = new AtomicInteger();
+
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "value"));
+
+    get(key, loads);
+    get(key, loads);
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testProbe() throws InterruptedException {
+    clientSideCache.start();
+    clientSideCache.probe();
+
+    // the probe's invalidation should arrive and clear the pending probe, so the next one doesn't reset tracking
+    Thread.sleep(200);
+    clientSideCache.probe();
+
+    assertTrue(clientSideCache.isTrackingActive());
+  }
+
+  @Test
+  public void testUnrelatedConnectionDropKeepsCache() throws Exception {
+    final String key = "cached::unrelated";
+    final AtomicInteger loads = new AtomicInteger();
+
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "value"));
+    clientSideCache.start();
+
+    get(key, loads);
+    clientSideCache.onConnectionDeactivated();
+
+    // the check runs on the (single-threaded) executor; once it finds the tracking connections intact, the value
+    // cached before the event is used again
+    executor.submit(() -> {}).get();
+
+    assertEquals("value", get(key, loads));
+    assertEquals(1, loads.get());
+    assertTrue(clientSideCache.isTrackingActive());
+  }
+
+  @Test
+  public void testTrackingConnectionDropResetsTracking() throws InterruptedException {
+    final String key = "cached::dropped";
+    final AtomicInteger loads = new AtomicInteger();
+
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "first"));
+    clientSideCache.start();
+
+    final Map<String, Long> trackingClientIds = clientSideCache.getTrackingClientIds();
+    assertFalse(trackingClientIds.isEmpty());
+
+    getRedisCluster().useCluster(connection -> trackingClientIds.forEach((nodeId, clientId) ->
+        connection.getConnection(nodeId).sync().clientKill(KillArgs.Builder.id(clientId))));
+
+    assertEventually(() -> clientSideCache.isTrackingActive() &&
+        !clientSideCache.getTrackingClientIds().isEmpty() &&
+        !trackingClientIds.equals(clientSideCache.getTrackingClientIds()));
+
+    // invalidations arrive over the re-established tracking connections
+    assertEquals("first", get(key, loads));
+    getRedisCluster().useCluster(connection -> connection.sync().set(key, "second"));
+
+    assertEventually(() -> "second".equals(get(key, loads)));
+  }
+
+  private String get(final String key, final AtomicInteger loads) {
+    return clientSideCache.get(key, () -> {
+      loads.incrementAndGet();
+      return getRedisCluster().withCluster(connection -> connection.sync().get(key));
+    });
+  }
+
+  private String getField(final String key, final String field, final AtomicInteger loads) {
+    return clientSideCache.get(key, field, () -> {
+      loads.incrementAndGet();
+      return getRedisCluster().withCluster(connection -> connection.sync().hget(key, field));
+    });
+  }
+
+  private static void assertEventually(final BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 50; i++) {
+      if (condition.getAsBoolean()) {
+        return;
+      }
+
+      Thread.sleep(20);
+    }
+
+    assertTrue(condition.getAsBoolean());
+  }
+}
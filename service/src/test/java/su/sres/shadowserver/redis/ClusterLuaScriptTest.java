@@ -15,9 +15,11 @@ import su.sres.shadowserver.util.RedisClusterHelper;
 
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -138,4 +140,44 @@ public class ClusterLuaScriptTest extends AbstractRedisClusterTest {
 	assertArrayEquals("OK".getBytes(StandardCharsets.UTF_8), (byte[]) script.executeBinary(List.of(key.getBytes(StandardCharsets.UTF_8)), List.of(value.getBytes(StandardCharsets.UTF_8))));
 	assertEquals(value, redisCluster.withCluster(connection -> connection.sync().get(key)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPreloadOnTopologyChange() throws InterruptedException {
+	final FaultTolerantRedisCluster redisCluster = getRedisCluster();
+
+	final ClusterLuaScript script = new ClusterLuaScript(redisCluster, "return redis.call(\"SET\", KEYS[1], ARGV[1])", ScriptOutputType.VALUE);
+
+	// simulate a fresh primary that has never seen the script
+	redisCluster.useCluster(connection -> connection.sync().upstream().commands().scriptFlush());
+	assertEquals(List.of(false), redisCluster.withCluster(connection -> connection.sync().scriptExists(script.getSha())));
+
+	redisCluster.notifyTopologyChangeListeners();
+
+	for (int i = 0; i < 50 && !isLoadedEverywhere(redisCluster, script.getSha()); i++) {
+	    Thread.sleep(20);
+	}
+
+	assertTrue(isLoadedEverywhere(redisCluster, script.getSha()));
+    }
+
+    @Test
+    public void testGetScriptName() {
+	assertEquals("insert_item", ClusterLuaScript.getScriptName("lua/insert_item.lua"));
+	assertEquals("get_items", ClusterLuaScript.getScriptName("get_items.lua"));
+    }
+
+    @Test
+    public void testGetReplySize() {
+	assertEquals(0, ClusterLuaScript.getReplySize(null));
+	assertEquals(Long.BYTES, ClusterLuaScript.getReplySize(17L));
+	assertEquals(2, ClusterLuaScript.getReplySize("OK"));
+	assertEquals(5, ClusterLuaScript.getReplySize(List.of(new byte[3], List.of(new byte[2]))));
+    }
+
+    private static boolean isLoadedEverywhere(final FaultTolerantRedisCluster redisCluster, final String sha) {
+	final Map<RedisClusterNode, List<Boolean>> exists = redisCluster.withCluster(connection ->
+		connection.sync().upstream().commands().scriptExists(sha).asMap());
+
+	return exists.values().stream().allMatch(List.of(true)::equals);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.redis;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import su.sres.shadowserver.configuration.CircuitBreakerConfiguration;
+import su.sres.shadowserver.configuration.ReplicaSelectionConfiguration;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public class FaultTolerantRedisClientFreshReadTest extends AbstractRedisSingletonTest {
+
+  private ReplicaHealthMonitor replicaHealthMonitor;
+  private FaultTolerantRedisClient freshReadClient;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    // the shipped configuration lists the master as its own "replica"
+    final RedisURI uri = RedisURI.create(getRedisUrl());
+    final ReplicaSelectionConfiguration selectionConfiguration = new ReplicaSelectionConfiguration();
+    selectionConfiguration.setMaxFreshReadLag(Duration.ofSeconds(2));
+
+    replicaHealthMonitor = new ReplicaHealthMonitor("test", RedisClient.create(), uri, List.of(uri), selectionConfiguration,
+        mock(ScheduledExecutorService.class), Clock.systemUTC());
+
+    freshReadClient = new FaultTolerantRedisClient("test-fresh", RedisClient.create(getRedisUrl()), Duration.ofSeconds(2),
+        new CircuitBreakerConfiguration(), replicaHealthMonitor.getNodeUris(), replicaHealthMonitor.getFreshReadFrom());
+  }
+
+  @After
+  @Override
+  public void tearDown() throws Exception {
+    freshReadClient.shutdown();
+    replicaHealthMonitor.stop();
+
+    super.tearDown();
+  }
+
+  @Test
+  public void testFreshRead() {
+    getRedisClient().useClient(connection -> connection.sync().hset("directory", "alice", "a"));
+
+    replicaHealthMonitor.probeReplicas();
+
+    assertEquals("a", freshReadClient.withFreshReadClient(connection -> connection.sync().hget("directory", "alice")));
+  }
+}
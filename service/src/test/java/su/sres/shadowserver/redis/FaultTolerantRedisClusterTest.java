@@ -18,6 +18,8 @@ import io.lettuce.core.resource.ClientResources;
 import org.junit.Before;
 import org.junit.Test;
 import su.sres.shadowserver.configuration.CircuitBreakerConfiguration;
+import su.sres.shadowserver.configuration.RedisWorkloadConfiguration;
+import su.sres.shadowserver.configuration.RedisWorkloadsConfiguration;
 import su.sres.shadowserver.configuration.RetryConfiguration;
 import reactor.core.publisher.Flux;
 
@@ -60,7 +62,10 @@ public class FaultTolerantRedisClusterTest {
 	retryConfiguration.setMaxAttempts(3);
 	retryConfiguration.setWaitDuration(0);
 
-	faultTolerantCluster = new FaultTolerantRedisCluster("test", clusterClient, Duration.ofSeconds(2), breakerConfiguration, retryConfiguration);
+	final RedisWorkloadsConfiguration workloadsConfiguration = new RedisWorkloadsConfiguration();
+	workloadsConfiguration.setConfiguration(RedisWorkload.BULK, new RedisWorkloadConfiguration());
+
+	faultTolerantCluster = new FaultTolerantRedisCluster("test", clusterClient, Duration.ofSeconds(2), breakerConfiguration, retryConfiguration, workloadsConfiguration);
     }
 
     @Test
@@ -95,4 +100,21 @@ public class FaultTolerantRedisClusterTest {
 
 	assertThrows(RedisCommandTimeoutException.class, () -> faultTolerantCluster.withCluster(connection -> connection.sync().get("key")));
     }
+
+    @Test
+    public void testWorkloadBreakerIsolation() {
+	when(clusterCommands.get(anyString()))
+		.thenThrow(new RedisException("Badness has ensued."))
+		.thenReturn("value");
+
+	assertThrows(RedisException.class,
+		() -> faultTolerantCluster.withCluster(RedisWorkload.BULK, connection -> connection.sync().get("OH NO")));
+
+	assertThrows(CallNotPermittedException.class,
+		() -> faultTolerantCluster.withCluster(RedisWorkload.BULK, connection -> connection.sync().get("OH NO")));
+
+	// the default lane has its own breaker, and unconfigured workloads share it
+	assertEquals("value", faultTolerantCluster.withCluster(connection -> connection.sync().get("key")));
+	assertEquals("value", faultTolerantCluster.withCluster(RedisWorkload.LATENCY_SENSITIVE, connection -> connection.sync().get("key")));
+    }
 }
@@ -0,0 +1,167 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.redis;
+
+import io.lettuce.core.ReadFrom;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.models.role.RedisInstance;
+import io.lettuce.core.models.role.RedisNodeDescription;
+import org.junit.Before;
+import org.junit.Test;
+import su.sres.shadowserver.configuration.ReplicaSelectionConfiguration;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReplicaHealthMonitorTest {
+
+  private static final Instant NOW = Instant.ofEpochMilli(1_600_000_000_000L);
+
+  private static final RedisURI MASTER_URI = RedisURI.create("redis://master:6379");
+  private static final RedisURI REPLICA_0_URI = RedisURI.create("redis://replica-0:6379");
+  private static final RedisURI REPLICA_1_URI = RedisURI.create("redis://replica-1:6379");
+
+  private RedisClient redisClient;
+  private ReplicaHealthMonitor replicaHealthMonitor;
+
+  private ReadFrom.Nodes nodes;
+
+  @Before
+  public void setUp() {
+    redisClient = mock(RedisClient.class);
+
+    replicaHealthMonitor = new ReplicaHealthMonitor("test", redisClient, MASTER_URI, List.of(REPLICA_0_URI, REPLICA_1_URI),
+        new ReplicaSelectionConfiguration(), mock(ScheduledExecutorService.class), Clock.fixed(NOW, ZoneId.systemDefault()));
+
+    final List<RedisNodeDescription> nodeList = List.of(node(MASTER_URI, RedisInstance.Role.UPSTREAM),
+        node(REPLICA_0_URI, RedisInstance.Role.REPLICA),
+        node(REPLICA_1_URI, RedisInstance.Role.REPLICA));
+
+    nodes = new ReadFrom.Nodes() {
+      @Override
+      public List<RedisNodeDescription> getNodes() {
+        return nodeList;
+      }
+
+      @Override
+      public java.util.Iterator<RedisNodeDescription> iterator() {
+        return nodeList.iterator();
+      }
+    };
+  }
+
+  private static RedisNodeDescription node(final RedisURI uri, final RedisInstance.Role role) {
+    return new RedisNodeDescription() {
+      @Override
+      public RedisURI getUri() {
+        return uri;
+      }
+
+      @Override
+      public Role getRole() {
+        return role;
+      }
+    };
+  }
+
+  private List<RedisURI> select(final Duration maxLag) {
+    return replicaHealthMonitor.getReadFrom(maxLag).select(nodes).stream()
+        .map(RedisNodeDescription::getUri)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testUnprobedReplicasNotFresh() {
+    assertEquals(List.of(MASTER_URI), select(Duration.ofSeconds(2)));
+  }
+
+  @Test
+  public void testZeroLagUsesMaster() {
+    replicaHealthMonitor.recordProbe(0, 1_000, 0);
+    replicaHealthMonitor.recordProbe(1, 1_000, 0);
+
+    assertEquals(List.of(MASTER_URI), select(Duration.ZERO));
+    assertEquals(List.of(MASTER_URI), select(new ReplicaSelectionConfiguration().getMaxFreshReadLag()));
+  }
+
+  @Test
+  public void testFastestReplicaFirst() {
+    replicaHealthMonitor.recordProbe(0, 2_000, 100);
+    replicaHealthMonitor.recordProbe(1, 1_000, 100);
+
+    for (int i = 0; i < 4; i++) {
+      assertEquals(List.of(REPLICA_1_URI, REPLICA_0_URI, MASTER_URI), select(Duration.ofSeconds(2)));
+    }
+  }
+
+  @Test
+  public void testEqualReplicasRoundRobin() {
+    replicaHealthMonitor.recordProbe(0, 1_000, 100);
+    replicaHealthMonitor.recordProbe(1, 1_000, 100);
+
+    assertEquals(2, List.of(select(Duration.ofSeconds(2)).get(0), select(Duration.ofSeconds(2)).get(0),
+        select(Duration.ofSeconds(2)).get(0)).stream().distinct().count());
+  }
+
+  @Test
+  public void testLaggingReplicaSkipped() {
+    replicaHealthMonitor.recordProbe(0, 1_000, 5_000);
+    replicaHealthMonitor.recordProbe(1, 2_000, 100);
+
+    assertEquals(List.of(REPLICA_1_URI, MASTER_URI), select(Duration.ofSeconds(2)));
+    assertEquals(List.of(REPLICA_0_URI, REPLICA_1_URI, MASTER_URI), select(Duration.ofSeconds(10)));
+  }
+
+  @Test
+  public void testSlowReplicaEjected() {
+    replicaHealthMonitor.recordProbe(0, 1_000, 100);
+    replicaHealthMonitor.recordProbe(1, 100_000, 100);
+    replicaHealthMonitor.ejectOutliers();
+
+    assertEquals(List.of(REPLICA_0_URI, MASTER_URI), select(Duration.ofSeconds(2)));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testProbeReplicas() {
+    final StatefulRedisConnection<String, String> masterConnection = mock(StatefulRedisConnection.class);
+    final RedisCommands<String, String> masterCommands = mock(RedisCommands.class);
+    final StatefulRedisConnection<String, String> replicaConnection = mock(StatefulRedisConnection.class);
+    final RedisCommands<String, String> replicaCommands = mock(RedisCommands.class);
+
+    when(redisClient.connect(MASTER_URI)).thenReturn(masterConnection);
+    when(masterConnection.sync()).thenReturn(masterCommands);
+    when(redisClient.connect(REPLICA_0_URI)).thenReturn(replicaConnection);
+    when(replicaConnection.sync()).thenReturn(replicaCommands);
+    when(replicaCommands.get(anyString())).thenReturn(String.valueOf(NOW.toEpochMilli() - 500));
+    when(redisClient.connect(REPLICA_1_URI)).thenThrow(new RedisConnectionException("Connection refused"));
+
+    replicaHealthMonitor.probeReplicas();
+
+    verify(masterCommands).psetex(anyString(), anyLong(), eq(String.valueOf(NOW.toEpochMilli())));
+
+    // the unreachable replica is ejected, the other one is 500ms behind
+    assertEquals(List.of(MASTER_URI), select(Duration.ofMillis(100)));
+    assertEquals(List.of(REPLICA_0_URI, MASTER_URI), select(Duration.ofSeconds(1)));
+  }
+}
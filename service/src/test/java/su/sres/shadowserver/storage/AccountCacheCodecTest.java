@@ -0,0 +1,68 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import su.sres.shadowserver.util.SystemMapper;
+
+class AccountCacheCodecTest {
+
+  @Test
+  void testRoundTrip() throws Exception {
+    final Device device = new Device();
+    device.setId(Device.MASTER_ID);
+    device.setName("name");
+
+    final Account account = new Account("johndoe", UUID.randomUUID(), new HashSet<>(Set.of(device)), new byte[16]);
+    account.setProfileName("test");
+
+    final byte[] encoded = AccountCacheCodec.encode(account);
+    final Account decoded = AccountCacheCodec.decode(encoded);
+
+    assertFalse(AccountCacheCodec.isLegacy(encoded, 0));
+    assertEquals("johndoe", decoded.getUserLogin());
+    assertEquals("test", decoded.getProfileName());
+    assertEquals("name", decoded.getMasterDevice().orElseThrow().getName());
+    assertArrayEquals(new byte[16], decoded.getUnidentifiedAccessKey().orElseThrow());
+
+    assertTrue(encoded.length < SystemMapper.getMapper().writeValueAsBytes(account).length);
+  }
+
+  @Test
+  void testDecodeLegacyJson() throws Exception {
+    final byte[] legacy = "{\"userLogin\": \"johndoe\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8);
+
+    assertTrue(AccountCacheCodec.isLegacy(legacy, 0));
+
+    final Account decoded = AccountCacheCodec.decode(legacy);
+
+    assertEquals("johndoe", decoded.getUserLogin());
+    assertEquals("test", decoded.getProfileName());
+  }
+
+  @Test
+  void testDecodeWithOffset() throws Exception {
+    final UUID uuid = UUID.randomUUID();
+    final byte[] encoded = AccountCacheCodec.encode(new Account("johndoe", uuid, new HashSet<>(), new byte[16]));
+    final byte[] prefixed = new byte[36 + encoded.length];
+
+    System.arraycopy(uuid.toString().getBytes(StandardCharsets.US_ASCII), 0, prefixed, 0, 36);
+    System.arraycopy(encoded, 0, prefixed, 36, encoded.length);
+
+    assertEquals("johndoe", AccountCacheCodec.decode(prefixed, 36).getUserLogin());
+  }
+}
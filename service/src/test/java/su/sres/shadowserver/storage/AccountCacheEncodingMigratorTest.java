@@ -0,0 +1,89 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+import su.sres.shadowserver.redis.AbstractRedisClusterTest;
+
+public class AccountCacheEncodingMigratorTest extends AbstractRedisClusterTest {
+
+  private static final String LEGACY_ACCOUNT_JSON = "{\"userLogin\": \"johndoe\", \"name\": \"test\"}";
+
+  private AccountCacheEncodingMigrator migrator;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    migrator = new AccountCacheEncodingMigrator(getRedisCluster());
+  }
+
+  @Test
+  public void testMergeLegacyEntity() throws Exception {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
+
+    getRedisCluster().useBinaryCluster(connection -> {
+      connection.sync().set(AccountsManager.getAccountByLoginKey("johndoe"), uuid.toString().getBytes(StandardCharsets.US_ASCII));
+      connection.sync().set(AccountsManager.getLegacyAccountEntityKey(uuid), LEGACY_ACCOUNT_JSON.getBytes(StandardCharsets.UTF_8));
+    });
+
+    getRedisCluster().useCluster(connection -> connection.sync().set(AccountsManager.getLegacyAccountMapKey("johndoe"), uuid.toString()));
+
+    migrator.onCrawlChunk(Optional.empty(), List.of(account));
+
+    final byte[] entry = getRedisCluster().withBinaryCluster(connection -> connection.sync().get(AccountsManager.getAccountByLoginKey("johndoe")));
+    final Account cached = AccountCacheCodec.decode(entry, AccountsManager.LOGIN_ENTRY_UUID_LENGTH);
+
+    assertEquals(uuid.toString(), new String(entry, 0, AccountsManager.LOGIN_ENTRY_UUID_LENGTH, StandardCharsets.US_ASCII));
+    assertEquals("test", cached.getProfileName());
+    assertEquals("johndoe", getRedisCluster().withCluster(connection -> connection.sync().get(AccountsManager.getLoginByUuidKey(uuid))));
+
+    assertNull(getRedisCluster().withBinaryCluster(connection -> connection.sync().get(AccountsManager.getLegacyAccountEntityKey(uuid))));
+    assertNull(getRedisCluster().withCluster(connection -> connection.sync().get(AccountsManager.getLegacyAccountMapKey("johndoe"))));
+  }
+
+  @Test
+  public void testReencodeLoginEntry() throws Exception {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
+
+    getRedisCluster().useBinaryCluster(connection -> connection.sync().set(AccountsManager.getAccountByLoginKey("johndoe"),
+        (uuid + LEGACY_ACCOUNT_JSON).getBytes(StandardCharsets.UTF_8)));
+
+    migrator.onCrawlChunk(Optional.empty(), List.of(account));
+
+    final byte[] entry = getRedisCluster().withBinaryCluster(connection -> connection.sync().get(AccountsManager.getAccountByLoginKey("johndoe")));
+
+    assertFalse(AccountCacheCodec.isLegacy(entry, AccountsManager.LOGIN_ENTRY_UUID_LENGTH));
+    assertEquals("test", AccountCacheCodec.decode(entry, AccountsManager.LOGIN_ENTRY_UUID_LENGTH).getProfileName());
+  }
+
+  @Test
+  public void testCurrentEntryUntouched() throws Exception {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
+    final byte[] entry = AccountsManager.getLoginEntry(uuid, AccountCacheCodec.encode(account));
+
+    getRedisCluster().useBinaryCluster(connection -> connection.sync().set(AccountsManager.getAccountByLoginKey("johndoe"), entry));
+
+    migrator.onCrawlChunk(Optional.empty(), List.of(account));
+
+    assertArrayEquals(entry, getRedisCluster().withBinaryCluster(connection -> connection.sync().get(AccountsManager.getAccountByLoginKey("johndoe"))));
+  }
+}
@@ -6,6 +6,7 @@
 package su.sres.shadowserver.storage;
 
 import io.lettuce.core.RedisException;
+import io.lettuce.core.SetArgs;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 
@@ -18,15 +19,21 @@ import su.sres.shadowserver.entities.SignedPreKey;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.util.RedisClusterHelper;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import static junit.framework.TestCase.assertSame;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -46,7 +53,8 @@ class AccountsManagerTest {
     @ValueSource(booleans = {true})
     void testGetAccountByNumberInCache(final boolean dynamoEnabled) {
     RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
-    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
     Accounts accounts = mock(Accounts.class);
     AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
     DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -57,29 +65,59 @@ class AccountsManagerTest {
 
     UUID uuid = UUID.randomUUID();
         
-    when(commands.get(eq("AccountMap::johndoe"))).thenReturn(uuid.toString());
-    when(commands.get(eq("Account3::" + uuid.toString()))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}");
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenReturn((uuid.toString() + "{\"userLogin\": \"johndoe\", \"name\": \"test\"}").getBytes());
 
     AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
     Optional<Account> account = accountsManager.get("johndoe");
 
     assertTrue(account.isPresent());
     assertEquals(account.get().getUserLogin(), "johndoe");
+    assertEquals(account.get().getUuid(), uuid);
     assertEquals(account.get().getProfileName(), "test");
 
-    verify(commands, times(1)).get(eq("AccountMap::johndoe"));
-    verify(commands, times(1)).get(eq("Account3::" + uuid.toString()));
+    verify(binaryCommands, times(1)).get(aryEq("AccountByLogin::johndoe".getBytes()));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
     verifyNoMoreInteractions(accounts);
     
     verifyZeroInteractions(accountsScyllaDb);
   }
    
+  @org.junit.jupiter.api.Test
+  void testGetAccountByNumberInLegacyCache() {
+    RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
+    Accounts accounts = mock(Accounts.class);
+    AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
+
+    UUID uuid = UUID.randomUUID();
+
+    // earlier versions cached only the UUID under the login and the account under its UUID
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenReturn(uuid.toString().getBytes());
+    when(binaryCommands.get(aryEq(("Account3::" + uuid).getBytes()))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}".getBytes());
+
+    AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, mock(DirectoryManager.class), cacheCluster, mock(KeysScyllaDb.class), mock(MessagesManager.class), mock(UsernamesManager.class), mock(ProfilesManager.class));
+    Optional<Account> account = accountsManager.get("johndoe");
+
+    assertTrue(account.isPresent());
+    assertEquals(uuid, account.get().getUuid());
+    assertEquals("test", account.get().getProfileName());
+
+    verify(binaryCommands, times(1)).set(aryEq("AccountByLogin::johndoe".getBytes()), any(byte[].class));
+    verify(binaryCommands, times(1)).set(aryEq(("AccountLogin::" + uuid).getBytes()), aryEq("johndoe".getBytes()));
+    verify(binaryCommands, times(1)).del(aryEq(("Account3::" + uuid).getBytes()));
+
+    verifyZeroInteractions(accounts);
+    verifyZeroInteractions(accountsScyllaDb);
+  }
+
     @ParameterizedTest
     @ValueSource(booleans = {true})
     void testGetAccountByUuidInCache(boolean dynamoEnabled) {
     RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
-    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
     Accounts accounts = mock(Accounts.class);
     AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
     DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -90,7 +128,8 @@ class AccountsManagerTest {
 
     UUID uuid = UUID.randomUUID();
 
-    when(commands.get(eq("Account3::" + uuid.toString()))).thenReturn("{\"userLogin\": \"johndoe\", \"name\": \"test\"}");
+    when(commands.get(eq("AccountLogin::" + uuid))).thenReturn("johndoe");
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenReturn((uuid.toString() + "{\"userLogin\": \"johndoe\", \"name\": \"test\"}").getBytes());
 
     AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
     Optional<Account> account = accountsManager.get(uuid);
@@ -100,18 +139,45 @@ class AccountsManagerTest {
     assertEquals(account.get().getUuid(), uuid);
     assertEquals(account.get().getProfileName(), "test");
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid.toString()));
+    // the login is remembered, so later lookups read the login entry alone
+    assertTrue(accountsManager.get(uuid).isPresent());
+
+    verify(commands, times(1)).get(eq("AccountLogin::" + uuid));
+    verify(binaryCommands, times(2)).get(aryEq("AccountByLogin::johndoe".getBytes()));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
     verifyNoMoreInteractions(accounts);
     
     verifyZeroInteractions(accountsScyllaDb);
   }
 
+  @org.junit.jupiter.api.Test
+  void testGetAccountByUuidWithStalePointer() {
+    RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
+    Accounts accounts = mock(Accounts.class);
+
+    UUID uuid = UUID.randomUUID();
+
+    // the login was taken over by another account after this one was deleted
+    when(commands.get(eq("AccountLogin::" + uuid))).thenReturn("johndoe");
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenReturn((UUID.randomUUID().toString() + "{\"userLogin\": \"johndoe\", \"name\": \"test\"}").getBytes());
+    when(accounts.get(eq(uuid))).thenReturn(Optional.empty());
+
+    AccountsManager accountsManager = new AccountsManager(accounts, mock(AccountsScyllaDb.class), mock(DirectoryManager.class), cacheCluster, mock(KeysScyllaDb.class), mock(MessagesManager.class), mock(UsernamesManager.class), mock(ProfilesManager.class));
+
+    assertTrue(accountsManager.get(uuid).isEmpty());
+
+    verify(accounts, times(1)).get(eq(uuid));
+  }
+
     @ParameterizedTest
     @ValueSource(booleans = {true})
     void testGetAccountByUserLoginNotInCache(boolean dynamoEnabled) {
     RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
-    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
     Accounts accounts = mock(Accounts.class);
     AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
     DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -123,7 +189,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("AccountMap::johndoe"))).thenReturn(null);
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenReturn(null);
     when(accounts.get(eq("johndoe"))).thenReturn(Optional.of(account));
 
     AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
@@ -132,10 +198,11 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("AccountMap::johndoe"));
-    verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid.toString()), anyString());
+    verify(binaryCommands, times(1)).get(aryEq("AccountByLogin::johndoe".getBytes()));
+    verify(binaryCommands, times(1)).set(aryEq("AccountByLogin::johndoe".getBytes()), any(byte[].class));
+    verify(binaryCommands, times(1)).set(aryEq(("AccountLogin::" + uuid).getBytes()), aryEq("johndoe".getBytes()));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq("johndoe"));
     verifyNoMoreInteractions(accounts);
@@ -145,11 +212,85 @@ class AccountsManagerTest {
 verifyNoMoreInteractions(accountsScyllaDb);
   }
 
+    @ParameterizedTest
+    @ValueSource(booleans = {true})
+    void testGetAccountByUserLoginNegativeCached(boolean dynamoEnabled) {
+    RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
+    Accounts accounts = mock(Accounts.class);
+    AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
+    DirectoryManager directoryManager = mock(DirectoryManager.class);
+    KeysScyllaDb keysScyllaDb = mock(KeysScyllaDb.class);
+    MessagesManager messagesManager = mock(MessagesManager.class);
+    UsernamesManager usernamesManager = mock(UsernamesManager.class);
+    ProfilesManager profilesManager = mock(ProfilesManager.class);
+
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenReturn(new byte[0]);
+
+    AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
+
+    assertTrue(accountsManager.get("johndoe").isEmpty());
+
+    verify(binaryCommands, times(1)).get(aryEq("AccountByLogin::johndoe".getBytes()));
+    verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
+    verifyZeroInteractions(accounts);
+    verifyZeroInteractions(accountsScyllaDb);
+  }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true})
+    void testGetAccountByUserLoginMissingEverywhere(boolean dynamoEnabled) {
+    RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
+    Accounts accounts = mock(Accounts.class);
+    AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
+    DirectoryManager directoryManager = mock(DirectoryManager.class);
+    KeysScyllaDb keysScyllaDb = mock(KeysScyllaDb.class);
+    MessagesManager messagesManager = mock(MessagesManager.class);
+    UsernamesManager usernamesManager = mock(UsernamesManager.class);
+    ProfilesManager profilesManager = mock(ProfilesManager.class);
+
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenReturn(null);
+    when(accounts.get(eq("johndoe"))).thenReturn(Optional.empty());
+
+    AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
+
+    assertTrue(accountsManager.get("johndoe").isEmpty());
+
+    verify(binaryCommands, times(1)).get(aryEq("AccountByLogin::johndoe".getBytes()));
+    verify(binaryCommands, times(1)).set(aryEq("AccountByLogin::johndoe".getBytes()), aryEq(new byte[0]), any(SetArgs.class));
+    verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
+    verify(accounts, times(1)).get(eq("johndoe"));
+  }
+
+  @org.junit.jupiter.api.Test
+  void testGetAccountByUserLoginMissingWithBrokenCache() {
+    RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
+    Accounts accounts = mock(Accounts.class);
+
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenThrow(new RedisException("Connection lost!"));
+    when(binaryCommands.set(aryEq("AccountByLogin::johndoe".getBytes()), aryEq(new byte[0]), any(SetArgs.class))).thenThrow(new RedisException("Connection lost!"));
+    when(accounts.get(eq("johndoe"))).thenReturn(Optional.empty());
+
+    AccountsManager accountsManager = new AccountsManager(accounts, mock(AccountsScyllaDb.class), mock(DirectoryManager.class), cacheCluster, mock(KeysScyllaDb.class), mock(MessagesManager.class), mock(UsernamesManager.class), mock(ProfilesManager.class));
+
+    assertTrue(accountsManager.get("johndoe").isEmpty());
+
+    verify(accounts, times(1)).get(eq("johndoe"));
+  }
+
     @ParameterizedTest
     @ValueSource(booleans = {true})
     void testGetAccountByUuidNotInCache(boolean dynamoEnabled) {
     RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
-    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
     Accounts accounts = mock(Accounts.class);
     AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
     DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -161,7 +302,8 @@ verifyNoMoreInteractions(accountsScyllaDb);
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(commands.get(eq("AccountLogin::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(("Account3::" + uuid).getBytes()))).thenReturn(null);
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
@@ -170,10 +312,12 @@ verifyNoMoreInteractions(accountsScyllaDb);
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
-    verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid.toString()), anyString());
+    verify(commands, times(1)).get(eq("AccountLogin::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(("Account3::" + uuid).getBytes()));
+    verify(binaryCommands, times(1)).set(aryEq("AccountByLogin::johndoe".getBytes()), any(byte[].class));
+    verify(binaryCommands, times(1)).set(aryEq(("AccountLogin::" + uuid).getBytes()), aryEq("johndoe".getBytes()));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
@@ -186,7 +330,8 @@ verifyNoMoreInteractions(accountsScyllaDb);
     @ValueSource(booleans = {true})
     void testGetAccountByUserLoginBrokenCache(boolean dynamoEnabled) {
     RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
-    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
     Accounts accounts = mock(Accounts.class);
     AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
     DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -198,7 +343,7 @@ verifyNoMoreInteractions(accountsScyllaDb);
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("AccountMap::johndoe"))).thenThrow(new RedisException("Connection lost!"));
+    when(binaryCommands.get(aryEq("AccountByLogin::johndoe".getBytes()))).thenThrow(new RedisException("Connection lost!"));
     when(accounts.get(eq("johndoe"))).thenReturn(Optional.of(account));
 
     AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
@@ -207,10 +352,11 @@ verifyNoMoreInteractions(accountsScyllaDb);
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("AccountMap::johndoe"));
-    verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid.toString()), anyString());
+    verify(binaryCommands, times(1)).get(aryEq("AccountByLogin::johndoe".getBytes()));
+    verify(binaryCommands, times(1)).set(aryEq("AccountByLogin::johndoe".getBytes()), any(byte[].class));
+    verify(binaryCommands, times(1)).set(aryEq(("AccountLogin::" + uuid).getBytes()), aryEq("johndoe".getBytes()));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq("johndoe"));
     verifyNoMoreInteractions(accounts);
@@ -223,7 +369,8 @@ verifyNoMoreInteractions(accountsScyllaDb);
     @ValueSource(booleans = {true})
     void testGetAccountByUuidBrokenCache(boolean dynamoEnabled) {
     RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
-    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+    RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+    FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
     Accounts accounts = mock(Accounts.class);
     AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
     DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -235,7 +382,7 @@ verifyNoMoreInteractions(accountsScyllaDb);
     UUID uuid = UUID.randomUUID();
     Account account = new Account("johndoe", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenThrow(new RedisException("Connection lost!"));
+    when(commands.get(eq("AccountLogin::" + uuid))).thenThrow(new RedisException("Connection lost!"));
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
@@ -244,10 +391,11 @@ verifyNoMoreInteractions(accountsScyllaDb);
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
-    verify(commands, times(1)).set(eq("AccountMap::johndoe"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid.toString()), anyString());
+    verify(commands, times(1)).get(eq("AccountLogin::" + uuid));
+    verify(binaryCommands, times(1)).set(aryEq("AccountByLogin::johndoe".getBytes()), any(byte[].class));
+    verify(binaryCommands, times(1)).set(aryEq(("AccountLogin::" + uuid).getBytes()), aryEq("johndoe".getBytes()));
     verifyNoMoreInteractions(commands);
+    verifyNoMoreInteractions(binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
@@ -260,7 +408,8 @@ verifyNoMoreInteractions(accountsScyllaDb);
     @ValueSource(booleans = {true})
     void testUpdate_dynamoDbMigration(boolean dynamoEnabled) {
       RedisAdvancedClusterCommands<String, String> commands            = mock(RedisAdvancedClusterCommands.class);
-      FaultTolerantRedisCluster                    cacheCluster        = RedisClusterHelper.buildMockRedisCluster(commands);
+      RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+      FaultTolerantRedisCluster                    cacheCluster        = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
       Accounts                                     accounts            = mock(Accounts.class);
       AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
       DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -270,8 +419,7 @@ verifyNoMoreInteractions(accountsScyllaDb);
       ProfilesManager                              profilesManager     = mock(ProfilesManager.class);      
       UUID                                         uuid                = UUID.randomUUID();
       Account                                      account             = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
-      
-      when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+
 
       AccountsManager   accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
 
@@ -291,7 +439,8 @@ verifyNoMoreInteractions(accountsScyllaDb);
     @Test
     void testUpdate_dynamoConditionFailed() {
       RedisAdvancedClusterCommands<String, String> commands            = mock(RedisAdvancedClusterCommands.class);
-      FaultTolerantRedisCluster                    cacheCluster        = RedisClusterHelper.buildMockRedisCluster(commands);
+      RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+      FaultTolerantRedisCluster                    cacheCluster        = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
       Accounts                                     accounts            = mock(Accounts.class);
       AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
       DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -304,7 +453,6 @@ verifyNoMoreInteractions(accountsScyllaDb);
       
       long directoryVersion = 10L;
       
-      when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
       doThrow(ConditionalCheckFailedException.class).when(accountsScyllaDb).update(any(Account.class));
 
       AccountsManager   accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, keysScyllaDb, messagesManager, usernamesManager, profilesManager);
@@ -327,7 +475,8 @@ verifyNoMoreInteractions(accountsScyllaDb);
     @Test
     void testCompareAccounts() throws Exception {
       RedisAdvancedClusterCommands<String, String> commands            = mock(RedisAdvancedClusterCommands.class);
-      FaultTolerantRedisCluster                    cacheCluster        = RedisClusterHelper.buildMockRedisCluster(commands);
+      RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+      FaultTolerantRedisCluster                    cacheCluster        = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
       Accounts                                     accounts            = mock(Accounts.class);
       AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
       DirectoryManager directoryManager = mock(DirectoryManager.class);
@@ -406,4 +555,67 @@ verifyNoMoreInteractions(accountsScyllaDb);
 
       assertEquals(Optional.of("profileName"), accountsManager.compareAccounts(Optional.of(a1), Optional.of(a2)));
     }
-}
\ No newline at end of file
+
+    @org.junit.jupiter.api.Test
+    void testWritePlainDirectoryEntries() throws Exception {
+      RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+      RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+      FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
+      Accounts accounts = mock(Accounts.class);
+      DirectoryManager directoryManager = mock(DirectoryManager.class);
+      DirectoryManager.BatchOperationHandle batchOperation = mock(DirectoryManager.BatchOperationHandle.class);
+
+      List<Account> firstChunk = new ArrayList<>();
+      for (int i = 0; i < 1000; i++) {
+        firstChunk.add(new Account("user" + i, UUID.randomUUID(), new HashSet<>(), new byte[16]));
+      }
+      Account lastAccount = new Account("last", UUID.randomUUID(), new HashSet<>(), new byte[16]);
+
+      when(accounts.getAllFrom(1000)).thenReturn(firstChunk);
+      when(accounts.getAllFrom(firstChunk.get(999).getUuid(), 1000)).thenReturn(List.of(lastAccount));
+
+      AccountsManager accountsManager = new AccountsManager(accounts, mock(AccountsScyllaDb.class), directoryManager, cacheCluster, mock(KeysScyllaDb.class),
+          mock(MessagesManager.class), mock(UsernamesManager.class), mock(ProfilesManager.class));
+
+      Set<String> written = accountsManager.writePlainDirectoryEntries(batchOperation);
+
+      assertEquals(1001, written.size());
+      assertTrue(written.contains("last"));
+
+      // each chunk starts after the last account of the one before, and is written with a single command
+      verify(accounts).getAllFrom(1000);
+      verify(accounts).getAllFrom(firstChunk.get(999).getUuid(), 1000);
+      verify(accounts, never()).getAll(anyInt(), anyInt());
+      verify(directoryManager, times(2)).redisUpdatePlainDirectory(eq(batchOperation), anyMap());
+      verify(commands, times(2)).setex(eq("DirectoryRestoreLock"), anyLong(), any());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testRestoreDirectoryVersion() {
+      RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+      RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands = mock(RedisAdvancedClusterCommands.class);
+      FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands);
+      Accounts accounts = mock(Accounts.class);
+      AccountsScyllaDb accountsScyllaDb = mock(AccountsScyllaDb.class);
+      DirectoryManager directoryManager = mock(DirectoryManager.class);
+
+      AccountsManager accountsManager = new AccountsManager(accounts, accountsScyllaDb, directoryManager, cacheCluster, mock(KeysScyllaDb.class),
+          mock(MessagesManager.class), mock(UsernamesManager.class), mock(ProfilesManager.class));
+
+      when(directoryManager.getDirectoryVersion()).thenReturn(Optional.empty());
+      when(accounts.restoreDirectoryVersion()).thenReturn(10L);
+      when(accountsScyllaDb.getDirectoryVersion()).thenReturn(Optional.of(12L));
+
+      assertEquals(12L, accountsManager.getDirectoryVersion());
+      verify(directoryManager).setDirectoryVersion(12L);
+
+      when(accounts.restoreDirectoryVersion()).thenThrow(new IllegalStateException());
+
+      assertEquals(12L, accountsManager.getDirectoryVersion());
+
+      when(accountsScyllaDb.getDirectoryVersion()).thenThrow(new RuntimeException());
+
+      assertEquals(0L, accountsManager.getDirectoryVersion());
+      verify(directoryManager).setDirectoryVersion(0L);
+    }
+}
@@ -330,6 +330,21 @@ class AccountsScyllaDbTest {
     verifyRecentlyDeletedAccountsTableItemCount(0);
   }
 
+  @Test
+  void testDirectoryVersion() {
+    final Account deletedAccount = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(generateDevice(1)));
+    final Account retainedAccount = generateAccount("+14151112345", UUID.randomUUID(), Collections.singleton(generateDevice(1)));
+    long directoryVersion = 10L;
+
+    assertThat(accountsScyllaDb.getDirectoryVersion()).isEmpty();
+
+    accountsScyllaDb.create(deletedAccount, directoryVersion);
+    accountsScyllaDb.create(retainedAccount, directoryVersion + 1);
+    accountsScyllaDb.delete(deletedAccount.getUuid(), directoryVersion + 2);
+
+    assertThat(accountsScyllaDb.getDirectoryVersion()).contains(directoryVersion + 2);
+  }
+
   private void verifyRecentlyDeletedAccountsTableItemCount(int expectedItemCount) {
     int totalItems = 0;
 
@@ -267,6 +267,40 @@ public class AccountsTest {
     verifyStoredState("johndoe", account.getUuid(), retrieved.get(), account);
   }
 
+  @Test
+  public void testRestoreDirectoryVersion() {
+    final Account deletedAccount = generateAccount("+14151112222", UUID.randomUUID(), Collections.singleton(generateDevice(1)));
+    final Account retainedAccount = generateAccount("+14151112345", UUID.randomUUID(), Collections.singleton(generateDevice(1)));
+
+    long directoryVersion = 10;
+
+    accounts.create(deletedAccount, directoryVersion);
+    accounts.create(retainedAccount, directoryVersion + 1);
+    accounts.delete(deletedAccount.getUuid(), directoryVersion + 2);
+
+    assertThat(accounts.restoreDirectoryVersion()).isEqualTo(directoryVersion + 2);
+
+    accounts.vacuum();
+
+    assertThat(accounts.restoreDirectoryVersion()).isEqualTo(directoryVersion + 2);
+  }
+
+  @Test
+  public void testDirectoryVersionsPruned() throws SQLException {
+    final long latestVersion = Accounts.RETAINED_DIRECTORY_VERSIONS + 50;
+
+    for (long directoryVersion = 1; directoryVersion <= latestVersion; directoryVersion++) {
+      accounts.create(generateAccount("+1415" + directoryVersion, UUID.randomUUID(), Collections.singleton(generateDevice(1))), directoryVersion);
+    }
+
+    ResultSet resultSet = db.getTestDatabase().getConnection().prepareStatement("SELECT COUNT(*), MIN(version) FROM directory_versions").executeQuery();
+    assertThat(resultSet.next()).isTrue();
+    assertThat(resultSet.getLong(1)).isEqualTo(Accounts.RETAINED_DIRECTORY_VERSIONS);
+    assertThat(resultSet.getLong(2)).isEqualTo(latestVersion - Accounts.RETAINED_DIRECTORY_VERSIONS + 1);
+
+    assertThat(accounts.restoreDirectoryVersion()).isEqualTo(latestVersion);
+  }
+
   @Test
   public void testMissing() {
     Device device = generateDevice(1);
@@ -0,0 +1,170 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package su.sres.shadowserver.storage;
+
+import com.google.protobuf.ByteString;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+import su.sres.shadowserver.util.MessagesDynamoDbRule;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BucketedMessagesScyllaDbTest {
+
+    private static final Duration BUCKET_DURATION = Duration.ofHours(1);
+    private static final Duration TIME_TO_LIVE = Duration.ofDays(7);
+
+    private static final long START_TIME = Instant.parse("2022-01-01T00:00:00Z").toEpochMilli();
+
+    private final Clock clock = mock(Clock.class);
+
+    private BucketedMessagesScyllaDb messagesScyllaDb;
+
+    @ClassRule
+    public static MessagesDynamoDbRule dynamoDbRule = new MessagesDynamoDbRule();
+
+    @Before
+    public void setup() {
+	when(clock.millis()).thenReturn(START_TIME);
+	messagesScyllaDb = new BucketedMessagesScyllaDb(dynamoDbRule.getDynamoDbClient(), MessagesDynamoDbRule.TABLE_NAME, TIME_TO_LIVE, BUCKET_DURATION, clock);
+    }
+
+    @Test
+    public void testLoadAcrossBuckets() {
+	final UUID destinationUuid = UUID.randomUUID();
+
+	final MessageProtos.Envelope first = generateMessage(START_TIME);
+	final MessageProtos.Envelope second = generateMessage(START_TIME + 1);
+	final MessageProtos.Envelope third = generateMessage(START_TIME + BUCKET_DURATION.toMillis());
+
+	messagesScyllaDb.store(List.of(first, second), destinationUuid, 1);
+
+	when(clock.millis()).thenReturn(START_TIME + BUCKET_DURATION.toMillis());
+	messagesScyllaDb.store(List.of(third), destinationUuid, 1);
+	messagesScyllaDb.store(List.of(generateMessage(START_TIME)), destinationUuid, 2);
+
+	assertThat(messagesScyllaDb.getBuckets(destinationUuid, 1)).hasSize(2);
+	assertThat(guids(messagesScyllaDb.load(destinationUuid, 1, 100))).containsExactly(guid(first), guid(second), guid(third));
+	assertThat(guids(messagesScyllaDb.load(destinationUuid, 1, 2))).containsExactly(guid(first), guid(second));
+    }
+
+    @Test
+    public void testEmptyClosedBucketsRemoved() {
+	final UUID destinationUuid = UUID.randomUUID();
+	final MessageProtos.Envelope message = generateMessage(START_TIME);
+
+	messagesScyllaDb.store(List.of(message), destinationUuid, 1);
+	assertThat(messagesScyllaDb.deleteMessageByDestinationAndGuid(destinationUuid, 1, guid(message))).isPresent();
+
+	// the bucket may still receive messages from servers with lagging clocks
+	when(clock.millis()).thenReturn(START_TIME + BUCKET_DURATION.toMillis());
+	assertThat(messagesScyllaDb.load(destinationUuid, 1, 100)).isEmpty();
+	assertThat(messagesScyllaDb.getBuckets(destinationUuid, 1)).hasSize(1);
+
+	when(clock.millis()).thenReturn(START_TIME + 2 * BUCKET_DURATION.toMillis());
+	assertThat(messagesScyllaDb.load(destinationUuid, 1, 100)).isEmpty();
+	assertThat(messagesScyllaDb.getBuckets(destinationUuid, 1)).isEmpty();
+    }
+
+    @Test
+    public void testDeleteBySourceAndTimestamp() {
+	final UUID destinationUuid = UUID.randomUUID();
+	final MessageProtos.Envelope first = generateMessage(START_TIME);
+
+	messagesScyllaDb.store(List.of(first), destinationUuid, 1);
+
+	when(clock.millis()).thenReturn(START_TIME + BUCKET_DURATION.toMillis());
+	final MessageProtos.Envelope second = generateMessage(START_TIME + BUCKET_DURATION.toMillis());
+	messagesScyllaDb.store(List.of(second), destinationUuid, 1);
+
+	final Optional<OutgoingMessageEntity> removed = messagesScyllaDb.deleteMessageByDestinationAndSourceAndTimestamp(destinationUuid, 1, second.getSource(), second.getTimestamp());
+
+	assertThat(removed).isPresent();
+	assertThat(removed.get().getGuid()).isEqualTo(guid(second));
+
+	assertThat(guids(messagesScyllaDb.load(destinationUuid, 1, 100))).containsExactly(guid(first));
+    }
+
+    @Test
+    public void testDeleteForDestination() {
+	final UUID destinationUuid = UUID.randomUUID();
+
+	messagesScyllaDb.store(List.of(generateMessage(START_TIME)), destinationUuid, 1);
+	messagesScyllaDb.store(List.of(generateMessage(START_TIME)), destinationUuid, 2);
+
+	when(clock.millis()).thenReturn(START_TIME + BUCKET_DURATION.toMillis());
+	messagesScyllaDb.store(List.of(generateMessage(START_TIME + BUCKET_DURATION.toMillis())), destinationUuid, 1);
+
+	messagesScyllaDb.deleteAllMessagesForDevice(destinationUuid, 1);
+
+	assertThat(messagesScyllaDb.load(destinationUuid, 1, 100)).isEmpty();
+	assertThat(messagesScyllaDb.getBuckets(destinationUuid, 1)).isEmpty();
+	assertThat(messagesScyllaDb.load(destinationUuid, 2, 100)).hasSize(1);
+
+	messagesScyllaDb.deleteAllMessagesForAccount(destinationUuid);
+
+	assertThat(messagesScyllaDb.load(destinationUuid, 2, 100)).isEmpty();
+	assertThat(messagesScyllaDb.getBuckets(destinationUuid, 2)).isEmpty();
+    }
+
+    @Test
+    public void testDeleteExpiredMessages() {
+	final UUID destinationUuid = UUID.randomUUID();
+
+	messagesScyllaDb.store(List.of(generateMessage(START_TIME), generateMessage(START_TIME + 1)), destinationUuid, 1);
+
+	final long laterTime = START_TIME + BUCKET_DURATION.multipliedBy(3).toMillis();
+	final MessageProtos.Envelope unexpired = generateMessage(laterTime);
+
+	when(clock.millis()).thenReturn(laterTime);
+	messagesScyllaDb.store(List.of(unexpired), destinationUuid, 1);
+
+	// the first bucket has expired as a whole, the later one has not
+	final Instant now = Instant.ofEpochMilli(START_TIME).plus(TIME_TO_LIVE).plus(BUCKET_DURATION.multipliedBy(2));
+
+	assertThat(messagesScyllaDb.deleteExpiredMessagesForDevice(destinationUuid, 1, now, 1)).isEqualTo(1);
+	assertThat(messagesScyllaDb.deleteExpiredMessagesForDevice(destinationUuid, 1, now, 100)).isEqualTo(1);
+	assertThat(messagesScyllaDb.deleteExpiredMessagesForDevice(destinationUuid, 1, now, 100)).isEqualTo(0);
+
+	assertThat(messagesScyllaDb.getBuckets(destinationUuid, 1)).hasSize(1);
+	assertThat(guids(messagesScyllaDb.load(destinationUuid, 1, 100))).containsExactly(guid(unexpired));
+    }
+
+    private static MessageProtos.Envelope generateMessage(final long serverTimestamp) {
+	return MessageProtos.Envelope.newBuilder()
+		.setType(MessageProtos.Envelope.Type.CIPHERTEXT)
+		.setTimestamp(serverTimestamp - 10)
+		.setSource("12348675309")
+		.setSourceUuid(UUID.randomUUID().toString())
+		.setSourceDevice(1)
+		.setContent(ByteString.copyFromUtf8("MOO"))
+		.setServerGuid(UUID.randomUUID().toString())
+		.setServerTimestamp(serverTimestamp)
+		.build();
+    }
+
+    private static UUID guid(final MessageProtos.Envelope message) {
+	return UUID.fromString(message.getServerGuid());
+    }
+
+    private static List<UUID> guids(final List<OutgoingMessageEntity> messages) {
+	return messages.stream().map(OutgoingMessageEntity::getGuid).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import su.sres.shadowserver.redis.AbstractRedisSingletonTest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryManagerTest extends AbstractRedisSingletonTest {
+
+  private DirectoryManager directoryManager;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+
+    directoryManager = new DirectoryManager(getRedisClient());
+  }
+
+  @Test
+  public void testBatchOperation() {
+    assertFalse(directoryManager.isPlainDirectoryExisting());
+
+    final DirectoryManager.BatchOperationHandle handle = directoryManager.startBatchOperation();
+
+    // enough entries to cross the in-flight limit at least once
+    for (int i = 0; i < 2_500; i++) {
+      directoryManager.redisUpdatePlainDirectory(handle, "user" + i, "value" + i);
+    }
+
+    directoryManager.redisRemoveFromPlainDirectory(handle, "user0");
+    directoryManager.stopBatchOperation(handle);
+
+    final HashMap<String, String> directory = directoryManager.retrievePlainDirectory();
+
+    assertTrue(directoryManager.isPlainDirectoryExisting());
+    assertEquals(2_499, directory.size());
+    assertFalse(directory.containsKey("user0"));
+    assertEquals("value2499", directory.get("user2499"));
+  }
+
+  @Test
+  public void testBatchOperationWithEntryMaps() {
+    final DirectoryManager.BatchOperationHandle handle = directoryManager.startBatchOperation();
+
+    directoryManager.redisUpdatePlainDirectory(handle, Map.of("alice", "a", "bob", "b"));
+    directoryManager.redisUpdatePlainDirectory(handle, Map.of());
+    directoryManager.redisUpdatePlainDirectory(handle, Map.of("carol", "c"));
+    directoryManager.stopBatchOperation(handle);
+
+    assertEquals(Map.of("alice", "a", "bob", "b", "carol", "c"), directoryManager.retrievePlainDirectory());
+  }
+
+  @Test
+  public void testDirectoryVersion() {
+    assertEquals(Optional.empty(), directoryManager.getDirectoryVersion());
+
+    directoryManager.setDirectoryVersion(17);
+
+    assertEquals(Optional.of(17L), directoryManager.getDirectoryVersion());
+  }
+
+  @Test
+  public void testIncrementalUpdates() {
+    // version 1: alice and bob
+    setPlainDirectory(Map.of("alice", "a", "bob", "b"));
+    directoryManager.buildHistoricDirectories(1);
+    directoryManager.setDirectoryVersion(1);
+
+    // version 2: bob removed, carol added
+    setPlainDirectory(Map.of("alice", "a", "carol", "c"));
+    directoryManager.buildIncrementalUpdates(1);
+
+    assertEquals(Map.of("bob", "-1", "carol", "c"), directoryManager.retrieveIncrementalUpdate(1));
+
+    // version 3: alice re-registered
+    directoryManager.buildHistoricDirectories(2);
+    setPlainDirectory(Map.of("alice", "a2", "carol", "c"));
+    directoryManager.buildIncrementalUpdates(2);
+
+    assertEquals(Map.of("alice", "a2"), directoryManager.retrieveIncrementalUpdate(1));
+    assertEquals(Map.of("alice", "a2", "bob", "-1", "carol", "c"), directoryManager.retrieveIncrementalUpdate(2));
+
+    directoryManager.flushIncrementalUpdates(2);
+
+    assertTrue(directoryManager.retrieveIncrementalUpdate(1).isEmpty());
+    assertTrue(directoryManager.retrieveIncrementalUpdate(2).isEmpty());
+  }
+
+  @Test
+  public void testLargeIncrementalUpdates() {
+    final Map<String, String> initialDirectory = new HashMap<>();
+    final Map<String, String> updatedDirectory = new HashMap<>();
+
+    // enough entries that copying the directory and writing the update each take several commands
+    for (int i = 0; i < 2_500; i++) {
+      initialDirectory.put("user" + i, "value" + i);
+    }
+
+    for (int i = 1_200; i < 3_700; i++) {
+      updatedDirectory.put("user" + i, "value" + i);
+    }
+
+    setPlainDirectory(initialDirectory);
+    directoryManager.buildHistoricDirectories(1);
+
+    setPlainDirectory(updatedDirectory);
+    directoryManager.buildHistoricDirectories(2);
+    directoryManager.buildIncrementalUpdates(2);
+
+    final HashMap<String, String> incrementalUpdate = directoryManager.retrieveIncrementalUpdate(2);
+
+    assertEquals(2_400, incrementalUpdate.size());
+    assertEquals("-1", incrementalUpdate.get("user0"));
+    assertEquals("value3699", incrementalUpdate.get("user3699"));
+    assertFalse(incrementalUpdate.containsKey("user1200"));
+
+    // the depth 1 update is from a copy of the current directory, so it is empty
+    assertEquals(Map.of("", ""), directoryManager.retrieveIncrementalUpdate(1));
+  }
+
+  @Test
+  public void testHistoricDirectoriesWithGap() {
+    setPlainDirectory(Map.of("alice", "a"));
+    directoryManager.buildHistoricDirectories(1);
+
+    // a missing historic directory leaves the one below it missing after the shift
+    getRedisClient().useClient(connection -> connection.sync().del(directoryManager.getDirectoryHistoricKey(1)));
+    directoryManager.buildHistoricDirectories(3);
+
+    setPlainDirectory(Map.of("bob", "b"));
+    directoryManager.buildIncrementalUpdates(3);
+
+    assertEquals(Map.of("alice", "-1", "bob", "b"), directoryManager.retrieveIncrementalUpdate(1));
+    assertTrue(directoryManager.retrieveIncrementalUpdate(2).isEmpty());
+    assertTrue(directoryManager.retrieveIncrementalUpdate(3).isEmpty());
+  }
+
+  @Test
+  public void testDirectoryReadLock() {
+    assertFalse(directoryManager.getDirectoryReadLock());
+
+    directoryManager.setDirectoryReadLock();
+    assertTrue(directoryManager.getDirectoryReadLock());
+
+    directoryManager.releaseDirectoryReadLock();
+    assertFalse(directoryManager.getDirectoryReadLock());
+  }
+
+  private void setPlainDirectory(final Map<String, String> entries) {
+    getRedisClient().useClient(connection -> {
+      connection.sync().del(DirectoryManager.DIRECTORY_PLAIN);
+      connection.sync().hset(DirectoryManager.DIRECTORY_PLAIN, entries);
+    });
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class ExpiredMessagesSweeperTest {
+
+  private static final Instant NOW = Instant.ofEpochMilli(1_600_000_000_000L);
+
+  private final MessagesScyllaDb messagesScyllaDb = mock(MessagesScyllaDb.class);
+
+  private final ExpiredMessagesSweeper sweeper = new ExpiredMessagesSweeper(messagesScyllaDb, Clock.fixed(NOW, ZoneId.systemDefault()));
+
+  @Test
+  void sweepAllDevices() {
+    final Account account = mockAccount(1L, 2L);
+
+    when(messagesScyllaDb.deleteExpiredMessagesForDevice(any(UUID.class), anyLong(), any(Instant.class), anyInt())).thenReturn(10);
+
+    sweeper.onCrawlChunk(Optional.empty(), List.of(account));
+
+    verify(messagesScyllaDb).deleteExpiredMessagesForDevice(account.getUuid(), 1L, NOW, ExpiredMessagesSweeper.MAX_DELETIONS_PER_CHUNK);
+    verify(messagesScyllaDb).deleteExpiredMessagesForDevice(eq(account.getUuid()), eq(2L), eq(NOW), anyInt());
+  }
+
+  @Test
+  void sweepStopsAtDeletionLimit() {
+    final Account firstAccount = mockAccount(1L);
+    final Account secondAccount = mockAccount(1L);
+
+    when(messagesScyllaDb.deleteExpiredMessagesForDevice(any(UUID.class), anyLong(), any(Instant.class), anyInt()))
+        .thenReturn(ExpiredMessagesSweeper.MAX_DELETIONS_PER_CHUNK);
+
+    sweeper.onCrawlChunk(Optional.empty(), List.of(firstAccount, secondAccount));
+
+    verify(messagesScyllaDb).deleteExpiredMessagesForDevice(firstAccount.getUuid(), 1L, NOW, ExpiredMessagesSweeper.MAX_DELETIONS_PER_CHUNK);
+    verify(messagesScyllaDb, never()).deleteExpiredMessagesForDevice(eq(secondAccount.getUuid()), anyLong(), any(Instant.class), anyInt());
+  }
+
+  @Test
+  void sweepContinuesAfterFailure() {
+    final Account firstAccount = mockAccount(1L);
+    final Account secondAccount = mockAccount(1L);
+
+    when(messagesScyllaDb.deleteExpiredMessagesForDevice(eq(firstAccount.getUuid()), anyLong(), any(Instant.class), anyInt()))
+        .thenThrow(new RuntimeException("OH NO"));
+
+    sweeper.onCrawlChunk(Optional.empty(), List.of(firstAccount, secondAccount));
+
+    verify(messagesScyllaDb).deleteExpiredMessagesForDevice(secondAccount.getUuid(), 1L, NOW, ExpiredMessagesSweeper.MAX_DELETIONS_PER_CHUNK);
+  }
+
+  private static Account mockAccount(final long... deviceIds) {
+    final Account account = mock(Account.class);
+    final Set<Device> devices = new LinkedHashSet<>();
+
+    for (final long deviceId : deviceIds) {
+      final Device device = mock(Device.class);
+      when(device.getId()).thenReturn(deviceId);
+      devices.add(device);
+    }
+
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(account.getDevices()).thenReturn(devices);
+
+    return account;
+  }
+}
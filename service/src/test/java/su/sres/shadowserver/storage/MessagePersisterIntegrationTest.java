@@ -20,6 +20,7 @@ import org.junit.Test;
 import su.sres.shadowserver.configuration.dynamic.DynamicConfiguration;
 import su.sres.shadowserver.entities.MessageProtos;
 import su.sres.shadowserver.metrics.PushLatencyManager;
+import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.redis.AbstractRedisClusterTest;
 import su.sres.shadowserver.util.AttributeValues;
 import su.sres.shadowserver.util.MessagesDynamoDbRule;
@@ -71,7 +72,7 @@ public class MessagePersisterIntegrationTest extends AbstractRedisClusterTest {
     notificationExecutorService = Executors.newSingleThreadExecutor();
     messagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService);
     messagesManager = new MessagesManager(messagesScyllaDb, messagesCache, mock(PushLatencyManager.class), mock(ReportMessageManager.class));
-    messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfiguration, PERSIST_DELAY);
+    messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, mock(ClientPresenceManager.class), dynamicConfiguration, PERSIST_DELAY, QueuePersistencePriority.OLDEST_FIRST);
 
     account = mock(Account.class);
 
@@ -15,6 +15,7 @@ import org.mockito.stubbing.Answer;
 
 import su.sres.shadowserver.configuration.dynamic.DynamicConfiguration;
 import su.sres.shadowserver.entities.MessageProtos;
+import su.sres.shadowserver.push.ClientPresenceManager;
 import su.sres.shadowserver.redis.AbstractRedisClusterTest;
 
 import java.nio.charset.StandardCharsets;
@@ -45,6 +46,9 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
   private MessagesScyllaDb messagesScyllaDb;
   private MessagePersister messagePersister;
   private AccountsManager accountsManager;
+  private ClientPresenceManager clientPresenceManager;
+  private MessagesManager messagesManager;
+  private DynamicConfiguration dynamicConfiguration;
 
   private static final UUID DESTINATION_ACCOUNT_UUID = UUID.randomUUID();
   private static final String DESTINATION_ACCOUNT_NUMBER = "+18005551234";
@@ -57,11 +61,12 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
   public void setUp() throws Exception {
     super.setUp();
 
-    final MessagesManager messagesManager = mock(MessagesManager.class);
-    final DynamicConfiguration dynamicConfiguration = mock(DynamicConfiguration.class);
+    messagesManager = mock(MessagesManager.class);
+    dynamicConfiguration = mock(DynamicConfiguration.class);
 
     messagesScyllaDb = mock(MessagesScyllaDb.class);
     accountsManager = mock(AccountsManager.class);
+    clientPresenceManager = mock(ClientPresenceManager.class);
 
     final Account account = mock(Account.class);
 
@@ -70,7 +75,7 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
 
     notificationExecutorService = Executors.newSingleThreadExecutor();
     messagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService);
-    messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfiguration, PERSIST_DELAY);
+    messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, clientPresenceManager, dynamicConfiguration, PERSIST_DELAY, QueuePersistencePriority.OLDEST_FIRST);
 
     doAnswer(invocation -> {
       final UUID destinationUuid = invocation.getArgument(0);
@@ -133,6 +138,85 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
     verify(messagesScyllaDb, never()).store(any(), any(), anyLong());
   }
 
+  @Test
+  public void testPersistNextQueuesDeferredWhileDraining() {
+    final String queueName = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+    final Instant now = Instant.now();
+
+    insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 10, now);
+    setNextSlotToPersist(SlotHash.getSlot(queueName));
+
+    when(clientPresenceManager.isPresent(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID)).thenReturn(true);
+    messagesCache.get(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 5);
+
+    final Instant persistTime = now.plus(messagePersister.getPersistDelay());
+    messagePersister.persistNextQueues(persistTime);
+
+    verify(messagesScyllaDb, never()).store(any(), any(), anyLong());
+
+    // the queue comes up again once the deferral has passed
+    assertEquals(List.of(), messagesCache.getQueuesToPersist(SlotHash.getSlot(queueName), now, 1));
+    assertEquals(List.of(queueName),
+        messagesCache.getQueuesToPersist(SlotHash.getSlot(queueName), now.plus(MessagePersister.DEFER_INTERVAL), 1));
+  }
+
+  @Test
+  public void testPersistNextQueuesDrainingDeviceNotPresent() {
+    final String queueName = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+    final Instant now = Instant.now();
+
+    insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 10, now);
+    setNextSlotToPersist(SlotHash.getSlot(queueName));
+
+    when(clientPresenceManager.isPresent(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID)).thenReturn(false);
+    messagesCache.get(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 5);
+
+    messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay()));
+
+    verify(messagesScyllaDb, atLeastOnce()).store(any(), eq(DESTINATION_ACCOUNT_UUID), eq(DESTINATION_DEVICE_ID));
+  }
+
+  @Test
+  public void testPersistNextQueuesDeferredAfterAgeSpill() throws Exception {
+    final MessagesCache spillingCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService, 0, Duration.ofMinutes(1), PayloadCompressor.DISABLED);
+    final MessagePersister spillingPersister = new MessagePersister(spillingCache, messagesManager, accountsManager, clientPresenceManager, dynamicConfiguration, PERSIST_DELAY, QueuePersistencePriority.OLDEST_FIRST);
+
+    final String queueName = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+    final Instant now = Instant.now();
+
+    insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 10, now);
+    setNextSlotToPersist(SlotHash.getSlot(queueName));
+
+    // every persisted queue is spilled, but a device that has since reconnected may still drain it
+    spillingCache.spillQueue(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID);
+
+    when(clientPresenceManager.isPresent(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID)).thenReturn(true);
+    spillingCache.get(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 5);
+
+    spillingPersister.persistNextQueues(now.plus(spillingPersister.getPersistDelay()));
+
+    verify(messagesScyllaDb, never()).store(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testPersistNextQueuesNotDeferredAfterSizeSpill() throws Exception {
+    final MessagesCache spillingCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService, 10, Duration.ofMinutes(1), PayloadCompressor.DISABLED);
+    final MessagePersister spillingPersister = new MessagePersister(spillingCache, messagesManager, accountsManager, clientPresenceManager, dynamicConfiguration, PERSIST_DELAY, QueuePersistencePriority.OLDEST_FIRST);
+
+    final String queueName = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+    final Instant now = Instant.now();
+
+    insertMessages(spillingCache, DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 10, now);
+    setNextSlotToPersist(SlotHash.getSlot(queueName));
+
+    when(clientPresenceManager.isPresent(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID)).thenReturn(true);
+    spillingCache.get(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 5);
+
+    spillingPersister.persistNextQueues(now.plus(spillingPersister.getPersistDelay()));
+
+    verify(messagesScyllaDb, atLeastOnce()).store(any(), eq(DESTINATION_ACCOUNT_UUID), eq(DESTINATION_DEVICE_ID));
+  }
+
   @Test
   public void testPersistNextQueuesMultiplePages() {
     final int slot = 7;
@@ -183,6 +267,108 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
         messagesCache.getQueuesToPersist(SlotHash.getSlot(queueName), Instant.now().plus(messagePersister.getPersistDelay()), 1));
   }
 
+  @Test
+  public void testPrioritizeLargestFirst() {
+    final MessagePersister largestFirstPersister = new MessagePersister(messagesCache, mock(MessagesManager.class), accountsManager, clientPresenceManager,
+        mock(DynamicConfiguration.class), PERSIST_DELAY, QueuePersistencePriority.LARGEST_FIRST);
+
+    final int slot = 7;
+    final String smallQueue = generateRandomQueueNameForSlot(slot);
+    final String largeQueue = generateRandomQueueNameForSlot(slot);
+    final String missingQueue = generateRandomQueueNameForSlot(slot);
+    final Instant now = Instant.now();
+
+    insertMessages(MessagesCache.getAccountUuidFromQueueName(smallQueue), MessagesCache.getDeviceIdFromQueueName(smallQueue), 1, now);
+    insertMessages(MessagesCache.getAccountUuidFromQueueName(largeQueue), MessagesCache.getDeviceIdFromQueueName(largeQueue), 50, now);
+
+    assertEquals(List.of(largeQueue, smallQueue, missingQueue), largestFirstPersister.prioritize(List.of(missingQueue, smallQueue, largeQueue)));
+    assertEquals(List.of(missingQueue, smallQueue, largeQueue), messagePersister.prioritize(List.of(missingQueue, smallQueue, largeQueue)));
+  }
+
+  @Test
+  public void testSelectSlotNoQueues() {
+    setNextSlotToPersist(100);
+
+    assertEquals(100, messagePersister.selectSlot(Instant.now()));
+  }
+
+  @Test
+  public void testSelectSlotOldestFirst() {
+    final Instant now = Instant.now();
+
+    insertMessagesForSlot(100, 1, now);
+    insertMessagesForSlot(103, 1, now.minusSeconds(60));
+
+    // outside the candidates, however old
+    insertMessagesForSlot(100 + MessagePersister.SLOT_CANDIDATE_COUNT, 1, now.minusSeconds(120));
+
+    setNextSlotToPersist(100);
+
+    assertEquals(103, messagePersister.selectSlot(now));
+  }
+
+  @Test
+  public void testSelectSlotLargestFirst() {
+    final MessagePersister largestFirstPersister = new MessagePersister(messagesCache, messagesManager, accountsManager, clientPresenceManager,
+        dynamicConfiguration, PERSIST_DELAY, QueuePersistencePriority.LARGEST_FIRST);
+
+    final Instant now = Instant.now();
+
+    insertMessagesForSlot(100, 1, now.minusSeconds(60));
+    insertMessagesForSlot(103, 50, now);
+
+    // not yet ready to persist, however large
+    insertMessagesForSlot(104, 100, now.plusSeconds(60));
+
+    setNextSlotToPersist(100);
+
+    assertEquals(103, largestFirstPersister.selectSlot(now));
+  }
+
+  @Test
+  public void testSelectSlotOverdue() {
+    final MessagePersister largestFirstPersister = new MessagePersister(messagesCache, messagesManager, accountsManager, clientPresenceManager,
+        dynamicConfiguration, PERSIST_DELAY, QueuePersistencePriority.LARGEST_FIRST);
+
+    final Instant now = Instant.now();
+
+    // the slot leaving the candidates has waited too long to lose out to a larger one
+    insertMessagesForSlot(100, 1, now.minus(PERSIST_DELAY).minusSeconds(1));
+    insertMessagesForSlot(103, 50, now);
+
+    setNextSlotToPersist(100);
+
+    assertEquals(100, largestFirstPersister.selectSlot(now));
+  }
+
+  @Test
+  public void testPersistNextQueuesSelectsSlot() {
+    final Instant now = Instant.now();
+
+    final String newerQueue = insertMessagesForSlot(100, 1, now);
+    final String olderQueue = insertMessagesForSlot(103, 1, now.minusSeconds(60));
+
+    setNextSlotToPersist(100);
+
+    messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay()));
+
+    verify(messagesScyllaDb, atLeastOnce()).store(any(), eq(MessagesCache.getAccountUuidFromQueueName(olderQueue)), anyLong());
+    verify(messagesScyllaDb, never()).store(any(), eq(MessagesCache.getAccountUuidFromQueueName(newerQueue)), anyLong());
+  }
+
+  private String insertMessagesForSlot(final int slot, final int messageCount, final Instant firstMessageTimestamp) {
+    final String queueName = generateRandomQueueNameForSlot(slot);
+    final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queueName);
+
+    final Account account = mock(Account.class);
+    when(accountsManager.get(accountUuid)).thenReturn(Optional.of(account));
+    when(account.getUserLogin()).thenReturn("+1" + RandomStringUtils.randomNumeric(10));
+
+    insertMessages(accountUuid, MessagesCache.getDeviceIdFromQueueName(queueName), messageCount, firstMessageTimestamp);
+
+    return queueName;
+  }
+
   @SuppressWarnings("SameParameterValue")
   private static String generateRandomQueueNameForSlot(final int slot) {
     final UUID uuid = UUID.randomUUID();
@@ -201,6 +387,12 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
   }
 
   private void insertMessages(final UUID accountUuid, final long deviceId, final int messageCount, final Instant firstMessageTimestamp) {
+    insertMessages(messagesCache, accountUuid, deviceId, messageCount, firstMessageTimestamp);
+  }
+
+  private void insertMessages(final MessagesCache messagesCache, final UUID accountUuid, final long deviceId, final int messageCount,
+      final Instant firstMessageTimestamp) {
+
     for (int i = 0; i < messageCount; i++) {
       final UUID messageGuid = UUID.randomUUID();
 
@@ -23,6 +23,7 @@ import io.lettuce.core.cluster.SlotHash;
 import junitparams.JUnitParamsRunner;
 
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -37,6 +38,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -58,7 +60,7 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     public void setUp() throws Exception {
 	super.setUp();
 
-	getRedisCluster().useCluster(connection -> connection.sync().upstream().commands().configSet("notify-keyspace-events", "Klgz"));
+	getRedisCluster().useCluster(connection -> connection.sync().upstream().commands().configSet("notify-keyspace-events", "K$glz"));
 
 	notificationExecutorService = Executors.newSingleThreadExecutor();
 	messagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService);
@@ -199,6 +201,44 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
 	assertEquals(expectedMessages, messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageCount));
     }
 
+    @Test
+    public void testGetMessagesAfterId() {
+	final int messageCount = 10;
+
+	final List<OutgoingMessageEntity> expectedMessages = new ArrayList<>(messageCount);
+
+	for (int i = 0; i < messageCount; i++) {
+	    final UUID messageGuid = UUID.randomUUID();
+	    final MessageProtos.Envelope message = generateRandomMessage(messageGuid, false);
+	    final long messageId = messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+
+	    expectedMessages.add(MessagesCache.constructEntityFromEnvelope(messageId, message));
+	}
+
+	final List<OutgoingMessageEntity> firstPage = messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 4, 0);
+	assertEquals(expectedMessages.subList(0, 4), firstPage);
+
+	final long lastId = firstPage.get(firstPage.size() - 1).getId();
+	assertEquals(expectedMessages.subList(4, 8), messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 4, lastId));
+	assertEquals(expectedMessages.subList(8, 10), messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 4, expectedMessages.get(7).getId()));
+    }
+
+    @Test
+    public void testGetMessageCountAndOldestTimestamp() {
+	assertEquals(0, messagesCache.getMessageCount(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+	assertEquals(Optional.empty(), messagesCache.getOldestMessageTimestamp(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+
+	final MessageProtos.Envelope firstMessage = generateRandomMessage(UUID.randomUUID(), false);
+	final MessageProtos.Envelope secondMessage = generateRandomMessage(UUID.randomUUID(), false);
+
+	messagesCache.insert(UUID.randomUUID(), DESTINATION_UUID, DESTINATION_DEVICE_ID, firstMessage);
+	messagesCache.insert(UUID.randomUUID(), DESTINATION_UUID, DESTINATION_DEVICE_ID, secondMessage);
+
+	assertEquals(2, messagesCache.getMessageCount(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+	assertEquals(Optional.of(firstMessage.getServerTimestamp()), messagesCache.getOldestMessageTimestamp(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+	assertFalse(messagesCache.isQueueDraining(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+    }
+
     @Test
     @Parameters({ "true", "false" })
     public void testClearQueueForDevice(final boolean sealedSender) {
@@ -239,6 +279,87 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
 	assertEquals(Collections.emptyList(), messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID + 1, messageCount));
     }
 
+    @Test
+    public void testSpillQueue() throws Exception {
+	final MessagesCache spillingCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService, 3, Duration.ofMinutes(1), PayloadCompressor.DISABLED);
+	final List<UUID> messageGuids = new ArrayList<>();
+
+	for (int i = 0; i < 3; i++) {
+	    final UUID messageGuid = UUID.randomUUID();
+	    messageGuids.add(messageGuid);
+
+	    assertTrue(spillingCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, false)) > 0);
+	}
+
+	assertTrue(spillingCache.isQueueSpilled(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+	assertTrue(spillingCache.isQueueSpilledBySize(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+
+	// the queue is spilled, but must be emptied before new messages can bypass it
+	final UUID cachedGuid = UUID.randomUUID();
+	messageGuids.add(cachedGuid);
+	assertTrue(spillingCache.insert(cachedGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(cachedGuid, false)) > 0);
+
+	spillingCache.remove(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageGuids);
+
+	final UUID spilledGuid = UUID.randomUUID();
+	assertEquals(MessagesCache.SPILLED, spillingCache.insert(spilledGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(spilledGuid, false)));
+	assertFalse(spillingCache.hasMessages(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+
+	// reading without asking to unspill, or reading a full page, leaves the queue spilled
+	spillingCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10, 0, false);
+	spillingCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 0, 0, true);
+	assertTrue(spillingCache.isQueueSpilled(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+
+	// a device that has drained its queue unspills it
+	assertTrue(spillingCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10, 0, true).isEmpty());
+
+	assertFalse(spillingCache.isQueueSpilled(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+	assertFalse(spillingCache.isQueueSpilledBySize(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+	assertTrue(spillingCache.insert(spilledGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(spilledGuid, false)) > 0);
+
+	// spilling a queue because its messages aged out of the cache doesn't mark it as spilled because of its size
+	spillingCache.spillQueue(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+
+	assertTrue(spillingCache.isQueueSpilled(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+	assertFalse(spillingCache.isQueueSpilledBySize(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+    }
+
+    @Test
+    public void testSpillQueueDisabled() {
+	for (int i = 0; i < 10; i++) {
+	    final UUID messageGuid = UUID.randomUUID();
+	    assertTrue(messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, false)) > 0);
+	}
+
+	messagesCache.spillQueue(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+
+	assertFalse(messagesCache.isQueueSpilled(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+    }
+
+    @Test
+    public void testCompressedMessages() throws Exception {
+	final MessagesCache compressingCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService, 0, Duration.ZERO,
+		new PayloadCompressor(true, 0, 1, "test"));
+
+	final UUID firstGuid = UUID.randomUUID();
+	final UUID secondGuid = UUID.randomUUID();
+	final ByteString compressibleContent = ByteString.copyFromUtf8("compressible ".repeat(32));
+	final MessageProtos.Envelope firstMessage = generateRandomMessage(firstGuid, false).toBuilder().setContent(compressibleContent).build();
+	final MessageProtos.Envelope secondMessage = generateRandomMessage(secondGuid, true).toBuilder().setContent(compressibleContent).build();
+
+	compressingCache.insert(firstGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, firstMessage);
+	compressingCache.insert(secondGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, secondMessage);
+
+	final List<byte[]> cached = getRedisCluster().withBinaryCluster(connection -> connection.sync().zrange(MessagesCache.getMessageQueueKey(DESTINATION_UUID, DESTINATION_DEVICE_ID), 0, -1));
+	assertTrue(cached.stream().allMatch(PayloadCompressor::isCompressed));
+
+	// compressed messages are read back by caches that do not compress
+	assertEquals(List.of(firstMessage, secondMessage), messagesCache.getMessagesToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10));
+	assertEquals(List.of(MessagesCache.constructEntityFromEnvelope(0, firstMessage)),
+		messagesCache.remove(DESTINATION_UUID, DESTINATION_DEVICE_ID, List.of(firstGuid)));
+	assertArrayEquals(secondMessage.getContent().toByteArray(), messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10).get(0).getContent());
+    }
+
     private MessageProtos.Envelope generateRandomMessage(final UUID messageGuid, final boolean sealedSender) {
 	return generateRandomMessage(messageGuid, sealedSender, serialTimestamp++);
     }
@@ -371,6 +492,47 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
 	assertTrue(notified.get());
     }
 
+    @Test(timeout = 5_000L)
+    public void testNotifyListenerSpilled() throws Exception {
+	final MessagesCache spillingCache = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService, 3, Duration.ofMinutes(1), PayloadCompressor.DISABLED);
+	final AtomicBoolean notified = new AtomicBoolean(false);
+
+	final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+	    @Override
+	    public void handleNewMessagesAvailable() {
+	    }
+
+	    @Override
+	    public void handleNewEphemeralMessageAvailable() {
+	    }
+
+	    @Override
+	    public void handleMessagesPersisted() {
+		synchronized (notified) {
+		    notified.set(true);
+		    notified.notifyAll();
+		}
+	    }
+	};
+
+	spillingCache.start();
+
+	try {
+	    spillingCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+	    spillingCache.spillQueue(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+
+	    synchronized (notified) {
+		while (!notified.get()) {
+		    notified.wait();
+		}
+	    }
+
+	    assertTrue(notified.get());
+	} finally {
+	    spillingCache.stop();
+	}
+    }
+
     @Test(timeout = 5_000L)
     public void testInsertAndNotifyEphemeralMessage() throws InterruptedException {
 	final AtomicBoolean notified = new AtomicBoolean(false);
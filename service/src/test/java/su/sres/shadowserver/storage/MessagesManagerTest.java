@@ -1,14 +1,28 @@
 package su.sres.shadowserver.storage;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import su.sres.shadowserver.entities.MessageProtos.Envelope;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+import su.sres.shadowserver.entities.OutgoingMessageEntityList;
 import su.sres.shadowserver.metrics.PushLatencyManager;
 
 class MessagesManagerTest {
@@ -43,4 +57,104 @@ class MessagesManagerTest {
 
     verifyNoMoreInteractions(reportMessageManager);
   }
+
+  @Test
+  void insertSpilled() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final Envelope message = Envelope.newBuilder()
+        .setSourceUuid(destinationUuid.toString())
+        .setServerTimestamp(1234)
+        .build();
+
+    when(messagesCache.insert(any(UUID.class), eq(destinationUuid), eq(1L), eq(message))).thenReturn(MessagesCache.SPILLED);
+
+    messagesManager.insert(destinationUuid, 1L, message);
+
+    @SuppressWarnings("unchecked") final ArgumentCaptor<List<Envelope>> storedMessagesCaptor = ArgumentCaptor.forClass(List.class);
+
+    verify(messagesDynamoDb).store(storedMessagesCaptor.capture(), eq(destinationUuid), eq(1L));
+    verify(messagesCache).spillQueue(destinationUuid, 1L);
+
+    assertEquals(1, storedMessagesCaptor.getValue().size());
+    assertEquals(1234, storedMessagesCaptor.getValue().get(0).getServerTimestamp());
+    assertTrue(storedMessagesCaptor.getValue().get(0).hasServerGuid());
+  }
+
+  @Test
+  void getMessagesForDeviceUnspillsDrainedQueue() {
+    final UUID destinationUuid = UUID.randomUUID();
+
+    when(messagesDynamoDb.load(eq(destinationUuid), eq(1L), eq(100), any())).thenReturn(new MessagePage(List.of(), null));
+    when(messagesCache.get(eq(destinationUuid), eq(1L), eq(100), eq(0L), anyBoolean())).thenReturn(List.of());
+
+    // the cache unspills the queue itself when it returns a short page, but only if the device is reading the store
+    messagesManager.getMessagesForDevice(destinationUuid, 1L, "Test-UA", true);
+    verify(messagesCache).get(destinationUuid, 1L, 100, 0, false);
+
+    messagesManager.getMessagesForDevice(destinationUuid, 1L, "Test-UA", false);
+    verify(messagesCache).get(destinationUuid, 1L, 100, 0, true);
+  }
+
+  @Test
+  void getMessagesForDeviceWithCursor() {
+    final UUID destinationUuid = UUID.randomUUID();
+
+    final List<OutgoingMessageEntity> messages = IntStream.range(0, 150)
+        .mapToObj(i -> new OutgoingMessageEntity(i, true, UUID.randomUUID(), Envelope.Type.CIPHERTEXT_VALUE, null, i,
+            "+18005551234", UUID.randomUUID(), 1, null, new byte[0], i))
+        .collect(Collectors.toList());
+
+    final byte[] firstPageCursor = {1};
+    final byte[] secondPageCursor = {2};
+
+    when(messagesDynamoDb.load(destinationUuid, 1L, 100, null)).thenReturn(new MessagePage(messages.subList(0, 100), firstPageCursor));
+    when(messagesDynamoDb.load(destinationUuid, 1L, 100, firstPageCursor)).thenReturn(new MessagePage(messages.subList(100, 120), secondPageCursor));
+    when(messagesCache.get(destinationUuid, 1L, 80, 0, true)).thenReturn(messages.subList(120, 140));
+    when(messagesCache.get(destinationUuid, 1L, 100, 139, true)).thenReturn(messages.subList(140, 150));
+
+    final MessageCursor cursor = new MessageCursor();
+
+    final OutgoingMessageEntityList firstPage = messagesManager.getMessagesForDevice(destinationUuid, 1L, "Test-UA", false, cursor);
+    assertEquals(messages.subList(0, 100), firstPage.getMessages());
+    assertTrue(firstPage.hasMore());
+    assertFalse(cursor.isStoreExhausted());
+
+    final OutgoingMessageEntityList secondPage = messagesManager.getMessagesForDevice(destinationUuid, 1L, "Test-UA", false, cursor);
+    assertEquals(messages.subList(100, 140), secondPage.getMessages());
+    assertFalse(secondPage.hasMore());
+    assertTrue(cursor.isStoreExhausted());
+    assertArrayEquals(secondPageCursor, cursor.getStoreCursor());
+
+    // once the store has been read to the end, later pages only come from the cache
+    final OutgoingMessageEntityList thirdPage = messagesManager.getMessagesForDevice(destinationUuid, 1L, "Test-UA", false, cursor);
+    assertEquals(messages.subList(140, 150), thirdPage.getMessages());
+    assertEquals(149, cursor.getLastCachedMessageId());
+
+    verify(messagesDynamoDb, times(2)).load(eq(destinationUuid), eq(1L), eq(100), any());
+  }
+
+  @Test
+  void getQueueDepth() {
+    final UUID destinationUuid = UUID.randomUUID();
+
+    when(messagesCache.getMessageCount(destinationUuid, 1L)).thenReturn(3L);
+    when(messagesDynamoDb.getMessageCount(destinationUuid, 1L)).thenReturn(120);
+
+    assertEquals(123L, messagesManager.getQueueDepth(destinationUuid, 1L));
+  }
+
+  @Test
+  void getOldestMessageTimestamp() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final OutgoingMessageEntity storedMessage = new OutgoingMessageEntity(1, false, UUID.randomUUID(), Envelope.Type.CIPHERTEXT_VALUE, null, 1,
+        "+18005551234", UUID.randomUUID(), 1, null, new byte[0], 1234);
+
+    when(messagesCache.getOldestMessageTimestamp(destinationUuid, 1L)).thenReturn(Optional.of(5678L));
+
+    when(messagesDynamoDb.load(destinationUuid, 1L, 1)).thenReturn(List.of(storedMessage));
+    assertEquals(Optional.of(1234L), messagesManager.getOldestMessageTimestamp(destinationUuid, 1L));
+
+    when(messagesDynamoDb.load(destinationUuid, 1L, 1)).thenReturn(List.of());
+    assertEquals(Optional.of(5678L), messagesManager.getOldestMessageTimestamp(destinationUuid, 1L));
+  }
 }
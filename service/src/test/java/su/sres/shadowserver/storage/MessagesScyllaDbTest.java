@@ -15,6 +15,7 @@ import su.sres.shadowserver.storage.MessagesScyllaDb;
 import su.sres.shadowserver.util.MessagesDynamoDbRule;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
@@ -89,6 +90,55 @@ public class MessagesScyllaDbTest {
 	assertThat(messagesStored).element(2).satisfies(verify(MESSAGE2));
     }
 
+    @Test
+    public void testFetchWithCursor() {
+	final UUID destinationUuid = UUID.randomUUID();
+	messagesScyllaDb.store(List.of(MESSAGE1, MESSAGE2, MESSAGE3), destinationUuid, 1);
+
+	final List<OutgoingMessageEntity> allMessages = messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE);
+
+	final MessagePage firstPage = messagesScyllaDb.load(destinationUuid, 1, 2, null);
+	assertThat(firstPage.getMessages()).isEqualTo(allMessages.subList(0, 2));
+
+	final MessagePage secondPage = messagesScyllaDb.load(destinationUuid, 1, 2, firstPage.getCursor());
+	assertThat(secondPage.getMessages()).isEqualTo(allMessages.subList(2, 3));
+
+	final MessagePage emptyPage = messagesScyllaDb.load(destinationUuid, 1, 2, secondPage.getCursor());
+	assertThat(emptyPage.getMessages()).isEmpty();
+	assertThat(emptyPage.getCursor()).isEqualTo(secondPage.getCursor());
+    }
+
+    @Test
+    public void testGetMessageCount() {
+	final UUID destinationUuid = UUID.randomUUID();
+	messagesScyllaDb.store(List.of(MESSAGE1, MESSAGE2), destinationUuid, 1);
+	messagesScyllaDb.store(List.of(MESSAGE3), destinationUuid, 2);
+
+	assertThat(messagesScyllaDb.getMessageCount(destinationUuid, 1)).isEqualTo(2);
+	assertThat(messagesScyllaDb.getMessageCount(destinationUuid, 2)).isEqualTo(1);
+	assertThat(messagesScyllaDb.getMessageCount(destinationUuid, 3)).isZero();
+    }
+
+    @Test
+    public void testCompressedFetchAfterInsert() {
+	final MessagesScyllaDb compressingScyllaDb = new MessagesScyllaDb(dynamoDbRule.getDynamoDbClient(), MessagesDynamoDbRule.TABLE_NAME, Duration.ofDays(7),
+		new PayloadCompressor(true, 0, 1, "test"));
+
+	final MessageProtos.Envelope compressibleMessage = MESSAGE2.toBuilder()
+		.setContent(ByteString.copyFromUtf8("compressible ".repeat(32)))
+		.setLegacyMessage(ByteString.copyFromUtf8("legacy ".repeat(32)))
+		.build();
+
+	final UUID destinationUuid = UUID.randomUUID();
+	compressingScyllaDb.store(List.of(MESSAGE1, compressibleMessage), destinationUuid, 1);
+
+	// compressed messages are read back by stores that do not compress
+	final List<OutgoingMessageEntity> messagesStored = messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE);
+	assertThat(messagesStored).isNotNull().hasSize(2);
+	assertThat(messagesStored).element(0).satisfies(verify(MESSAGE1));
+	assertThat(messagesStored).element(1).satisfies(verify(compressibleMessage));
+    }
+
     @Test
     public void testDeleteForDestination() {
 	final UUID destinationUuid = UUID.randomUUID();
@@ -165,6 +215,29 @@ public class MessagesScyllaDbTest {
 	assertThat(messagesScyllaDb.load(secondDestinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).isNotNull().isEmpty();
     }
 
+    @Test
+    public void testDeleteExpiredMessagesForDevice() {
+	final UUID destinationUuid = UUID.randomUUID();
+	final Instant now = Instant.ofEpochMilli(MESSAGE2.getServerTimestamp()).plus(Duration.ofDays(7)).plusSeconds(1);
+
+	messagesScyllaDb.store(List.of(MESSAGE1, MESSAGE2), destinationUuid, 1);
+	messagesScyllaDb.store(List.of(MESSAGE3), destinationUuid, 2);
+
+	final MessageProtos.Envelope unexpiredMessage = MESSAGE2.toBuilder()
+		.setServerGuid(UUID.randomUUID().toString())
+		.setServerTimestamp(now.toEpochMilli())
+		.build();
+
+	messagesScyllaDb.store(List.of(unexpiredMessage), destinationUuid, 1);
+
+	assertThat(messagesScyllaDb.deleteExpiredMessagesForDevice(destinationUuid, 1, now, 1)).isEqualTo(1);
+	assertThat(messagesScyllaDb.deleteExpiredMessagesForDevice(destinationUuid, 1, now, 100)).isEqualTo(1);
+	assertThat(messagesScyllaDb.deleteExpiredMessagesForDevice(destinationUuid, 1, now, 100)).isEqualTo(0);
+
+	assertThat(messagesScyllaDb.load(destinationUuid, 1, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).isNotNull().hasSize(1).element(0).satisfies(verify(unexpiredMessage));
+	assertThat(messagesScyllaDb.load(destinationUuid, 2, MessagesScyllaDb.RESULT_SET_CHUNK_SIZE)).isNotNull().hasSize(1).element(0).satisfies(verify(MESSAGE3));
+    }
+
     private static void verify(OutgoingMessageEntity retrieved, MessageProtos.Envelope inserted) {
 	assertThat(retrieved.getTimestamp()).isEqualTo(inserted.getTimestamp());
 	assertThat(retrieved.getSource()).isEqualTo(inserted.hasSource() ? inserted.getSource() : null);
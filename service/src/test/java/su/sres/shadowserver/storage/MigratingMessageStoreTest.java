@@ -0,0 +1,136 @@
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+import su.sres.shadowserver.entities.OutgoingMessageEntity;
+
+class MigratingMessageStoreTest {
+
+  private static final UUID DESTINATION_UUID = UUID.randomUUID();
+
+  private final MessageStore oldStore = mock(MessageStore.class);
+  private final MessageStore newStore = mock(MessageStore.class);
+
+  private final MigratingMessageStore messageStore = new MigratingMessageStore(oldStore, newStore);
+
+  @Test
+  void store() {
+    final List<Envelope> messages = List.of(Envelope.newBuilder().setServerGuid(UUID.randomUUID().toString()).build());
+
+    messageStore.store(messages, DESTINATION_UUID, 1L);
+
+    verify(newStore).store(messages, DESTINATION_UUID, 1L);
+    verify(oldStore, never()).store(any(), any(), anyLong());
+  }
+
+  @Test
+  void loadOldMessagesFirst() {
+    final List<OutgoingMessageEntity> messages = generateMessages(5);
+
+    when(oldStore.load(DESTINATION_UUID, 1L, 5, null)).thenReturn(new MessagePage(messages.subList(0, 3), new byte[]{3}));
+    when(newStore.load(DESTINATION_UUID, 1L, 2, null)).thenReturn(new MessagePage(messages.subList(3, 5), new byte[]{5}));
+
+    assertEquals(messages, messageStore.load(DESTINATION_UUID, 1L, 5));
+  }
+
+  @Test
+  void loadOldMessagesOnly() {
+    final List<OutgoingMessageEntity> messages = generateMessages(5);
+
+    when(oldStore.load(DESTINATION_UUID, 1L, 5, null)).thenReturn(new MessagePage(messages, new byte[]{5}));
+
+    assertEquals(messages, messageStore.load(DESTINATION_UUID, 1L, 5));
+    verify(newStore, never()).load(any(), anyLong(), anyInt(), any());
+  }
+
+  @Test
+  void loadWithCursor() {
+    final List<OutgoingMessageEntity> messages = generateMessages(8);
+
+    when(oldStore.load(DESTINATION_UUID, 1L, 4, null)).thenReturn(new MessagePage(messages.subList(0, 4), new byte[]{4}));
+    when(oldStore.load(DESTINATION_UUID, 1L, 4, new byte[]{4})).thenReturn(new MessagePage(messages.subList(4, 5), new byte[]{5}));
+    when(newStore.load(DESTINATION_UUID, 1L, 3, null)).thenReturn(new MessagePage(messages.subList(5, 8), new byte[]{8}));
+    when(newStore.load(DESTINATION_UUID, 1L, 4, new byte[]{8})).thenReturn(new MessagePage(List.of(), new byte[]{8}));
+
+    final MessagePage firstPage = messageStore.load(DESTINATION_UUID, 1L, 4, null);
+    assertEquals(messages.subList(0, 4), firstPage.getMessages());
+
+    final MessagePage secondPage = messageStore.load(DESTINATION_UUID, 1L, 4, firstPage.getCursor());
+    assertEquals(messages.subList(4, 8), secondPage.getMessages());
+
+    // the old store has been read to the end, so it isn't read again
+    final MessagePage thirdPage = messageStore.load(DESTINATION_UUID, 1L, 4, secondPage.getCursor());
+    assertEquals(List.of(), thirdPage.getMessages());
+
+    verify(oldStore, times(2)).load(any(), anyLong(), anyInt(), any());
+  }
+
+  @Test
+  void getMessageCount() {
+    when(oldStore.getMessageCount(DESTINATION_UUID, 1L)).thenReturn(3);
+    when(newStore.getMessageCount(DESTINATION_UUID, 1L)).thenReturn(4);
+
+    assertEquals(7, messageStore.getMessageCount(DESTINATION_UUID, 1L));
+  }
+
+  @Test
+  void deleteByGuid() {
+    final OutgoingMessageEntity message = generateMessages(1).get(0);
+
+    when(oldStore.deleteMessageByDestinationAndGuid(DESTINATION_UUID, 1L, message.getGuid())).thenReturn(Optional.empty());
+    when(newStore.deleteMessageByDestinationAndGuid(DESTINATION_UUID, 1L, message.getGuid())).thenReturn(Optional.of(message));
+
+    assertEquals(Optional.of(message), messageStore.deleteMessageByDestinationAndGuid(DESTINATION_UUID, 1L, message.getGuid()));
+  }
+
+  @Test
+  void deleteByGuidFromOldStore() {
+    final OutgoingMessageEntity message = generateMessages(1).get(0);
+
+    when(oldStore.deleteMessageByDestinationAndGuid(DESTINATION_UUID, 1L, message.getGuid())).thenReturn(Optional.of(message));
+
+    assertEquals(Optional.of(message), messageStore.deleteMessageByDestinationAndGuid(DESTINATION_UUID, 1L, message.getGuid()));
+    verify(newStore, never()).deleteMessageByDestinationAndGuid(any(), anyLong(), any());
+  }
+
+  @Test
+  void deleteExpired() {
+    final Instant now = Instant.now();
+
+    when(oldStore.deleteExpiredMessagesForDevice(DESTINATION_UUID, 1L, now, 10)).thenReturn(4);
+    when(newStore.deleteExpiredMessagesForDevice(DESTINATION_UUID, 1L, now, 6)).thenReturn(6);
+
+    assertEquals(10, messageStore.deleteExpiredMessagesForDevice(DESTINATION_UUID, 1L, now, 10));
+  }
+
+  @Test
+  void deleteAllMessagesForAccount() {
+    messageStore.deleteAllMessagesForAccount(DESTINATION_UUID);
+
+    verify(oldStore).deleteAllMessagesForAccount(DESTINATION_UUID);
+    verify(newStore).deleteAllMessagesForAccount(DESTINATION_UUID);
+  }
+
+  private static List<OutgoingMessageEntity> generateMessages(final int count) {
+    return IntStream.range(0, count)
+        .mapToObj(i -> new OutgoingMessageEntity(i, false, UUID.randomUUID(), Envelope.Type.CIPHERTEXT_VALUE, null, i,
+            "+18005551234", UUID.randomUUID(), 1, null, new byte[0], i))
+        .collect(Collectors.toList());
+  }
+}
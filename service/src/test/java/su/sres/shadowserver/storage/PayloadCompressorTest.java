@@ -0,0 +1,77 @@
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import org.junit.jupiter.api.Test;
+import su.sres.shadowserver.entities.MessageProtos.Envelope;
+
+class PayloadCompressorTest {
+
+  private static final byte[] COMPRESSIBLE = "a sync message that repeats itself, repeats itself, repeats itself"
+      .repeat(8).getBytes(StandardCharsets.UTF_8);
+
+  private final PayloadCompressor compressor = new PayloadCompressor(true, 64, 1, "test");
+
+  @Test
+  void compressAndDecompress() throws DataFormatException {
+    final Optional<byte[]> compressed = compressor.compress(COMPRESSIBLE);
+
+    assertTrue(compressed.isPresent());
+    assertTrue(compressed.get().length < COMPRESSIBLE.length);
+    assertTrue(PayloadCompressor.isCompressed(compressed.get()));
+    assertArrayEquals(COMPRESSIBLE, PayloadCompressor.decompress(compressed.get()));
+    assertArrayEquals(COMPRESSIBLE, PayloadCompressor.decompressIfCompressed(compressed.get()));
+  }
+
+  @Test
+  void compressBelowMinimumSize() {
+    assertFalse(compressor.compress(Arrays.copyOf(COMPRESSIBLE, 63)).isPresent());
+  }
+
+  @Test
+  void compressDisabled() {
+    assertFalse(PayloadCompressor.DISABLED.compress(COMPRESSIBLE).isPresent());
+    assertSame(COMPRESSIBLE, PayloadCompressor.DISABLED.compressIfWorthwhile(COMPRESSIBLE));
+  }
+
+  @Test
+  void compressIncompressible() {
+    final byte[] random = new byte[1024];
+    new Random().nextBytes(random);
+
+    assertFalse(compressor.compress(random).isPresent());
+  }
+
+  @Test
+  void serializedEnvelopesAreNotCompressed() throws DataFormatException {
+    final byte[] envelope = Envelope.newBuilder().setTimestamp(1).build().toByteArray();
+
+    assertFalse(PayloadCompressor.isCompressed(envelope));
+    assertSame(envelope, PayloadCompressor.decompressIfCompressed(envelope));
+  }
+
+  @Test
+  void decompressCorrupt() {
+    final byte[] compressed = compressor.compress(COMPRESSIBLE).orElseThrow();
+
+    assertThrows(DataFormatException.class, () -> PayloadCompressor.decompress(Arrays.copyOf(compressed, compressed.length - 4)));
+
+    final byte[] wrongLength = compressed.clone();
+    ByteBuffer.wrap(wrongLength).putInt(1, COMPRESSIBLE.length - 1);
+    assertThrows(DataFormatException.class, () -> PayloadCompressor.decompress(wrongLength));
+
+    final byte[] tooLong = compressed.clone();
+    ByteBuffer.wrap(tooLong).putInt(1, PayloadCompressor.MAX_DECOMPRESSED_LENGTH + 1);
+    assertThrows(DataFormatException.class, () -> PayloadCompressor.decompress(tooLong));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class QueueDepthSamplerTest {
+
+  private static final Instant NOW = Instant.ofEpochMilli(1_600_000_000_000L);
+
+  private final MessagesManager messagesManager = mock(MessagesManager.class);
+
+  private static final Duration MESSAGE_TIME_TO_LIVE = Duration.ofDays(7);
+
+  private final QueueDepthSampler sampler = new QueueDepthSampler(messagesManager, MESSAGE_TIME_TO_LIVE, Clock.fixed(NOW, ZoneId.systemDefault()));
+
+  @Test
+  void sampleAllDevices() {
+    final Account account = mockAccount(1L, 2L);
+
+    when(messagesManager.getQueueDepth(account.getUuid(), 1L)).thenReturn(10L);
+    when(messagesManager.getOldestMessageTimestamp(account.getUuid(), 1L)).thenReturn(Optional.of(NOW.toEpochMilli() - 1000));
+
+    sampler.onCrawlChunk(Optional.empty(), List.of(account));
+
+    verify(messagesManager).getQueueDepth(account.getUuid(), 1L);
+    verify(messagesManager).getQueueDepth(account.getUuid(), 2L);
+    verify(messagesManager).getOldestMessageTimestamp(account.getUuid(), 1L);
+
+    // empty queues have no age
+    verify(messagesManager, never()).getOldestMessageTimestamp(account.getUuid(), 2L);
+  }
+
+  @Test
+  void sampleStopsAtSampleLimit() {
+    final List<Account> accounts = new ArrayList<>();
+
+    for (int i = 0; i < QueueDepthSampler.MAX_SAMPLES_PER_CHUNK + 1; i++) {
+      accounts.add(mockAccount(1L));
+    }
+
+    sampler.onCrawlChunk(Optional.empty(), accounts);
+
+    verify(messagesManager, times(QueueDepthSampler.MAX_SAMPLES_PER_CHUNK)).getQueueDepth(any(UUID.class), anyLong());
+    verify(messagesManager, never()).getQueueDepth(eq(accounts.get(accounts.size() - 1).getUuid()), anyLong());
+  }
+
+  @Test
+  void sampleContinuesAfterFailure() {
+    final Account firstAccount = mockAccount(1L);
+    final Account secondAccount = mockAccount(1L);
+
+    when(messagesManager.getQueueDepth(eq(firstAccount.getUuid()), anyLong())).thenThrow(new RuntimeException("OH NO"));
+
+    sampler.onCrawlChunk(Optional.empty(), List.of(firstAccount, secondAccount));
+
+    verify(messagesManager).getQueueDepth(secondAccount.getUuid(), 1L);
+  }
+
+  @Test
+  void staleQueueAgeWellBelowTimeToLive() {
+    assertTrue(sampler.getStaleQueueAge().compareTo(MESSAGE_TIME_TO_LIVE) < 0);
+    assertEquals(MESSAGE_TIME_TO_LIVE.dividedBy(QueueDepthSampler.STALE_QUEUE_TTL_DIVISOR), sampler.getStaleQueueAge());
+  }
+
+  private static Account mockAccount(final long... deviceIds) {
+    final Account account = mock(Account.class);
+    final Set<Device> devices = new LinkedHashSet<>();
+
+    for (final long deviceId : deviceIds) {
+      final Device device = mock(Device.class);
+      when(device.getId()).thenReturn(deviceId);
+      devices.add(device);
+    }
+
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(account.getDevices()).thenReturn(devices);
+
+    return account;
+  }
+}
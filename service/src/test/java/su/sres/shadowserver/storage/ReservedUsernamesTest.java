@@ -62,4 +62,34 @@ public class ReservedUsernamesTest {
     assertFalse(reserved.isReserved("foobarsome", UUID.randomUUID()));
     assertFalse(reserved.isReserved("somefoobarsome", UUID.randomUUID()));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testReservedPosixClass() {
+    UUID reservedFor = UUID.randomUUID();
+    String username = "^admin[[:digit:]]+$";
+
+    reserved.setReserved(username, reservedFor);
+
+    assertTrue(reserved.isReserved("admin42", UUID.randomUUID()));
+    assertTrue(reserved.isReserved("ADMIN7", UUID.randomUUID()));
+    assertFalse(reserved.isReserved("admin42", reservedFor));
+    assertFalse(reserved.isReserved("admin:", UUID.randomUUID()));
+    assertFalse(reserved.isReserved("admint", UUID.randomUUID()));
+  }
+
+  @Test
+  public void testIsPortable() {
+    assertTrue(ReservedUsernames.isPortable(".*myusername.*"));
+    assertTrue(ReservedUsernames.isPortable("^foobar$"));
+    assertTrue(ReservedUsernames.isPortable("^(admin|root)[0-9a-f]{1,4}\\.x?$"));
+
+    assertFalse(ReservedUsernames.isPortable("^admin[[:digit:]]+$"));
+    assertFalse(ReservedUsernames.isPortable("\\madmin\\M"));
+    assertFalse(ReservedUsernames.isPortable("\\d+"));
+    assertFalse(ReservedUsernames.isPortable("(?i)admin"));
+    assertFalse(ReservedUsernames.isPortable("admin.*?"));
+    assertFalse(ReservedUsernames.isPortable("admin.*+"));
+    assertFalse(ReservedUsernames.isPortable("[]admin]"));
+    assertFalse(ReservedUsernames.isPortable("***=admin"));
+  }
+}
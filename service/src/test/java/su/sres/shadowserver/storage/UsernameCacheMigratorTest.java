@@ -0,0 +1,81 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import org.junit.Test;
+import su.sres.shadowserver.redis.AbstractRedisClusterTest;
+import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UsernameCacheMigratorTest extends AbstractRedisClusterTest {
+
+  @Test
+  public void testRemoveLegacyMappings() throws Exception {
+    final FaultTolerantRedisCluster cluster = getRedisCluster();
+
+    final UUID uuid = UUID.randomUUID();
+    final UUID changedUuid = UUID.randomUUID();
+    final Usernames usernames = mock(Usernames.class);
+    final ReservedUsernames reservedUsernames = mock(ReservedUsernames.class);
+
+    when(usernames.put(any(), any())).thenReturn(true);
+
+    final UsernamesManager usernamesManager = new UsernamesManager(usernames, reservedUsernames, cluster);
+    usernamesManager.put(uuid, "current");
+    usernamesManager.put(changedUuid, "before");
+    usernamesManager.put(changedUuid, "after");
+
+    cluster.useCluster(connection -> {
+      for (int i = 0; i < 100; i++) {
+        connection.sync().set("UsernameByUuid::" + UUID.randomUUID(), "legacy" + i);
+        connection.sync().set("UsernameByUsername::legacy" + i, UUID.randomUUID().toString());
+        connection.sync().setex("Usernames::byUuid::" + UUID.randomUUID(), 3600, "untagged" + i);
+        connection.sync().setex("Usernames::byUsername::untagged" + i, 3600, UUID.randomUUID().toString());
+      }
+
+      connection.sync().hset(UsernameCacheMigrator.LEGACY_HASH_KEYS[0], uuid.toString(), "current");
+      connection.sync().hset(UsernameCacheMigrator.LEGACY_HASH_KEYS[1], "current", uuid.toString());
+    });
+
+    final UsernameCacheMigrator migrator = new UsernameCacheMigrator(cluster);
+    migrator.onCrawlStart();
+
+    for (int i = 0; i < 100; i++) {
+      migrator.onCrawlChunk(Optional.empty(), List.of());
+    }
+
+    cluster.useCluster(connection -> {
+      assertTrue(connection.sync().keys("UsernameBy*").isEmpty());
+      assertTrue(connection.sync().keys("Usernames::by*").isEmpty());
+      assertEquals(0L, (long) connection.sync().exists(UsernameCacheMigrator.LEGACY_HASH_KEYS));
+      assertEquals(1L, (long) connection.sync().exists(UsernameCacheMigrator.MIGRATION_COMPLETE_KEY));
+
+      assertEquals("current", connection.sync().get(UsernamesManager.getUsernameByUuidKey(uuid)));
+      assertEquals(uuid.toString(), connection.sync().get(UsernamesManager.getUuidByUsernameKey("current")));
+      assertEquals("after", connection.sync().get(UsernamesManager.getUsernameByUuidKey(changedUuid)));
+      assertEquals(changedUuid.toString(), connection.sync().get(UsernamesManager.getUuidByUsernameKey("after")));
+      assertNull(connection.sync().get(UsernamesManager.getUuidByUsernameKey("before")));
+      assertTrue(connection.sync().ttl(UsernamesManager.getUsernameByUuidKey(uuid)) > 0);
+    });
+
+    usernamesManager.delete(uuid);
+
+    cluster.useCluster(connection -> {
+      assertNull(connection.sync().get(UsernamesManager.getUsernameByUuidKey(uuid)));
+      assertNull(connection.sync().get(UsernamesManager.getUuidByUsernameKey("current")));
+    });
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.lettuce.core.cluster.SlotHash;
+import java.util.Optional;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+import su.sres.shadowserver.redis.AbstractRedisClusterTest;
+
+public class UsernamesManagerIntegrationTest extends AbstractRedisClusterTest {
+
+  private Usernames usernames;
+  private UsernamesManager usernamesManager;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    usernames = mock(Usernames.class);
+    when(usernames.put(any(), any())).thenReturn(true);
+
+    usernamesManager = new UsernamesManager(usernames, mock(ReservedUsernames.class), getRedisCluster());
+  }
+
+  @Test
+  public void testPutChangesUsername() {
+    final UUID uuid = UUID.randomUUID();
+
+    usernamesManager.put(uuid, "before");
+    usernamesManager.put(uuid, "after");
+
+    assertEquals(Optional.of("after"), usernamesManager.get(uuid));
+    assertEquals(Optional.of(uuid), usernamesManager.get("after"));
+
+    assertFalse(isCached(UsernamesManager.getUuidByUsernameKey("before")));
+    assertTrue(getRedisCluster().withCluster(connection -> connection.sync().ttl(UsernamesManager.getUsernameByUuidKey(uuid))) > 0);
+  }
+
+  @Test
+  public void testPutTakesUsername() {
+    final UUID previousOwner = UUID.randomUUID();
+    final UUID uuid = UUID.randomUUID();
+
+    usernamesManager.put(previousOwner, "n00bkiller");
+    usernamesManager.put(uuid, "n00bkiller");
+
+    assertEquals(Optional.of(uuid), usernamesManager.get("n00bkiller"));
+    assertFalse(isCached(UsernamesManager.getUsernameByUuidKey(previousOwner)));
+  }
+
+  @Test
+  public void testDeleteClearsBothDirections() {
+    final UUID uuid = UUID.randomUUID();
+
+    usernamesManager.put(uuid, "n00bkiller");
+    usernamesManager.delete(uuid);
+
+    assertFalse(isCached(UsernamesManager.getUsernameByUuidKey(uuid)));
+    assertFalse(isCached(UsernamesManager.getUuidByUsernameKey("n00bkiller")));
+  }
+
+  @Test
+  public void testDeleteKeepsReclaimedUsername() {
+    final UUID uuid = UUID.randomUUID();
+    final UUID newOwner = UUID.randomUUID();
+
+    usernamesManager.put(uuid, "n00bkiller");
+
+    // a stale mapping for the old owner, as if the new owner's mapping had been cached from the database
+    getRedisCluster().useCluster(connection -> connection.sync().set(UsernamesManager.getUuidByUsernameKey("n00bkiller"), newOwner.toString()));
+
+    usernamesManager.delete(uuid);
+
+    assertEquals(Optional.of(newOwner), usernamesManager.get("n00bkiller"));
+  }
+
+  @Test
+  public void testMappingsShareSlot() {
+    assertEquals(SlotHash.getSlot(UsernamesManager.getUsernameByUuidKey(UUID.randomUUID())),
+        SlotHash.getSlot(UsernamesManager.getUuidByUsernameKey("n00bkiller")));
+  }
+
+  private boolean isCached(final String key) {
+    return getRedisCluster().withCluster(connection -> connection.sync().exists(key)) > 0;
+  }
+}
@@ -8,6 +8,7 @@ package su.sres.shadowserver.storage;
 import org.junit.Test;
 
 import io.lettuce.core.RedisException;
+import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
 import su.sres.shadowserver.storage.ReservedUsernames;
@@ -21,7 +22,10 @@ import java.util.UUID;
 import static junit.framework.TestCase.assertSame;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -30,8 +34,10 @@ import static org.mockito.Mockito.when;
 
 public class UsernamesManagerTest {
 
+    private static final String TTL = String.valueOf(UsernamesManager.MAPPING_TTL_SECONDS);
+
     @Test
-    public void testGetByUsernameInCache() {
+    public void testGetByUsernameInCache() throws Exception {
 	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
 	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
 	Usernames usernames = mock(Usernames.class);
@@ -39,21 +45,23 @@ public class UsernamesManagerTest {
 
 	UUID uuid = UUID.randomUUID();
 
-	when(commands.get(eq("UsernameByUsername::n00bkiller"))).thenReturn(uuid.toString());
+	when(commands.get(eq("Usernames::{usernames}::byUsername::n00bkiller"))).thenReturn(uuid.toString());
 
 	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
 	Optional<UUID> retrieved = usernamesManager.get("n00bkiller");
 
 	assertTrue(retrieved.isPresent());
 	assertEquals(retrieved.get(), uuid);
 
-	verify(commands, times(1)).get(eq("UsernameByUsername::n00bkiller"));
+	verify(commands, times(1)).get(eq("Usernames::{usernames}::byUsername::n00bkiller"));
 	verifyNoMoreInteractions(commands);
 	verifyNoMoreInteractions(usernames);
     }
 
     @Test
-    public void testGetByUuidInCache() {
+    public void testGetByUuidInCache() throws Exception {
 	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
 	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
 	Usernames usernames = mock(Usernames.class);
@@ -61,21 +69,23 @@ public class UsernamesManagerTest {
 
 	UUID uuid = UUID.randomUUID();
 
-	when(commands.get(eq("UsernameByUuid::" + uuid.toString()))).thenReturn("n00bkiller");
+	when(commands.get(eq("Usernames::{usernames}::byUuid::" + uuid))).thenReturn("n00bkiller");
 
 	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
 	Optional<String> retrieved = usernamesManager.get(uuid);
 
 	assertTrue(retrieved.isPresent());
 	assertEquals(retrieved.get(), "n00bkiller");
 
-	verify(commands, times(1)).get(eq("UsernameByUuid::" + uuid.toString()));
+	verify(commands, times(1)).get(eq("Usernames::{usernames}::byUuid::" + uuid));
 	verifyNoMoreInteractions(commands);
 	verifyNoMoreInteractions(usernames);
     }
 
     @Test
-    public void testGetByUsernameNotInCache() {
+    public void testGetByUsernameNotInCache() throws Exception {
 	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
 	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
 	Usernames usernames = mock(Usernames.class);
@@ -83,19 +93,19 @@ public class UsernamesManagerTest {
 
 	UUID uuid = UUID.randomUUID();
 
-	when(commands.get(eq("UsernameByUsername::n00bkiller"))).thenReturn(null);
+	when(commands.get(eq("Usernames::{usernames}::byUsername::n00bkiller"))).thenReturn(null);
 	when(usernames.get(eq("n00bkiller"))).thenReturn(Optional.of(uuid));
 
 	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
 	Optional<UUID> retrieved = usernamesManager.get("n00bkiller");
 
 	assertTrue(retrieved.isPresent());
 	assertSame(retrieved.get(), uuid);
 
-	verify(commands, times(1)).get(eq("UsernameByUsername::n00bkiller"));
-	verify(commands, times(1)).set(eq("UsernameByUsername::n00bkiller"), eq(uuid.toString()));
-	verify(commands, times(1)).set(eq("UsernameByUuid::" + uuid.toString()), eq("n00bkiller"));
-	verify(commands, times(1)).get(eq("UsernameByUuid::" + uuid.toString()));
+	verify(commands, times(1)).get(eq("Usernames::{usernames}::byUsername::n00bkiller"));
+	verifySet(commands, uuid, "n00bkiller");
 	verifyNoMoreInteractions(commands);
 
 	verify(usernames, times(1)).get(eq("n00bkiller"));
@@ -103,7 +113,7 @@ public class UsernamesManagerTest {
     }
 
     @Test
-    public void testGetByUuidNotInCache() {
+    public void testGetByUuidNotInCache() throws Exception {
 	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
 	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
 	Usernames usernames = mock(Usernames.class);
@@ -111,18 +121,19 @@ public class UsernamesManagerTest {
 
 	UUID uuid = UUID.randomUUID();
 
-	when(commands.get(eq("UsernameByUuid::" + uuid.toString()))).thenReturn(null);
+	when(commands.get(eq("Usernames::{usernames}::byUuid::" + uuid))).thenReturn(null);
 	when(usernames.get(eq(uuid))).thenReturn(Optional.of("n00bkiller"));
 
 	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
 	Optional<String> retrieved = usernamesManager.get(uuid);
 
 	assertTrue(retrieved.isPresent());
 	assertEquals(retrieved.get(), "n00bkiller");
 
-	verify(commands, times(2)).get(eq("UsernameByUuid::" + uuid));
-	verify(commands, times(1)).set(eq("UsernameByUuid::" + uuid), eq("n00bkiller"));
-	verify(commands, times(1)).set(eq("UsernameByUsername::n00bkiller"), eq(uuid.toString()));
+	verify(commands, times(1)).get(eq("Usernames::{usernames}::byUuid::" + uuid));
+	verifySet(commands, uuid, "n00bkiller");
 	verifyNoMoreInteractions(commands);
 
 	verify(usernames, times(1)).get(eq(uuid));
@@ -130,7 +141,7 @@ public class UsernamesManagerTest {
     }
 
     @Test
-    public void testGetByUsernameBrokenCache() {
+    public void testGetByUsernameBrokenCache() throws Exception {
 	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
 	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
 	Usernames usernames = mock(Usernames.class);
@@ -138,19 +149,19 @@ public class UsernamesManagerTest {
 
 	UUID uuid = UUID.randomUUID();
 
-	when(commands.get(eq("UsernameByUsername::n00bkiller"))).thenThrow(new RedisException("Connection lost!"));
+	when(commands.get(eq("Usernames::{usernames}::byUsername::n00bkiller"))).thenThrow(new RedisException("Connection lost!"));
 	when(usernames.get(eq("n00bkiller"))).thenReturn(Optional.of(uuid));
 
 	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
 	Optional<UUID> retrieved = usernamesManager.get("n00bkiller");
 
 	assertTrue(retrieved.isPresent());
 	assertEquals(retrieved.get(), uuid);
 
-	verify(commands, times(1)).get(eq("UsernameByUsername::n00bkiller"));
-	verify(commands, times(1)).set(eq("UsernameByUsername::n00bkiller"), eq(uuid.toString()));
-	verify(commands, times(1)).set(eq("UsernameByUuid::" + uuid.toString()), eq("n00bkiller"));
-	verify(commands, times(1)).get(eq("UsernameByUuid::" + uuid.toString()));
+	verify(commands, times(1)).get(eq("Usernames::{usernames}::byUsername::n00bkiller"));
+	verifySet(commands, uuid, "n00bkiller");
 	verifyNoMoreInteractions(commands);
 
 	verify(usernames, times(1)).get(eq("n00bkiller"));
@@ -158,7 +169,7 @@ public class UsernamesManagerTest {
     }
 
     @Test
-    public void testGetAccountByUuidBrokenCache() {
+    public void testGetAccountByUuidBrokenCache() throws Exception {
 	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
 	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
 	Usernames usernames = mock(Usernames.class);
@@ -166,20 +177,73 @@ public class UsernamesManagerTest {
 
 	UUID uuid = UUID.randomUUID();
 
-	when(commands.get(eq("UsernameByUuid::" + uuid))).thenThrow(new RedisException("Connection lost!"));
+	when(commands.get(eq("Usernames::{usernames}::byUuid::" + uuid))).thenThrow(new RedisException("Connection lost!"));
 	when(usernames.get(eq(uuid))).thenReturn(Optional.of("n00bkiller"));
 
 	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
 	Optional<String> retrieved = usernamesManager.get(uuid);
 
 	assertTrue(retrieved.isPresent());
 	assertEquals(retrieved.get(), "n00bkiller");
 
-	verify(commands, times(2)).get(eq("UsernameByUuid::" + uuid));
+	verify(commands, times(1)).get(eq("Usernames::{usernames}::byUuid::" + uuid));
+	verifySet(commands, uuid, "n00bkiller");
 	verifyNoMoreInteractions(commands);
 
 	verify(usernames, times(1)).get(eq(uuid));
 	verifyNoMoreInteractions(usernames);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testPut() throws Exception {
+	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+	Usernames usernames = mock(Usernames.class);
+	ReservedUsernames reserved = mock(ReservedUsernames.class);
+
+	UUID uuid = UUID.randomUUID();
+
+	when(reserved.isReserved(eq("n00bkiller"), eq(uuid))).thenReturn(false);
+	when(usernames.put(eq(uuid), eq("n00bkiller"))).thenReturn(true);
+
+	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
+	assertTrue(usernamesManager.put(uuid, "n00bkiller"));
+
+	verifySet(commands, uuid, "n00bkiller");
+	verifyNoMoreInteractions(commands);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+	RedisAdvancedClusterCommands<String, String> commands = mock(RedisAdvancedClusterCommands.class);
+	FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.buildMockRedisCluster(commands);
+	Usernames usernames = mock(Usernames.class);
+	ReservedUsernames reserved = mock(ReservedUsernames.class);
+
+	UUID uuid = UUID.randomUUID();
+
+	UsernamesManager usernamesManager = new UsernamesManager(usernames, reserved, cacheCluster);
+	clearInvocations(commands);
+
+	usernamesManager.delete(uuid);
+
+	verify(commands, times(1)).evalsha(any(), eq(ScriptOutputType.INTEGER), aryEq(new String[] { "Usernames::{usernames}::byUuid::" + uuid }),
+		eq(uuid.toString()), eq(UsernamesManager.UUID_BY_USERNAME_KEY_PREFIX));
+	verifyNoMoreInteractions(commands);
+
+	verify(usernames, times(1)).delete(eq(uuid));
+	verifyNoMoreInteractions(usernames);
+    }
+
+    private static void verifySet(RedisAdvancedClusterCommands<String, String> commands, UUID uuid, String username) {
+	// both directions are set in one call
+	verify(commands, times(1)).evalsha(any(), eq(ScriptOutputType.INTEGER),
+		aryEq(new String[] { "Usernames::{usernames}::byUuid::" + uuid, "Usernames::{usernames}::byUsername::" + username }),
+		eq(uuid.toString()), eq(username), eq(TTL), eq(UsernamesManager.USERNAME_BY_UUID_KEY_PREFIX), eq(UsernamesManager.UUID_BY_USERNAME_KEY_PREFIX));
+    }
+
+}
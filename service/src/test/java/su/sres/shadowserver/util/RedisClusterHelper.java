@@ -8,6 +8,7 @@ package su.sres.shadowserver.util;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import su.sres.shadowserver.redis.FaultTolerantRedisCluster;
+import su.sres.shadowserver.redis.RedisWorkload;
 
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -69,6 +70,24 @@ public class RedisClusterHelper {
 	    return null;
 	}).when(cluster).useBinaryCluster(any(Consumer.class));
 
+	when(cluster.withCluster(any(RedisWorkload.class), any(Function.class))).thenAnswer(invocation -> {
+	    return invocation.getArgument(1, Function.class).apply(stringConnection);
+	});
+
+	doAnswer(invocation -> {
+	    invocation.getArgument(1, Consumer.class).accept(stringConnection);
+	    return null;
+	}).when(cluster).useCluster(any(RedisWorkload.class), any(Consumer.class));
+
+	when(cluster.withBinaryCluster(any(RedisWorkload.class), any(Function.class))).thenAnswer(invocation -> {
+	    return invocation.getArgument(1, Function.class).apply(binaryConnection);
+	});
+
+	doAnswer(invocation -> {
+	    invocation.getArgument(1, Consumer.class).accept(binaryConnection);
+	    return null;
+	}).when(cluster).useBinaryCluster(any(RedisWorkload.class), any(Consumer.class));
+
 	return cluster;
     }
 }
\ No newline at end of file
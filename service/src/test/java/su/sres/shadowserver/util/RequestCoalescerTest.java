@@ -0,0 +1,97 @@
+/*
+ * Original software: Copyright 2013-2020 Signal Messenger, LLC
+ * Modified software: Copyright 2019-2022 Anton Alipov, sole trader
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.shadowserver.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestCoalescerTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void testConcurrentLoadsShareOneFetch() throws Exception {
+    final RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+    final AtomicInteger fetches = new AtomicInteger();
+    final CountDownLatch fetchStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFetch = new CountDownLatch(1);
+
+    final Future<String> leader = executor.submit(() -> coalescer.load("key", () -> {
+      fetches.incrementAndGet();
+      fetchStarted.countDown();
+
+      try {
+        releaseFetch.await();
+      } catch (final InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+
+      return "value";
+    }));
+
+    assertTrue(fetchStarted.await(1, TimeUnit.SECONDS));
+
+    final List<Future<String>> followers = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      followers.add(executor.submit(() -> coalescer.load("key", () -> {
+        fetches.incrementAndGet();
+        return "unexpected";
+      })));
+    }
+
+    // give the followers a chance to join the in-flight load
+    Thread.sleep(100);
+    releaseFetch.countDown();
+
+    assertEquals("value", leader.get(1, TimeUnit.SECONDS));
+
+    for (final Future<String> follower : followers) {
+      assertEquals("value", follower.get(1, TimeUnit.SECONDS));
+    }
+
+    assertEquals(1, fetches.get());
+  }
+
+  @Test
+  void testSequentialLoadsAreNotCached() {
+    final RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>("test");
+    final AtomicInteger fetches = new AtomicInteger();
+
+    assertEquals(1, coalescer.load("key", fetches::incrementAndGet));
+    assertEquals(2, coalescer.load("key", fetches::incrementAndGet));
+  }
+
+  @Test
+  void testFailurePropagates() {
+    final RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+
+    assertThrows(IllegalStateException.class, () -> coalescer.load("key", () -> {
+      throw new IllegalStateException();
+    }));
+
+    assertEquals("value", coalescer.load("key", () -> "value"));
+  }
+}
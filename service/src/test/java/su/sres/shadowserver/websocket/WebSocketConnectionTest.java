@@ -16,10 +16,13 @@ import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static su.sres.shadowserver.entities.MessageProtos.Envelope;
+import static su.sres.shadowserver.entities.MessageProtos.EnvelopeBatch;
+import static su.sres.shadowserver.entities.MessageProtos.EnvelopeBatchAck;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -29,6 +32,7 @@ import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -38,6 +42,7 @@ import su.sres.websocket.messages.WebSocketResponseMessage;
 import su.sres.websocket.session.WebSocketSessionContext;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -65,6 +70,7 @@ import io.lettuce.core.RedisException;
 import su.sres.shadowserver.storage.Account;
 import su.sres.shadowserver.storage.AccountsManager;
 import su.sres.shadowserver.storage.Device;
+import su.sres.shadowserver.storage.MessageCursor;
 import su.sres.shadowserver.storage.MessagesManager;
 
 public class WebSocketConnectionTest {
@@ -193,7 +199,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getMessagesForDevice(eq(account.getUuid()), eq(2L), eq(userAgent), eq(false), any()))
         .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -245,7 +251,7 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean(), any()))
         .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false))
         .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first")), false))
         .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), false));
@@ -352,7 +358,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getMessagesForDevice(eq(account.getUuid()), eq(2L), eq(userAgent), eq(false), any()))
         .thenReturn(pendingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -402,7 +408,7 @@ public class WebSocketConnectionTest {
     final AtomicBoolean threadWaiting = new AtomicBoolean(false);
     final AtomicBoolean returnMessageList = new AtomicBoolean(false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenAnswer((Answer<OutgoingMessageEntityList>) invocation -> {
+    when(messagesManager.getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any())).thenAnswer((Answer<OutgoingMessageEntityList>) invocation -> {
       synchronized (threadWaiting) {
         threadWaiting.set(true);
         threadWaiting.notifyAll();
@@ -446,7 +452,7 @@ public class WebSocketConnectionTest {
       thread.join();
     }
 
-    verify(messagesManager).getMessagesForDevice(any(UUID.class), anyLong(), anyString(), eq(false));
+    verify(messagesManager).getMessagesForDevice(any(UUID.class), anyLong(), anyString(), eq(false), any());
   }
 
   @Test(timeout = 5000L)
@@ -468,7 +474,7 @@ public class WebSocketConnectionTest {
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(firstPageMessages, true);
     final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
+    when(messagesManager.getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any()))
         .thenReturn(firstPage)
         .thenReturn(secondPage);
 
@@ -490,6 +496,151 @@ public class WebSocketConnectionTest {
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
+  @Test
+  public void testProcessStoredMessagesWaitsForOutboundQueue() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, account, device, client, retrySchedulingExecutor);
+
+    when(account.getUserLogin()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final List<OutgoingMessageEntity> messages = List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+        createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"));
+
+    when(messagesManager.getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any()))
+        .thenReturn(new OutgoingMessageEntityList(messages, false));
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class)))
+        .thenReturn(CompletableFuture.completedFuture(successResponse));
+
+    final CompletableFuture<Void> drainedFuture = new CompletableFuture<>();
+
+    when(client.isOutboundQueueFull()).thenReturn(false, true, false);
+    when(client.whenOutboundQueueDrained()).thenReturn(drainedFuture);
+
+    connection.processStoredMessages();
+
+    verify(client, times(1)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+    verify(client, never()).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), any(Optional.class));
+
+    drainedFuture.complete(null);
+
+    verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
+  @Test
+  public void testProcessStoredMessagesPrefetchesPages() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, account, device, client, retrySchedulingExecutor, 2);
+
+    when(account.getUserLogin()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final OutgoingMessageEntity firstMessage = createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first");
+    final OutgoingMessageEntity secondMessage = createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second");
+    final OutgoingMessageEntity thirdMessage = createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third");
+
+    when(messagesManager.getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any()))
+        .thenReturn(new OutgoingMessageEntityList(List.of(firstMessage), true))
+        .thenReturn(new OutgoingMessageEntityList(List.of(secondMessage), true))
+        .thenReturn(new OutgoingMessageEntityList(List.of(thirdMessage), false));
+
+    final List<CompletableFuture<WebSocketResponseMessage>> responseFutures = new ArrayList<>();
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer(invocation -> {
+      final CompletableFuture<WebSocketResponseMessage> responseFuture = new CompletableFuture<>();
+      responseFutures.add(responseFuture);
+      return responseFuture;
+    });
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    connection.processStoredMessages();
+
+    // the second page is fetched while the first is in flight, skipping the first page's message, but the window is
+    // then full
+    final ArgumentCaptor<MessageCursor> cursorCaptor = ArgumentCaptor.forClass(MessageCursor.class);
+
+    verify(messagesManager, times(2)).getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), cursorCaptor.capture());
+    verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+
+    responseFutures.get(0).complete(successResponse);
+
+    verify(messagesManager, times(3)).getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), cursorCaptor.capture());
+
+    // every page of the pass follows on from the same cursor
+    assertEquals(1, cursorCaptor.getAllValues().stream().distinct().count());
+    verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+
+    // the queue isn't clear until every page has been acknowledged
+    responseFutures.get(2).complete(successResponse);
+    verify(client, never()).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), any(Optional.class));
+
+    responseFutures.get(1).complete(successResponse);
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
+  @Test
+  public void testProcessStoredMessagesInBatches() throws Exception {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+
+    when(account.getUserLogin()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+    when(client.getUpgradeRequestHeader(WebSocketConnection.BATCH_DELIVERY_HEADER)).thenReturn("true");
+
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, account, device, client, retrySchedulingExecutor);
+
+    final List<OutgoingMessageEntity> messages = new ArrayList<>();
+
+    for (int i = 0; i < WebSocketConnection.MAX_BATCH_ENVELOPES + 2; i++) {
+      messages.add(createMessage(i, false, "sender1", UUID.randomUUID(), 1000 + i, false, "message " + i));
+    }
+
+    when(messagesManager.getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any()))
+        .thenReturn(new OutgoingMessageEntityList(messages, false));
+
+    // the client only processes the first envelope of each batch
+    final WebSocketResponseMessage ackResponse = mock(WebSocketResponseMessage.class);
+    when(ackResponse.getStatus()).thenReturn(200);
+    when(ackResponse.getBody()).thenReturn(Optional.of(EnvelopeBatchAck.newBuilder().addProcessed(0).build().toByteArray()));
+
+    when(client.sendRequest(eq("PUT"), eq(WebSocketConnection.MESSAGE_BATCH_PATH), any(List.class), any(Optional.class)))
+        .thenReturn(CompletableFuture.completedFuture(ackResponse));
+
+    connection.processStoredMessages();
+
+    final ArgumentCaptor<Optional<byte[]>> bodyCaptor = ArgumentCaptor.forClass(Optional.class);
+    verify(client, times(2)).sendRequest(eq("PUT"), eq(WebSocketConnection.MESSAGE_BATCH_PATH), any(List.class), bodyCaptor.capture());
+    verify(client, never()).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+
+    final EnvelopeBatch firstBatch = EnvelopeBatch.parseFrom(bodyCaptor.getAllValues().get(0).orElseThrow());
+    final EnvelopeBatch secondBatch = EnvelopeBatch.parseFrom(bodyCaptor.getAllValues().get(1).orElseThrow());
+
+    assertEquals(WebSocketConnection.MAX_BATCH_ENVELOPES, firstBatch.getEnvelopesCount());
+    assertEquals(2, secondBatch.getEnvelopesCount());
+    assertEquals(messages.get(WebSocketConnection.MAX_BATCH_ENVELOPES).getGuid().toString(), secondBatch.getEnvelopes(0).getServerGuid());
+
+    verify(messagesManager).delete(account.getUuid(), 1L, messages.get(0).getGuid());
+    verify(messagesManager).delete(account.getUuid(), 1L, messages.get(WebSocketConnection.MAX_BATCH_ENVELOPES).getGuid());
+    verify(messagesManager, times(2)).delete(any(UUID.class), anyLong(), any(UUID.class));
+
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
   @Test(timeout = 5000L)
   public void testProcessStoredMessagesContainsSenderUuid() throws InterruptedException {
     final MessagesManager messagesManager = mock(MessagesManager.class);
@@ -505,7 +656,7 @@ public class WebSocketConnectionTest {
     final List<OutgoingMessageEntity> messages = List.of(createMessage(1L, false, "senderE164", senderUuid, 1111L, false, "message the first"));
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(messages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenReturn(firstPage);
+    when(messagesManager.getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any())).thenReturn(firstPage);
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -552,7 +703,7 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean(), any()))
         .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
@@ -591,7 +742,7 @@ public class WebSocketConnectionTest {
     final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(firstPageMessages, false);
     final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean(), any()))
         .thenReturn(firstPage)
         .thenReturn(secondPage)
         .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
@@ -629,7 +780,7 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean(), any()))
         .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
@@ -644,11 +795,11 @@ public class WebSocketConnectionTest {
     // anything.
     connection.processStoredMessages();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager).getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any());
 
     connection.handleNewMessagesAvailable();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), true);
+    verify(messagesManager).getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(true), any());
   }
 
   @Test
@@ -664,7 +815,7 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean(), any()))
         .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
@@ -680,7 +831,7 @@ public class WebSocketConnectionTest {
     connection.processStoredMessages();
     connection.handleMessagesPersisted();
 
-    verify(messagesManager, times(2)).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager, times(2)).getMessagesForDevice(eq(account.getUuid()), eq(1L), eq("Test-UA"), eq(false), any());
   }
 
   @Test
@@ -723,7 +874,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Shadow-Desktop/1.2.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getMessagesForDevice(eq(account.getUuid()), eq(2L), eq(userAgent), eq(false), any()))
         .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -801,7 +952,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Signal-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getMessagesForDevice(eq(account.getUuid()), eq(2L), eq(userAgent), eq(false), any()))
         .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -851,7 +1002,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Shadow-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getMessagesForDevice(eq(account.getUuid()), eq(2L), eq(userAgent), eq(false), any()))
         .thenThrow(new RedisException("OH NO"));
 
     when(retrySchedulingExecutor.schedule(any(Runnable.class), anyLong(), any())).thenAnswer((Answer<ScheduledFuture<?>>) invocation -> {
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013-2020 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.websocket;
+
+import com.codahale.metrics.Meter;
+import com.google.common.annotations.VisibleForTesting;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import su.sres.websocket.configuration.OutboundQueueConfiguration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the frames written to a connection's {@link RemoteEndpoint} that the remote side has not yet accepted.
+ * Jetty queues writes without limit, so a client that stops reading would otherwise let its queue grow until the
+ * server runs out of memory.
+ * <p>
+ * Senders that can wait (like the stored message pager) check {@link #isFull()} and resume once
+ * {@link #whenDrained()} completes, which happens when the queue falls below half of its limits. A connection that
+ * stays over its limits for longer than the configured overload duration, or that goes far beyond them, is
+ * disconnected.
+ */
+class OutboundQueue {
+
+  private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+  private final RemoteEndpoint remoteEndpoint;
+  private final OutboundQueueConfiguration configuration;
+  private final Runnable disconnectHandler;
+  private final Meter overloadDisconnectMeter;
+
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicInteger queuedFrames = new AtomicInteger();
+  private final AtomicLong overloadedSinceNanos = new AtomicLong();
+  private final AtomicBoolean disconnected = new AtomicBoolean(false);
+  private final Queue<CompletableFuture<Void>> drainWaiters = new ConcurrentLinkedQueue<>();
+
+  private volatile boolean closed = false;
+
+  OutboundQueue(final RemoteEndpoint remoteEndpoint,
+      final OutboundQueueConfiguration configuration,
+      final Runnable disconnectHandler,
+      final Meter overloadDisconnectMeter) {
+
+    this.remoteEndpoint = remoteEndpoint;
+    this.configuration = configuration;
+    this.disconnectHandler = disconnectHandler;
+    this.overloadDisconnectMeter = overloadDisconnectMeter;
+  }
+
+  void send(final ByteBuffer frame, final WriteCallback callback) {
+    final int frameSize = frame.remaining();
+
+    queuedBytes.addAndGet(frameSize);
+    queuedFrames.incrementAndGet();
+
+    checkLimits();
+
+    try {
+      remoteEndpoint.sendBytes(frame, new WriteCallback() {
+        @Override
+        public void writeFailed(final Throwable x) {
+          release(frameSize);
+          callback.writeFailed(x);
+        }
+
+        @Override
+        public void writeSuccess() {
+          release(frameSize);
+          callback.writeSuccess();
+        }
+      });
+    } catch (final WebSocketException e) {
+      release(frameSize);
+      throw e;
+    }
+  }
+
+  boolean isFull() {
+    return queuedBytes.get() >= configuration.getMaxQueuedBytes() || queuedFrames.get() >= configuration.getMaxQueuedFrames();
+  }
+
+  /**
+   * Returns a future that completes once the queue has drained below half of its limits, or completes exceptionally
+   * if the connection closes first.
+   */
+  CompletableFuture<Void> whenDrained() {
+    if (closed) {
+      return CompletableFuture.failedFuture(new IOException("Connection closed"));
+    }
+
+    if (isDrained()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final CompletableFuture<Void> waiter = new CompletableFuture<>();
+    drainWaiters.add(waiter);
+
+    // the queue may have drained (or closed) between the check above and adding the waiter
+    if (closed) {
+      failDrainWaiters();
+    } else if (isDrained()) {
+      completeDrainWaiters();
+    }
+
+    return waiter;
+  }
+
+  void close() {
+    closed = true;
+    failDrainWaiters();
+  }
+
+  @VisibleForTesting
+  long getQueuedBytes() {
+    return queuedBytes.get();
+  }
+
+  @VisibleForTesting
+  int getQueuedFrames() {
+    return queuedFrames.get();
+  }
+
+  private boolean isDrained() {
+    return queuedBytes.get() < configuration.getMaxQueuedBytes() / 2 && queuedFrames.get() < configuration.getMaxQueuedFrames() / 2;
+  }
+
+  private void release(final int frameSize) {
+    queuedBytes.addAndGet(-frameSize);
+    queuedFrames.decrementAndGet();
+
+    if (!isFull()) {
+      overloadedSinceNanos.set(0);
+    }
+
+    if (isDrained()) {
+      completeDrainWaiters();
+    }
+  }
+
+  private void checkLimits() {
+    if (queuedBytes.get() > configuration.getMaxQueuedBytes() * 2) {
+      disconnect();
+    } else if (isFull() && overloadedSinceNanos.compareAndSet(0, System.nanoTime())) {
+      scheduleOverloadCheck(configuration.getMaxOverloadDuration());
+    }
+  }
+
+  private void scheduleOverloadCheck(final Duration delay) {
+    WebSocketTimer.schedule(this::checkOverload, delay);
+  }
+
+  @VisibleForTesting
+  void checkOverload() {
+    final long overloadedSince = overloadedSinceNanos.get();
+
+    if (overloadedSince == 0 || closed) {
+      return;
+    }
+
+    final long overloadedNanos = System.nanoTime() - overloadedSince;
+    final long maxOverloadNanos = configuration.getMaxOverloadDuration().toNanos();
+
+    if (overloadedNanos >= maxOverloadNanos) {
+      disconnect();
+    } else {
+      // the connection recovered and then went over its limits again after this check was scheduled
+      scheduleOverloadCheck(Duration.ofNanos(maxOverloadNanos - overloadedNanos));
+    }
+  }
+
+  private void disconnect() {
+    if (disconnected.compareAndSet(false, true)) {
+      logger.debug("Disconnecting overloaded connection with {} bytes in {} frames queued", queuedBytes.get(), queuedFrames.get());
+
+      overloadDisconnectMeter.mark();
+      close();
+      disconnectHandler.run();
+    }
+  }
+
+  private void completeDrainWaiters() {
+    CompletableFuture<Void> waiter;
+
+    while ((waiter = drainWaiters.poll()) != null) {
+      waiter.complete(null);
+    }
+  }
+
+  private void failDrainWaiters() {
+    CompletableFuture<Void> waiter;
+
+    while ((waiter = drainWaiters.poll()) != null) {
+      waiter.completeExceptionally(new IOException("Connection closed"));
+    }
+  }
+}
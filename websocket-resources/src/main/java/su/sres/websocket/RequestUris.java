@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013-2020 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.websocket;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Parsed request URIs for the handful of fixed paths that make up almost all websocket traffic. URIs are immutable, so
+ * a parsed instance can be shared by every request. Only exact paths are kept, parsed once up front: paths that carry
+ * identifiers or query strings are chosen by the client and have no useful bound, so they are parsed each time.
+ */
+class RequestUris {
+
+  private static final Map<String, URI> HOT_PATH_URIS = Stream.of("/v1/messages", "/v1/keepalive")
+      .collect(Collectors.toUnmodifiableMap(Function.identity(), URI::create));
+
+  private RequestUris() {
+  }
+
+  static URI get(final String path) {
+    final URI hotPathUri = HOT_PATH_URIS.get(path);
+    return hotPathUri != null ? hotPathUri : URI.create(path);
+  }
+
+  static boolean isHotPath(final String path) {
+    return HOT_PATH_URIS.containsKey(path);
+  }
+}
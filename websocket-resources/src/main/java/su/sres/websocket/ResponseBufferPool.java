@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013-2020 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of buffers into which Jersey writes websocket response bodies. A buffer is only needed until its
+ * response has been serialized into the outgoing frame, so buffers can be reused by later requests instead of being
+ * allocated (and grown) for each one. Buffers that have grown unusually large are dropped rather than pooled.
+ */
+class ResponseBufferPool {
+
+  static final int INITIAL_BUFFER_SIZE = 4_096;
+  static final int MAX_POOLED_BUFFER_SIZE = 64 * 1_024;
+
+  private final BlockingQueue<ResponseBuffer> buffers;
+
+  ResponseBufferPool(final int maxPooledBuffers) {
+    this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+  }
+
+  ResponseBuffer acquire() {
+    final ResponseBuffer buffer = buffers.poll();
+    return buffer != null ? buffer : new ResponseBuffer();
+  }
+
+  void release(final ResponseBuffer buffer) {
+    if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+      buffer.reset();
+      buffers.offer(buffer);
+    }
+  }
+
+  int size() {
+    return buffers.size();
+  }
+
+  /**
+   * A {@link ByteArrayOutputStream} whose contents can be read in place, without the copy made by
+   * {@link ByteArrayOutputStream#toByteArray()}.
+   */
+  static class ResponseBuffer extends ByteArrayOutputStream {
+
+    private ResponseBuffer() {
+      super(INITIAL_BUFFER_SIZE);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+  }
+}
@@ -4,7 +4,8 @@
  */
 package su.sres.websocket;
 
-import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import io.micrometer.core.instrument.Metrics;
+import io.netty.util.Timeout;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.WriteCallback;
@@ -17,29 +18,39 @@ import su.sres.websocket.messages.WebSocketResponseMessage;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static com.codahale.metrics.MetricRegistry.name;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public class WebSocketClient {
 
     private static final Logger logger = LoggerFactory.getLogger(WebSocketClient.class);
 
+    private static final String REQUEST_TIMEOUT_COUNTER_NAME = name(WebSocketClient.class, "requestTimeout");
+    private static final String PATH_TAG = "path";
+
     private final Session session;
-    private final RemoteEndpoint remoteEndpoint;
+    private final OutboundQueue outboundQueue;
     private final WebSocketMessageFactory messageFactory;
     private final Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequestMapper;
+    private final Duration requestTimeout;
     private final long created;
 
-    public WebSocketClient(Session session, RemoteEndpoint remoteEndpoint,
+    WebSocketClient(Session session, OutboundQueue outboundQueue,
 	    WebSocketMessageFactory messageFactory,
-	    Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequestMapper) {
+	    Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequestMapper,
+	    Duration requestTimeout) {
 	this.session = session;
-	this.remoteEndpoint = remoteEndpoint;
+	this.outboundQueue = outboundQueue;
 	this.messageFactory = messageFactory;
 	this.pendingRequestMapper = pendingRequestMapper;
+	this.requestTimeout = requestTimeout;
 	this.created = System.currentTimeMillis();
     }
 
@@ -51,10 +62,13 @@ public class WebSocketClient {
 
 	pendingRequestMapper.put(requestId, future);
 
+	final Timeout timeout = WebSocketTimer.schedule(() -> expireRequest(requestId, future, path), requestTimeout);
+	future.whenComplete((response, cause) -> timeout.cancel());
+
 	WebSocketMessage requestMessage = messageFactory.createRequest(Optional.of(requestId), verb, path, headers, body);
 
 	try {
-	    remoteEndpoint.sendBytes(ByteBuffer.wrap(requestMessage.toByteArray()), new WriteCallback() {
+	    outboundQueue.send(ByteBuffer.wrap(requestMessage.toByteArray()), new WriteCallback() {
 		@Override
 		public void writeFailed(Throwable x) {
 		    logger.debug("Write failed", x);
@@ -75,10 +89,37 @@ public class WebSocketClient {
 	return future;
     }
 
+    /**
+     * Indicates whether this connection has so much outbound data queued that senders which can wait should hold off
+     * until {@link #whenOutboundQueueDrained()} completes.
+     */
+    public boolean isOutboundQueueFull() {
+	return outboundQueue.isFull();
+    }
+
+    /**
+     * Returns a future that completes once this connection's outbound queue has drained enough to accept more
+     * messages, or that completes exceptionally if the connection closes first.
+     */
+    public CompletableFuture<Void> whenOutboundQueueDrained() {
+	return outboundQueue.whenDrained();
+    }
+
+    private void expireRequest(final long requestId, final CompletableFuture<WebSocketResponseMessage> future, final String path) {
+	if (pendingRequestMapper.remove(requestId, future)) {
+	    Metrics.counter(REQUEST_TIMEOUT_COUNTER_NAME, PATH_TAG, path).increment();
+	    future.completeExceptionally(new TimeoutException("No response to " + path + " after " + requestTimeout));
+	}
+    }
+
     public String getUserAgent() {
 	return session.getUpgradeRequest().getHeader("User-Agent");
     }
 
+    public String getUpgradeRequestHeader(String name) {
+	return session.getUpgradeRequest().getHeader(name);
+    }
+
     public long getCreatedTimestamp() {
 	return this.created;
     }
@@ -4,16 +4,20 @@
  */
 package su.sres.websocket;
 
+import com.codahale.metrics.Meter;
 import com.google.common.annotations.VisibleForTesting;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.glassfish.jersey.internal.MapPropertiesDelegate;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ContainerRequest;
 import org.glassfish.jersey.server.ContainerResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import su.sres.websocket.configuration.OutboundQueueConfiguration;
+import su.sres.websocket.configuration.WebSocketConfiguration;
 import su.sres.websocket.logging.WebsocketRequestLog;
 import su.sres.websocket.messages.InvalidMessageException;
 import su.sres.websocket.messages.WebSocketMessage;
@@ -27,13 +31,13 @@ import su.sres.websocket.setup.WebSocketConnectListener;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -46,6 +50,20 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
   private static final Logger logger = LoggerFactory.getLogger(WebSocketResourceProvider.class);
 
+  private static final int MAX_POOLED_RESPONSE_BUFFERS = 256;
+  private static final ResponseBufferPool responseBufferPool = new ResponseBufferPool(MAX_POOLED_RESPONSE_BUFFERS);
+
+  private static final WriteCallback RESPONSE_WRITE_CALLBACK = new WriteCallback() {
+    @Override
+    public void writeFailed(final Throwable x) {
+      logger.debug("Response write failed", x);
+    }
+
+    @Override
+    public void writeSuccess() {
+    }
+  };
+
   private final Map<Long, CompletableFuture<WebSocketResponseMessage>> requestMap = new ConcurrentHashMap<>();
 
   private final T authenticated;
@@ -55,10 +73,16 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
   private final WebsocketRequestLog requestLog;
   private final long idleTimeoutMillis;
   private final String remoteAddress;
+  private final OutboundQueueConfiguration outboundQueueConfiguration;
+  private final Duration requestTimeout;
+  private final Meter overloadDisconnectMeter;
 
   private Session session;
   private RemoteEndpoint remoteEndpoint;
+  private OutboundQueue outboundQueue;
   private WebSocketSessionContext context;
+  private WebSocketSecurityContext securityContext;
+  private Map<String, List<String>> upgradeRequestHeaders;
   private static final Set<String> EXCLUDED_UPGRADE_REQUEST_HEADERS = Set.of("connection", "upgrade");
 
   public WebSocketResourceProvider(String remoteAddress,
@@ -68,6 +92,20 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
       WebSocketMessageFactory messageFactory,
       Optional<WebSocketConnectListener> connectListener,
       long idleTimeoutMillis) {
+    this(remoteAddress, jerseyHandler, requestLog, authenticated, messageFactory, connectListener, idleTimeoutMillis,
+        new OutboundQueueConfiguration(), WebSocketConfiguration.DEFAULT_REQUEST_TIMEOUT, new Meter());
+  }
+
+  public WebSocketResourceProvider(String remoteAddress,
+      ApplicationHandler jerseyHandler,
+      WebsocketRequestLog requestLog,
+      T authenticated,
+      WebSocketMessageFactory messageFactory,
+      Optional<WebSocketConnectListener> connectListener,
+      long idleTimeoutMillis,
+      OutboundQueueConfiguration outboundQueueConfiguration,
+      Duration requestTimeout,
+      Meter overloadDisconnectMeter) {
     this.remoteAddress = remoteAddress;
     this.jerseyHandler = jerseyHandler;
     this.requestLog = requestLog;
@@ -75,14 +113,20 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
     this.messageFactory = messageFactory;
     this.connectListener = connectListener;
     this.idleTimeoutMillis = idleTimeoutMillis;
+    this.outboundQueueConfiguration = outboundQueueConfiguration;
+    this.requestTimeout = requestTimeout;
+    this.overloadDisconnectMeter = overloadDisconnectMeter;
   }
 
   @Override
   public void onWebSocketConnect(Session session) {
     this.session = session;
     this.remoteEndpoint = session.getRemote();
-    this.context = new WebSocketSessionContext(new WebSocketClient(session, remoteEndpoint, messageFactory, requestMap));
+    this.outboundQueue = new OutboundQueue(remoteEndpoint, outboundQueueConfiguration, this::disconnectQuietly, overloadDisconnectMeter);
+    this.context = new WebSocketSessionContext(new WebSocketClient(session, outboundQueue, messageFactory, requestMap, requestTimeout));
     this.context.setAuthenticated(authenticated);
+    this.securityContext = new WebSocketSecurityContext(new ContextPrincipal(context));
+    this.upgradeRequestHeaders = getUpgradeRequestHeaders(session.getUpgradeRequest().getHeaders());
     this.session.setIdleTimeout(idleTimeoutMillis);
 
     connectListener.ifPresent(listener -> listener.onWebSocketConnect(this.context));
@@ -118,6 +162,10 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
   @Override
   public void onWebSocketClose(int statusCode, String reason) {
+    if (outboundQueue != null) {
+      outboundQueue.close();
+    }
+
     if (context != null) {
       context.notifyClosed(statusCode, reason);
 
@@ -137,15 +185,15 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
   }
 
   private void handleRequest(WebSocketRequestMessage requestMessage) {
-    ContainerRequest containerRequest = new ContainerRequest(null, URI.create(requestMessage.getPath()), requestMessage.getVerb(), new WebSocketSecurityContext(new ContextPrincipal(context)), new MapPropertiesDelegate(new HashMap<>()), jerseyHandler.getConfiguration());
+    ContainerRequest containerRequest = new ContainerRequest(null, RequestUris.get(requestMessage.getPath()), requestMessage.getVerb(), securityContext, new MapPropertiesDelegate(), jerseyHandler.getConfiguration());
 
-    containerRequest.headers(getCombinedHeaders(session.getUpgradeRequest().getHeaders(), requestMessage.getHeaders()));
+    addHeaders(containerRequest, upgradeRequestHeaders, requestMessage.getHeaders());
 
     if (requestMessage.getBody().isPresent()) {
       containerRequest.setEntityStream(new ByteArrayInputStream(requestMessage.getBody().get()));
     }
 
-    ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+    ResponseBufferPool.ResponseBuffer responseBody = responseBufferPool.acquire();
     CompletableFuture<ContainerResponse> responseFuture = (CompletableFuture<ContainerResponse>) jerseyHandler.apply(containerRequest, responseBody);
 
     responseFuture.thenAccept(response -> {
@@ -156,22 +204,36 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
       sendErrorResponse(requestMessage, Response.status(500).build());
       requestLog.log(remoteAddress, containerRequest, new ContainerResponse(containerRequest, Response.status(500).build()));
       return null;
-    });
+    }).whenComplete((ignored, throwable) -> responseBufferPool.release(responseBody));
   }
 
+  /**
+   * Filters the upgrade request's headers, which apply to every request on the connection, once per connection.
+   */
   @VisibleForTesting
-  static Map<String, List<String>> getCombinedHeaders(final Map<String, List<String>> upgradeRequestHeaders, final Map<String, String> requestMessageHeaders) {
-    final Map<String, List<String>> combinedHeaders = new HashMap<>();
+  static Map<String, List<String>> getUpgradeRequestHeaders(final Map<String, List<String>> upgradeRequestHeaders) {
+    final Map<String, List<String>> filteredHeaders = new HashMap<>();
 
     upgradeRequestHeaders.entrySet().stream()
         .filter(entry -> shouldIncludeUpgradeRequestHeader(entry.getKey()))
-        .forEach(entry -> combinedHeaders.put(entry.getKey(), entry.getValue()));
+        .forEach(entry -> filteredHeaders.put(entry.getKey(), entry.getValue()));
 
-    requestMessageHeaders.entrySet().stream()
-        .filter(entry -> shouldIncludeRequestMessageHeader(entry.getKey()))
-        .forEach(entry -> combinedHeaders.put(entry.getKey(), List.of(entry.getValue())));
+    return filteredHeaders;
+  }
+
+  /**
+   * Adds the connection's upgrade request headers to a request, then its own headers, which replace any upgrade
+   * request header with the same (case-insensitive) name.
+   */
+  @VisibleForTesting
+  static void addHeaders(final ContainerRequest containerRequest, final Map<String, List<String>> upgradeRequestHeaders, final Map<String, String> requestMessageHeaders) {
+    containerRequest.headers(upgradeRequestHeaders);
 
-    return combinedHeaders;
+    for (final Map.Entry<String, String> header : requestMessageHeaders.entrySet()) {
+      if (shouldIncludeRequestMessageHeader(header.getKey())) {
+        containerRequest.getHeaders().putSingle(header.getKey(), header.getValue());
+      }
+    }
   }
 
   @VisibleForTesting
@@ -196,22 +258,24 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
     session.close(status, message);
   }
 
-  private void sendResponse(WebSocketRequestMessage requestMessage, ContainerResponse response, ByteArrayOutputStream responseBody) {
-    if (requestMessage.hasRequestId()) {
-      byte[] body = responseBody.toByteArray();
-
-      if (body.length <= 0) {
-        body = null;
-      }
+  private void disconnectQuietly() {
+    try {
+      session.disconnect();
+    } catch (IOException e) {
+      // the connection is going away either way
+    }
+  }
 
-      byte[] responseBytes = messageFactory.createResponse(requestMessage.getRequestId(),
+  private void sendResponse(WebSocketRequestMessage requestMessage, ContainerResponse response, ResponseBufferPool.ResponseBuffer responseBody) {
+    if (requestMessage.hasRequestId()) {
+      // the body is copied straight from the pooled buffer into the frame
+      byte[] responseBytes = messageFactory.serializeResponse(requestMessage.getRequestId(),
           response.getStatus(),
           response.getStatusInfo().getReasonPhrase(),
           getHeaderList(response.getStringHeaders()),
-          Optional.ofNullable(body))
-          .toByteArray();
+          responseBody.getBuffer(), 0, responseBody.size());
 
-      remoteEndpoint.sendBytesByFuture(ByteBuffer.wrap(responseBytes));
+      outboundQueue.send(ByteBuffer.wrap(responseBytes), RESPONSE_WRITE_CALLBACK);
     }
   }
 
@@ -224,7 +288,7 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
           getHeaderList(error.getStringHeaders()),
           Optional.empty());
 
-      remoteEndpoint.sendBytesByFuture(ByteBuffer.wrap(response.toByteArray()));
+      outboundQueue.send(ByteBuffer.wrap(response.toByteArray()), RESPONSE_WRITE_CALLBACK);
     }
   }
 
@@ -235,12 +299,14 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
   @VisibleForTesting
   static List<String> getHeaderList(final MultivaluedMap<String, String> headerMap) {
-    final List<String> headers = new LinkedList<>();
+    if (headerMap == null || headerMap.isEmpty()) {
+      return Collections.emptyList();
+    }
 
-    if (headerMap != null) {
-      for (String key : headerMap.keySet()) {
-        headers.add(key + ":" + headerMap.getFirst(key));
-      }
+    final List<String> headers = new ArrayList<>(headerMap.size());
+
+    for (String key : headerMap.keySet()) {
+      headers.add(key + ":" + headerMap.getFirst(key));
     }
 
     return headers;
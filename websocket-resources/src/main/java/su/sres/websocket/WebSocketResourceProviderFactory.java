@@ -4,6 +4,7 @@
  */
 package su.sres.websocket;
 
+import com.codahale.metrics.Meter;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
@@ -25,6 +26,7 @@ import java.util.Arrays;
 import java.util.Optional;
 
 import io.dropwizard.jersey.jackson.JacksonMessageBodyProvider;
+import static com.codahale.metrics.MetricRegistry.name;
 import static java.util.Optional.ofNullable;
 
 public class WebSocketResourceProviderFactory<T extends Principal> extends WebSocketServlet implements WebSocketCreator {
@@ -33,6 +35,7 @@ public class WebSocketResourceProviderFactory<T extends Principal> extends WebSo
 
   private final WebSocketEnvironment<T> environment;
   private final ApplicationHandler      jerseyApplicationHandler;
+  private final Meter                   overloadDisconnectMeter;
 
   public WebSocketResourceProviderFactory(WebSocketEnvironment<T> environment, Class<T> principalClass) {
     this.environment = environment;
@@ -42,6 +45,7 @@ public class WebSocketResourceProviderFactory<T extends Principal> extends WebSo
     environment.jersey().register(new JacksonMessageBodyProvider(environment.getObjectMapper()));
 
     this.jerseyApplicationHandler = new ApplicationHandler(environment.jersey());
+    this.overloadDisconnectMeter  = environment.metrics().meter(name(WebSocketResourceProviderFactory.class, "outboundQueueOverloadDisconnect"));
   }
 
   @Override
@@ -67,7 +71,10 @@ public class WebSocketResourceProviderFactory<T extends Principal> extends WebSo
                                               authenticated,
                                               this.environment.getMessageFactory(),
                                               ofNullable(this.environment.getConnectListener()),
-                                              this.environment.getIdleTimeoutMillis());
+                                              this.environment.getIdleTimeoutMillis(),
+                                              this.environment.getOutboundQueueConfiguration(),
+                                              this.environment.getRequestTimeout(),
+                                              this.overloadDisconnectMeter);
     } catch (AuthenticationException | IOException e) {
       logger.warn("Authentication failure", e);
       try {
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013-2020 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.websocket;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel shared by all websocket connections. Connection timeouts (like those for outstanding requests)
+ * are numerous and almost always cancelled before they fire, which a wheel handles far more cheaply than a scheduled
+ * executor does. Expiry is only accurate to within a tick, and tasks run on the single timer thread, so they must be
+ * quick.
+ */
+final class WebSocketTimer {
+
+  private static final long TICK_DURATION_MILLIS = 100;
+  private static final int TICKS_PER_WHEEL = 512;
+
+  private static final HashedWheelTimer timer = new HashedWheelTimer(new DefaultThreadFactory("websocket-timer", true),
+      TICK_DURATION_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+
+  private WebSocketTimer() {
+  }
+
+  static Timeout schedule(final Runnable task, final Duration delay) {
+    return timer.newTimeout(timeout -> task.run(), delay.toNanos(), TimeUnit.NANOSECONDS);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013-2020 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.websocket.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.time.Duration;
+
+public class OutboundQueueConfiguration {
+
+  /**
+   * The number of bytes that may be queued for a single connection before senders that respect backpressure stop
+   * sending to it. A connection with more than twice this many bytes queued is disconnected immediately.
+   */
+  @JsonProperty
+  @Min(1)
+  private long maxQueuedBytes = 4 * 1024 * 1024;
+
+  /**
+   * The number of frames that may be queued for a single connection before senders that respect backpressure stop
+   * sending to it.
+   */
+  @JsonProperty
+  @Min(1)
+  private int maxQueuedFrames = 1024;
+
+  /**
+   * How long a connection may stay over its limits before it is disconnected.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration maxOverloadDuration = Duration.ofSeconds(30);
+
+  public OutboundQueueConfiguration() {
+  }
+
+  public OutboundQueueConfiguration(final long maxQueuedBytes, final int maxQueuedFrames, final Duration maxOverloadDuration) {
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.maxQueuedFrames = maxQueuedFrames;
+    this.maxOverloadDuration = maxOverloadDuration;
+  }
+
+  public long getMaxQueuedBytes() {
+    return maxQueuedBytes;
+  }
+
+  public int getMaxQueuedFrames() {
+    return maxQueuedFrames;
+  }
+
+  public Duration getMaxOverloadDuration() {
+    return maxOverloadDuration;
+  }
+}
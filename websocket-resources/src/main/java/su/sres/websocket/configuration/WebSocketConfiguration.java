@@ -10,15 +10,38 @@ import su.sres.websocket.logging.WebsocketRequestLoggerFactory;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.time.Duration;
 
 public class WebSocketConfiguration {
 
+  public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
   @Valid
   @NotNull
   @JsonProperty
   private WebsocketRequestLoggerFactory requestLog = new WebsocketRequestLoggerFactory();
 
+  @Valid
+  @NotNull
+  @JsonProperty
+  private OutboundQueueConfiguration outboundQueue = new OutboundQueueConfiguration();
+
+  /**
+   * How long the server waits for a client to respond to a request before giving up on it.
+   */
+  @NotNull
+  @JsonProperty
+  private Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
   public WebsocketRequestLoggerFactory getRequestLog() {
     return requestLog;
   }
+
+  public OutboundQueueConfiguration getOutboundQueue() {
+    return outboundQueue;
+  }
+
+  public Duration getRequestTimeout() {
+    return requestTimeout;
+  }
 }
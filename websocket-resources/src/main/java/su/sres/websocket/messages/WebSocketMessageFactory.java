@@ -23,4 +23,13 @@ public interface WebSocketMessageFactory {
                                          List<String> headers,
                                          Optional<byte[]> body);
 
+  /**
+   * Serializes a response straight into a frame-ready byte array. Unlike {@link #createResponse}, the body is given as
+   * a region of a (possibly larger, possibly reused) buffer and is copied exactly once, into the result; a zero-length
+   * body is omitted.
+   */
+  public byte[] serializeResponse(long requestId, int status, String message,
+                                  List<String> headers,
+                                  byte[] body, int bodyOffset, int bodyLength);
+
 }
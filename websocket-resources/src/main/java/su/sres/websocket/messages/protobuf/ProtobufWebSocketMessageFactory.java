@@ -6,6 +6,7 @@
 package su.sres.websocket.messages.protobuf;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import su.sres.websocket.messages.InvalidMessageException;
 import su.sres.websocket.messages.WebSocketMessage;
 import su.sres.websocket.messages.WebSocketMessageFactory;
@@ -78,4 +79,28 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
 
     return new ProtobufWebSocketMessage(message);
   }
+
+  @Override
+  public byte[] serializeResponse(long requestId, int status, String messageString, List<String> headers, byte[] body, int bodyOffset, int bodyLength) {
+    SubProtocol.WebSocketResponseMessage.Builder responseMessage =
+        SubProtocol.WebSocketResponseMessage.newBuilder()
+                                            .setId(requestId)
+                                            .setStatus(status)
+                                            .setMessage(messageString);
+
+    if (bodyLength > 0) {
+      // the wrapped region is only read by toByteArray() below, before the caller can reuse the buffer
+      responseMessage.setBody(UnsafeByteOperations.unsafeWrap(body, bodyOffset, bodyLength));
+    }
+
+    if (headers != null) {
+      responseMessage.addAllHeaders(headers);
+    }
+
+    return SubProtocol.WebSocketMessage.newBuilder()
+                                       .setType(SubProtocol.WebSocketMessage.Type.RESPONSE)
+                                       .setResponse(responseMessage)
+                                       .build()
+                                       .toByteArray();
+  }
 }
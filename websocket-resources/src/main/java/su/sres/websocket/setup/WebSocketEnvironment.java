@@ -4,15 +4,18 @@
  */
 package su.sres.websocket.setup;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.glassfish.jersey.server.ResourceConfig;
 import su.sres.websocket.auth.WebSocketAuthenticator;
+import su.sres.websocket.configuration.OutboundQueueConfiguration;
 import su.sres.websocket.configuration.WebSocketConfiguration;
 import su.sres.websocket.logging.WebsocketRequestLog;
 import su.sres.websocket.messages.WebSocketMessageFactory;
 import su.sres.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
 
 import javax.validation.Validator;
+import java.time.Duration;
 import java.security.Principal;
 
 import io.dropwizard.jersey.DropwizardResourceConfig;
@@ -25,6 +28,9 @@ public class WebSocketEnvironment<T extends Principal> {
   private final Validator             validator;
   private final WebsocketRequestLog   requestLog;
   private final long                  idleTimeoutMillis;
+  private final MetricRegistry        metrics;
+  private final OutboundQueueConfiguration outboundQueueConfiguration;
+  private final Duration              requestTimeout;
 
   private WebSocketAuthenticator<T> authenticator;
   private WebSocketMessageFactory   messageFactory;
@@ -35,16 +41,25 @@ public class WebSocketEnvironment<T extends Principal> {
   }
 
   public WebSocketEnvironment(Environment environment, WebSocketConfiguration configuration, long idleTimeoutMillis) {
-    this(environment, configuration.getRequestLog().build("websocket"), idleTimeoutMillis);
+    this(environment, configuration.getRequestLog().build("websocket"), idleTimeoutMillis, configuration.getOutboundQueue(),
+        configuration.getRequestTimeout());
   }
 
   public WebSocketEnvironment(Environment environment, WebsocketRequestLog requestLog, long idleTimeoutMillis) {
+    this(environment, requestLog, idleTimeoutMillis, new OutboundQueueConfiguration(), WebSocketConfiguration.DEFAULT_REQUEST_TIMEOUT);
+  }
+
+  public WebSocketEnvironment(Environment environment, WebsocketRequestLog requestLog, long idleTimeoutMillis,
+      OutboundQueueConfiguration outboundQueueConfiguration, Duration requestTimeout) {
     this.jerseyConfig             = new DropwizardResourceConfig(environment.metrics());
     this.objectMapper             = environment.getObjectMapper();
     this.validator                = environment.getValidator();
     this.requestLog               = requestLog;
     this.messageFactory           = new ProtobufWebSocketMessageFactory();
     this.idleTimeoutMillis        = idleTimeoutMillis;
+    this.metrics                  = environment.metrics();
+    this.outboundQueueConfiguration = outboundQueueConfiguration;
+    this.requestTimeout           = requestTimeout;
   }
 
   public ResourceConfig jersey() {
@@ -63,6 +78,18 @@ public class WebSocketEnvironment<T extends Principal> {
     return idleTimeoutMillis;
   }
 
+  public MetricRegistry metrics() {
+    return metrics;
+  }
+
+  public OutboundQueueConfiguration getOutboundQueueConfiguration() {
+    return outboundQueueConfiguration;
+  }
+
+  public Duration getRequestTimeout() {
+    return requestTimeout;
+  }
+
   public ObjectMapper getObjectMapper() {
     return objectMapper;
   }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013-2020 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package su.sres.websocket;
+
+import com.codahale.metrics.Meter;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import su.sres.websocket.configuration.OutboundQueueConfiguration;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class OutboundQueueTest {
+
+  private static final int MAX_QUEUED_BYTES = 100;
+  private static final int MAX_QUEUED_FRAMES = 4;
+
+  private RemoteEndpoint remoteEndpoint;
+  private Runnable disconnectHandler;
+  private Meter overloadDisconnectMeter;
+
+  @Before
+  public void setUp() {
+    remoteEndpoint = mock(RemoteEndpoint.class);
+    disconnectHandler = mock(Runnable.class);
+    overloadDisconnectMeter = new Meter();
+  }
+
+  @Test
+  public void testQueuedUntilWritten() {
+    final OutboundQueue outboundQueue = buildOutboundQueue(Duration.ofHours(1));
+    final WriteCallback callback = mock(WriteCallback.class);
+
+    outboundQueue.send(ByteBuffer.allocate(30), callback);
+    outboundQueue.send(ByteBuffer.allocate(20), callback);
+
+    assertThat(outboundQueue.getQueuedBytes()).isEqualTo(50);
+    assertThat(outboundQueue.getQueuedFrames()).isEqualTo(2);
+
+    final List<WriteCallback> writeCallbacks = getWriteCallbacks(2);
+
+    writeCallbacks.get(0).writeSuccess();
+    writeCallbacks.get(1).writeFailed(new RuntimeException("OH NO"));
+
+    assertThat(outboundQueue.getQueuedBytes()).isZero();
+    assertThat(outboundQueue.getQueuedFrames()).isZero();
+
+    verify(callback).writeSuccess();
+    verify(callback).writeFailed(any(RuntimeException.class));
+  }
+
+  @Test
+  public void testWhenDrained() {
+    final OutboundQueue outboundQueue = buildOutboundQueue(Duration.ofHours(1));
+
+    assertThat(outboundQueue.isFull()).isFalse();
+    assertThat(outboundQueue.whenDrained()).isDone();
+
+    outboundQueue.send(ByteBuffer.allocate(60), mock(WriteCallback.class));
+    outboundQueue.send(ByteBuffer.allocate(60), mock(WriteCallback.class));
+
+    assertThat(outboundQueue.isFull()).isTrue();
+
+    final CompletableFuture<Void> drainedFuture = outboundQueue.whenDrained();
+    final List<WriteCallback> writeCallbacks = getWriteCallbacks(2);
+
+    // back under the limit, but not yet under the low-water mark
+    writeCallbacks.get(0).writeSuccess();
+    assertThat(outboundQueue.isFull()).isFalse();
+    assertThat(drainedFuture).isNotDone();
+
+    writeCallbacks.get(1).writeSuccess();
+    assertThat(drainedFuture).isCompleted();
+  }
+
+  @Test
+  public void testFrameLimit() {
+    final OutboundQueue outboundQueue = buildOutboundQueue(Duration.ofHours(1));
+
+    for (int i = 0; i < MAX_QUEUED_FRAMES; i++) {
+      assertThat(outboundQueue.isFull()).isFalse();
+      outboundQueue.send(ByteBuffer.allocate(1), mock(WriteCallback.class));
+    }
+
+    assertThat(outboundQueue.isFull()).isTrue();
+  }
+
+  @Test
+  public void testCloseFailsWaiters() {
+    final OutboundQueue outboundQueue = buildOutboundQueue(Duration.ofHours(1));
+
+    outboundQueue.send(ByteBuffer.allocate(MAX_QUEUED_BYTES), mock(WriteCallback.class));
+
+    final CompletableFuture<Void> drainedFuture = outboundQueue.whenDrained();
+    outboundQueue.close();
+
+    assertThat(drainedFuture).isCompletedExceptionally();
+    assertThat(outboundQueue.whenDrained()).isCompletedExceptionally();
+  }
+
+  @Test
+  public void testHardLimitDisconnects() {
+    final OutboundQueue outboundQueue = buildOutboundQueue(Duration.ofHours(1));
+
+    outboundQueue.send(ByteBuffer.allocate(MAX_QUEUED_BYTES * 2), mock(WriteCallback.class));
+    verify(disconnectHandler, never()).run();
+
+    outboundQueue.send(ByteBuffer.allocate(1), mock(WriteCallback.class));
+    outboundQueue.send(ByteBuffer.allocate(1), mock(WriteCallback.class));
+
+    verify(disconnectHandler, times(1)).run();
+    assertThat(overloadDisconnectMeter.getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testOverloadDisconnects() {
+    final OutboundQueue outboundQueue = buildOutboundQueue(Duration.ZERO);
+
+    outboundQueue.send(ByteBuffer.allocate(MAX_QUEUED_BYTES), mock(WriteCallback.class));
+
+    verify(disconnectHandler, timeout(1_000)).run();
+    assertThat(overloadDisconnectMeter.getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRecoveredConnectionNotDisconnected() {
+    final OutboundQueue outboundQueue = buildOutboundQueue(Duration.ofHours(1));
+
+    outboundQueue.send(ByteBuffer.allocate(MAX_QUEUED_BYTES), mock(WriteCallback.class));
+    outboundQueue.checkOverload();
+
+    getWriteCallbacks(1).get(0).writeSuccess();
+    outboundQueue.checkOverload();
+
+    verify(disconnectHandler, never()).run();
+    assertThat(overloadDisconnectMeter.getCount()).isZero();
+  }
+
+  private OutboundQueue buildOutboundQueue(final Duration maxOverloadDuration) {
+    return new OutboundQueue(remoteEndpoint,
+        new OutboundQueueConfiguration(MAX_QUEUED_BYTES, MAX_QUEUED_FRAMES, maxOverloadDuration),
+        disconnectHandler,
+        overloadDisconnectMeter);
+  }
+
+  private List<WriteCallback> getWriteCallbacks(final int expectedWrites) {
+    final ArgumentCaptor<WriteCallback> callbackCaptor = ArgumentCaptor.forClass(WriteCallback.class);
+    verify(remoteEndpoint, times(expectedWrites)).sendBytes(any(ByteBuffer.class), callbackCaptor.capture());
+
+    return callbackCaptor.getAllValues();
+  }
+}
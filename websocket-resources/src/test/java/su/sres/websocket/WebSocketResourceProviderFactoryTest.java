@@ -13,6 +13,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.codahale.metrics.MetricRegistry;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
@@ -22,6 +23,7 @@ import org.glassfish.jersey.server.ResourceConfig;
 import org.junit.Test;
 import su.sres.websocket.auth.AuthenticationException;
 import su.sres.websocket.auth.WebSocketAuthenticator;
+import su.sres.websocket.configuration.OutboundQueueConfiguration;
 import su.sres.websocket.setup.WebSocketEnvironment;
 
 import javax.security.auth.Subject;
@@ -44,6 +46,8 @@ public class WebSocketResourceProviderFactoryTest {
     when(environment.getAuthenticator()).thenReturn(authenticator);
     when(authenticator.authenticate(eq(request))).thenReturn(new WebSocketAuthenticator.AuthenticationResult<>(Optional.empty(), true));
     when(environment.jersey()).thenReturn(jerseyEnvironment);
+    when(environment.metrics()).thenReturn(new MetricRegistry());
+    when(environment.getOutboundQueueConfiguration()).thenReturn(new OutboundQueueConfiguration());
 
     WebSocketResourceProviderFactory factory = new WebSocketResourceProviderFactory(environment, Account.class);
     Object connection = factory.createWebSocket(request, response);
@@ -66,6 +70,8 @@ public class WebSocketResourceProviderFactoryTest {
     when(environment.getAuthenticator()).thenReturn(authenticator);
     when(authenticator.authenticate(eq(request))).thenReturn(new WebSocketAuthenticator.AuthenticationResult<>(Optional.of(account), true));
     when(environment.jersey()).thenReturn(jerseyEnvironment);
+    when(environment.metrics()).thenReturn(new MetricRegistry());
+    when(environment.getOutboundQueueConfiguration()).thenReturn(new OutboundQueueConfiguration());
     when(session.getUpgradeRequest()).thenReturn(mock(UpgradeRequest.class));
 
     WebSocketResourceProviderFactory factory = new WebSocketResourceProviderFactory(environment, Account.class);
@@ -92,6 +98,8 @@ public class WebSocketResourceProviderFactoryTest {
     when(environment.getAuthenticator()).thenReturn(authenticator);
     when(authenticator.authenticate(eq(request))).thenThrow(new AuthenticationException("database failure"));
     when(environment.jersey()).thenReturn(jerseyEnvironment);
+    when(environment.metrics()).thenReturn(new MetricRegistry());
+    when(environment.getOutboundQueueConfiguration()).thenReturn(new OutboundQueueConfiguration());
 
     WebSocketResourceProviderFactory factory = new WebSocketResourceProviderFactory(environment, Account.class);
     Object connection = factory.createWebSocket(request, response);
@@ -107,6 +115,8 @@ public class WebSocketResourceProviderFactoryTest {
     WebSocketEnvironment environment = mock(WebSocketEnvironment.class);
     WebSocketServletFactory servletFactory = mock(WebSocketServletFactory.class);
     when(environment.jersey()).thenReturn(jerseyEnvironment);
+    when(environment.metrics()).thenReturn(new MetricRegistry());
+    when(environment.getOutboundQueueConfiguration()).thenReturn(new OutboundQueueConfiguration());
 
     WebSocketResourceProviderFactory factory = new WebSocketResourceProviderFactory(environment, Account.class);
     factory.configure(servletFactory);
@@ -4,6 +4,7 @@
  */
 package su.sres.websocket;
 
+import com.codahale.metrics.Meter;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -14,6 +15,7 @@ import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ContainerRequest;
 import org.glassfish.jersey.server.ContainerResponse;
@@ -22,7 +24,9 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
 import su.sres.websocket.auth.WebsocketAuthValueFactoryProvider;
+import su.sres.websocket.configuration.OutboundQueueConfiguration;
 import su.sres.websocket.logging.WebsocketRequestLog;
+import su.sres.websocket.messages.WebSocketResponseMessage;
 import su.sres.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
 import su.sres.websocket.messages.protobuf.SubProtocol;
 import su.sres.websocket.session.WebSocketSession;
@@ -45,26 +49,34 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.ExceptionMapper;
 import javax.ws.rs.ext.Provider;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.DropwizardResourceConfig;
 import io.dropwizard.jersey.jackson.JacksonMessageBodyProvider;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -161,7 +173,7 @@ public class WebSocketResourceProviderTest {
     assertThat(bundledRequest.getPath(false)).isEqualTo("bar");
 
     verify(requestLog).log(eq("127.0.0.1"), eq(bundledRequest), eq(response));
-    verify(remoteEndpoint).sendBytesByFuture(responseCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketMessage responseMessageContainer = SubProtocol.WebSocketMessage.parseFrom(responseCaptor.getValue().array());
     assertThat(responseMessageContainer.getResponse().getId()).isEqualTo(111L);
@@ -207,7 +219,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketMessage responseMessageContainer = SubProtocol.WebSocketMessage.parseFrom(responseCaptor.getValue().array());
     assertThat(responseMessageContainer.getResponse().getStatus()).isEqualTo(500);
@@ -242,7 +254,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -279,7 +291,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -316,7 +328,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -353,7 +365,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -389,7 +401,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -426,7 +438,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -463,7 +475,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -500,7 +512,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -538,7 +550,7 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -588,7 +600,8 @@ public class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    // the first write was the request sent by the resource
+    verify(remoteEndpoint, times(2)).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -644,12 +657,105 @@ public class WebSocketResourceProviderTest {
         "X-Forwarded-For", "192.168.0.1",
         "User-Agent", "Request message user agent");
 
-    final Map<String, List<String>> expectedHeaders = Map.of(
-        "Host", List.of("server.example.com"),
-        "X-Forwarded-For", List.of("127.0.0.1"),
-        "User-Agent", List.of("Request message user agent"));
+    final ContainerRequest containerRequest = new ContainerRequest(null, URI.create("/v1/test"), "GET", null, new MapPropertiesDelegate(), null);
+
+    WebSocketResourceProvider.addHeaders(containerRequest,
+        WebSocketResourceProvider.getUpgradeRequestHeaders(upgradeRequestHeaders),
+        requestMessageHeaders);
+
+    assertThat(containerRequest.getHeaders().keySet()).containsExactlyInAnyOrder("Host", "X-Forwarded-For", "User-Agent");
+    assertThat(containerRequest.getRequestHeader("Host")).containsExactly("server.example.com");
+    assertThat(containerRequest.getRequestHeader("X-Forwarded-For")).containsExactly("127.0.0.1");
+    assertThat(containerRequest.getRequestHeader("User-Agent")).containsExactly("Request message user agent");
+  }
+
+  @Test
+  public void testRequestMessageHeadersReplaceUpgradeHeadersIgnoringCase() {
+    final ContainerRequest containerRequest = new ContainerRequest(null, URI.create("/v1/test"), "GET", null, new MapPropertiesDelegate(), null);
+
+    // request message header names arrive lower-cased
+    WebSocketResourceProvider.addHeaders(containerRequest,
+        WebSocketResourceProvider.getUpgradeRequestHeaders(Map.of("User-Agent", List.of("Upgrade request user agent"))),
+        Map.of("user-agent", "Request message user agent"));
+
+    assertThat(containerRequest.getRequestHeader("User-Agent")).containsExactly("Request message user agent");
+  }
+
+  @Test
+  public void testRequestUris() {
+    assertThat(RequestUris.isHotPath("/v1/messages")).isTrue();
+    assertThat(RequestUris.isHotPath("/v1/accounts/whoami")).isFalse();
+
+    // paths the client fills in are never kept
+    assertThat(RequestUris.isHotPath("/v1/profile/abc")).isFalse();
+    assertThat(RequestUris.isHotPath("/v1/messages/abc")).isFalse();
+    assertThat(RequestUris.isHotPath("/v1/messages?story=false")).isFalse();
+
+    assertThat(RequestUris.get("/v1/keepalive")).isSameAs(RequestUris.get("/v1/keepalive"));
+    assertThat(RequestUris.get("/v1/messages?story=false").getPath()).isEqualTo("/v1/messages");
+    assertThat(RequestUris.get("/v1/accounts/whoami")).isEqualTo(URI.create("/v1/accounts/whoami"));
+  }
+
+  @Test
+  public void testResponseBufferPool() throws IOException {
+    final ResponseBufferPool pool = new ResponseBufferPool(1);
+
+    final ResponseBufferPool.ResponseBuffer buffer = pool.acquire();
+    buffer.write(new byte[] { 1, 2, 3 });
+    pool.release(buffer);
+
+    assertThat(pool.size()).isEqualTo(1);
+
+    final ResponseBufferPool.ResponseBuffer reused = pool.acquire();
+    assertThat(reused).isSameAs(buffer);
+    assertThat(reused.size()).isZero();
+
+    // oversized buffers aren't retained
+    reused.write(new byte[ResponseBufferPool.MAX_POOLED_BUFFER_SIZE + 1]);
+    pool.release(reused);
+
+    assertThat(pool.size()).isZero();
+  }
+
+  @Test
+  public void testRequestTimeout() throws Exception {
+    WebSocketResourceProvider<TestPrincipal> provider = new WebSocketResourceProvider<>("127.0.0.1",
+        mock(ApplicationHandler.class), mock(WebsocketRequestLog.class),
+        new TestPrincipal("fooz"),
+        new ProtobufWebSocketMessageFactory(),
+        Optional.empty(),
+        30000,
+        new OutboundQueueConfiguration(),
+        Duration.ofMillis(200),
+        new Meter());
+
+    Session session = mock(Session.class);
+    RemoteEndpoint remoteEndpoint = mock(RemoteEndpoint.class);
+
+    when(session.getUpgradeRequest()).thenReturn(mock(UpgradeRequest.class));
+    when(session.getRemote()).thenReturn(remoteEndpoint);
+
+    provider.onWebSocketConnect(session);
+
+    CompletableFuture<WebSocketResponseMessage> unansweredFuture = provider.getContext().getClient()
+        .sendRequest("PUT", "/v1/unanswered", List.of(), Optional.empty());
+
+    CompletableFuture<WebSocketResponseMessage> answeredFuture = provider.getContext().getClient()
+        .sendRequest("PUT", "/v1/answered", List.of(), Optional.empty());
+
+    ArgumentCaptor<ByteBuffer> requestCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
+    verify(remoteEndpoint, times(2)).sendBytes(requestCaptor.capture(), any(WriteCallback.class));
+
+    SubProtocol.WebSocketRequestMessage answeredRequest = getRequest(requestCaptor);
+    byte[] clientResponse = new ProtobufWebSocketMessageFactory().createResponse(answeredRequest.getId(), 200, "OK", new LinkedList<>(), Optional.empty()).toByteArray();
+
+    provider.onWebSocketBinary(clientResponse, 0, clientResponse.length);
+
+    assertThat(answeredFuture.get(1, TimeUnit.SECONDS).getStatus()).isEqualTo(200);
 
-    assertThat(WebSocketResourceProvider.getCombinedHeaders(upgradeRequestHeaders, requestMessageHeaders)).isEqualTo(expectedHeaders);
+    assertThatThrownBy(() -> unansweredFuture.get(5, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(TimeoutException.class);
   }
 
   private SubProtocol.WebSocketResponseMessage getResponse(ArgumentCaptor<ByteBuffer> responseCaptor) throws InvalidProtocolBufferException {